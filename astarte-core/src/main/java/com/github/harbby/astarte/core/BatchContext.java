@@ -16,6 +16,7 @@
 package com.github.harbby.astarte.core;
 
 import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.Broadcast;
 import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.DataSet;
 import com.github.harbby.astarte.core.api.KvDataSet;
@@ -28,6 +29,7 @@ import com.github.harbby.gadtry.base.Lazys;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 import com.github.harbby.gadtry.function.Function1;
 
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -119,4 +121,10 @@ public interface BatchContext
     }
 
     public <E, R> List<R> runJob(Operator<E> dataSet, Mapper<Iterator<E>, R> action);
+
+    /**
+     * 广播一个只读的值, driver只保存一份, 每个executor第一次读取时拉取一次, task中通过Broadcast.getValue()读取.
+     * 不再使用时调用Broadcast.destroy()释放
+     */
+    public <T extends Serializable> Broadcast<T> broadcast(T value);
 }
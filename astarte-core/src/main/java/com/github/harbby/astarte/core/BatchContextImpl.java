@@ -16,18 +16,27 @@
 package com.github.harbby.astarte.core;
 
 import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.AstarteException;
+import com.github.harbby.astarte.core.api.Broadcast;
 import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.KvDataSet;
 import com.github.harbby.astarte.core.api.Stage;
 import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.astarte.core.operator.BroadcastJoinOperator;
 import com.github.harbby.astarte.core.operator.Operator;
 import com.github.harbby.astarte.core.operator.ShuffleMapOperator;
+import com.github.harbby.astarte.core.runtime.BroadcastManager;
 import com.github.harbby.astarte.core.runtime.ClusterScheduler;
 import com.github.harbby.astarte.core.runtime.LocalJobScheduler;
+import com.github.harbby.astarte.core.runtime.MapOutputLostException;
+import com.github.harbby.astarte.core.runtime.MapOutputTracker;
+import com.github.harbby.gadtry.base.Serializables;
 import com.github.harbby.gadtry.graph.Graph;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -45,6 +54,7 @@ import java.util.regex.Pattern;
 
 import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
 
 /**
  * Local achieve
@@ -53,6 +63,7 @@ class BatchContextImpl
         implements BatchContext
 {
     private static final Logger logger = LoggerFactory.getLogger(BatchContextImpl.class);
+    private static final int MAX_JOB_REPLANS = 3;
     private final AtomicInteger nextJobId = new AtomicInteger(1);
     private final AstarteConf conf;
 
@@ -91,7 +102,22 @@ class BatchContextImpl
     public <E, R> List<R> runJob(Operator<E> finalOperator, Mapper<Iterator<E>, R> action)
     {
         checkArgument(!(finalOperator instanceof KvDataSet), "use unboxing(this)");
-        int jobId = nextJobId.getAndIncrement();
+        //被跳过的stage复用的shuffle输出在运行中丢失时, 丢失的输出已从tracker中移除, 重新划分stage后再运行
+        for (int i = 1; ; i++) {
+            try {
+                return runJob(nextJobId.getAndIncrement(), finalOperator, action);
+            }
+            catch (MapOutputLostException e) {
+                if (i >= MAX_JOB_REPLANS) {
+                    throw e;
+                }
+                logger.warn("{}, replanning job", e.getMessage());
+            }
+        }
+    }
+
+    private <E, R> List<R> runJob(int jobId, Operator<E> finalOperator, Mapper<Iterator<E>, R> action)
+    {
         logger.info("begin analysis job {} deps to stageDAG", jobId);
 
         Map<Stage, Map<Integer, Integer>> stageMap = findShuffleMapOperator(jobId, finalOperator);
@@ -104,7 +130,64 @@ class BatchContextImpl
             logger.info("job graph tree:{}", String.join("\n", graph.printShow()));
         }
         //---------------------
-        return jobScheduler.runJob(jobId, stages, action, stageMap);
+        List<BroadcastJoinOperator<?, ?, ?>> broadcastJoins = findBroadcastJoinOperator(stages);
+        List<BroadcastJoinOperator<?, ?, ?>> acquired = new ArrayList<>();
+        try {
+            for (BroadcastJoinOperator<?, ?, ?> operator : broadcastJoins) {
+                operator.acquireBroadcast();
+                acquired.add(operator);
+            }
+            return jobScheduler.runJob(jobId, stages, action, stageMap);
+        }
+        finally {
+            acquired.forEach(BroadcastJoinOperator::releaseBroadcast);
+        }
+    }
+
+    /**
+     * 找出需要运行的stage中的广播join, 被跳过的stage不需要广播
+     */
+    private static List<BroadcastJoinOperator<?, ?, ?>> findBroadcastJoinOperator(List<Stage> stages)
+    {
+        Set<Operator<?>> visited = new HashSet<>();
+        List<BroadcastJoinOperator<?, ?, ?>> broadcastJoins = new ArrayList<>();
+        for (Stage stage : stages) {
+            if (stage instanceof ShuffleMapStage && ((ShuffleMapStage) stage).isSkipped()) {
+                continue;
+            }
+            Queue<Operator<?>> queue = new LinkedList<>();
+            queue.add(stage.getFinalOperator());
+            while (!queue.isEmpty()) {
+                Operator<?> operator = queue.poll();
+                //上游的ShuffleMapOperator属于其他stage
+                if ((operator instanceof ShuffleMapOperator && operator != stage.getFinalOperator()) || !visited.add(operator)) {
+                    continue;
+                }
+                if (operator instanceof BroadcastJoinOperator) {
+                    broadcastJoins.add((BroadcastJoinOperator<?, ?, ?>) operator);
+                }
+                queue.addAll(operator.getDependencies());
+            }
+        }
+        return broadcastJoins;
+    }
+
+    @Override
+    public <T extends Serializable> Broadcast<T> broadcast(T value)
+    {
+        requireNonNull(value, "broadcast value is null");
+        long id = BroadcastManager.newBroadcastId();
+        byte[] bytes;
+        try {
+            bytes = Serializables.serialize(value);
+        }
+        catch (IOException e) {
+            throw new AstarteException("serialize broadcast value failed", e);
+        }
+        BroadcastManager.putValue(id, value);
+        jobScheduler.broadcast(id, bytes);
+        logger.info("broadcast {} size {} bytes", id, bytes.length);
+        return new Broadcast<>(id, jobScheduler);
     }
 
     /**
@@ -151,6 +234,12 @@ class BatchContextImpl
                     mapping.put(operator, newStage);
                     map.put(newStage, new LinkedHashMap<>());
                     stageDeps.put(operator.getId(), i);
+                    MapOutputTracker.ShuffleOutput shuffleOutput = jobScheduler.getMapOutputTracker().getShuffleOutput(operator.getId());
+                    if (shuffleOutput != null) {
+                        //shuffle输出已被之前的job物化, 跳过该stage及其上游
+                        newStage.setMaterializedOutput(shuffleOutput);
+                        continue;
+                    }
                 }
                 else {
                     mapping.put(operator, thisStage);
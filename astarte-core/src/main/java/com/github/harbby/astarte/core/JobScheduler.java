@@ -17,6 +17,7 @@ package com.github.harbby.astarte.core;
 
 import com.github.harbby.astarte.core.api.Stage;
 import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.astarte.core.runtime.MapOutputTracker;
 
 import java.util.Iterator;
 import java.util.List;
@@ -29,6 +30,25 @@ public interface JobScheduler
             Mapper<Iterator<E>, R> action,
             Map<Stage, Map<Integer, Integer>> stageMap);
 
+    /**
+     * 已物化的shuffle输出, 划分stage时用于跳过之前job已经完成的ShuffleMapStage
+     */
+    public MapOutputTracker getMapOutputTracker();
+
+    /**
+     * 保存序列化后的广播变量供executor拉取, local模式task与driver共享进程内存储, 无需保存
+     */
+    public default void broadcast(long id, byte[] bytes)
+    {
+    }
+
+    /**
+     * 通知executor释放广播变量的缓存
+     */
+    public default void destroyBroadcast(long id)
+    {
+    }
+
     public default void stop()
     {
     }
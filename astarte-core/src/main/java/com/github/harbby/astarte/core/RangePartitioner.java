@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core;
+
+import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.api.function.NaturalOrderComparator;
+
+import java.util.Arrays;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 范围分区器, 对有序的分区边界做二分查找, 返回第一个大于key的边界下标
+ * <p>
+ * 当ordering为{@link Comparator#naturalOrder()}或{@link Comparator#reverseOrder()},
+ * 且边界全部为Integer, Long或String时, 使用原始类型的边界数组, 避免每条记录都调用Comparator
+ */
+public abstract class RangePartitioner
+        extends Partitioner
+{
+    private final int numPartitions;
+
+    protected RangePartitioner(int numPartitions, int boundsLength)
+    {
+        checkArgument(boundsLength < numPartitions, "bounds length must < numPartitions");
+        this.numPartitions = numPartitions;
+    }
+
+    @Override
+    public int numPartitions()
+    {
+        return numPartitions;
+    }
+
+    public static <K> RangePartitioner of(int numPartitions, K[] bounds, Comparator<K> ordering)
+    {
+        requireNonNull(ordering, "ordering is null");
+        if ((Object) ordering instanceof NaturalOrderComparator && bounds.length > 0) {
+            boolean descending = (Object) ordering == NaturalOrderComparator.REVERSE;
+            Class<?> boundClass = bounds[0].getClass();
+            if (Arrays.stream(bounds).allMatch(x -> x != null && x.getClass() == boundClass)) {
+                if (boundClass == Integer.class) {
+                    return new IntRangePartitioner(numPartitions, Arrays.stream(bounds).mapToInt(x -> (Integer) x).toArray(), descending);
+                }
+                else if (boundClass == Long.class) {
+                    return new LongRangePartitioner(numPartitions, Arrays.stream(bounds).mapToLong(x -> (Long) x).toArray(), descending);
+                }
+                else if (boundClass == String.class) {
+                    char[][] chars = Arrays.stream(bounds).map(x -> ((String) x).toCharArray()).toArray(char[][]::new);
+                    return new StringRangePartitioner(numPartitions, chars, descending);
+                }
+            }
+        }
+        return new ObjectRangePartitioner<>(numPartitions, bounds, ordering);
+    }
+
+    public static class ObjectRangePartitioner<K>
+            extends RangePartitioner
+    {
+        private final K[] bounds;
+        private final Comparator<K> ordering;
+
+        public ObjectRangePartitioner(int numPartitions, K[] bounds, Comparator<K> ordering)
+        {
+            super(numPartitions, bounds.length);
+            this.bounds = bounds;
+            this.ordering = requireNonNull(ordering, "ordering is null");
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public int getPartition(Object key)
+        {
+            K k = (K) key;
+            int low = 0;
+            int high = bounds.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ordering.compare(k, bounds[mid]) < 0) {
+                    high = mid;
+                }
+                else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    public static class IntRangePartitioner
+            extends RangePartitioner
+    {
+        private final int[] bounds;
+        private final boolean descending;
+
+        public IntRangePartitioner(int numPartitions, int[] bounds, boolean descending)
+        {
+            super(numPartitions, bounds.length);
+            this.bounds = bounds;
+            this.descending = descending;
+        }
+
+        @Override
+        public int getPartition(Object key)
+        {
+            int k = (Integer) key;
+            int low = 0;
+            int high = bounds.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (descending ? k > bounds[mid] : k < bounds[mid]) {
+                    high = mid;
+                }
+                else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    public static class LongRangePartitioner
+            extends RangePartitioner
+    {
+        private final long[] bounds;
+        private final boolean descending;
+
+        public LongRangePartitioner(int numPartitions, long[] bounds, boolean descending)
+        {
+            super(numPartitions, bounds.length);
+            this.bounds = bounds;
+            this.descending = descending;
+        }
+
+        @Override
+        public int getPartition(Object key)
+        {
+            long k = (Long) key;
+            int low = 0;
+            int high = bounds.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (descending ? k > bounds[mid] : k < bounds[mid]) {
+                    high = mid;
+                }
+                else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * 边界保存为char[], 与String.compareTo一致按utf-16逐字符比较
+     */
+    public static class StringRangePartitioner
+            extends RangePartitioner
+    {
+        private final char[][] bounds;
+        private final boolean descending;
+
+        public StringRangePartitioner(int numPartitions, char[][] bounds, boolean descending)
+        {
+            super(numPartitions, bounds.length);
+            this.bounds = bounds;
+            this.descending = descending;
+        }
+
+        @Override
+        public int getPartition(Object key)
+        {
+            String k = (String) key;
+            int low = 0;
+            int high = bounds.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(k, bounds[mid]);
+                if (descending ? c > 0 : c < 0) {
+                    high = mid;
+                }
+                else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        private static int compare(String key, char[] bound)
+        {
+            int length = Math.min(key.length(), bound.length);
+            for (int i = 0; i < length; i++) {
+                char c = key.charAt(i);
+                if (c != bound[i]) {
+                    return c - bound[i];
+                }
+            }
+            return key.length() - bound.length;
+        }
+    }
+}
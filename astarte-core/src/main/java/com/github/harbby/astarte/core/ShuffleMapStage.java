@@ -18,18 +18,42 @@ package com.github.harbby.astarte.core;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.Stage;
 import com.github.harbby.astarte.core.operator.ShuffleMapOperator;
+import com.github.harbby.astarte.core.runtime.MapOutputTracker;
 
 public class ShuffleMapStage
         extends Stage
 {
+    //之前的job已物化的shuffle输出, 不为null时跳过该stage
+    private transient MapOutputTracker.ShuffleOutput materializedOutput;
+
     public ShuffleMapStage(ShuffleMapOperator<?, ?> operator, int jobId, int stageId)
     {
         super(operator, jobId, stageId);
     }
 
+    public void setMaterializedOutput(MapOutputTracker.ShuffleOutput materializedOutput)
+    {
+        this.materializedOutput = materializedOutput;
+    }
+
+    public MapOutputTracker.ShuffleOutput getMaterializedOutput()
+    {
+        return materializedOutput;
+    }
+
+    public boolean isSkipped()
+    {
+        return materializedOutput != null;
+    }
+
     @Override
     public void compute(Partition split, TaskContext taskContext)
     {
-        getFinalOperator().computeOrCache(split, taskContext);
+        runMapTask(split, taskContext);
+    }
+
+    public MapTaskState runMapTask(Partition split, TaskContext taskContext)
+    {
+        return ((ShuffleMapOperator<?, ?>) getFinalOperator()).runMapTask(split, taskContext);
     }
 }
@@ -48,7 +48,6 @@ public class ShuffleMapTask<E>
     @Override
     public MapTaskState runTask(TaskContext taskContext)
     {
-        stage.compute(partition, taskContext);
-        return null;
+        return ((ShuffleMapStage) stage).runMapTask(partition, taskContext);
     }
 }
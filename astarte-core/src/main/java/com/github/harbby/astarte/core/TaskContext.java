@@ -15,9 +15,12 @@
  */
 package com.github.harbby.astarte.core;
 
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
 import com.github.harbby.astarte.core.runtime.ShuffleClient;
 import com.google.common.collect.ImmutableMap;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public interface TaskContext
@@ -26,20 +29,43 @@ public interface TaskContext
 
     int getStageId();
 
+    /**
+     * task的第几次执行, 推测执行时同一个task会有多个attempt
+     */
+    int getAttemptId();
+
     Map<Integer, Integer> getDependStages();
 
     public ShuffleClient getShuffleClient();
 
     public String executorUUID();
 
+    public TaskMetrics getTaskMetrics();
+
+    public TaskMemoryManager getTaskMemoryManager();
+
+    /**
+     * task结束(包括提前结束和失败)时回调, 用于释放算子持有的资源
+     */
+    public void addTaskCompletionListener(Runnable listener);
+
+    /**
+     * 由执行task的线程在task结束后调用
+     */
+    public void markTaskCompleted();
+
     public static TaskContext of(
             int jobId,
             int stageId,
+            int attemptId,
             Map<Integer, Integer> depStages,
             ShuffleClient shuffleClient,
-            String executorUUID)
+            String executorUUID,
+            TaskMemoryManager taskMemoryManager)
     {
         Map<Integer, Integer> deps = ImmutableMap.copyOf(depStages);
+        TaskMetrics taskMetrics = new TaskMetrics();
+        List<Runnable> completionListeners = new ArrayList<>();
         return new TaskContext()
         {
             @Override
@@ -54,6 +80,12 @@ public interface TaskContext
                 return stageId;
             }
 
+            @Override
+            public int getAttemptId()
+            {
+                return attemptId;
+            }
+
             @Override
             public Map<Integer, Integer> getDependStages()
             {
@@ -71,6 +103,33 @@ public interface TaskContext
             {
                 return executorUUID;
             }
+
+            @Override
+            public TaskMetrics getTaskMetrics()
+            {
+                return taskMetrics;
+            }
+
+            @Override
+            public TaskMemoryManager getTaskMemoryManager()
+            {
+                return taskMemoryManager;
+            }
+
+            @Override
+            public void addTaskCompletionListener(Runnable listener)
+            {
+                completionListeners.add(listener);
+            }
+
+            @Override
+            public void markTaskCompleted()
+            {
+                for (Runnable listener : completionListeners) {
+                    listener.run();
+                }
+                completionListeners.clear();
+            }
         };
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core;
+
+import java.io.Serializable;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * task运行期间的统计指标, 每个task一份, 运行结束后随TaskEvent一起返回
+ */
+public class TaskMetrics
+        implements Serializable
+{
+    private long compressInputBytes;
+    private long compressOutputBytes;
+    private long compressNanos;
+    private long decompressNanos;
+    private long spilledBytes;
+    private long shuffleWriteBytes;
+    private long shuffleReadBytes;
+    private long shuffleFetchWaitNanos;
+    private long executorRunTime;
+    private long combineSampledRecords;
+    private long combineSampledKeys;
+    private boolean combineBypassed;
+
+    public void incCompress(long inputBytes, long outputBytes, long nanos)
+    {
+        this.compressInputBytes += inputBytes;
+        this.compressOutputBytes += outputBytes;
+        this.compressNanos += nanos;
+    }
+
+    public void incDecompressNanos(long nanos)
+    {
+        this.decompressNanos += nanos;
+    }
+
+    public void incSpilledBytes(long bytes)
+    {
+        this.spilledBytes += bytes;
+    }
+
+    public void incShuffleWriteBytes(long bytes)
+    {
+        this.shuffleWriteBytes += bytes;
+    }
+
+    public void incShuffleRead(long bytes, long fetchWaitNanos)
+    {
+        this.shuffleReadBytes += bytes;
+        this.shuffleFetchWaitNanos += fetchWaitNanos;
+    }
+
+    public long getShuffleReadBytes()
+    {
+        return shuffleReadBytes;
+    }
+
+    /**
+     * reduce task等待shuffle数据到达的时间, 网络传输与反序列化重叠得越好该值越小
+     */
+    public long getShuffleFetchWaitNanos()
+    {
+        return shuffleFetchWaitNanos;
+    }
+
+    /**
+     * map task写出的shuffle数据字节数, driver据此推算reduce task的数据本地性
+     */
+    public long getShuffleWriteBytes()
+    {
+        return shuffleWriteBytes;
+    }
+
+    public void setExecutorRunTime(long millis)
+    {
+        this.executorRunTime = millis;
+    }
+
+    /**
+     * task在executor上的运行时长(毫秒), driver据此判断慢task
+     */
+    public long getExecutorRunTime()
+    {
+        return executorRunTime;
+    }
+
+    /**
+     * map端combine采样了多少条记录, 其中有多少个不同的key, 以及是否因为聚合效果太差而跳过了之后的combine
+     */
+    public void setCombineDecision(long sampledRecords, long sampledKeys, boolean bypassed)
+    {
+        this.combineSampledRecords = sampledRecords;
+        this.combineSampledKeys = sampledKeys;
+        this.combineBypassed = bypassed;
+    }
+
+    public long getCombineSampledRecords()
+    {
+        return combineSampledRecords;
+    }
+
+    public long getCombineSampledKeys()
+    {
+        return combineSampledKeys;
+    }
+
+    public boolean isCombineBypassed()
+    {
+        return combineBypassed;
+    }
+
+    public long getSpilledBytes()
+    {
+        return spilledBytes;
+    }
+
+    public long getCompressInputBytes()
+    {
+        return compressInputBytes;
+    }
+
+    public long getCompressOutputBytes()
+    {
+        return compressOutputBytes;
+    }
+
+    /**
+     * 压缩后大小 / 压缩前大小, 没有压缩过数据时为1.0
+     */
+    public double getCompressionRatio()
+    {
+        return compressInputBytes == 0 ? 1.0 : (double) compressOutputBytes / compressInputBytes;
+    }
+
+    public long getCompressNanos()
+    {
+        return compressNanos;
+    }
+
+    public long getDecompressNanos()
+    {
+        return decompressNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("compressInputBytes", compressInputBytes)
+                .add("compressOutputBytes", compressOutputBytes)
+                .add("compressionRatio", String.format("%.3f", getCompressionRatio()))
+                .add("compressMs", compressNanos / 1000_000)
+                .add("decompressMs", decompressNanos / 1000_000)
+                .add("spilledBytes", spilledBytes)
+                .add("shuffleWriteBytes", shuffleWriteBytes)
+                .add("shuffleReadBytes", shuffleReadBytes)
+                .add("shuffleFetchWaitMs", shuffleFetchWaitNanos / 1000_000)
+                .add("executorRunTimeMs", executorRunTime)
+                .add("combineSampledRecords", combineSampledRecords)
+                .add("combineSampledKeys", combineSampledKeys)
+                .add("combineBypassed", combineBypassed)
+                .toString();
+    }
+}
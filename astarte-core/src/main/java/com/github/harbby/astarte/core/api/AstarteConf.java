@@ -65,4 +65,37 @@ public class AstarteConf
             return Integer.parseInt(value);
         }
     }
+
+    public long getLong(String key, long defaultValue)
+    {
+        String value = props.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        else {
+            return Long.parseLong(value);
+        }
+    }
+
+    public double getDouble(String key, double defaultValue)
+    {
+        String value = props.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        else {
+            return Double.parseDouble(value);
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        String value = props.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        else {
+            return Boolean.parseBoolean(value);
+        }
+    }
 }
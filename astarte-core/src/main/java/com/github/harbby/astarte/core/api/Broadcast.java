@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api;
+
+import com.github.harbby.astarte.core.JobScheduler;
+import com.github.harbby.astarte.core.runtime.BroadcastManager;
+
+import java.io.Serializable;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * 广播变量, 序列化时只包含id. driver只保存一份数据, 每个executor第一次读取时按块拉取一次,
+ * 缓存反序列化后的值直到destroy, 同一executor上的task共享该值, 值应当只读
+ */
+public class Broadcast<T>
+        implements Serializable
+{
+    private final long id;
+    private final transient JobScheduler jobScheduler;
+    private transient T value;
+
+    public Broadcast(long id, JobScheduler jobScheduler)
+    {
+        this.id = id;
+        this.jobScheduler = jobScheduler;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public T getValue()
+    {
+        if (value == null) {
+            value = BroadcastManager.getValue(id);
+        }
+        return value;
+    }
+
+    /**
+     * 释放driver和所有executor上的数据, 只能在driver上调用, 销毁后不能再读取
+     */
+    public void destroy()
+    {
+        checkState(jobScheduler != null, "broadcast can only be destroyed on driver");
+        value = null;
+        BroadcastManager.remove(id);
+        jobScheduler.destroyBroadcast(id);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Broadcast(" + id + ")";
+    }
+}
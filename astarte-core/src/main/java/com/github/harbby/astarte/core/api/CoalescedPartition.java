@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api;
+
+import java.util.Objects;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * 合并后的reduce task分区, 读取[startReduceId, endReduceId)范围内的reduce分区.
+ * id为合并后的task序号
+ */
+public class CoalescedPartition
+        extends Partition
+{
+    private final int startReduceId;
+    private final int endReduceId;
+
+    public CoalescedPartition(int index, int startReduceId, int endReduceId)
+    {
+        super(index);
+        this.startReduceId = startReduceId;
+        this.endReduceId = endReduceId;
+    }
+
+    public int getStartReduceId()
+    {
+        return startReduceId;
+    }
+
+    public int getEndReduceId()
+    {
+        return endReduceId;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("id", getId())
+                .add("startReduceId", startReduceId)
+                .add("endReduceId", endReduceId)
+                .toString();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(getId(), startReduceId, endReduceId);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        CoalescedPartition other = (CoalescedPartition) obj;
+        return this.startReduceId == other.startReduceId && this.endReduceId == other.endReduceId;
+    }
+}
@@ -20,8 +20,55 @@ public class Constant
     private Constant() {}
 
     public static final String DRIVER_SCHEDULER_PORT = "driver.manager.port";
+    public static final int DEFAULT_DRIVER_SCHEDULER_PORT = 7079;
 
     public static final String RUNNING_MODE = "running.mode"; // local or cluster
 
     public static final String EXECUTOR_MEMORY_CONF = "executor.memory.mb";
+    public static final String SCHEDULER_LOCALITY_WAIT = "scheduler.locality.wait.ms"; // max wait for preferred executor slot, 0 disable
+    public static final long DEFAULT_SCHEDULER_LOCALITY_WAIT = 3000;
+    public static final String SCHEDULER_MODE = "scheduler.mode"; // FIFO or FAIR, how concurrent jobs share executor slots, default FIFO
+    public static final String SPECULATION_ENABLE = "scheduler.speculation"; // relaunch straggler tasks on another executor, default false
+    public static final String SPECULATION_QUANTILE = "scheduler.speculation.quantile"; // fraction of tasks finished before speculating
+    public static final double DEFAULT_SPECULATION_QUANTILE = 0.75;
+    public static final String SPECULATION_MULTIPLIER = "scheduler.speculation.multiplier"; // times slower than median to be speculated
+    public static final double DEFAULT_SPECULATION_MULTIPLIER = 1.5;
+    public static final String SPECULATION_MIN_RUNTIME = "scheduler.speculation.min.runtime.ms"; // tasks running shorter are never speculated
+    public static final long DEFAULT_SPECULATION_MIN_RUNTIME = 100;
+    public static final String TASK_MAX_ATTEMPTS = "task.max.attempts"; // failures of one task before the job fails
+    public static final int DEFAULT_TASK_MAX_ATTEMPTS = 4;
+    public static final String EXECUTOR_HEARTBEAT_TIMEOUT = "executor.heartbeat.timeout.ms"; // executor without heartbeat longer is lost
+    public static final long DEFAULT_EXECUTOR_HEARTBEAT_TIMEOUT = 5000;
+
+    public static final String MEMORY_FRACTION = "memory.fraction"; // fraction of heap used by execution and storage
+    public static final double DEFAULT_MEMORY_FRACTION = 0.6;
+    public static final String MEMORY_STORAGE_FRACTION = "memory.storage.fraction"; // max fraction of memory used by cache
+    public static final double DEFAULT_MEMORY_STORAGE_FRACTION = 0.5;
+
+    public static final String SHUFFLE_SORT_SPILL_THRESHOLD = "shuffle.sort.spill.threshold"; // records in memory before spill
+    public static final int DEFAULT_SHUFFLE_SORT_SPILL_THRESHOLD = 1 << 20;
+
+    public static final String SERIALIZER_CLASS = "serializer.class"; // default AstarteSerializer
+
+    public static final String SHUFFLE_COMPRESS_CODEC = "shuffle.compress.codec"; // lz4 or none, default lz4
+    public static final String JOIN_BROADCAST_THRESHOLD = "join.broadcast.threshold"; // max estimated bytes of right side to broadcast, -1 disable
+    public static final long DEFAULT_JOIN_BROADCAST_THRESHOLD = 10L << 20;
+    public static final String JOIN_SORT_MERGE_THRESHOLD = "join.sort.merge.threshold"; // estimated input bytes above which sort merge join is used
+    public static final long DEFAULT_JOIN_SORT_MERGE_THRESHOLD = 256L << 20;
+    public static final String JOIN_SKEW_ENABLE = "join.skew.enable"; // split skewed join reduce partitions into multiple tasks, default true
+    public static final String JOIN_SKEW_FACTOR = "join.skew.factor"; // a reduce partition larger than factor * median size is skewed
+    public static final double DEFAULT_JOIN_SKEW_FACTOR = 5.0;
+    public static final String JOIN_SKEW_THRESHOLD_BYTES = "join.skew.threshold.bytes"; // a skewed reduce partition must also be larger than this
+    public static final long DEFAULT_JOIN_SKEW_THRESHOLD_BYTES = 256L << 20;
+
+    public static final String SHUFFLE_COMPRESS_BLOCK_SIZE = "shuffle.compress.block.size"; // uncompressed bytes per block
+    public static final String SHUFFLE_MAX_BYTES_IN_FLIGHT = "shuffle.reduce.max.bytes.in.flight"; // fetched but not yet consumed bytes per reduce task
+    public static final long DEFAULT_SHUFFLE_MAX_BYTES_IN_FLIGHT = 48L << 20;
+    public static final String SHUFFLE_COALESCE_ENABLE = "shuffle.coalesce.enable"; // merge adjacent small reduce partitions into one task, default true
+    public static final String SHUFFLE_COALESCE_TARGET_BYTES = "shuffle.coalesce.target.bytes"; // max shuffle input bytes of one coalesced reduce task
+    public static final long DEFAULT_SHUFFLE_COALESCE_TARGET_BYTES = 64L << 20;
+    public static final String SHUFFLE_COMBINE_SAMPLE_RECORDS = "shuffle.combine.sample.records"; // records sampled before deciding map side combine, <= 0 always combine
+    public static final long DEFAULT_SHUFFLE_COMBINE_SAMPLE_RECORDS = 100_000;
+    public static final String SHUFFLE_COMBINE_BYPASS_RATIO = "shuffle.combine.bypass.ratio"; // skip map side combine when sampled keys / records is above this
+    public static final double DEFAULT_SHUFFLE_COMBINE_BYPASS_RATIO = 0.9;
 }
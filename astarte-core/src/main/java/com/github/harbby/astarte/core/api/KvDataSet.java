@@ -111,6 +111,13 @@ public interface KvDataSet<K, V>
 
     public <W> KvDataSet<K, Tuple2<V, W>> leftJoin(DataSet<Tuple2<K, W>> kvDataSet);
 
+    /**
+     * 右侧为小表时使用: 右侧收集到driver后广播, 左侧在map端直接join, 没有shuffle
+     */
+    public <W> KvDataSet<K, Tuple2<V, W>> broadcastJoin(DataSet<Tuple2<K, W>> kvDataSet);
+
+    public <W> KvDataSet<K, Tuple2<V, W>> broadcastLeftJoin(DataSet<Tuple2<K, W>> kvDataSet);
+
     @Override
     public KvDataSet<K, V> union(DataSet<Tuple2<K, V>> kvDataSet);
 
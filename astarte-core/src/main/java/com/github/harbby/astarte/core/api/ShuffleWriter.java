@@ -16,86 +16,139 @@
 package com.github.harbby.astarte.core.api;
 
 import com.github.harbby.astarte.core.Partitioner;
+import com.github.harbby.astarte.core.TaskMetrics;
 import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.memory.MemoryConsumer;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
 import com.github.harbby.astarte.core.operator.SortShuffleWriter;
-import com.github.harbby.gadtry.base.Serializables;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Serializable;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 
 import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.getShuffleWorkDir;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 
 public interface ShuffleWriter<K, V>
         extends Closeable
 {
-    public File getDataFile(int shuffleId, int mapId, int reduceId);
+    public File getDataFile(int shuffleId, int mapId);
+
+    public File getIndexFile(int shuffleId, int mapId);
 
     public void write(Iterator<? extends Tuple2<K, V>> iterator)
             throws IOException;
 
+    /**
+     * close之后调用, 返回每个reduce分区写出的字节数(包含块头)
+     */
+    public long[] getPartitionLengths();
+
     public static <K, V> ShuffleWriter<K, V> createShuffleWriter(
             String executorUUID,
             int jobId,
             int shuffleId,
             int mapId,
+            int attemptId,
             Partitioner partitioner,
-            Comparator<K> ordering)
+            Comparator<K> ordering,
+            int sortSpillThreshold,
+            SerializerManager serializerManager,
+            TaskMetrics metrics,
+            TaskMemoryManager taskMemoryManager)
     {
         if (ordering != null) {
-            return new SortShuffleWriter<>(executorUUID, jobId, shuffleId, mapId, ordering, partitioner);
+            return new SortShuffleWriter<>(executorUUID, jobId, shuffleId, mapId, attemptId, ordering, partitioner, sortSpillThreshold,
+                    serializerManager, metrics, taskMemoryManager);
         }
-        return new HashShuffleWriter<>(executorUUID, jobId, shuffleId, mapId, partitioner);
+        return new ConsolidatedShuffleWriter<>(executorUUID, jobId, shuffleId, mapId, attemptId, partitioner, serializerManager, metrics, taskMemoryManager);
     }
 
-    public static class HashShuffleWriter<K, V>
+    /**
+     * 每个map task只输出一个data文件和一个index文件
+     * data文件按reduceId分段连续存放, index文件记录每个分段的起始offset(numPartitions + 1个long)
+     * <p>
+     * 内存中按分区缓存序列化后的数据,超过阈值或申请不到execution内存时整体溢写为一个spill文件,close时将所有spill文件按分区合并
+     */
+    public static class ConsolidatedShuffleWriter<K, V>
+            extends MemoryConsumer
             implements ShuffleWriter<K, V>
     {
+        private static final int SPILL_BUFFER_SIZE = 32 * 1024 * 1024;
+
         private final String executorUUID;
         private final int shuffleId;
         private final int mapId;
+        private final int attemptId;
         private final int jobId;
         private final Partitioner partitioner;
-        //todo: use array index, not hash
-        private final Map<Integer, DataOutputStream> outputStreamMap = new HashMap<>();
+        private final SerializerManager serializerManager;
+        private final TaskMetrics metrics;
+        private final PartitionBuffer[] partitionBuffers;
+        private final List<SpillFile> spillFiles = new ArrayList<>();
+        private long bufferedBytes = 0;
+        private long[] partitionLengths;
 
-        public HashShuffleWriter(
+        public ConsolidatedShuffleWriter(
                 String executorUUID,
                 int jobId,
                 int shuffleId,
                 int mapId,
-                Partitioner partitioner)
+                int attemptId,
+                Partitioner partitioner,
+                SerializerManager serializerManager,
+                TaskMetrics metrics,
+                TaskMemoryManager taskMemoryManager)
         {
+            super(taskMemoryManager);
             this.executorUUID = executorUUID;
             this.jobId = jobId;
             this.shuffleId = shuffleId;
             this.mapId = mapId;
+            this.attemptId = attemptId;
             this.partitioner = partitioner;
+            this.serializerManager = serializerManager;
+            this.metrics = metrics;
+            this.partitionBuffers = new PartitionBuffer[partitioner.numPartitions()];
         }
 
-        protected void write(int reduceId, Serializable value)
+        protected void write(int reduceId, Object value)
                 throws IOException
         {
-            DataOutputStream dataOutputStream = outputStreamMap.get(reduceId);
-            if (dataOutputStream == null) {
-                File file = this.getDataFile(shuffleId, mapId, reduceId);
-                if (!file.getParentFile().exists()) {
-                    file.getParentFile().mkdirs();
-                }
-                dataOutputStream = new DataOutputStream(new FileOutputStream(this.getDataFile(shuffleId, mapId, reduceId), false));
-                outputStreamMap.put(reduceId, dataOutputStream);
+            PartitionBuffer buffer = partitionBuffers[reduceId];
+            if (buffer == null) {
+                buffer = new PartitionBuffer(serializerManager, metrics);
+                partitionBuffers[reduceId] = buffer;
+            }
+            long size = buffer.size();
+            buffer.writer.write(value);
+            bufferedBytes += buffer.size() - size;
+            if (bufferedBytes >= SPILL_BUFFER_SIZE || maybeAcquireMemory(bufferedBytes)) {
+                spill();
             }
+        }
 
-            byte[] bytes = Serializables.serialize(value);
-            dataOutputStream.writeInt(bytes.length);
-            dataOutputStream.write(bytes);
+        @Override
+        public long spill(long required, MemoryConsumer trigger)
+                throws IOException
+        {
+            if (trigger == this || bufferedBytes == 0) {
+                return 0;
+            }
+            long released = getUsed();
+            spill();
+            return released;
         }
 
         @Override
@@ -109,21 +162,171 @@ public interface ShuffleWriter<K, V>
             }
         }
 
+        private void spill()
+                throws IOException
+        {
+            File spillFile = new File(getJobDir(), String.format("shuffle_%s_%s_%s_%s.spill", shuffleId, mapId, attemptId, spillFiles.size()));
+            try (FileOutputStream outputStream = new FileOutputStream(spillFile, false)) {
+                long[] offsets = writePartitionBuffers(outputStream);
+                spillFiles.add(new SpillFile(spillFile, offsets));
+                metrics.incSpilledBytes(offsets[offsets.length - 1]);
+            }
+            bufferedBytes = 0;
+            freeMemory(getUsed());
+        }
+
+        private long[] writePartitionBuffers(FileOutputStream outputStream)
+                throws IOException
+        {
+            long[] offsets = new long[partitionBuffers.length + 1];
+            long position = 0;
+            for (int reduceId = 0; reduceId < partitionBuffers.length; reduceId++) {
+                offsets[reduceId] = position;
+                PartitionBuffer buffer = partitionBuffers[reduceId];
+                if (buffer != null) {
+                    buffer.writer.flushBlock();
+                    buffer.bytes.writeTo(outputStream);
+                    position += buffer.bytes.size();
+                    buffer.bytes.reset();
+                }
+            }
+            offsets[partitionBuffers.length] = position;
+            return offsets;
+        }
+
+        protected File getJobDir()
+        {
+            File jobDir = new File(getShuffleWorkDir(executorUUID), String.valueOf(jobId));
+            if (!jobDir.exists()) {
+                jobDir.mkdirs();
+            }
+            return jobDir;
+        }
+
         @Override
-        public File getDataFile(int shuffleId, int mapId, int reduceId)
+        public File getDataFile(int shuffleId, int mapId)
         {
             // spark path /tmp/blockmgr-0b4744ba-bffa-420d-accb-fbc475da7a9d/27/shuffle_101_201_0.data
-            String fileName = "shuffle_" + shuffleId + "_" + mapId + "_" + reduceId + ".data";
-            File shuffleWorkDir = getShuffleWorkDir(executorUUID);
-            return new File(shuffleWorkDir, String.format("%s/%s", jobId, fileName));
+            //文件名带上attemptId, 同一个map task的多个attempt(推测执行)输出互不覆盖
+            return new File(getJobDir(), "shuffle_" + shuffleId + "_" + mapId + "_" + attemptId + ".data");
+        }
+
+        @Override
+        public File getIndexFile(int shuffleId, int mapId)
+        {
+            return new File(getJobDir(), "shuffle_" + shuffleId + "_" + mapId + "_" + attemptId + ".index");
+        }
+
+        @Override
+        public long[] getPartitionLengths()
+        {
+            checkState(partitionLengths != null, "shuffle writer not closed");
+            return partitionLengths;
         }
 
         @Override
         public void close()
                 throws IOException
         {
-            for (DataOutputStream dataOutputStream : outputStreamMap.values()) {
-                dataOutputStream.close();
+            File dataFile = getDataFile(shuffleId, mapId);
+            long[] offsets;
+            try (FileOutputStream outputStream = new FileOutputStream(dataFile, false)) {
+                if (spillFiles.isEmpty()) {
+                    offsets = writePartitionBuffers(outputStream);
+                }
+                else {
+                    spill();
+                    offsets = mergeSpillFiles(outputStream.getChannel());
+                }
+            }
+            finally {
+                for (SpillFile spillFile : spillFiles) {
+                    spillFile.file.delete();
+                }
+                spillFiles.clear();
+                freeMemory(getUsed());
+            }
+
+            metrics.incShuffleWriteBytes(offsets[offsets.length - 1]);
+            partitionLengths = new long[partitionBuffers.length];
+            for (int reduceId = 0; reduceId < partitionLengths.length; reduceId++) {
+                partitionLengths[reduceId] = offsets[reduceId + 1] - offsets[reduceId];
+            }
+
+            //先写临时文件再rename, 保证reduce端读到的index是完整的
+            File indexFile = getIndexFile(shuffleId, mapId);
+            File tmpIndexFile = new File(indexFile.getPath() + ".tmp");
+            try (DataOutputStream indexOutput = new DataOutputStream(new FileOutputStream(tmpIndexFile, false))) {
+                for (long offset : offsets) {
+                    indexOutput.writeLong(offset);
+                }
+            }
+            checkState(tmpIndexFile.renameTo(indexFile), "rename index file " + tmpIndexFile + " failed");
+        }
+
+        private long[] mergeSpillFiles(FileChannel output)
+                throws IOException
+        {
+            long[] offsets = new long[partitionBuffers.length + 1];
+            List<FileChannel> channels = new ArrayList<>(spillFiles.size());
+            try {
+                for (SpillFile spillFile : spillFiles) {
+                    channels.add(FileChannel.open(spillFile.file.toPath(), StandardOpenOption.READ));
+                }
+                long position = 0;
+                for (int reduceId = 0; reduceId < partitionBuffers.length; reduceId++) {
+                    offsets[reduceId] = position;
+                    for (int i = 0; i < spillFiles.size(); i++) {
+                        long start = spillFiles.get(i).offsets[reduceId];
+                        long length = spillFiles.get(i).offsets[reduceId + 1] - start;
+                        position += transferFully(channels.get(i), start, length, output);
+                    }
+                }
+                offsets[partitionBuffers.length] = position;
+                return offsets;
+            }
+            finally {
+                for (FileChannel channel : channels) {
+                    channel.close();
+                }
+            }
+        }
+
+        private static long transferFully(FileChannel input, long position, long length, FileChannel output)
+                throws IOException
+        {
+            long transferred = 0;
+            while (transferred < length) {
+                transferred += input.transferTo(position + transferred, length - transferred, output);
+            }
+            return transferred;
+        }
+
+        private static class PartitionBuffer
+        {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            private final RecordBlockWriter writer;
+
+            private PartitionBuffer(SerializerManager serializerManager, TaskMetrics metrics)
+            {
+                this.writer = serializerManager.newBlockWriter(bytes, metrics);
+            }
+
+            private long size()
+            {
+                return bytes.size() + writer.getPendingBytes();
+            }
+        }
+
+        private static class SpillFile
+        {
+            private final File file;
+            private final long[] offsets;
+
+            private SpillFile(File file, long[] offsets)
+            {
+                this.file = file;
+                this.offsets = offsets;
             }
         }
     }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api;
+
+import java.util.Objects;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * 倾斜的reduce分区拆分出的join task分区.
+ * 第splitSide侧只读取mapId在[startMapId, endMapId)范围内的map输出, 其他侧读取完整的reduce分区
+ */
+public class SkewedPartition
+        extends CoalescedPartition
+{
+    private final int splitSide;
+    private final int startMapId;
+    private final int endMapId;
+
+    public SkewedPartition(int index, int reduceId, int splitSide, int startMapId, int endMapId)
+    {
+        super(index, reduceId, reduceId + 1);
+        this.splitSide = splitSide;
+        this.startMapId = startMapId;
+        this.endMapId = endMapId;
+    }
+
+    public int getSplitSide()
+    {
+        return splitSide;
+    }
+
+    public int getStartMapId()
+    {
+        return startMapId;
+    }
+
+    public int getEndMapId()
+    {
+        return endMapId;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("id", getId())
+                .add("reduceId", getStartReduceId())
+                .add("splitSide", splitSide)
+                .add("startMapId", startMapId)
+                .add("endMapId", endMapId)
+                .toString();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(getId(), getStartReduceId(), splitSide, startMapId, endMapId);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        SkewedPartition other = (SkewedPartition) obj;
+        return this.splitSide == other.splitSide && this.startMapId == other.startMapId && this.endMapId == other.endMapId;
+    }
+}
@@ -36,6 +36,11 @@ public abstract class Stage
 
     private Map<Integer, Integer> deps = new HashMap<>();
     private Set<SocketAddress> shuffleServices;
+    private long maxBytesInFlight = Constant.DEFAULT_SHUFFLE_MAX_BYTES_IN_FLIGHT;
+    private final Map<Integer, int[]> mapAttempts = new HashMap<>();
+    private final Map<Integer, ShuffleSource> shuffleSources = new HashMap<>();
+    //driver合并小的reduce分区后的task分区, 为null时每个reduce分区一个task
+    private transient Partition[] coalescedPartitions;
 
     protected Stage(final Operator<?> operator, int jobId, int stageId)
     {
@@ -59,6 +64,45 @@ public abstract class Stage
         return shuffleServices;
     }
 
+    /**
+     * reduce task同时从所有shuffle service拉取数据, 已收到但还未被消费的字节数超过该值时暂停接收
+     */
+    public void setMaxBytesInFlight(long maxBytesInFlight)
+    {
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    public long getMaxBytesInFlight()
+    {
+        return maxBytesInFlight;
+    }
+
+    /**
+     * 依赖的shuffle中每个map task被driver确认成功的attemptId, 推测执行时reduce端只读取这些attempt的输出
+     */
+    public void setMapAttempts(int shuffleId, int[] attempts)
+    {
+        this.mapAttempts.put(shuffleId, attempts);
+    }
+
+    public Map<Integer, int[]> getMapAttempts()
+    {
+        return mapAttempts;
+    }
+
+    /**
+     * 依赖的shuffle已被之前的job物化(stage被跳过)时, 改为读取产生该输出的job的shuffle
+     */
+    public void setShuffleSource(int shuffleId, int sourceJobId, int sourceShuffleId)
+    {
+        this.shuffleSources.put(shuffleId, new ShuffleSource(sourceJobId, sourceShuffleId));
+    }
+
+    public Map<Integer, ShuffleSource> getShuffleSources()
+    {
+        return shuffleSources;
+    }
+
     public Map<Integer, Integer> getDeps()
     {
         return deps;
@@ -69,9 +113,17 @@ public abstract class Stage
         return operator;
     }
 
+    /**
+     * 父stage完成后由driver按map输出统计设置, 必须在stage提交前调用
+     */
+    public void setCoalescedPartitions(Partition[] coalescedPartitions)
+    {
+        this.coalescedPartitions = coalescedPartitions;
+    }
+
     public Partition[] getPartitions()
     {
-        return operator.getPartitions();
+        return coalescedPartitions != null ? coalescedPartitions : operator.getPartitions();
     }
 
     public abstract void compute(Partition split, TaskContext taskContext);
@@ -119,6 +171,29 @@ public abstract class Stage
 
     public int getNumPartitions()
     {
-        return operator.numPartitions();
+        return coalescedPartitions != null ? coalescedPartitions.length : operator.numPartitions();
+    }
+
+    public static class ShuffleSource
+            implements Serializable
+    {
+        private final int jobId;
+        private final int shuffleId;
+
+        public ShuffleSource(int jobId, int shuffleId)
+        {
+            this.jobId = jobId;
+            this.shuffleId = shuffleId;
+        }
+
+        public int getJobId()
+        {
+            return jobId;
+        }
+
+        public int getShuffleId()
+        {
+            return shuffleId;
+        }
     }
 }
@@ -20,4 +20,18 @@ import java.io.Serializable;
 public interface Comparator<T>
         extends java.util.Comparator<T>, Serializable
 {
+    /**
+     * 自然序, 范围分区器可以识别该比较器并对Integer,Long,String做特化
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Comparable<? super T>> Comparator<T> naturalOrder()
+    {
+        return (Comparator<T>) (Object) NaturalOrderComparator.NATURAL;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Comparable<? super T>> Comparator<T> reverseOrder()
+    {
+        return (Comparator<T>) (Object) NaturalOrderComparator.REVERSE;
+    }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api.function;
+
+/**
+ * long值的Reducer, 聚合算子识别到该类型时会用原始类型数组保存聚合状态, 避免装箱
+ */
+@FunctionalInterface
+public interface LongReducer
+        extends Reducer<Long>
+{
+    long reduceLong(long input1, long input2);
+
+    @Override
+    default Long reduce(Long input1, Long input2)
+    {
+        return reduceLong(input1, input2);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api.function;
+
+/**
+ * 使用枚举实现, 序列化后仍为单例, 可直接用==判断
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public enum NaturalOrderComparator
+        implements Comparator<Comparable>
+{
+    NATURAL {
+        @Override
+        public int compare(Comparable c1, Comparable c2)
+        {
+            return c1.compareTo(c2);
+        }
+    },
+    REVERSE {
+        @Override
+        public int compare(Comparable c1, Comparable c2)
+        {
+            return c2.compareTo(c1);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.compress;
+
+import com.github.harbby.astarte.core.api.AstarteException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * 块压缩算法, 每次压缩一个完整的块, 输出中需包含解压所需的全部信息(如原始长度)
+ */
+public interface CompressionCodec
+        extends Serializable
+{
+    public byte[] compress(byte[] src, int offset, int length)
+            throws IOException;
+
+    public byte[] decompress(byte[] src)
+            throws IOException;
+
+    /**
+     * 解压src的可读部分, 不改变src的readerIndex, 返回的ByteBuf由调用方release.
+     * 实现可以返回src的切片以避免拷贝
+     */
+    public default ByteBuf decompress(ByteBuf src, ByteBufAllocator allocator)
+            throws IOException
+    {
+        byte[] bytes = new byte[src.readableBytes()];
+        src.getBytes(src.readerIndex(), bytes);
+        return Unpooled.wrappedBuffer(decompress(bytes));
+    }
+
+    public static CompressionCodec create(String name)
+    {
+        switch (name.toLowerCase()) {
+            case "none":
+                return new NoneCodec();
+            case "lz4":
+                return new Lz4Codec();
+            default:
+                throw new AstarteException("not support compression codec " + name);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 纯java实现的lz4 block格式压缩
+ * <p>
+ * 输出格式为[byte method][int rawLength][data], 压缩后没有变小的块直接原样保存(method = RAW)
+ */
+public class Lz4Codec
+        implements CompressionCodec
+{
+    private static final byte RAW = 0;
+    private static final byte LZ4 = 1;
+    private static final int HEADER_SIZE = 5;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+    private static final ThreadLocal<int[]> HASH_TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    @Override
+    public byte[] compress(byte[] src, int offset, int length)
+    {
+        byte[] dest = new byte[HEADER_SIZE + length + length / 255 + 16];
+        int destLength = compressBlock(src, offset, length, dest, HEADER_SIZE);
+        if (destLength - HEADER_SIZE >= length) {
+            dest = new byte[HEADER_SIZE + length];
+            dest[0] = RAW;
+            System.arraycopy(src, offset, dest, HEADER_SIZE, length);
+        }
+        else {
+            dest = Arrays.copyOf(dest, destLength);
+            dest[0] = LZ4;
+        }
+        writeInt(dest, 1, length);
+        return dest;
+    }
+
+    @Override
+    public byte[] decompress(byte[] src)
+            throws IOException
+    {
+        int rawLength = readInt(src, 1);
+        if (src[0] == RAW) {
+            return Arrays.copyOfRange(src, HEADER_SIZE, HEADER_SIZE + rawLength);
+        }
+        else if (src[0] != LZ4) {
+            throw new IOException("unknown lz4 block method " + src[0]);
+        }
+        byte[] dest = new byte[rawLength];
+        decompressBlock(src, HEADER_SIZE, src.length, dest, 0, rawLength);
+        return dest;
+    }
+
+    /**
+     * 未压缩的块直接返回src的切片; 压缩的块解压到allocator分配的heap buffer中, 堆外的src先拷贝到线程复用的数组
+     */
+    @Override
+    public ByteBuf decompress(ByteBuf src, ByteBufAllocator allocator)
+            throws IOException
+    {
+        int index = src.readerIndex();
+        int length = src.readableBytes();
+        byte method = src.getByte(index);
+        int rawLength = src.getInt(index + 1);
+        if (method == RAW) {
+            return src.retainedSlice(index + HEADER_SIZE, rawLength);
+        }
+        else if (method != LZ4) {
+            throw new IOException("unknown lz4 block method " + method);
+        }
+        byte[] in;
+        int inOffset;
+        if (src.hasArray()) {
+            in = src.array();
+            inOffset = src.arrayOffset() + index;
+        }
+        else {
+            in = SCRATCH.get();
+            if (in.length < length) {
+                in = new byte[Math.max(length, in.length * 2)];
+                SCRATCH.set(in);
+            }
+            src.getBytes(index, in, 0, length);
+            inOffset = 0;
+        }
+        ByteBuf dest = allocator.heapBuffer(rawLength, rawLength);
+        try {
+            decompressBlock(in, inOffset + HEADER_SIZE, inOffset + length, dest.array(), dest.arrayOffset(), rawLength);
+        }
+        catch (IOException | RuntimeException e) {
+            dest.release();
+            throw e;
+        }
+        return dest.writerIndex(rawLength);
+    }
+
+    /**
+     * 解压src[srcOffset, srcEnd)到dest[destOffset, destOffset + rawLength).
+     * 池化buffer的底层数组与其他buffer共享, 所有读写都要检查边界
+     */
+    private static void decompressBlock(byte[] src, int srcOffset, int srcEnd, byte[] dest, int destOffset, int rawLength)
+            throws IOException
+    {
+        int destEnd = destOffset + rawLength;
+        int ip = srcOffset;
+        int op = destOffset;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLength += b;
+                    }
+                    while (b == 255);
+                }
+                if (ip + literalLength > srcEnd || op + literalLength > destEnd) {
+                    throw new IOException("corrupted lz4 block, literal length " + literalLength + " out of bounds");
+                }
+                System.arraycopy(src, ip, dest, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip >= srcEnd) {
+                    break;
+                }
+
+                int matchOffset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    }
+                    while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - matchOffset;
+                if (matchOffset == 0 || ref < destOffset) {
+                    throw new IOException("corrupted lz4 block, bad match offset " + matchOffset);
+                }
+                if (op + matchLength > destEnd) {
+                    throw new IOException("corrupted lz4 block, match length " + matchLength + " out of bounds");
+                }
+                if (matchOffset >= matchLength) {
+                    System.arraycopy(dest, ref, dest, op, matchLength);
+                    op += matchLength;
+                }
+                else {
+                    //重叠拷贝, 只能逐字节复制
+                    for (int i = 0; i < matchLength; i++) {
+                        dest[op++] = dest[ref++];
+                    }
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("corrupted lz4 block", e);
+        }
+        if (op != destEnd) {
+            throw new IOException("corrupted lz4 block, decompressed " + (op - destOffset) + " bytes but expected " + rawLength);
+        }
+    }
+
+    private static int compressBlock(byte[] src, int offset, int length, byte[] dest, int destOffset)
+    {
+        int srcEnd = offset + length;
+        int matchLimit = srcEnd - LAST_LITERALS;
+        int mfLimit = srcEnd - MF_LIMIT;
+        int anchor = offset;
+        int ip = offset;
+        int op = destOffset;
+
+        if (length > MF_LIMIT) {
+            //hashTable中保存position + 1, 0表示空
+            int[] hashTable = HASH_TABLE.get();
+            Arrays.fill(hashTable, 0);
+            while (ip < mfLimit) {
+                int sequence = readIntLE(src, ip);
+                int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = hashTable[h] - 1;
+                hashTable[h] = ip + 1;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readIntLE(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+                while (ip > anchor && ref > offset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dest, op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        //最后一段为纯字面量
+        int literalLength = srcEnd - anchor;
+        int tokenPos = op++;
+        op = writeLength(literalLength, dest, op);
+        dest[tokenPos] = (byte) (Math.min(literalLength, 15) << 4);
+        System.arraycopy(src, anchor, dest, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int matchOffset, int matchLength, byte[] dest, int op)
+    {
+        int tokenPos = op++;
+        op = writeLength(literalLength, dest, op);
+        System.arraycopy(src, literalStart, dest, op, literalLength);
+        op += literalLength;
+        dest[op++] = (byte) matchOffset;
+        dest[op++] = (byte) (matchOffset >>> 8);
+        int extraMatchLength = matchLength - MIN_MATCH;
+        op = writeLength(extraMatchLength, dest, op);
+        dest[tokenPos] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(extraMatchLength, 15));
+        return op;
+    }
+
+    /**
+     * 长度>=15时写出扩展长度字节
+     */
+    private static int writeLength(int length, byte[] dest, int op)
+    {
+        if (length >= 15) {
+            int remaining = length - 15;
+            while (remaining >= 255) {
+                dest[op++] = (byte) 255;
+                remaining -= 255;
+            }
+            dest[op++] = (byte) remaining;
+        }
+        return op;
+    }
+
+    private static int readIntLE(byte[] src, int i)
+    {
+        return (src[i] & 0xFF) | ((src[i + 1] & 0xFF) << 8) | ((src[i + 2] & 0xFF) << 16) | ((src[i + 3] & 0xFF) << 24);
+    }
+
+    private static void writeInt(byte[] dest, int i, int value)
+    {
+        dest[i] = (byte) (value >>> 24);
+        dest[i + 1] = (byte) (value >>> 16);
+        dest[i + 2] = (byte) (value >>> 8);
+        dest[i + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] src, int i)
+    {
+        return ((src[i] & 0xFF) << 24) | ((src[i + 1] & 0xFF) << 16) | ((src[i + 2] & 0xFF) << 8) | (src[i + 3] & 0xFF);
+    }
+}
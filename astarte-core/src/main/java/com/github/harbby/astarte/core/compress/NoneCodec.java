@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.Arrays;
+
+public class NoneCodec
+        implements CompressionCodec
+{
+    @Override
+    public byte[] compress(byte[] src, int offset, int length)
+    {
+        return Arrays.copyOfRange(src, offset, offset + length);
+    }
+
+    @Override
+    public byte[] decompress(byte[] src)
+    {
+        return src;
+    }
+
+    @Override
+    public ByteBuf decompress(ByteBuf src, ByteBufAllocator allocator)
+    {
+        return src.retainedSlice();
+    }
+}
@@ -41,6 +41,23 @@ public class JoinExperiment
         RIGHT_JOIN,
         INNER_JOIN,
         FULL_JOIN;
+
+        /**
+         * 是否需要输出第side侧(0为左侧)未匹配的记录
+         */
+        public boolean isPreserved(int side)
+        {
+            switch (this) {
+                case LEFT_JOIN:
+                    return side == 0;
+                case RIGHT_JOIN:
+                    return side == 1;
+                case FULL_JOIN:
+                    return true;
+                default:
+                    return false;
+            }
+        }
     }
 
     @SafeVarargs
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import java.io.IOException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 使用execution内存的算子数据结构(hash表, 排序缓冲等), 增长之前先申请内存, 申请不到时应溢写到磁盘
+ */
+public abstract class MemoryConsumer
+{
+    protected final TaskMemoryManager taskMemoryManager;
+    private long used = 0;
+
+    protected MemoryConsumer(TaskMemoryManager taskMemoryManager)
+    {
+        this.taskMemoryManager = requireNonNull(taskMemoryManager, "taskMemoryManager is null");
+    }
+
+    /**
+     * 本task内其他consumer内存不足时回调, 返回释放的字节数, 无法溢写时返回0
+     */
+    public abstract long spill(long required, MemoryConsumer trigger)
+            throws IOException;
+
+    public long getUsed()
+    {
+        return used;
+    }
+
+    /**
+     * 返回实际获得的字节数, 可能小于required
+     */
+    public long acquireMemory(long required)
+    {
+        long granted = taskMemoryManager.acquireExecutionMemory(required, this);
+        used += granted;
+        return granted;
+    }
+
+    public void freeMemory(long size)
+    {
+        if (size == 0) {
+            return;
+        }
+        taskMemoryManager.releaseExecutionMemory(size, this);
+        used -= size;
+    }
+
+    /**
+     * 数据结构估算大小达到已申请的内存时, 尝试再申请一倍, 返回true表示内存不足需要溢写
+     */
+    protected boolean maybeAcquireMemory(long currentMemory)
+    {
+        if (currentMemory < used) {
+            return false;
+        }
+        acquireMemory(2 * currentMemory - used);
+        return currentMemory >= used;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.gadtry.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.github.harbby.astarte.core.api.Constant.DEFAULT_MEMORY_FRACTION;
+import static com.github.harbby.astarte.core.api.Constant.DEFAULT_MEMORY_STORAGE_FRACTION;
+import static com.github.harbby.astarte.core.api.Constant.MEMORY_FRACTION;
+import static com.github.harbby.astarte.core.api.Constant.MEMORY_STORAGE_FRACTION;
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * executor级别的统一内存管理, execution(聚合,排序等算子的中间状态)与storage(cache)共用maxMemory
+ * <p>
+ * execution可以使用storage的空闲内存; cache数据目前没有淘汰机制, 借出后无法收回,
+ * 因此storage最多使用storageRegionSize且只能使用当前空闲的内存.
+ * execution内存按task公平分配: 有N个活跃task时每个task最多获得1/N,
+ * 获得1/2N之前申请不到内存的task会阻塞等待其他task释放
+ */
+public class MemoryManager
+{
+    private static final Logger logger = LoggerFactory.getLogger(MemoryManager.class);
+
+    private final long maxMemory;
+    private final long storageRegionSize;
+    private final Map<TaskMemoryManager, Long> taskExecutionMemory = new HashMap<>();
+    private long executionMemoryUsed = 0;
+    private long storageMemoryUsed = 0;
+
+    public MemoryManager(long maxMemory, double storageFraction)
+    {
+        checkArgument(maxMemory > 0, "maxMemory must > 0");
+        checkArgument(storageFraction >= 0 && storageFraction <= 1, "storageFraction must in [0, 1]");
+        this.maxMemory = maxMemory;
+        this.storageRegionSize = (long) (maxMemory * storageFraction);
+    }
+
+    /**
+     * 按jvm最大堆内存的memory.fraction比例创建
+     */
+    public static MemoryManager create(AstarteConf conf)
+    {
+        double memoryFraction = Double.parseDouble(conf.getString(MEMORY_FRACTION, String.valueOf(DEFAULT_MEMORY_FRACTION)));
+        double storageFraction = Double.parseDouble(conf.getString(MEMORY_STORAGE_FRACTION, String.valueOf(DEFAULT_MEMORY_STORAGE_FRACTION)));
+        long maxMemory = (long) (Runtime.getRuntime().maxMemory() * memoryFraction);
+        logger.info("create memory manager, maxMemory {} bytes, storageFraction {}", maxMemory, storageFraction);
+        return new MemoryManager(maxMemory, storageFraction);
+    }
+
+    /**
+     * 为task申请execution内存, 返回实际获得的字节数, 可能小于numBytes
+     */
+    synchronized long acquireExecutionMemory(long numBytes, TaskMemoryManager task)
+    {
+        checkArgument(numBytes >= 0, "numBytes must >= 0");
+        if (!taskExecutionMemory.containsKey(task)) {
+            taskExecutionMemory.put(task, 0L);
+            //活跃task数变化后, 其他等待中的task需要重新计算可分配的份额
+            notifyAll();
+        }
+        while (true) {
+            int numActiveTasks = taskExecutionMemory.size();
+            long taskMemory = taskExecutionMemory.get(task);
+            long maxPoolSize = maxMemory - storageMemoryUsed;
+            long maxPerTask = maxPoolSize / numActiveTasks;
+            long minPerTask = maxPoolSize / (2L * numActiveTasks);
+            long free = Math.max(0, maxMemory - executionMemoryUsed - storageMemoryUsed);
+            long toGrant = Math.min(Math.min(numBytes, Math.max(0, maxPerTask - taskMemory)), free);
+
+            //其他task持有execution内存时才等待, 否则等待不会有任何结果
+            if (toGrant < numBytes && taskMemory + toGrant < minPerTask && executionMemoryUsed > taskMemory) {
+                logger.info("task {} waiting for execution memory, need {} bytes", task, numBytes);
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
+            }
+            else {
+                taskExecutionMemory.put(task, taskMemory + toGrant);
+                executionMemoryUsed += toGrant;
+                return toGrant;
+            }
+        }
+    }
+
+    synchronized void releaseExecutionMemory(long numBytes, TaskMemoryManager task)
+    {
+        Long taskMemory = taskExecutionMemory.get(task);
+        checkState(taskMemory != null && taskMemory >= numBytes,
+                "release " + numBytes + " bytes execution memory, but task only acquired " + taskMemory);
+        taskExecutionMemory.put(task, taskMemory - numBytes);
+        executionMemoryUsed -= numBytes;
+        notifyAll();
+    }
+
+    /**
+     * task结束时调用, 释放该task持有的全部execution内存
+     */
+    synchronized long releaseAllExecutionMemory(TaskMemoryManager task)
+    {
+        Long taskMemory = taskExecutionMemory.remove(task);
+        if (taskMemory == null) {
+            return 0;
+        }
+        executionMemoryUsed -= taskMemory;
+        notifyAll();
+        return taskMemory;
+    }
+
+    /**
+     * 申请storage内存, 申请不到时返回false
+     */
+    public synchronized boolean acquireStorageMemory(long numBytes)
+    {
+        checkArgument(numBytes >= 0, "numBytes must >= 0");
+        if (storageMemoryUsed + numBytes > storageRegionSize || executionMemoryUsed + storageMemoryUsed + numBytes > maxMemory) {
+            return false;
+        }
+        storageMemoryUsed += numBytes;
+        return true;
+    }
+
+    public synchronized void releaseStorageMemory(long numBytes)
+    {
+        checkState(storageMemoryUsed >= numBytes, "release " + numBytes + " bytes storage memory, but only used " + storageMemoryUsed);
+        storageMemoryUsed -= numBytes;
+        notifyAll();
+    }
+
+    public long getMaxMemory()
+    {
+        return maxMemory;
+    }
+
+    public synchronized long getExecutionMemoryUsed()
+    {
+        return executionMemoryUsed;
+    }
+
+    public synchronized long getStorageMemoryUsed()
+    {
+        return storageMemoryUsed;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 粗略估算对象图占用的堆内存(按64位jvm开启压缩指针计算)
+ * <p>
+ * 常见的包装类型和String直接计算, 其他对象通过反射遍历字段, 大数组只抽样部分元素再按比例放大
+ */
+public final class SizeEstimator
+{
+    private SizeEstimator() {}
+
+    private static final int OBJECT_HEADER_SIZE = 12;
+    private static final int ARRAY_HEADER_SIZE = 16;
+    private static final int REFERENCE_SIZE = 4;
+    private static final int ALIGN_SIZE = 8;
+    private static final int ARRAY_SAMPLE_THRESHOLD = 400;
+    private static final int ARRAY_SAMPLE_SIZE = 100;
+
+    private static final Map<Class<?>, ClassInfo> classInfos = new ConcurrentHashMap<>();
+
+    public static long estimate(Object obj)
+    {
+        if (obj == null) {
+            return 0;
+        }
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(obj);
+        long size = 0;
+        while (!stack.isEmpty()) {
+            Object current = stack.pop();
+            if (current instanceof Class || !visited.add(current)) {
+                continue;
+            }
+            size += visitObject(current, stack);
+        }
+        return size;
+    }
+
+    private static long visitObject(Object obj, Deque<Object> stack)
+    {
+        Class<?> clazz = obj.getClass();
+        if (obj instanceof String) {
+            //header + hash + coder + value引用, 加上byte[]或char[]
+            return align(OBJECT_HEADER_SIZE + 12) + align(ARRAY_HEADER_SIZE + ((String) obj).length() * 2L);
+        }
+        if (clazz.isArray()) {
+            return visitArray(obj, clazz, stack);
+        }
+        ClassInfo info = classInfos.computeIfAbsent(clazz, SizeEstimator::getClassInfo);
+        for (Field field : info.pointerFields) {
+            try {
+                pushIfNotNull(stack, field.get(obj));
+            }
+            catch (IllegalAccessException e) {
+                //无法访问的字段只计算引用大小
+            }
+        }
+        return info.shallowSize;
+    }
+
+    private static long visitArray(Object array, Class<?> clazz, Deque<Object> stack)
+    {
+        int length = Array.getLength(array);
+        Class<?> componentType = clazz.getComponentType();
+        if (componentType.isPrimitive()) {
+            return align(ARRAY_HEADER_SIZE + (long) length * primitiveSize(componentType));
+        }
+        long size = align(ARRAY_HEADER_SIZE + (long) length * REFERENCE_SIZE);
+        Object[] elements = (Object[]) array;
+        if (length <= ARRAY_SAMPLE_THRESHOLD) {
+            for (Object element : elements) {
+                pushIfNotNull(stack, element);
+            }
+            return size;
+        }
+        //大数组抽样估算, 抽样部分单独计算后按比例放大
+        Random random = new Random(length);
+        long sampleSize = 0;
+        for (int i = 0; i < ARRAY_SAMPLE_SIZE; i++) {
+            Object element = elements[random.nextInt(length)];
+            sampleSize += estimate(element);
+        }
+        return size + sampleSize * length / ARRAY_SAMPLE_SIZE;
+    }
+
+    private static void pushIfNotNull(Deque<Object> stack, Object obj)
+    {
+        if (obj != null) {
+            stack.push(obj);
+        }
+    }
+
+    private static ClassInfo getClassInfo(Class<?> clazz)
+    {
+        long shallowSize = OBJECT_HEADER_SIZE;
+        List<Field> pointerFields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                Class<?> type = field.getType();
+                if (type.isPrimitive()) {
+                    shallowSize += primitiveSize(type);
+                }
+                else {
+                    shallowSize += REFERENCE_SIZE;
+                    try {
+                        field.setAccessible(true);
+                        pointerFields.add(field);
+                    }
+                    catch (RuntimeException e) {
+                        //jdk9+ 未开放的模块无法反射访问, 忽略该字段引用的对象
+                    }
+                }
+            }
+        }
+        return new ClassInfo(align(shallowSize), pointerFields);
+    }
+
+    private static int primitiveSize(Class<?> type)
+    {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        else if (type == int.class || type == float.class) {
+            return 4;
+        }
+        else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        else {
+            return 1;
+        }
+    }
+
+    private static long align(long size)
+    {
+        return (size + ALIGN_SIZE - 1) / ALIGN_SIZE * ALIGN_SIZE;
+    }
+
+    private static class ClassInfo
+    {
+        private final long shallowSize;
+        private final Field[] pointerFields;
+
+        private ClassInfo(long shallowSize, List<Field> pointerFields)
+        {
+            this.shallowSize = shallowSize;
+            this.pointerFields = pointerFields.toArray(new Field[0]);
+        }
+    }
+}
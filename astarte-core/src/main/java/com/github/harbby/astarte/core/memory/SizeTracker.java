@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+/**
+ * 抽样估算集合中记录占用的内存, 记录数每增长10%才对新记录做一次SizeEstimator估算, 开销可以忽略
+ */
+public class SizeTracker
+{
+    private static final double SAMPLE_GROWTH_RATE = 1.1;
+
+    private long numRecords;
+    private long nextSampleNum;
+    private long sampledRecords;
+    private long sampledBytes;
+
+    public SizeTracker()
+    {
+        reset();
+    }
+
+    public void afterUpdate(Object record)
+    {
+        numRecords++;
+        if (numRecords >= nextSampleNum) {
+            sampledBytes += SizeEstimator.estimate(record);
+            sampledRecords++;
+            nextSampleNum = (long) Math.ceil(numRecords * SAMPLE_GROWTH_RATE);
+        }
+    }
+
+    public long getNumRecords()
+    {
+        return numRecords;
+    }
+
+    public long estimateSize()
+    {
+        return sampledRecords == 0 ? 0 : sampledBytes * numRecords / sampledRecords;
+    }
+
+    public void reset()
+    {
+        this.numRecords = 0;
+        this.nextSampleNum = 1;
+        this.sampledRecords = 0;
+        this.sampledBytes = 0;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.gadtry.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * task级别的内存管理, 每个task一个, 记录本task内各MemoryConsumer占用的execution内存
+ * <p>
+ * 申请不到足够内存时, 会按占用从大到小依次要求本task内的其他consumer溢写释放内存.
+ * 申请者自身不会被要求溢写, 拿到的内存不足时由申请者自己决定是否溢写
+ */
+public class TaskMemoryManager
+{
+    private static final Logger logger = LoggerFactory.getLogger(TaskMemoryManager.class);
+
+    private final MemoryManager memoryManager;
+    private final Set<MemoryConsumer> consumers = new LinkedHashSet<>();
+
+    public TaskMemoryManager(MemoryManager memoryManager)
+    {
+        this.memoryManager = requireNonNull(memoryManager, "memoryManager is null");
+    }
+
+    public MemoryManager getMemoryManager()
+    {
+        return memoryManager;
+    }
+
+    public synchronized long acquireExecutionMemory(long required, MemoryConsumer consumer)
+    {
+        consumers.add(consumer);
+        long granted = memoryManager.acquireExecutionMemory(required, this);
+        if (granted < required) {
+            List<MemoryConsumer> spillables = new ArrayList<>();
+            for (MemoryConsumer other : consumers) {
+                if (other != consumer && other.getUsed() > 0) {
+                    spillables.add(other);
+                }
+            }
+            spillables.sort(Comparator.comparingLong(MemoryConsumer::getUsed).reversed());
+            for (MemoryConsumer other : spillables) {
+                if (granted >= required) {
+                    break;
+                }
+                try {
+                    long released = other.spill(required - granted, consumer);
+                    if (released > 0) {
+                        logger.info("{} released {} bytes for {}", other, released, consumer);
+                        granted += memoryManager.acquireExecutionMemory(required - granted, this);
+                    }
+                }
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
+            }
+        }
+        return granted;
+    }
+
+    public synchronized void releaseExecutionMemory(long size, MemoryConsumer consumer)
+    {
+        memoryManager.releaseExecutionMemory(size, this);
+    }
+
+    /**
+     * task结束时调用, 返回consumer未主动释放的字节数
+     */
+    public synchronized long cleanUpAllAllocatedMemory()
+    {
+        consumers.clear();
+        return memoryManager.releaseAllExecutionMemory(this);
+    }
+}
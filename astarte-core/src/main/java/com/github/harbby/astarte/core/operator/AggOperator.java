@@ -17,29 +17,53 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.function.Reducer;
-import com.github.harbby.gadtry.collection.tuple.Tuple1;
+import com.github.harbby.astarte.core.memory.MemoryConsumer;
+import com.github.harbby.astarte.core.memory.SizeTracker;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * this pipiline agg Operator
+ * <p>
+ * map端combine时先采样前sampleRecords条记录, 不同key的比例超过bypassRatio时combine几乎不能减少数据,
+ * 之后的记录不再聚合直接输出, 只有采样中出现过的key继续在内存中合并. 采样之后才出现的热点key由{@link HotKeyDetector}发现,
+ * 同样加入内存中合并, 避免热点key的全部记录不经合并发送到同一个reduce task. reduce端会再次聚合, 结果不变
  */
 public class AggOperator<K, V>
         extends Operator<Tuple2<K, V>>
 {
     private final Operator<Tuple2<K, V>> operator;
     private final Reducer<V> reducer;
+    private final SerializerManager serializerManager;
+    private final boolean mapSideCombine;
+    private final long sampleRecords;
+    private final double bypassRatio;
 
     protected AggOperator(Operator<Tuple2<K, V>> operator, Reducer<V> reducer)
+    {
+        this(operator, reducer, false);
+    }
+
+    protected AggOperator(Operator<Tuple2<K, V>> operator, Reducer<V> reducer, boolean mapSideCombine)
     {
         super(operator);
         this.operator = unboxing(operator);
         this.reducer = reducer;
+        this.serializerManager = SerializerManager.create(getContext().getConf());
+        this.mapSideCombine = mapSideCombine;
+        this.sampleRecords = getContext().getConf().getLong(Constant.SHUFFLE_COMBINE_SAMPLE_RECORDS, Constant.DEFAULT_SHUFFLE_COMBINE_SAMPLE_RECORDS);
+        this.bypassRatio = getContext().getConf().getDouble(Constant.SHUFFLE_COMBINE_BYPASS_RATIO, Constant.DEFAULT_SHUFFLE_COMBINE_BYPASS_RATIO);
     }
 
     @Override
@@ -53,23 +77,198 @@ public class AggOperator<K, V>
     public Iterator<Tuple2<K, V>> compute(Partition split, TaskContext taskContext)
     {
         Iterator<Tuple2<K, V>> input = operator.computeOrCache(split, taskContext);
-        // 这里是增量计算的 复杂度= O(1) + log(m)
-        Map<K, Tuple1<V>> aggState = new HashMap<>();
-        int count = 0;
-        while (input.hasNext()) {
-            Tuple2<K, V> tp = input.next();
-            Tuple1<V> value = aggState.get(tp.f1());
-            if (value == null) {
-                aggState.put(tp.f1, new Tuple1<>(tp.f2));
+        if (mapSideCombine && sampleRecords > 0) {
+            return combine(input, taskContext);
+        }
+        return aggregate(input, taskContext);
+    }
+
+    private Iterator<Tuple2<K, V>> aggregate(Iterator<Tuple2<K, V>> input, TaskContext taskContext)
+    {
+        // 这里是增量计算的 复杂度= O(1) + log(m), 内存不足时溢写到磁盘
+        ExternalHashAggregator<K, V, V> aggregator = new ExternalHashAggregator<>(
+                ExternalHashAggregator.Aggregation.reduce(reducer), taskContext, serializerManager);
+        try {
+            return aggregator.aggregate(input);
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    private Iterator<Tuple2<K, V>> combine(Iterator<Tuple2<K, V>> input, TaskContext taskContext)
+    {
+        SampledStates<K, V> sampled = new SampledStates<>(reducer, taskContext.getTaskMemoryManager());
+        //提前结束或失败的task也要归还采样占用的内存
+        taskContext.addTaskCompletionListener(sampled::release);
+        long records = 0;
+        boolean memoryEnough = true;
+        while (memoryEnough && records < sampleRecords && input.hasNext()) {
+            memoryEnough = sampled.add(input.next());
+            records++;
+        }
+        boolean bypass = input.hasNext() && sampled.size() > records * bypassRatio;
+        taskContext.getTaskMetrics().setCombineDecision(records, sampled.size(), bypass);
+        if (!input.hasNext()) {
+            //全部输入都在采样范围内, 已经聚合完成
+            return sampled.drain();
+        }
+        if (!bypass) {
+            return aggregate(concat(sampled.drain(), input), taskContext);
+        }
+        logger.info("map side combine sampled {} records with {} keys, bypass combine for new keys", records, sampled.size());
+        HotKeyDetector hotKeyDetector = new HotKeyDetector();
+        Iterator<Tuple2<K, V>> passThrough = Iterators.filter(input, record -> {
+            if (sampled.update(record)) {
+                return false;
+            }
+            if (hotKeyDetector.isHot(record.f1())) {
+                //申请不到内存时不再加入新的key
+                hotKeyDetector.setEnabled(sampled.add(record));
+                return false;
+            }
+            return true;
+        });
+        return concat(passThrough, sampled.drain());
+    }
+
+    /**
+     * bypass之后按key的hash把记录计数到固定数量的槽位, 一个槽位累计到HOT_KEY_THRESHOLD条记录时认为当前key是热点key.
+     * 计数每隔一段记录减半, 均匀分布的冷key很少达到阈值; 占比超过约1%的key在直接输出约2 * HOT_KEY_THRESHOLD条记录内被发现
+     */
+    private static class HotKeyDetector
+    {
+        private static final int HOT_KEY_SLOTS = 1024;
+        private static final int HOT_KEY_THRESHOLD = 32;
+        private static final int DECAY_INTERVAL = HOT_KEY_SLOTS * HOT_KEY_THRESHOLD / 4;
+        private final int[] counters = new int[HOT_KEY_SLOTS];
+        private long records;
+        private boolean enabled = true;
+
+        private boolean isHot(Object key)
+        {
+            if (!enabled) {
+                return false;
+            }
+            if (++records % DECAY_INTERVAL == 0) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>>= 1;
+                }
             }
-            else {
-                value.set(reducer.reduce(value.get(), tp.f2));
+            int hash = key == null ? 0 : key.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & (HOT_KEY_SLOTS - 1);
+            if (++counters[slot] < HOT_KEY_THRESHOLD) {
+                return false;
             }
-            count++;
+            counters[slot] = 0;
+            return true;
+        }
+
+        private void setEnabled(boolean enabled)
+        {
+            this.enabled = enabled;
+        }
+    }
+
+    /**
+     * 两个迭代器类型相同时拼接, 避免泛型可变参数的unchecked警告
+     */
+    private static <E> Iterator<E> concat(Iterator<E> first, Iterator<E> second)
+    {
+        return Iterators.concat(Arrays.asList(first, second).iterator());
+    }
+
+    /**
+     * map端combine的采样hash表, 按估算大小申请execution内存, 申请不到时调用方提前结束采样.
+     * 状态不能溢写, bypass时采样中出现过的key一直保留到输出结束
+     */
+    private static class SampledStates<K, V>
+            extends MemoryConsumer
+    {
+        private static final int MEMORY_CHECK_INTERVAL = 32;
+        private final AggregationHashMap<K, V, V> map;
+        private final SizeTracker sizeTracker = new SizeTracker();
+
+        private SampledStates(Reducer<V> reducer, TaskMemoryManager taskMemoryManager)
+        {
+            super(taskMemoryManager);
+            this.map = new AggregationHashMap<>(ExternalHashAggregator.Aggregation.reduce(reducer));
+        }
+
+        /**
+         * 返回false表示申请不到更多内存
+         */
+        private boolean add(Tuple2<K, V> record)
+        {
+            if (update(record)) {
+                return true;
+            }
+            map.insert(record.f1(), record.f2());
+            if (!map.isPrimitive()) {
+                sizeTracker.afterUpdate(record);
+            }
+            if (map.size() % MEMORY_CHECK_INTERVAL != 0) {
+                return true;
+            }
+            long memory = map.isPrimitive() ? map.getArrayMemory() : map.getArrayMemory() + sizeTracker.estimateSize();
+            return !maybeAcquireMemory(memory);
+        }
+
+        /**
+         * key已存在时聚合并返回true
+         */
+        private boolean update(Tuple2<K, V> record)
+        {
+            return map.update(record.f1(), record.f2());
+        }
+
+        private int size()
+        {
+            return map.size();
+        }
+
+        /**
+         * 输出完后释放内存. bypass时直接输出的记录读完之前还会加入新的热点key, 因此第一次读取时才创建hash表的迭代器
+         */
+        private Iterator<Tuple2<K, V>> drain()
+        {
+            return new Iterator<Tuple2<K, V>>()
+            {
+                private Iterator<Tuple2<K, V>> iterator;
+
+                @Override
+                public boolean hasNext()
+                {
+                    if (iterator == null) {
+                        iterator = map.iterator();
+                    }
+                    if (iterator.hasNext()) {
+                        return true;
+                    }
+                    release();
+                    return false;
+                }
+
+                @Override
+                public Tuple2<K, V> next()
+                {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return iterator.next();
+                }
+            };
+        }
+
+        private void release()
+        {
+            freeMemory(getUsed());
+        }
+
+        @Override
+        public long spill(long required, MemoryConsumer trigger)
+        {
+            return 0;
         }
-        logger.info("AggOperator `convergent validity` is {}% {}/{}", aggState.size() * 100.0 / count, aggState.size(), count);
-        return aggState.entrySet().stream()
-                .map(x -> new Tuple2<>(x.getKey(), x.getValue().get()))
-                .iterator();
     }
 }
@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.api.function.DoubleReducer;
+import com.github.harbby.astarte.core.api.function.IntReducer;
+import com.github.harbby.astarte.core.api.function.LongReducer;
+import com.github.harbby.astarte.core.api.function.Reducer;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 聚合专用的开放寻址hash表(线性探测), key与聚合状态保存在平行数组中, 聚合时原地更新, 每个key不再分配Node和状态包装对象
+ * <p>
+ * key为Long/Integer/Double时用long[]保存key; 按Reducer聚合且value为Long/Integer/Double时用long[]保存状态,
+ * LongReducer/IntReducer/DoubleReducer直接在原始类型上聚合, 普通Reducer(如Long::sum)取出装箱值聚合后再写回.
+ * 遇到类型不符的key或value(包括null)时, 对应的数组整体退化为Object[]
+ */
+class AggregationHashMap<K, V, S>
+{
+    private static final int INIT_CAPACITY = 16;
+    private static final double LOAD_FACTOR = 0.75;
+    private static final Object NULL_KEY = new Object();
+
+    private final ExternalHashAggregator.Aggregation<K, V, S> aggregation;
+    private final Reducer<?> reducer;
+
+    private NumberType keyType;
+    private NumberType valueType;
+    private Object[] objectKeys;
+    private long[] longKeys;
+    private boolean[] occupied;
+    private Object[] objectValues;
+    private long[] longValues;
+    private int capacity = 0;
+    private int size = 0;
+
+    //update()未命中时记录的插入位置, 紧接着的insert()可以省去一次探测
+    private Object missedKey;
+    private int missedSlot = -1;
+
+    AggregationHashMap(ExternalHashAggregator.Aggregation<K, V, S> aggregation)
+    {
+        this.aggregation = aggregation;
+        this.reducer = aggregation.valueReducer();
+    }
+
+    private void allocate(int newCapacity)
+    {
+        this.capacity = newCapacity;
+        if (keyType == null) {
+            objectKeys = new Object[newCapacity];
+        }
+        else {
+            longKeys = new long[newCapacity];
+            occupied = new boolean[newCapacity];
+        }
+        if (valueType == null) {
+            objectValues = new Object[newCapacity];
+        }
+        else {
+            longValues = new long[newCapacity];
+        }
+    }
+
+    /**
+     * key已存在时原地更新聚合状态并返回true
+     */
+    public boolean update(K key, V value)
+    {
+        checkType(key, value);
+        int slot = findSlot(key);
+        if (slot < 0) {
+            missedKey = key;
+            missedSlot = -slot - 1;
+            return false;
+        }
+        if (valueType == null) {
+            @SuppressWarnings("unchecked")
+            S state = (S) objectValues[slot];
+            objectValues[slot] = aggregation.update(state, value);
+        }
+        else if (valueType.accepts(reducer)) {
+            longValues[slot] = valueType.reduce(reducer, longValues[slot], valueType.encode(value));
+        }
+        else {
+            S state = aggregation.update(stateAt(slot), value);
+            if (valueType.isInstance(state)) {
+                longValues[slot] = valueType.encode(state);
+            }
+            else {
+                //reducer返回了null或其他类型
+                missedKey = null;
+                missedSlot = -1;
+                rebuild(capacity, false, true);
+                objectValues[findSlot(key)] = state;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 插入一个新key, 调用方需保证key不存在
+     */
+    public void insert(K key, V value)
+    {
+        checkType(key, value);
+        int slot = key == missedKey && missedSlot >= 0 ? missedSlot : -findSlot(key) - 1;
+        missedKey = null;
+        missedSlot = -1;
+        putKey(slot, key);
+        if (valueType == null) {
+            objectValues[slot] = aggregation.createState(key, value);
+        }
+        else {
+            longValues[slot] = valueType.encode(value);
+        }
+        afterPut();
+    }
+
+    /**
+     * 直接放入一个已有的聚合状态, 调用方需保证key不存在
+     */
+    public void putState(K key, S state)
+    {
+        checkType(key, state);
+        int slot = -findSlot(key) - 1;
+        missedKey = null;
+        missedSlot = -1;
+        putKey(slot, key);
+        if (valueType == null) {
+            objectValues[slot] = state;
+        }
+        else {
+            longValues[slot] = valueType.encode(state);
+        }
+        afterPut();
+    }
+
+    private void putKey(int slot, K key)
+    {
+        if (keyType == null) {
+            objectKeys[slot] = key == null ? NULL_KEY : key;
+        }
+        else {
+            longKeys[slot] = keyType.encode(key);
+            occupied[slot] = true;
+        }
+    }
+
+    private void afterPut()
+    {
+        size++;
+        if (size > capacity * LOAD_FACTOR) {
+            rebuild(capacity * 2, false, false);
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * key和状态都以原始类型保存时, 除数组外不占用其他内存
+     */
+    public boolean isPrimitive()
+    {
+        return keyType != null && valueType != null;
+    }
+
+    /**
+     * 数组本身占用的内存, 不包括key和状态对象
+     */
+    public long getArrayMemory()
+    {
+        long slotBytes = (keyType == null ? Integer.BYTES : Long.BYTES + 1) + (valueType == null ? Integer.BYTES : Long.BYTES);
+        return capacity * slotBytes;
+    }
+
+    public Iterator<Tuple2<K, S>> iterator()
+    {
+        return new Iterator<Tuple2<K, S>>()
+        {
+            private int index = nextSlot(0);
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < capacity;
+            }
+
+            @Override
+            public Tuple2<K, S> next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple2<K, S> tuple2 = Tuple2.of(keyAt(index), stateAt(index));
+                index = nextSlot(index + 1);
+                return tuple2;
+            }
+        };
+    }
+
+    private int nextSlot(int from)
+    {
+        int i = from;
+        while (i < capacity && !isOccupied(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private boolean isOccupied(int slot)
+    {
+        return keyType == null ? objectKeys[slot] != null : occupied[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    private K keyAt(int slot)
+    {
+        if (keyType == null) {
+            Object key = objectKeys[slot];
+            return key == NULL_KEY ? null : (K) key;
+        }
+        return (K) keyType.decode(longKeys[slot]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private S stateAt(int slot)
+    {
+        return valueType == null ? (S) objectValues[slot] : (S) valueType.decode(longValues[slot]);
+    }
+
+    /**
+     * 返回key所在的槽位, 不存在时返回-(插入位置)-1
+     */
+    private int findSlot(Object key)
+    {
+        int mask = capacity - 1;
+        if (keyType == null) {
+            Object k = key == null ? NULL_KEY : key;
+            int slot = spread(k.hashCode()) & mask;
+            while (objectKeys[slot] != null) {
+                if (objectKeys[slot].equals(k)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -slot - 1;
+        }
+        else {
+            long k = keyType.encode(key);
+            int slot = mix(Long.hashCode(k)) & mask;
+            while (occupied[slot]) {
+                if (longKeys[slot] == k) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -slot - 1;
+        }
+    }
+
+    /**
+     * 与HashMap相同的扰动函数. 冲突时线性探测, 数值key使用mix(), 输出顺序与HashMap不同, 调用方不能依赖聚合结果的顺序
+     */
+    private static int spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int mix(int hash)
+    {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 出现类型不符的key或value时, 把对应的原始类型数组退化为Object[]
+     */
+    private void checkType(K key, Object value)
+    {
+        if (capacity == 0) {
+            //按第一条记录选择key和状态的存储类型
+            keyType = NumberType.of(key);
+            //有valueReducer时状态即输入值
+            valueType = reducer == null ? null : NumberType.of(value);
+            allocate(INIT_CAPACITY);
+            return;
+        }
+        boolean keyMismatch = keyType != null && !keyType.isInstance(key);
+        boolean valueMismatch = valueType != null && !valueType.isInstance(value);
+        if (keyMismatch || valueMismatch) {
+            missedKey = null;
+            missedSlot = -1;
+            rebuild(capacity, keyMismatch, valueMismatch);
+        }
+    }
+
+    /**
+     * 先按旧类型读出全部数据, 再按新容量和新类型重新放置
+     */
+    private void rebuild(int newCapacity, boolean degradeKeys, boolean degradeValues)
+    {
+        Object[] keys = new Object[size];
+        Object[] states = new Object[size];
+        int n = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (isOccupied(i)) {
+                keys[n] = keyAt(i);
+                states[n] = stateAt(i);
+                n++;
+            }
+        }
+        if (degradeKeys) {
+            keyType = null;
+            longKeys = null;
+            occupied = null;
+        }
+        if (degradeValues) {
+            valueType = null;
+            longValues = null;
+        }
+        allocate(newCapacity);
+        for (int i = 0; i < n; i++) {
+            int slot = -findSlot(keys[i]) - 1;
+            if (keyType == null) {
+                objectKeys[slot] = keys[i] == null ? NULL_KEY : keys[i];
+            }
+            else {
+                longKeys[slot] = keyType.encode(keys[i]);
+                occupied[slot] = true;
+            }
+            if (valueType == null) {
+                objectValues[slot] = states[i];
+            }
+            else {
+                longValues[slot] = valueType.encode(states[i]);
+            }
+        }
+    }
+
+    private enum NumberType
+    {
+        LONG(Long.class) {
+            @Override
+            long encode(Object value)
+            {
+                return (Long) value;
+            }
+
+            @Override
+            Object decode(long bits)
+            {
+                return bits;
+            }
+
+            @Override
+            boolean accepts(Reducer<?> reducer)
+            {
+                return reducer instanceof LongReducer;
+            }
+
+            @Override
+            long reduce(Reducer<?> reducer, long a, long b)
+            {
+                return ((LongReducer) reducer).reduceLong(a, b);
+            }
+        },
+        INT(Integer.class) {
+            @Override
+            long encode(Object value)
+            {
+                return (Integer) value;
+            }
+
+            @Override
+            Object decode(long bits)
+            {
+                return (int) bits;
+            }
+
+            @Override
+            boolean accepts(Reducer<?> reducer)
+            {
+                return reducer instanceof IntReducer;
+            }
+
+            @Override
+            long reduce(Reducer<?> reducer, long a, long b)
+            {
+                return ((IntReducer) reducer).reduceInt((int) a, (int) b);
+            }
+        },
+        DOUBLE(Double.class) {
+            @Override
+            long encode(Object value)
+            {
+                return Double.doubleToLongBits((Double) value);
+            }
+
+            @Override
+            Object decode(long bits)
+            {
+                return Double.longBitsToDouble(bits);
+            }
+
+            @Override
+            boolean accepts(Reducer<?> reducer)
+            {
+                return reducer instanceof DoubleReducer;
+            }
+
+            @Override
+            long reduce(Reducer<?> reducer, long a, long b)
+            {
+                return Double.doubleToLongBits(((DoubleReducer) reducer).reduceDouble(
+                        Double.longBitsToDouble(a), Double.longBitsToDouble(b)));
+            }
+        };
+
+        private final Class<?> typeClass;
+
+        NumberType(Class<?> typeClass)
+        {
+            this.typeClass = typeClass;
+        }
+
+        boolean isInstance(Object value)
+        {
+            return value != null && value.getClass() == typeClass;
+        }
+
+        abstract long encode(Object value);
+
+        abstract Object decode(long bits);
+
+        abstract boolean accepts(Reducer<?> reducer);
+
+        abstract long reduce(Reducer<?> reducer, long a, long b);
+
+        static NumberType of(Object value)
+        {
+            for (NumberType type : values()) {
+                if (type.isInstance(value)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.Broadcast;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.deprecated.JoinExperiment;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 广播join, 右侧在job运行前由driver收集并构建成hash表后广播, 左侧逐条查表.
+ * 广播变量由该算子持有, 所有引用它的job结束后销毁
+ */
+@SuppressWarnings("deprecation")
+public class BroadcastJoinOperator<K, V, W>
+        extends Operator<Tuple2<K, Tuple2<V, W>>>
+{
+    private final Operator<Tuple2<K, V>> dataSet;
+    private final transient Operator<Tuple2<K, W>> rightDataSet;
+    private final JoinExperiment.JoinMode joinMode;
+    private Broadcast<HashMap<K, List<W>>> broadcast;
+    private transient int referenceCount;
+
+    protected BroadcastJoinOperator(Operator<Tuple2<K, V>> dataSet, Operator<Tuple2<K, W>> rightDataSet, JoinExperiment.JoinMode joinMode)
+    {
+        super(dataSet);
+        checkState(joinMode == JoinExperiment.JoinMode.INNER_JOIN || joinMode == JoinExperiment.JoinMode.LEFT_JOIN,
+                "broadcast join not support " + joinMode);
+        this.dataSet = unboxing(dataSet);
+        this.rightDataSet = unboxing(requireNonNull(rightDataSet, "rightDataSet is null"));
+        this.joinMode = joinMode;
+    }
+
+    /**
+     * job运行前在driver上调用, 第一次引用时收集右侧并广播
+     */
+    public synchronized void acquireBroadcast()
+    {
+        if (broadcast == null) {
+            HashMap<K, List<W>> hashTable = new HashMap<>();
+            for (Tuple2<K, W> tuple2 : rightDataSet.collect()) {
+                hashTable.computeIfAbsent(tuple2.f1(), k -> new ArrayList<>()).add(tuple2.f2());
+            }
+            broadcast = getContext().broadcast(hashTable);
+        }
+        referenceCount++;
+    }
+
+    /**
+     * job结束后在driver上调用, 没有运行中的job引用时销毁广播变量
+     */
+    public synchronized void releaseBroadcast()
+    {
+        checkState(referenceCount > 0, "broadcast not acquired");
+        if (--referenceCount == 0) {
+            broadcast.destroy();
+            broadcast = null;
+        }
+    }
+
+    @Override
+    public Iterator<Tuple2<K, Tuple2<V, W>>> compute(Partition split, TaskContext taskContext)
+    {
+        checkState(broadcast != null, "broadcast not acquired");
+        HashMap<K, List<W>> hashTable = broadcast.getValue();
+        return Iterators.concat(Iterators.map(dataSet.computeOrCache(split, taskContext), x -> {
+            List<W> values = hashTable.get(x.f1());
+            if (values == null) {
+                return joinMode == JoinExperiment.JoinMode.LEFT_JOIN ? Iterators.of(new Tuple2<>(x.f1(), new Tuple2<>(x.f2(), null))) : Iterators.empty();
+            }
+            return Iterators.map(values.iterator(), w -> new Tuple2<>(x.f1(), new Tuple2<>(x.f2(), w)));
+        }));
+    }
+}
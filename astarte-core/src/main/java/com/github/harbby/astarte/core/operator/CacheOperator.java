@@ -18,12 +18,15 @@ package com.github.harbby.astarte.core.operator;
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.SizeTracker;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 //import com.google.common.collect.MapMaker;
 
@@ -40,7 +43,8 @@ public class CacheOperator<E>
 
     private final Operator<E> dataSet;
     List<Operator<?>> list = new ArrayList<>();
-    private static final Map<Integer, Iterable<?>[]> cacheMemMap = new ConcurrentHashMap<>();
+    private static final Map<Integer, CachedData> cacheMemMap = new ConcurrentHashMap<>();
+    private static final long STORAGE_REQUEST_SIZE = 1024 * 1024;
 
     public CacheOperator(Operator<E> dataSet)
     {
@@ -69,15 +73,19 @@ public class CacheOperator<E>
 
     public static void unCacheExec(int jobId)
     {
-        if (cacheMemMap.remove(jobId) != null) {
-            logger.info("clear cache data {}", jobId);
+        CachedData cachedData = cacheMemMap.remove(jobId);
+        if (cachedData != null) {
+            cachedData.memoryManager.releaseStorageMemory(cachedData.storageBytes.get());
+            logger.info("clear cache data {}, release {} bytes storage memory", jobId, cachedData.storageBytes.get());
         }
     }
 
     public static <E> Iterator<E> compute(Operator<E> dataSet, int jobId, Partition split, TaskContext taskContext)
     {
+        CachedData cachedData = cacheMemMap.computeIfAbsent(jobId,
+                key -> new CachedData(dataSet.numPartitions(), taskContext.getTaskMemoryManager().getMemoryManager()));
         @SuppressWarnings("unchecked")
-        Iterable<E>[] jobCachePartitons = (Iterable<E>[]) cacheMemMap.computeIfAbsent(jobId, key -> new Iterable[dataSet.numPartitions()]);
+        Iterable<E>[] jobCachePartitons = (Iterable<E>[]) cachedData.partitions;
 
         Iterable<E> partitionCache = jobCachePartitons[split.getId()];
         if (partitionCache != null) {
@@ -86,29 +94,101 @@ public class CacheOperator<E>
         }
         else {
             logger.debug("-----{} cached dep stage: {} cache miss---", dataSet, taskContext.getDependStages());
-            final List<E> data = new ArrayList<>();
             Iterator<E> iterator = dataSet.compute(split, taskContext);
-            return new Iterator<E>()
-            {
-                @Override
-                public boolean hasNext()
-                {
-                    boolean hasNext = iterator.hasNext();
-                    if (!hasNext) {
-                        jobCachePartitons[split.getId()] = data;  //原子操作，线程安全
-                        logger.debug("-----{} cached dep stage: {} write done---", dataSet, taskContext.getDependStages());
-                    }
-                    return hasNext;
-                }
-
-                @Override
-                public E next()
-                {
-                    E row = iterator.next();
-                    data.add(row);
-                    return row;
-                }
-            };
+            CachingIterator<E> cachingIterator = new CachingIterator<>(dataSet, split, iterator, cachedData, jobCachePartitons);
+            //没有读完整个分区(提前结束或失败)时放弃缓存, 释放已申请的storage内存
+            taskContext.addTaskCompletionListener(cachingIterator::abortCaching);
+            return cachingIterator;
+        }
+    }
+
+    private static class CachingIterator<E>
+            implements Iterator<E>
+    {
+        private final Operator<E> dataSet;
+        private final Partition split;
+        private final Iterator<E> iterator;
+        private final CachedData cachedData;
+        private final Iterable<E>[] jobCachePartitons;
+        private final List<E> data = new ArrayList<>();
+        private final SizeTracker sizeTracker = new SizeTracker();
+        private long reserved = 0;
+        private boolean caching = true;
+
+        private CachingIterator(Operator<E> dataSet, Partition split, Iterator<E> iterator, CachedData cachedData, Iterable<E>[] jobCachePartitons)
+        {
+            this.dataSet = dataSet;
+            this.split = split;
+            this.iterator = iterator;
+            this.cachedData = cachedData;
+            this.jobCachePartitons = jobCachePartitons;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            boolean hasNext = iterator.hasNext();
+            if (!hasNext && caching) {
+                caching = false;
+                cachedData.storageBytes.addAndGet(reserved);
+                jobCachePartitons[split.getId()] = data;  //原子操作，线程安全
+                logger.debug("-----{} cached partition {} write done---", dataSet, split.getId());
+            }
+            return hasNext;
+        }
+
+        @Override
+        public E next()
+        {
+            E row = iterator.next();
+            if (caching) {
+                data.add(row);
+                sizeTracker.afterUpdate(row);
+                reserveStorageMemory();
+            }
+            return row;
+        }
+
+        /**
+         * 按1MB为单位申请storage内存, 申请不到时放弃缓存该分区
+         */
+        private void reserveStorageMemory()
+        {
+            long size = sizeTracker.estimateSize() + (long) data.size() * Integer.BYTES;
+            if (size <= reserved) {
+                return;
+            }
+            long request = Math.max(size - reserved, STORAGE_REQUEST_SIZE);
+            if (cachedData.memoryManager.acquireStorageMemory(request)) {
+                reserved += request;
+            }
+            else {
+                logger.warn("not enough storage memory to cache {} partition {}, need {} bytes", dataSet, split.getId(), size);
+                abortCaching();
+            }
+        }
+
+        private void abortCaching()
+        {
+            if (caching) {
+                caching = false;
+                data.clear();
+                cachedData.memoryManager.releaseStorageMemory(reserved);
+                reserved = 0;
+            }
+        }
+    }
+
+    private static class CachedData
+    {
+        private final Iterable<?>[] partitions;
+        private final MemoryManager memoryManager;
+        private final AtomicLong storageBytes = new AtomicLong();
+
+        private CachedData(int numPartitions, MemoryManager memoryManager)
+        {
+            this.partitions = new Iterable<?>[numPartitions];
+            this.memoryManager = memoryManager;
         }
     }
 }
@@ -18,6 +18,7 @@ package com.github.harbby.astarte.core.operator;
 import com.github.harbby.astarte.core.BatchContext;
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.memory.SizeEstimator;
 import com.github.harbby.gadtry.collection.ImmutableList;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
@@ -45,6 +46,12 @@ public class CollectionSource<E>
         return slice(collection, parallelism);
     }
 
+    @Override
+    public long estimateSize()
+    {
+        return SizeEstimator.estimate(collection);
+    }
+
     @Override
     public Iterator<E> compute(Partition partition, TaskContext taskContext)
     {
@@ -66,7 +73,8 @@ public class CollectionSource<E>
         ParallelCollectionPartition[] partitions = new ParallelCollectionPartition[tuple2s.size()];
         for (int i = 0; i < partitions.length; i++) {
             Tuple2<Integer, Integer> a1 = tuple2s.get(i);
-            partitions[i] = new ParallelCollectionPartition<>(i, list.subList(a1.f1(), a1.f2()));
+            //subList不可序列化, 需要拷贝
+            partitions[i] = new ParallelCollectionPartition<>(i, new ArrayList<>(list.subList(a1.f1(), a1.f2())));
         }
         return partitions;
     }
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.api.function.Reducer;
+import com.github.harbby.astarte.core.memory.MemoryConsumer;
+import com.github.harbby.astarte.core.memory.SizeTracker;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.getShuffleWorkDir;
+
+/**
+ * 可溢写的hash聚合
+ * <p>
+ * 内存中用hash表保存每个key的聚合状态, 申请不到execution内存时按key的hash把数据分到NUM_BUCKETS个桶文件:
+ * 可合并的聚合(如Reducer)把hash表中的部分聚合结果整体溢写后清空hash表;
+ * 不可合并的聚合(如KeyGroupState)状态无法溢写, 之后的原始记录(包括hash表中已有的key)都写入桶文件,
+ * 输出时hash表中的状态按桶分组, 作为对应桶重新聚合的初始状态, 因此热点key的状态也不会在内存中无限增长.
+ * 输入结束后逐个桶重新聚合, 桶内数据仍然放不下时换一个hash种子递归分桶
+ */
+public class ExternalHashAggregator<K, V, S>
+        extends MemoryConsumer
+{
+    private static final Logger logger = LoggerFactory.getLogger(ExternalHashAggregator.class);
+    private static final int NUM_BUCKETS = 32;
+    private static final int MAX_LEVEL = 8;
+    private static final int MEMORY_CHECK_INTERVAL = 32;
+
+    private final Aggregation<K, V, S> aggregation;
+    private final File spillDir;
+    private final SerializerManager serializerManager;
+    private final TaskMetrics metrics;
+    private final int level;
+    private final SizeTracker sizeTracker = new SizeTracker();
+
+    private AggregationHashMap<K, V, S> map;
+    private BucketFiles bucketFiles;
+    private boolean memoryFull = false;
+    private boolean outputting = false;
+    private long spillBytes = 0;
+    private long numRecords = 0;
+
+    public ExternalHashAggregator(Aggregation<K, V, S> aggregation, TaskContext taskContext, SerializerManager serializerManager)
+    {
+        this(aggregation,
+                taskContext.getTaskMemoryManager(),
+                new File(getShuffleWorkDir(taskContext.executorUUID()), String.valueOf(taskContext.getJobId())),
+                serializerManager,
+                taskContext.getTaskMetrics(),
+                0);
+    }
+
+    ExternalHashAggregator(
+            Aggregation<K, V, S> aggregation,
+            TaskMemoryManager taskMemoryManager,
+            File spillDir,
+            SerializerManager serializerManager,
+            TaskMetrics metrics,
+            int level)
+    {
+        super(taskMemoryManager);
+        this.aggregation = aggregation;
+        this.spillDir = spillDir;
+        this.serializerManager = serializerManager;
+        this.metrics = metrics;
+        this.level = level;
+        this.map = new AggregationHashMap<>(aggregation);
+    }
+
+    /**
+     * 消费全部输入后惰性输出每个key的最终状态
+     */
+    public Iterator<Tuple2<K, S>> aggregate(Iterator<? extends Tuple2<K, V>> input)
+            throws IOException
+    {
+        long count = 0;
+        while (input.hasNext()) {
+            insert(input.next());
+            count++;
+        }
+        outputting = true;
+        logger.debug("aggregate {} records, {} keys in memory, spill {} bytes", count, map.size(), spillBytes);
+        if (bucketFiles == null) {
+            return drainMap();
+        }
+        if (aggregation.isMergeable()) {
+            //内存中剩余的部分聚合结果也写入桶文件, 与之前溢写的结果一起按桶合并
+            spillMap();
+            bucketFiles.finish();
+            return Iterators.flatMap(IntStream.range(0, NUM_BUCKETS).iterator(), bucket -> aggregateBucket(merging(aggregation), bucket, Collections.emptyList()));
+        }
+        else {
+            List<List<Tuple2<K, S>>> bucketStates = splitMapByBucket();
+            bucketFiles.finish();
+            return Iterators.flatMap(IntStream.range(0, NUM_BUCKETS).iterator(), bucket -> {
+                List<Tuple2<K, S>> states = bucketStates.get(bucket);
+                bucketStates.set(bucket, null);
+                return aggregateBucket(aggregation, bucket, states);
+            });
+        }
+    }
+
+    private void insert(Tuple2<K, V> record)
+            throws IOException
+    {
+        K key = record.f1();
+        if (memoryFull) {
+            bucketFiles.write(bucketOf(key), record);
+            return;
+        }
+        if (map.update(key, record.f2())) {
+            if (!aggregation.isMergeable()) {
+                //不可合并的状态随记录增长(如分组收集全部value), 按新增的value估算
+                sizeTracker.afterUpdate(record.f2());
+            }
+        }
+        else {
+            map.insert(key, record.f2());
+            if (!map.isPrimitive()) {
+                sizeTracker.afterUpdate(record);
+            }
+        }
+        if (++numRecords % MEMORY_CHECK_INTERVAL == 0) {
+            checkMemory();
+        }
+    }
+
+    private void checkMemory()
+            throws IOException
+    {
+        if (level < MAX_LEVEL && maybeAcquireMemory(estimateMemory())) {
+            if (aggregation.isMergeable()) {
+                spillMap();
+            }
+            else {
+                logger.info("not enough memory for aggregation, {} keys in memory, following records will spill to disk", map.size());
+                memoryFull = true;
+                getBucketFiles();
+            }
+        }
+    }
+
+    private long estimateMemory()
+    {
+        //key和状态都是原始类型时只有数组占用内存
+        return map.isPrimitive() ? map.getArrayMemory() : map.getArrayMemory() + sizeTracker.estimateSize();
+    }
+
+    @Override
+    public long spill(long required, MemoryConsumer trigger)
+            throws IOException
+    {
+        if (trigger == this || outputting || !aggregation.isMergeable() || map.isEmpty()) {
+            return 0;
+        }
+        long released = getUsed();
+        spillMap();
+        return released;
+    }
+
+    private void spillMap()
+            throws IOException
+    {
+        logger.info("spill {} partial aggregated keys to disk", map.size());
+        BucketFiles files = getBucketFiles();
+        Iterator<Tuple2<K, S>> iterator = map.iterator();
+        while (iterator.hasNext()) {
+            Tuple2<K, S> entry = iterator.next();
+            files.write(bucketOf(entry.f1()), entry);
+        }
+        map = new AggregationHashMap<>(aggregation);
+        sizeTracker.reset();
+        freeMemory(getUsed());
+    }
+
+    /**
+     * 按桶分组hash表中的状态后清空hash表, 状态的内存改由各个桶的聚合器申请
+     */
+    private List<List<Tuple2<K, S>>> splitMapByBucket()
+    {
+        List<List<Tuple2<K, S>>> bucketStates = new ArrayList<>(NUM_BUCKETS);
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            bucketStates.add(new ArrayList<>());
+        }
+        Iterator<Tuple2<K, S>> iterator = map.iterator();
+        while (iterator.hasNext()) {
+            Tuple2<K, S> entry = iterator.next();
+            bucketStates.get(bucketOf(entry.f1())).add(entry);
+        }
+        map = new AggregationHashMap<>(aggregation);
+        sizeTracker.reset();
+        freeMemory(getUsed());
+        return bucketStates;
+    }
+
+    /**
+     * 放入上一层已经聚合的状态, 之后的记录在这些状态上继续聚合
+     */
+    private void putStates(List<Tuple2<K, S>> states)
+            throws IOException
+    {
+        for (Tuple2<K, S> entry : states) {
+            map.putState(entry.f1(), entry.f2());
+            sizeTracker.afterUpdate(entry);
+        }
+        if (!states.isEmpty()) {
+            checkMemory();
+        }
+    }
+
+    private BucketFiles getBucketFiles()
+    {
+        if (bucketFiles == null) {
+            bucketFiles = new BucketFiles();
+        }
+        return bucketFiles;
+    }
+
+    /**
+     * 输出完后释放hash表及其内存
+     */
+    private Iterator<Tuple2<K, S>> drainMap()
+    {
+        Iterator<Tuple2<K, S>> iterator = map.iterator();
+        return new Iterator<Tuple2<K, S>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                if (iterator.hasNext()) {
+                    return true;
+                }
+                map = new AggregationHashMap<>(aggregation);
+                freeMemory(getUsed());
+                return false;
+            }
+
+            @Override
+            public Tuple2<K, S> next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return iterator.next();
+            }
+        };
+    }
+
+    private <I> Iterator<Tuple2<K, S>> aggregateBucket(Aggregation<K, I, S> bucketAggregation, int bucket, List<Tuple2<K, S>> states)
+    {
+        File file = bucketFiles.files[bucket];
+        if (file == null) {
+            return states.iterator();
+        }
+        ExternalHashAggregator<K, I, S> aggregator = new ExternalHashAggregator<>(bucketAggregation,
+                taskMemoryManager, spillDir, serializerManager, metrics, level + 1);
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            aggregator.putStates(states);
+            Iterator<Tuple2<K, I>> reader = serializerManager.newBlockReader(inputStream, file.length(), metrics);
+            return aggregator.aggregate(reader);
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private int bucketOf(K key)
+    {
+        //上游已按hashCode分区, 这里需要打散后再分桶, 每一层使用不同的种子
+        int h = (key == null ? 0 : key.hashCode()) ^ (level * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 15;
+        return (h & Integer.MAX_VALUE) % NUM_BUCKETS;
+    }
+
+    public long getSpillBytes()
+    {
+        return spillBytes;
+    }
+
+    private static <K, S> Aggregation<K, S, S> merging(Aggregation<K, ?, S> aggregation)
+    {
+        return new Aggregation<K, S, S>()
+        {
+            @Override
+            public S createState(K key, S value)
+            {
+                return value;
+            }
+
+            @Override
+            public S update(S state, S value)
+            {
+                return aggregation.merge(state, value);
+            }
+
+            @Override
+            public boolean isMergeable()
+            {
+                return true;
+            }
+
+            @Override
+            public S merge(S state1, S state2)
+            {
+                return aggregation.merge(state1, state2);
+            }
+
+            @Override
+            public Reducer<?> valueReducer()
+            {
+                return aggregation.valueReducer();
+            }
+        };
+    }
+
+    /**
+     * 每个key的聚合逻辑, 可合并的聚合需要实现merge
+     */
+    public interface Aggregation<K, V, S>
+    {
+        S createState(K key, V value);
+
+        S update(S state, V value);
+
+        default boolean isMergeable()
+        {
+            return false;
+        }
+
+        default S merge(S state1, S state2)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * 状态即输入值且按该reducer聚合时返回reducer, 用于选择原始类型的状态存储
+         */
+        default Reducer<?> valueReducer()
+        {
+            return null;
+        }
+
+        public static <K, V> Aggregation<K, V, V> reduce(Reducer<V> reducer)
+        {
+            return new Aggregation<K, V, V>()
+            {
+                @Override
+                public V createState(K key, V value)
+                {
+                    return value;
+                }
+
+                @Override
+                public V update(V state, V value)
+                {
+                    return reducer.reduce(state, value);
+                }
+
+                @Override
+                public boolean isMergeable()
+                {
+                    return true;
+                }
+
+                @Override
+                public V merge(V state1, V state2)
+                {
+                    return reducer.reduce(state1, state2);
+                }
+
+                @Override
+                public Reducer<?> valueReducer()
+                {
+                    return reducer;
+                }
+            };
+        }
+
+        /**
+         * 按输入顺序收集每个key的全部value
+         */
+        public static <K, V> Aggregation<K, V, List<V>> group()
+        {
+            return new Aggregation<K, V, List<V>>()
+            {
+                @Override
+                public List<V> createState(K key, V value)
+                {
+                    return update(new ArrayList<>(), value);
+                }
+
+                @Override
+                public List<V> update(List<V> state, V value)
+                {
+                    state.add(value);
+                    return state;
+                }
+            };
+        }
+    }
+
+    private class BucketFiles
+    {
+        private final File[] files = new File[NUM_BUCKETS];
+        private final OutputStream[] outputs = new OutputStream[NUM_BUCKETS];
+        private final RecordBlockWriter[] writers = new RecordBlockWriter[NUM_BUCKETS];
+
+        private void write(int bucket, Object record)
+                throws IOException
+        {
+            if (writers[bucket] == null) {
+                if (!spillDir.exists()) {
+                    spillDir.mkdirs();
+                }
+                files[bucket] = File.createTempFile("agg_", ".spill", spillDir);
+                outputs[bucket] = new BufferedOutputStream(new FileOutputStream(files[bucket], false));
+                writers[bucket] = serializerManager.newBlockWriter(outputs[bucket], metrics);
+            }
+            writers[bucket].write(record);
+        }
+
+        private void finish()
+                throws IOException
+        {
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                if (writers[bucket] != null) {
+                    writers[bucket].flushBlock();
+                    outputs[bucket].close();
+                    spillBytes += writers[bucket].getBytesWritten();
+                }
+            }
+            metrics.incSpilledBytes(spillBytes);
+        }
+    }
+}
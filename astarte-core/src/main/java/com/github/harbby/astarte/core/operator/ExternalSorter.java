@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.Partitioner;
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.memory.MemoryConsumer;
+import com.github.harbby.astarte.core.memory.SizeTracker;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.serializer.RecordBlockReader;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.astarte.core.utils.MergeSortedIterator;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 可溢写的外部排序器
+ * <p>
+ * 记录保存在records数组中, 排序只针对long[] pointers进行(高32位为partitionId, 低32位为records下标),
+ * 先按partitionId再按key排序. 内存中记录数达到spillThreshold或申请不到execution内存时,
+ * 将当前数据排序后溢写为一个有序run文件, 最终按分区对所有run做k路归并输出.
+ * <p>
+ * partitioner为null时所有记录都属于0号分区, 可直接用于reduce端算子
+ */
+public class ExternalSorter<K, V>
+        extends MemoryConsumer
+        implements Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger(ExternalSorter.class);
+    private static final int INIT_CAPACITY = 1024;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int MEMORY_CHECK_INTERVAL = 32;
+
+    private final Comparator<K> ordering;
+    private final Partitioner partitioner;
+    private final int numPartitions;
+    private final int spillThreshold;
+    private final File spillDir;
+    private final SerializerManager serializerManager;
+    private final TaskMetrics metrics;
+    private final List<SpillRun> spillRuns = new ArrayList<>();
+    private final List<SpillRunReader> runReaders = new ArrayList<>();
+    private final SizeTracker sizeTracker = new SizeTracker();
+
+    private Object[] records;
+    private long[] pointers;
+    private int size = 0;
+    private int memoryCursor = 0;
+    private boolean finished = false;
+    private long spillBytes = 0;
+
+    public ExternalSorter(Comparator<K> ordering, Partitioner partitioner, int spillThreshold, File spillDir,
+            SerializerManager serializerManager, TaskMetrics metrics, TaskMemoryManager taskMemoryManager)
+    {
+        super(taskMemoryManager);
+        checkArgument(spillThreshold > 0, "spillThreshold must > 0");
+        this.ordering = ordering;
+        this.partitioner = partitioner;
+        this.numPartitions = partitioner == null ? 1 : partitioner.numPartitions();
+        this.spillThreshold = spillThreshold;
+        this.spillDir = requireNonNull(spillDir, "spillDir is null");
+        this.serializerManager = requireNonNull(serializerManager, "serializerManager is null");
+        this.metrics = requireNonNull(metrics, "metrics is null");
+        int capacity = Math.min(INIT_CAPACITY, spillThreshold);
+        this.records = new Object[capacity];
+        this.pointers = new long[capacity];
+    }
+
+    public void insertAll(Iterator<? extends Tuple2<K, V>> iterator)
+            throws IOException
+    {
+        while (iterator.hasNext()) {
+            insert(iterator.next());
+        }
+    }
+
+    public void insert(Tuple2<K, V> record)
+            throws IOException
+    {
+        checkState(!finished, "sorter is finished");
+        if (size == spillThreshold || (size % MEMORY_CHECK_INTERVAL == 0 && size > 0 && maybeAcquireMemory(estimateMemory()))) {
+            writeSpillFile();
+        }
+        if (size == records.length) {
+            int capacity = (int) Math.min(records.length * 2L, spillThreshold);
+            records = Arrays.copyOf(records, capacity);
+            pointers = Arrays.copyOf(pointers, capacity);
+        }
+        int partitionId = partitioner == null ? 0 : partitioner.getPartition(record.f1());
+        records[size] = record;
+        pointers[size] = ((long) partitionId << 32) | size;
+        size++;
+        sizeTracker.afterUpdate(record);
+    }
+
+    /**
+     * 记录本身的估算大小加上records和pointers数组
+     */
+    private long estimateMemory()
+    {
+        return sizeTracker.estimateSize() + (long) records.length * (Integer.BYTES + Long.BYTES);
+    }
+
+    @Override
+    public long spill(long required, MemoryConsumer trigger)
+            throws IOException
+    {
+        if (trigger == this || finished || size == 0) {
+            return 0;
+        }
+        long released = getUsed();
+        writeSpillFile();
+        return released;
+    }
+
+    public long getSpillBytes()
+    {
+        return spillBytes;
+    }
+
+    /**
+     * 按分区顺序输出全部记录, 每个分区内按key有序
+     */
+    public void writePartitionedTo(PartitionedWriter<K, V> writer)
+            throws IOException
+    {
+        finish();
+        for (int partitionId = 0; partitionId < numPartitions; partitionId++) {
+            Iterator<Tuple2<K, V>> iterator = partitionIterator(partitionId);
+            while (iterator.hasNext()) {
+                writer.write(partitionId, iterator.next());
+            }
+        }
+    }
+
+    /**
+     * 惰性输出全部记录, 消费完后需调用close()清理溢写文件
+     */
+    public Iterator<Tuple2<K, V>> sortedIterator()
+            throws IOException
+    {
+        finish();
+        return Iterators.flatMap(IntStream.range(0, numPartitions).iterator(), this::partitionIterator);
+    }
+
+    private void finish()
+            throws IOException
+    {
+        checkState(!finished, "sorter is finished");
+        finished = true;
+        sort(0, size, 2 * (32 - Integer.numberOfLeadingZeros(Math.max(size, 1))));
+        for (SpillRun spillRun : spillRuns) {
+            runReaders.add(new SpillRunReader(spillRun, serializerManager, metrics));
+        }
+    }
+
+    private Iterator<Tuple2<K, V>> partitionIterator(int partitionId)
+    {
+        List<Iterator<Tuple2<K, V>>> sources = new ArrayList<>(runReaders.size() + 1);
+        for (SpillRunReader reader : runReaders) {
+            sources.add(reader.segment(partitionId));
+        }
+        sources.add(memorySegment(partitionId));
+        if (sources.size() == 1) {
+            return sources.get(0);
+        }
+        else if (ordering == null) {
+            return Iterators.concat(sources.iterator());
+        }
+        else {
+            return new MergeSortedIterator<>(sources, (x, y) -> ordering.compare(x.f1(), y.f1()));
+        }
+    }
+
+    private Iterator<Tuple2<K, V>> memorySegment(int partitionId)
+    {
+        int start = memoryCursor;
+        while (start < size && partitionOf(pointers[start]) < partitionId) {
+            start++;
+        }
+        int end = start;
+        while (end < size && partitionOf(pointers[end]) == partitionId) {
+            end++;
+        }
+        memoryCursor = end;
+        return Iterators.map(IntStream.range(start, end).iterator(), i -> recordOf(pointers[i]));
+    }
+
+    private void writeSpillFile()
+            throws IOException
+    {
+        sort(0, size, 2 * (32 - Integer.numberOfLeadingZeros(size)));
+        if (!spillDir.exists()) {
+            spillDir.mkdirs();
+        }
+        File file = File.createTempFile("sort_", ".spill", spillDir);
+        long[] offsets = new long[numPartitions + 1];
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file, false))) {
+            RecordBlockWriter writer = serializerManager.newBlockWriter(outputStream, metrics);
+            int i = 0;
+            for (int partitionId = 0; partitionId < numPartitions; partitionId++) {
+                offsets[partitionId] = writer.getBytesWritten();
+                for (; i < size && partitionOf(pointers[i]) == partitionId; i++) {
+                    writer.write(recordOf(pointers[i]));
+                }
+                writer.flushBlock();
+            }
+            offsets[numPartitions] = writer.getBytesWritten();
+        }
+        spillRuns.add(new SpillRun(file, offsets));
+        spillBytes += offsets[numPartitions];
+        metrics.incSpilledBytes(offsets[numPartitions]);
+        logger.info("spill {} records to {}, size {} bytes", size, file, offsets[numPartitions]);
+        Arrays.fill(records, 0, size, null);
+        size = 0;
+        sizeTracker.reset();
+        freeMemory(getUsed());
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        for (SpillRunReader reader : runReaders) {
+            reader.close();
+        }
+        runReaders.clear();
+        for (SpillRun spillRun : spillRuns) {
+            spillRun.file.delete();
+        }
+        spillRuns.clear();
+        records = null;
+        pointers = null;
+        freeMemory(getUsed());
+    }
+
+    private static int partitionOf(long pointer)
+    {
+        return (int) (pointer >>> 32);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Tuple2<K, V> recordOf(long pointer)
+    {
+        return (Tuple2<K, V>) records[(int) pointer];
+    }
+
+    private int compare(long x, long y)
+    {
+        int c = Integer.compare(partitionOf(x), partitionOf(y));
+        if (c != 0 || ordering == null) {
+            return c;
+        }
+        return ordering.compare(recordOf(x).f1(), recordOf(y).f1());
+    }
+
+    /**
+     * 原地排序pointers[from, to), 三路快排, 递归过深时退化为堆排序
+     */
+    private void sort(int from, int to, int depth)
+    {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            if (depth-- == 0) {
+                heapSort(from, to);
+                return;
+            }
+            long pivot = medianOfThree(pointers[from], pointers[(from + to) >>> 1], pointers[to - 1]);
+            int lt = from;
+            int gt = to - 1;
+            int i = from;
+            while (i <= gt) {
+                int c = compare(pointers[i], pivot);
+                if (c < 0) {
+                    swap(lt++, i++);
+                }
+                else if (c > 0) {
+                    swap(i, gt--);
+                }
+                else {
+                    i++;
+                }
+            }
+            //[from, lt) < pivot, [lt, gt] == pivot, (gt, to) > pivot. 递归较小的一侧
+            if (lt - from < to - gt - 1) {
+                sort(from, lt, depth);
+                from = gt + 1;
+            }
+            else {
+                sort(gt + 1, to, depth);
+                to = lt;
+            }
+        }
+        insertionSort(from, to);
+    }
+
+    private long medianOfThree(long a, long b, long c)
+    {
+        if (compare(a, b) < 0) {
+            if (compare(b, c) < 0) {
+                return b;
+            }
+            return compare(a, c) < 0 ? c : a;
+        }
+        if (compare(a, c) < 0) {
+            return a;
+        }
+        return compare(b, c) < 0 ? c : b;
+    }
+
+    private void insertionSort(int from, int to)
+    {
+        for (int i = from + 1; i < to; i++) {
+            long value = pointers[i];
+            int j = i - 1;
+            while (j >= from && compare(pointers[j], value) > 0) {
+                pointers[j + 1] = pointers[j];
+                j--;
+            }
+            pointers[j + 1] = value;
+        }
+    }
+
+    private void heapSort(int from, int to)
+    {
+        int n = to - from;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(from, i, n);
+        }
+        for (int i = n - 1; i > 0; i--) {
+            swap(from, from + i);
+            siftDown(from, 0, i);
+        }
+    }
+
+    private void siftDown(int base, int i, int n)
+    {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                return;
+            }
+            if (child + 1 < n && compare(pointers[base + child + 1], pointers[base + child]) > 0) {
+                child++;
+            }
+            if (compare(pointers[base + i], pointers[base + child]) >= 0) {
+                return;
+            }
+            swap(base + i, base + child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        long tmp = pointers[i];
+        pointers[i] = pointers[j];
+        pointers[j] = tmp;
+    }
+
+    public static interface PartitionedWriter<K, V>
+    {
+        public void write(int partitionId, Tuple2<K, V> record)
+                throws IOException;
+    }
+
+    private static class SpillRun
+    {
+        private final File file;
+        private final long[] offsets;
+
+        private SpillRun(File file, long[] offsets)
+        {
+            this.file = file;
+            this.offsets = offsets;
+        }
+    }
+
+    /**
+     * 顺序读取一个run文件, 必须按partitionId递增的顺序读取各分段
+     */
+    private static class SpillRunReader
+            implements Closeable
+    {
+        private final SpillRun spillRun;
+        private final SerializerManager serializerManager;
+        private final TaskMetrics metrics;
+        private final DataInputStream inputStream;
+        private long position = 0;
+        private RecordBlockReader<?> segmentReader;
+
+        private SpillRunReader(SpillRun spillRun, SerializerManager serializerManager, TaskMetrics metrics)
+                throws IOException
+        {
+            this.spillRun = spillRun;
+            this.serializerManager = serializerManager;
+            this.metrics = metrics;
+            this.inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(spillRun.file)));
+        }
+
+        private <K, V> Iterator<Tuple2<K, V>> segment(int partitionId)
+        {
+            long start = spillRun.offsets[partitionId];
+            long end = spillRun.offsets[partitionId + 1];
+            try {
+                if (segmentReader != null) {
+                    position -= segmentReader.getRemaining();
+                }
+                checkState(position <= start, "run segments must be read in order");
+                while (position < start) {
+                    position += inputStream.skip(start - position);
+                }
+            }
+            catch (IOException e) {
+                throw Throwables.throwsThrowable(e);
+            }
+            RecordBlockReader<Tuple2<K, V>> reader = serializerManager.newBlockReader(inputStream, end - start, metrics);
+            this.segmentReader = reader;
+            this.position = end;
+            return reader;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            inputStream.close();
+        }
+    }
+}
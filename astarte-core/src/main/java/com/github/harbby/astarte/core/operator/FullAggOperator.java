@@ -20,13 +20,14 @@ import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.function.MapGroupFunc;
 import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
-import java.util.Collection;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 
 import static java.util.Objects.requireNonNull;
 
@@ -38,14 +39,13 @@ public class FullAggOperator<K, V, O>
 {
     private final Operator<Tuple2<K, V>> dataSet;
     private final MapGroupFunc<K, V, O> mapGroupFunc;
+    private final SerializerManager serializerManager;
 
     protected FullAggOperator(
             Operator<Tuple2<K, V>> dataSet,
             Mapper<Iterable<V>, O> agg)
     {
-        super(dataSet);
-        this.dataSet = requireNonNull(unboxing(dataSet), "dataSet is null");
-        this.mapGroupFunc = (k, iterable) -> agg.map(iterable);
+        this(dataSet, (k, iterable) -> agg.map(iterable));
     }
 
     protected FullAggOperator(
@@ -55,6 +55,7 @@ public class FullAggOperator<K, V, O>
         super(dataSet);
         this.dataSet = requireNonNull(unboxing(dataSet), "dataSet is null");
         this.mapGroupFunc = requireNonNull(mapGroupFunc);
+        this.serializerManager = SerializerManager.create(getContext().getConf());
     }
 
     @Override
@@ -67,14 +68,14 @@ public class FullAggOperator<K, V, O>
     public Iterator<Tuple2<K, O>> compute(Partition split, TaskContext taskContext)
     {
         Iterator<Tuple2<K, V>> input = dataSet.computeOrCache(split, taskContext);
-        //todo: 非增量计算,需实现溢写功能
-        Map<K, Collection<V>> kGroup = new HashMap<>();
-        while (input.hasNext()) {
-            Tuple2<K, V> tp = input.next();
-            Collection<V> values = kGroup.computeIfAbsent(tp.f1(), k -> new LinkedList<>());
-            values.add(tp.f2());
+        //非增量计算, 先收集每个key的全部value, 内存不足时按桶溢写原始记录
+        ExternalHashAggregator<K, V, List<V>> aggregator = new ExternalHashAggregator<>(ExternalHashAggregator.Aggregation.group(),
+                taskContext, serializerManager);
+        try {
+            return Iterators.map(aggregator.aggregate(input), x -> new Tuple2<>(x.f1(), mapGroupFunc.apply(x.f1(), x.f2())));
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
         }
-        return kGroup.entrySet().stream()
-                .map(x -> new Tuple2<>(x.getKey(), mapGroupFunc.apply(x.getKey(), x.getValue()))).iterator();
     }
 }
@@ -24,6 +24,7 @@ import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.astarte.core.api.function.KvForeach;
 import com.github.harbby.astarte.core.api.function.KvMapper;
+import com.github.harbby.astarte.core.api.function.LongReducer;
 import com.github.harbby.astarte.core.api.function.Mapper;
 import com.github.harbby.astarte.core.api.function.Reducer;
 import com.github.harbby.astarte.core.deprecated.JoinExperiment;
@@ -34,6 +35,10 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import static com.github.harbby.astarte.core.api.Constant.DEFAULT_JOIN_BROADCAST_THRESHOLD;
+import static com.github.harbby.astarte.core.api.Constant.DEFAULT_JOIN_SORT_MERGE_THRESHOLD;
+import static com.github.harbby.astarte.core.api.Constant.JOIN_BROADCAST_THRESHOLD;
+import static com.github.harbby.astarte.core.api.Constant.JOIN_SORT_MERGE_THRESHOLD;
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 
 public class KvOperator<K, V>
@@ -234,7 +239,7 @@ public class KvOperator<K, V>
     @Override
     public KvDataSet<K, V> reduceByKey(Reducer<V> reducer, int numPartition)
     {
-        return reduceByKey(reducer, new HashPartitioner(dataSet.numPartitions()));
+        return reduceByKey(reducer, new HashPartitioner(numPartition));
     }
 
     @Override
@@ -248,7 +253,7 @@ public class KvOperator<K, V>
             Operator<Tuple2<K, V>> combineOperator;
             // combine
             if (combine) {
-                combineOperator = new AggOperator<>(dataSet, reducer);
+                combineOperator = new AggOperator<>(dataSet, reducer, true);
             }
             else {
                 combineOperator = dataSet;
@@ -276,10 +281,14 @@ public class KvOperator<K, V>
     @Override
     public KvDataSet<K, Double> avgValues(Mapper<V, Double> valueCast, Partitioner partitioner)
     {
-        //todo: 需要使用对象池或可变topic来减少ygc
-        return this.mapValues(x -> new Tuple2<>(valueCast.map(x), 1L))
-                .reduceByKey((x, y) -> new Tuple2<>(x.f1() + y.f1(), x.f2() + y.f2()), partitioner)
-                .mapValues(x -> x.f1() / x.f2());
+        //状态为可变的{sum, count}, 聚合时原地累加, 不再为每条记录创建新的Tuple2
+        return this.mapValues(x -> new double[] {valueCast.map(x), 1})
+                .reduceByKey((x, y) -> {
+                    x[0] += y[0];
+                    x[1] += y[1];
+                    return x;
+                }, partitioner)
+                .mapValues(x -> x[0] / x[1]);
     }
 
     @Override
@@ -297,7 +306,7 @@ public class KvOperator<K, V>
     @Override
     public KvDataSet<K, Long> countByKey(Partitioner partitioner)
     {
-        return this.mapValues(x -> 1L).reduceByKey(Long::sum, partitioner);
+        return this.mapValues(x -> 1L).reduceByKey((LongReducer) Long::sum, partitioner);
     }
 
     @Override
@@ -312,6 +321,27 @@ public class KvOperator<K, V>
         return join(kvDataSet, JoinExperiment.JoinMode.INNER_JOIN);
     }
 
+    @SuppressWarnings("deprecation")
+    @Override
+    public <W> KvDataSet<K, Tuple2<V, W>> broadcastJoin(DataSet<Tuple2<K, W>> kvDataSet)
+    {
+        return broadcastJoin(kvDataSet, JoinExperiment.JoinMode.INNER_JOIN);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public <W> KvDataSet<K, Tuple2<V, W>> broadcastLeftJoin(DataSet<Tuple2<K, W>> kvDataSet)
+    {
+        return broadcastJoin(kvDataSet, JoinExperiment.JoinMode.LEFT_JOIN);
+    }
+
+    @SuppressWarnings("deprecation")
+    private <W> KvDataSet<K, Tuple2<V, W>> broadcastJoin(DataSet<Tuple2<K, W>> rightDataSet, JoinExperiment.JoinMode joinMode)
+    {
+        checkState(rightDataSet instanceof Operator, rightDataSet + "not instanceof Operator");
+        return new KvOperator<>(new BroadcastJoinOperator<>(dataSet, (Operator<Tuple2<K, W>>) rightDataSet, joinMode));
+    }
+
     @Deprecated
     private <W> KvDataSet<K, Tuple2<V, W>> join(DataSet<Tuple2<K, W>> rightDataSet, JoinExperiment.JoinMode joinMode)
     {
@@ -328,10 +358,16 @@ public class KvOperator<K, V>
         else if ((Object) rightOperator == dataSet) {
             return this.mapValues(x -> new Tuple2<>(x, (W) x));
         }
+        else if (useBroadcastJoin(rightOperator, joinMode)) {
+            return broadcastJoin(rightOperator, joinMode);
+        }
         else {
             int reduceNum = Math.max(dataSet.numPartitions(), rightDataSet.numPartitions());
             Partitioner partitioner = new HashPartitioner(reduceNum);
-            joinOperator = new ShuffleJoinOperator<>(partitioner, dataSet, rightOperator);
+            if (useSortMergeJoin(rightOperator, joinMode)) {
+                return new KvOperator<>(new SortMergeJoinOperator<>(partitioner, dataSet, rightOperator, joinMode));
+            }
+            joinOperator = new ShuffleJoinOperator<>(partitioner, joinMode, dataSet, rightOperator);
         }
 
         Operator<Tuple2<K, Tuple2<V, W>>> operator = joinOperator.flatMapIterator(x -> {
@@ -346,6 +382,44 @@ public class KvOperator<K, V>
         return new KvOperator<>(operator);
     }
 
+    /**
+     * 右侧估算数据量不超过阈值时广播右侧, 阈值小于0时关闭
+     */
+    @SuppressWarnings("deprecation")
+    private boolean useBroadcastJoin(Operator<?> rightOperator, JoinExperiment.JoinMode joinMode)
+    {
+        if (joinMode != JoinExperiment.JoinMode.INNER_JOIN && joinMode != JoinExperiment.JoinMode.LEFT_JOIN) {
+            return false;
+        }
+        long threshold = getContext().getConf().getLong(JOIN_BROADCAST_THRESHOLD, DEFAULT_JOIN_BROADCAST_THRESHOLD);
+        long rightSize = rightOperator.estimateSize();
+        if (threshold < 0 || rightSize < 0 || rightSize > threshold) {
+            return false;
+        }
+        logger.info("join right side estimated size {} bytes, use broadcast join", rightSize);
+        return true;
+    }
+
+    /**
+     * 两侧估算数据量之和超过阈值时使用sort merge join, 无法估算时保持hash join
+     */
+    @SuppressWarnings("deprecation")
+    private boolean useSortMergeJoin(Operator<?> rightOperator, JoinExperiment.JoinMode joinMode)
+    {
+        if (joinMode != JoinExperiment.JoinMode.INNER_JOIN && joinMode != JoinExperiment.JoinMode.LEFT_JOIN) {
+            return false;
+        }
+        long threshold = getContext().getConf().getLong(JOIN_SORT_MERGE_THRESHOLD, DEFAULT_JOIN_SORT_MERGE_THRESHOLD);
+        long leftSize = dataSet.estimateSize();
+        long rightSize = rightOperator.estimateSize();
+        if (leftSize < 0 || rightSize < 0) {
+            return false;
+        }
+        boolean sortMerge = leftSize + rightSize > threshold;
+        logger.info("join input estimated size {} + {} bytes, use {}", leftSize, rightSize, sortMerge ? "sort merge join" : "hash join");
+        return sortMerge;
+    }
+
     @Override
     public KvDataSet<K, V> union(DataSet<Tuple2<K, V>> kvDataSet)
     {
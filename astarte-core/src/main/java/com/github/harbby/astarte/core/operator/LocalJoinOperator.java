@@ -18,7 +18,7 @@ package com.github.harbby.astarte.core.operator;
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.Partition;
-import com.github.harbby.astarte.core.deprecated.JoinExperiment;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
 import com.github.harbby.gadtry.collection.MutableList;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
@@ -38,6 +38,7 @@ public class LocalJoinOperator<K>
         extends Operator<Tuple2<K, Iterable<?>[]>>
 {
     private final Operator<Tuple2<K, Object>>[] kvDataSets;
+    private final SerializerManager serializerManager;
 
     @SuppressWarnings("unchecked")
     @SafeVarargs
@@ -55,6 +56,7 @@ public class LocalJoinOperator<K>
                     checkState(Objects.equals(leftDataSet.getPartitioner(), x.getPartitioner()));
                     return unboxing(x);
                 }).toArray(Operator[]::new);
+        this.serializerManager = SerializerManager.create(getContext().getConf());
     }
 
     @Override
@@ -90,6 +92,6 @@ public class LocalJoinOperator<K>
         Iterator<Iterator<Tuple2<K, Object>>> iterators = Stream.of(kvDataSets)
                 .map(operator -> operator.computeOrCache(split, taskContext))
                 .iterator();
-        return JoinExperiment.join(iterators, kvDataSets.length);
+        return ShuffleJoinOperator.join(iterators, kvDataSets.length, taskContext, serializerManager);
     }
 }
@@ -65,6 +65,14 @@ public class MapPartitionOperator<I, O>
         return null;
     }
 
+    /**
+     * 用户函数依赖分区id时, 分区不能被合并
+     */
+    public boolean usesPartitionId()
+    {
+        return flatMapperWithId != null;
+    }
+
     @Override
     public Iterator<O> compute(Partition split, TaskContext taskContext)
     {
@@ -137,6 +137,27 @@ public abstract class Operator<R>
         return dataSet.getPartitions();
     }
 
+    /**
+     * 估算输出的数据量(字节), 无法估算时返回-1, 用于选择join策略.
+     * 默认为上游估算值之和, 数据源需要覆盖
+     */
+    public long estimateSize()
+    {
+        List<? extends Operator<?>> dependencies = getDependencies();
+        if (dependencies.isEmpty()) {
+            return -1;
+        }
+        long size = 0;
+        for (Operator<?> dependency : dependencies) {
+            long dependencySize = dependency.estimateSize();
+            if (dependencySize < 0) {
+                return -1;
+            }
+            size += dependencySize;
+        }
+        return size;
+    }
+
     public boolean isMarkedCache()
     {
         return markedCache;
@@ -21,23 +21,27 @@ import com.github.harbby.astarte.core.api.Collector;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.function.KeyGroupState;
 import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Iterator;
-import java.util.Map;
 
 public class PipeLineAggOperator<K, V, O>
         extends Operator<Tuple2<K, O>>
 {
     private final Operator<Tuple2<K, V>> operator;
     private final Mapper<KeyGroupState<K, O>, Collector<V>> groupCollector;
+    private final SerializerManager serializerManager;
 
     protected PipeLineAggOperator(Operator<Tuple2<K, V>> operator, Mapper<KeyGroupState<K, O>, Collector<V>> groupCollector)
     {
         super(operator);
         this.operator = unboxing(operator);
         this.groupCollector = groupCollector;
+        this.serializerManager = SerializerManager.create(getContext().getConf());
     }
 
     @Override
@@ -51,23 +55,31 @@ public class PipeLineAggOperator<K, V, O>
     public Iterator<Tuple2<K, O>> compute(Partition split, TaskContext taskContext)
     {
         Iterator<Tuple2<K, V>> input = operator.computeOrCache(split, taskContext);
-        // 这里是增量计算的 复杂度= O(1) + log(m)
-        Map<K, Tuple2<Collector<V>, KeyGroupState<K, O>>> aggState = new HashMap<>();  //这里是纯内存计算的, spark在1.x之后实现了内存溢出功能
-        int count = 0;
-        while (input.hasNext()) {
-            Tuple2<K, V> tp = input.next();
-            Tuple2<Collector<V>, KeyGroupState<K, O>> keyGroup = aggState.get(tp.f1);
-            if (keyGroup == null) {
-                KeyGroupState<K, O> keyGroupState = KeyGroupState.createKeyGroupState(tp.f1);
-                keyGroup = new Tuple2<>(groupCollector.map(keyGroupState), keyGroupState);
-                aggState.put(tp.f1, keyGroup);
-            }
+        // 这里是增量计算的 复杂度= O(1) + log(m), 状态不能合并, 内存不足时新出现的key按桶溢写原始记录
+        ExternalHashAggregator<K, V, Tuple2<Collector<V>, KeyGroupState<K, O>>> aggregator = new ExternalHashAggregator<>(
+                new ExternalHashAggregator.Aggregation<K, V, Tuple2<Collector<V>, KeyGroupState<K, O>>>()
+                {
+                    @Override
+                    public Tuple2<Collector<V>, KeyGroupState<K, O>> createState(K key, V value)
+                    {
+                        KeyGroupState<K, O> keyGroupState = KeyGroupState.createKeyGroupState(key);
+                        Collector<V> collector = groupCollector.map(keyGroupState);
+                        collector.collect(value);
+                        return new Tuple2<>(collector, keyGroupState);
+                    }
 
-            Collector<V> collector = keyGroup.f1;
-            collector.collect(tp.f2);
-            count++;
+                    @Override
+                    public Tuple2<Collector<V>, KeyGroupState<K, O>> update(Tuple2<Collector<V>, KeyGroupState<K, O>> keyGroup, V value)
+                    {
+                        keyGroup.f1().collect(value);
+                        return keyGroup;
+                    }
+                }, taskContext, serializerManager);
+        try {
+            return Iterators.map(aggregator.aggregate(input), x -> new Tuple2<>(x.f1(), x.f2().f2().getState()));
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
         }
-        logger.debug("AggOperator `convergent validity` is {}% ex: {}/{}", aggState.size() * 100.0 / count, aggState.size(), count);
-        return aggState.entrySet().stream().map(x -> new Tuple2<>(x.getKey(), x.getValue().f2.getState())).iterator();
     }
 }
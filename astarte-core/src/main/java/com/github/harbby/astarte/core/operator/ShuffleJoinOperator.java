@@ -17,13 +17,20 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
 import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.SkewedPartition;
 import com.github.harbby.astarte.core.deprecated.JoinExperiment;
 import com.github.harbby.astarte.core.runtime.ShuffleClient;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.ImmutableList;
 import com.github.harbby.gadtry.collection.MutableList;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -42,23 +49,30 @@ import static java.util.Objects.requireNonNull;
  */
 public class ShuffleJoinOperator<K>
         extends Operator<Tuple2<K, Iterable<?>[]>>
+        implements SkewJoinSupport
 {
     private final Partitioner partitioner;
+    private final JoinExperiment.JoinMode joinMode;
     private final int dataSetNum;
     private final int[] shuffleMapIds;
+    private final SerializerManager[] serializerManagers;
+    private final SerializerManager serializerManager;
 
     private final transient List<? extends Operator<?>> dependencies;
 
     @SuppressWarnings("unchecked")
     @SafeVarargs
-    protected ShuffleJoinOperator(Partitioner partitioner, Operator<? extends Tuple2<K, ?>> leftDataSet,
+    protected ShuffleJoinOperator(Partitioner partitioner, JoinExperiment.JoinMode joinMode, Operator<? extends Tuple2<K, ?>> leftDataSet,
             Operator<? extends Tuple2<K, ?>>... otherDataSets)
     {
         super(leftDataSet.getContext()); //不再传递依赖
         this.partitioner = requireNonNull(partitioner, "requireNonNull");
+        this.joinMode = requireNonNull(joinMode, "joinMode is null");
         this.dataSetNum = 1 + otherDataSets.length;
         this.dependencies = ImmutableList.of(createShuffleMapOps(partitioner, leftDataSet, otherDataSets));
         this.shuffleMapIds = dependencies.stream().mapToInt(x -> x.getId()).toArray();
+        this.serializerManagers = dependencies.stream().map(x -> ((ShuffleMapOperator<?, ?>) x).getSerializerManager()).toArray(SerializerManager[]::new);
+        this.serializerManager = SerializerManager.create(getContext().getConf());
     }
 
     private static <K> ShuffleMapOperator<?, ?>[] createShuffleMapOps(
@@ -107,6 +121,18 @@ public class ShuffleJoinOperator<K>
         return dependencies;
     }
 
+    @Override
+    public int[] getShuffleMapIds()
+    {
+        return shuffleMapIds;
+    }
+
+    @Override
+    public boolean canSplit(int side)
+    {
+        return IntStream.range(0, dataSetNum).noneMatch(i -> i != side && joinMode.isPreserved(i));
+    }
+
     @Override
     public Iterator<Tuple2<K, Iterable<?>[]>> compute(Partition split, TaskContext taskContext)
     {
@@ -115,12 +141,61 @@ public class ShuffleJoinOperator<K>
             checkState(shuffleId != null, "shuffleId is null");
         }
         ShuffleClient shuffleClient = taskContext.getShuffleClient();
-        Iterator<Iterator<Tuple2<K, Object>>> iterators = IntStream.of(shuffleMapIds)
-                .mapToObj(operator -> {
-                    int shuffleId = deps.get(operator);
-                    return shuffleClient.<K, Object>readShuffleData(shuffleId, split.getId());
+        Iterator<Iterator<Tuple2<K, Object>>> iterators = IntStream.range(0, shuffleMapIds.length)
+                .mapToObj(i -> {
+                    int shuffleId = deps.get(shuffleMapIds[i]);
+                    if (split instanceof SkewedPartition && ((SkewedPartition) split).getSplitSide() == i) {
+                        //倾斜分区拆分出的task只读取拆分侧的一部分map输出
+                        SkewedPartition skewed = (SkewedPartition) split;
+                        return shuffleClient.<K, Object>readShuffleData(shuffleId, skewed.getStartReduceId(), skewed.getEndReduceId(),
+                                skewed.getStartMapId(), skewed.getEndMapId(), serializerManagers[i], taskContext.getTaskMetrics());
+                    }
+                    if (split instanceof CoalescedPartition) {
+                        CoalescedPartition coalesced = (CoalescedPartition) split;
+                        return shuffleClient.<K, Object>readShuffleData(shuffleId, coalesced.getStartReduceId(), coalesced.getEndReduceId(),
+                                serializerManagers[i], taskContext.getTaskMetrics());
+                    }
+                    return shuffleClient.<K, Object>readShuffleData(shuffleId, split.getId(), serializerManagers[i], taskContext.getTaskMetrics());
                 }).iterator();
 
-        return JoinExperiment.join(iterators, dataSetNum);
+        return join(iterators, dataSetNum, taskContext, serializerManager);
+    }
+
+    /**
+     * 按key收集每个数据集的全部value, 内存不足时按桶溢写带数据集标记的原始记录
+     */
+    static <K> Iterator<Tuple2<K, Iterable<?>[]>> join(Iterator<Iterator<Tuple2<K, Object>>> iterators, int length,
+            TaskContext taskContext, SerializerManager serializerManager)
+    {
+        Iterator<Tuple2<K, Tuple2<Integer, Object>>> input = Iterators.flatMap(IntStream.range(0, length).iterator(), side -> {
+            checkState(iterators.hasNext(), "must length = iterators.size()");
+            return Iterators.map(iterators.next(), x -> new Tuple2<>(x.f1(), new Tuple2<>(side, x.f2())));
+        });
+        ExternalHashAggregator<K, Tuple2<Integer, Object>, List<List<Object>>> aggregator = new ExternalHashAggregator<>(
+                new ExternalHashAggregator.Aggregation<K, Tuple2<Integer, Object>, List<List<Object>>>()
+                {
+                    @Override
+                    public List<List<Object>> createState(K key, Tuple2<Integer, Object> value)
+                    {
+                        List<List<Object>> values = new ArrayList<>(length);
+                        for (int i = 0; i < length; i++) {
+                            values.add(new ArrayList<>());
+                        }
+                        return update(values, value);
+                    }
+
+                    @Override
+                    public List<List<Object>> update(List<List<Object>> values, Tuple2<Integer, Object> value)
+                    {
+                        values.get(value.f1()).add(value.f2());
+                        return values;
+                    }
+                }, taskContext, serializerManager);
+        try {
+            return Iterators.map(aggregator.aggregate(input), x -> new Tuple2<>(x.f1(), x.f2().toArray(new Iterable<?>[0])));
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
     }
 }
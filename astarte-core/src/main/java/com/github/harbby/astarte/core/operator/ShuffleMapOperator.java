@@ -16,18 +16,22 @@
 package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.HashPartitioner;
+import com.github.harbby.astarte.core.MapTaskState;
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.AstarteException;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.ShuffleWriter;
 import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
 import com.github.harbby.gadtry.base.Iterators;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
 import java.io.IOException;
 import java.util.Iterator;
 
+import static com.github.harbby.astarte.core.api.Constant.DEFAULT_SHUFFLE_SORT_SPILL_THRESHOLD;
+import static com.github.harbby.astarte.core.api.Constant.SHUFFLE_SORT_SPILL_THRESHOLD;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -40,6 +44,8 @@ public class ShuffleMapOperator<K, V>
     private final Operator<? extends Tuple2<K, V>> operator;
     private final Partitioner partitioner;
     private final Comparator<K> sortShuffle;
+    private final int sortSpillThreshold;
+    private final SerializerManager serializerManager;
 
     public ShuffleMapOperator(
             Operator<? extends Tuple2<K, V>> operator,
@@ -58,6 +64,8 @@ public class ShuffleMapOperator<K, V>
         this.partitioner = requireNonNull(partitioner, "partitioner is null");
         this.operator = unboxing(operator);
         this.sortShuffle = sortShuffle;
+        this.sortSpillThreshold = getContext().getConf().getInt(SHUFFLE_SORT_SPILL_THRESHOLD, DEFAULT_SHUFFLE_SORT_SPILL_THRESHOLD);
+        this.serializerManager = SerializerManager.create(getContext().getConf());
     }
 
     public ShuffleMapOperator(Operator<? extends Tuple2<K, V>> operator, int numReducePartitions)
@@ -77,19 +85,35 @@ public class ShuffleMapOperator<K, V>
         return partitioner;
     }
 
+    public SerializerManager getSerializerManager()
+    {
+        return serializerManager;
+    }
+
     @Override
     public Iterator<Void> compute(Partition split, TaskContext taskContext)
     {
-        try (ShuffleWriter<K, V> shuffleWriter = ShuffleWriter.createShuffleWriter(
+        runMapTask(split, taskContext);
+        return Iterators.empty();
+    }
+
+    /**
+     * 写出该map task的shuffle输出, 返回各reduce分区的字节数
+     */
+    public MapTaskState runMapTask(Partition split, TaskContext taskContext)
+    {
+        ShuffleWriter<K, V> shuffleWriter = ShuffleWriter.createShuffleWriter(
                 taskContext.executorUUID(),
                 taskContext.getJobId(),
-                taskContext.getStageId(), split.getId(), partitioner, sortShuffle)) {
+                taskContext.getStageId(), split.getId(), taskContext.getAttemptId(), partitioner, sortShuffle, sortSpillThreshold,
+                serializerManager, taskContext.getTaskMetrics(), taskContext.getTaskMemoryManager());
+        try (ShuffleWriter<K, V> writer = shuffleWriter) {
             Iterator<? extends Tuple2<K, V>> iterator = operator.computeOrCache(split, taskContext);
-            shuffleWriter.write(iterator);
+            writer.write(iterator);
         }
         catch (IOException e) {
             throw new AstarteException("shuffle map task failed", e);
         }
-        return Iterators.empty();
+        return new MapTaskState(shuffleWriter.getPartitionLengths());
     }
 }
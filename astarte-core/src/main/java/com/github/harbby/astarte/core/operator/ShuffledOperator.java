@@ -17,8 +17,10 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.Partitioner;
 import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.runtime.ShuffleClient;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
 import com.github.harbby.gadtry.collection.ImmutableList;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
@@ -42,6 +44,7 @@ public class ShuffledOperator<K, V>
 {
     private final Partitioner partitioner;
     private final int shuffleMapOperatorId;
+    private final SerializerManager serializerManager;
 
     /**
      * 清理ShuffledOperator和ShuffleJoinOperator的Operator依赖
@@ -56,6 +59,7 @@ public class ShuffledOperator<K, V>
     {
         super(operator.getContext()); //不再传递依赖
         this.shuffleMapOperatorId = operator.getId();
+        this.serializerManager = operator.getSerializerManager();
         this.partitioner = partitioner;
         this.dependOperator = operator;
     }
@@ -92,6 +96,12 @@ public class ShuffledOperator<K, V>
         Integer shuffleId = taskContext.getDependStages().get(shuffleMapOperatorId);
         checkState(shuffleId != null);
         ShuffleClient shuffleClient = taskContext.getShuffleClient();
-        return shuffleClient.readShuffleData(shuffleId, split.getId());
+        if (split instanceof CoalescedPartition) {
+            //合并后的task一次请求读取连续的多个reduce分区
+            CoalescedPartition coalesced = (CoalescedPartition) split;
+            return shuffleClient.readShuffleData(shuffleId, coalesced.getStartReduceId(), coalesced.getEndReduceId(), serializerManager,
+                    taskContext.getTaskMetrics());
+        }
+        return shuffleClient.readShuffleData(shuffleId, split.getId(), serializerManager, taskContext.getTaskMetrics());
     }
 }
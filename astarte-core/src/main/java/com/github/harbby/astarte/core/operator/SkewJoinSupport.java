@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+/**
+ * 读取多侧shuffle输入做join的算子.
+ * 某个reduce分区的一侧数据倾斜时, 可以把该侧按map拆分给多个task, 其他侧的同一分区复制给每个task
+ */
+public interface SkewJoinSupport
+{
+    /**
+     * 各侧输入的ShuffleMapOperator id, 顺序与join的各侧一致
+     */
+    public int[] getShuffleMapIds();
+
+    /**
+     * 被复制的一侧不能输出未匹配的记录(否则会重复输出), 因此其他侧都不需要保留未匹配记录时才能拆分该侧
+     */
+    public boolean canSplit(int side);
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.Partitioner;
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.SkewedPartition;
+import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.deprecated.JoinExperiment;
+import com.github.harbby.astarte.core.runtime.ShuffleClient;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.astarte.core.utils.MergeSortedIterator;
+import com.github.harbby.gadtry.base.Throwables;
+import com.github.harbby.gadtry.collection.ImmutableList;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+import static com.github.harbby.astarte.core.runtime.ShuffleManagerService.getShuffleWorkDir;
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * sort merge join
+ * <p>
+ * 两侧都经过sort shuffle, map端按key的hashCode排序, reduce端k路归并后两侧都按hashCode有序.
+ * 右侧每次只缓存hashCode相同的一组记录(过大时溢写), 左侧流式读取并与该分组逐条比较equals,
+ * 因此hash冲突的不同key也能正确匹配.
+ * 归并时每个map输出的分段按需分段拉取, 缓存的网络数据不超过maxBytesInFlight, 内存占用不随分区大小增长
+ * <p>
+ * 与ShuffleJoinOperator一样, 算子内不能持有上游Operator的引用
+ */
+@SuppressWarnings("deprecation")
+public class SortMergeJoinOperator<K, V, W>
+        extends Operator<Tuple2<K, Tuple2<V, W>>>
+        implements SkewJoinSupport
+{
+    private final Partitioner partitioner;
+    private final JoinExperiment.JoinMode joinMode;
+    private final int leftShuffleMapId;
+    private final int rightShuffleMapId;
+    private final SerializerManager leftSerializerManager;
+    private final SerializerManager rightSerializerManager;
+
+    private final transient List<? extends Operator<?>> dependencies;
+
+    protected SortMergeJoinOperator(Partitioner partitioner,
+            Operator<? extends Tuple2<K, V>> leftDataSet,
+            Operator<? extends Tuple2<K, W>> rightDataSet,
+            JoinExperiment.JoinMode joinMode)
+    {
+        super(leftDataSet.getContext()); //不再传递依赖
+        this.partitioner = requireNonNull(partitioner, "partitioner is null");
+        this.joinMode = requireNonNull(joinMode, "joinMode is null");
+        checkState(joinMode == JoinExperiment.JoinMode.INNER_JOIN || joinMode == JoinExperiment.JoinMode.LEFT_JOIN,
+                "sort merge join not support " + joinMode);
+        ShuffleMapOperator<K, V> leftShuffleMap = new ShuffleMapOperator<>(unboxing(leftDataSet), partitioner, hashOrdering());
+        ShuffleMapOperator<K, W> rightShuffleMap = new ShuffleMapOperator<>(unboxing(rightDataSet), partitioner, hashOrdering());
+        this.dependencies = ImmutableList.of(leftShuffleMap, rightShuffleMap);
+        this.leftShuffleMapId = leftShuffleMap.getId();
+        this.rightShuffleMapId = rightShuffleMap.getId();
+        this.leftSerializerManager = leftShuffleMap.getSerializerManager();
+        this.rightSerializerManager = rightShuffleMap.getSerializerManager();
+    }
+
+    private static <K> Comparator<K> hashOrdering()
+    {
+        return (x, y) -> Integer.compare(hash(x), hash(y));
+    }
+
+    private static int hash(Object key)
+    {
+        return key == null ? 0 : key.hashCode();
+    }
+
+    @Override
+    public Partitioner getPartitioner()
+    {
+        return partitioner;
+    }
+
+    @Override
+    public int numPartitions()
+    {
+        return partitioner.numPartitions();
+    }
+
+    @Override
+    public Partition[] getPartitions()
+    {
+        return IntStream.range(0, partitioner.numPartitions())
+                .mapToObj(Partition::new).toArray(Partition[]::new);
+    }
+
+    @Override
+    public List<? extends Operator<?>> getDependencies()
+    {
+        return dependencies;
+    }
+
+    @Override
+    public int[] getShuffleMapIds()
+    {
+        return new int[] {leftShuffleMapId, rightShuffleMapId};
+    }
+
+    @Override
+    public boolean canSplit(int side)
+    {
+        return !joinMode.isPreserved(1 - side);
+    }
+
+    /**
+     * 倾斜分区拆分出的task只读取拆分侧的一部分map输出, 另一侧读取完整的reduce分区
+     */
+    private static <K, T> List<Iterator<Tuple2<K, T>>> readSide(ShuffleClient shuffleClient, int shuffleId, int side, Partition split,
+            SerializerManager serializerManager, TaskContext taskContext)
+    {
+        if (split instanceof SkewedPartition && ((SkewedPartition) split).getSplitSide() == side) {
+            SkewedPartition skewed = (SkewedPartition) split;
+            return shuffleClient.readShuffleDataByMap(shuffleId, skewed.getStartReduceId(), skewed.getEndReduceId(), skewed.getStartMapId(),
+                    skewed.getEndMapId(), serializerManager, taskContext.getTaskMetrics());
+        }
+        if (split instanceof CoalescedPartition) {
+            CoalescedPartition coalesced = (CoalescedPartition) split;
+            return shuffleClient.readShuffleDataByMap(shuffleId, coalesced.getStartReduceId(), coalesced.getEndReduceId(), serializerManager,
+                    taskContext.getTaskMetrics());
+        }
+        return shuffleClient.readShuffleDataByMap(shuffleId, split.getId(), serializerManager, taskContext.getTaskMetrics());
+    }
+
+    @Override
+    public Iterator<Tuple2<K, Tuple2<V, W>>> compute(Partition split, TaskContext taskContext)
+    {
+        Integer leftShuffleId = taskContext.getDependStages().get(leftShuffleMapId);
+        Integer rightShuffleId = taskContext.getDependStages().get(rightShuffleMapId);
+        checkState(leftShuffleId != null && rightShuffleId != null, "shuffleId is null");
+        ShuffleClient shuffleClient = taskContext.getShuffleClient();
+        Comparator<K> ordering = hashOrdering();
+        Iterator<Tuple2<K, V>> left = new MergeSortedIterator<>(
+                SortMergeJoinOperator.<K, V>readSide(shuffleClient, leftShuffleId, 0, split, leftSerializerManager, taskContext),
+                (x, y) -> ordering.compare(x.f1(), y.f1()));
+        Iterator<Tuple2<K, W>> right = new MergeSortedIterator<>(
+                SortMergeJoinOperator.<K, W>readSide(shuffleClient, rightShuffleId, 1, split, rightSerializerManager, taskContext),
+                (x, y) -> ordering.compare(x.f1(), y.f1()));
+        SpillableGroupBuffer<Tuple2<K, W>> group = new SpillableGroupBuffer<>(taskContext.getTaskMemoryManager(),
+                new File(getShuffleWorkDir(taskContext.executorUUID()), String.valueOf(taskContext.getJobId())),
+                rightSerializerManager,
+                taskContext.getTaskMetrics());
+        return new MergeJoinIterator<>(left, right, group, joinMode);
+    }
+
+    static class MergeJoinIterator<K, V, W>
+            implements Iterator<Tuple2<K, Tuple2<V, W>>>
+    {
+        private final Iterator<Tuple2<K, V>> left;
+        private final Iterator<Tuple2<K, W>> right;
+        private final SpillableGroupBuffer<Tuple2<K, W>> group;
+        private final JoinExperiment.JoinMode joinMode;
+
+        private Tuple2<K, W> rightHead;
+        private int groupHash;
+        private boolean groupLoaded = false;
+
+        private Tuple2<K, V> leftRecord;
+        private boolean matched;
+        private Iterator<Tuple2<K, W>> groupIterator;
+        private Tuple2<K, Tuple2<V, W>> nextRecord;
+
+        MergeJoinIterator(Iterator<Tuple2<K, V>> left, Iterator<Tuple2<K, W>> right,
+                SpillableGroupBuffer<Tuple2<K, W>> group, JoinExperiment.JoinMode joinMode)
+        {
+            this.left = left;
+            this.right = right;
+            this.group = group;
+            this.joinMode = joinMode;
+            this.rightHead = right.hasNext() ? right.next() : null;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (nextRecord != null) {
+                return true;
+            }
+            nextRecord = computeNext();
+            return nextRecord != null;
+        }
+
+        @Override
+        public Tuple2<K, Tuple2<V, W>> next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple2<K, Tuple2<V, W>> record = nextRecord;
+            nextRecord = null;
+            return record;
+        }
+
+        private Tuple2<K, Tuple2<V, W>> computeNext()
+        {
+            while (true) {
+                if (leftRecord != null) {
+                    while (groupIterator.hasNext()) {
+                        Tuple2<K, W> rightRecord = groupIterator.next();
+                        if (Objects.equals(leftRecord.f1(), rightRecord.f1())) {
+                            matched = true;
+                            return Tuple2.of(leftRecord.f1(), Tuple2.of(leftRecord.f2(), rightRecord.f2()));
+                        }
+                    }
+                    Tuple2<K, V> finished = leftRecord;
+                    leftRecord = null;
+                    if (!matched && joinMode == JoinExperiment.JoinMode.LEFT_JOIN) {
+                        return Tuple2.of(finished.f1(), Tuple2.of(finished.f2(), null));
+                    }
+                }
+                if (!left.hasNext()) {
+                    group.clear();
+                    return null;
+                }
+                leftRecord = left.next();
+                matched = false;
+                int hash = hash(leftRecord.f1());
+                if (!groupLoaded || hash != groupHash) {
+                    loadGroup(hash);
+                }
+                groupIterator = group.iterator();
+            }
+        }
+
+        /**
+         * 跳过右侧hashCode更小的记录, 缓存hashCode等于hash的全部记录
+         */
+        private void loadGroup(int hash)
+        {
+            group.clear();
+            groupHash = hash;
+            groupLoaded = true;
+            try {
+                while (rightHead != null && hash(rightHead.f1()) < hash) {
+                    rightHead = right.hasNext() ? right.next() : null;
+                }
+                while (rightHead != null && hash(rightHead.f1()) == hash) {
+                    group.add(rightHead);
+                    rightHead = right.hasNext() ? right.next() : null;
+                }
+                group.finish();
+            }
+            catch (IOException e) {
+                throw Throwables.throwsThrowable(e);
+            }
+        }
+    }
+}
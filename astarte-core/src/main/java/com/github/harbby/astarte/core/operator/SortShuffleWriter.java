@@ -16,59 +16,69 @@
 package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.Partitioner;
+import com.github.harbby.astarte.core.RangePartitioner;
 import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.TaskMetrics;
 import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.ShuffleWriter;
 import com.github.harbby.astarte.core.api.function.Comparator;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.astarte.core.utils.MergeSortedIterator;
 import com.github.harbby.gadtry.base.Iterators;
 import com.github.harbby.gadtry.collection.ImmutableList;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
-import com.github.harbby.gadtry.function.exception.Consumer;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
 import java.util.Random;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
-import static java.util.Objects.requireNonNull;
 
 public class SortShuffleWriter<K, V>
-        extends ShuffleWriter.HashShuffleWriter<K, V>
+        extends ShuffleWriter.ConsolidatedShuffleWriter<K, V>
 {
     private final Partitioner partitioner;
     private final Comparator<K> ordering;
+    private final int spillThreshold;
+    private final SerializerManager serializerManager;
+    private final TaskMetrics metrics;
+    private final TaskMemoryManager taskMemoryManager;
 
-    //spillFile
     public SortShuffleWriter(
             String executorUUID,
             int jobId,
-            int shuffleId, int mapId,
+            int shuffleId, int mapId, int attemptId,
             Comparator<K> ordering,
-            Partitioner partitioner)
+            Partitioner partitioner,
+            int spillThreshold,
+            SerializerManager serializerManager,
+            TaskMetrics metrics,
+            TaskMemoryManager taskMemoryManager)
     {
-        super(executorUUID, jobId, shuffleId, mapId, partitioner);
+        super(executorUUID, jobId, shuffleId, mapId, attemptId, partitioner, serializerManager, metrics, taskMemoryManager);
         this.ordering = ordering;
         this.partitioner = partitioner;
+        this.spillThreshold = spillThreshold;
+        this.serializerManager = serializerManager;
+        this.metrics = metrics;
+        this.taskMemoryManager = taskMemoryManager;
     }
 
     @Override
     public void write(Iterator<? extends Tuple2<K, V>> iterator)
             throws IOException
     {
-        SorterBuffer<K, V> sorter = new SorterBuffer<>(ordering, partitioner);
-
-        sorter.insertAll(iterator);
-
-        sorter.saveTo(super::write);
+        try (ExternalSorter<K, V> sorter = new ExternalSorter<>(ordering, partitioner, spillThreshold, getJobDir(),
+                serializerManager, metrics, taskMemoryManager)) {
+            sorter.insertAll(iterator);
+            sorter.writePartitionedTo(super::write);
+        }
     }
 
     public static <K> Partitioner createPartitioner(
@@ -80,37 +90,29 @@ public class SortShuffleWriter<K, V>
         int sampleSizePerPartition = (int) Math.ceil(1.0 * sampleSize / operator.numPartitions());
         K[] points = analyzerSplit(operator,
                 ordering,
-                sampleSizePerPartition);
-        return new SortShuffleRangePartitioner<>(reduceNumber, points, ordering);
+                sampleSizePerPartition,
+                reduceNumber);
+        return RangePartitioner.of(reduceNumber, points, ordering);
     }
 
     public static <K> K[] analyzerSplit(
             Operator<K> operator,
             Comparator<K> ordering,
-            int sampleSizePerPartition)
+            int sampleSizePerPartition,
+            int reduceNumber)
     {
         List<SampleResult<K>> sampleResults = sketch(operator, sampleSizePerPartition);
-        long length = sampleResults.stream().mapToLong(x -> x.getPartitionCount()).sum();
-        int numPartitions = operator.numPartitions();
-
-        List<Tuple2<Integer, Integer>> tuple2s = new ArrayList<>();
-        for (int i = 0; i < numPartitions; i++) {
-            int start = (int) ((i * length) / numPartitions);
-            int end = (int) (((i + 1) * length) / numPartitions);
-            tuple2s.add(Tuple2.of(start, end));
-        }
-
-        List<Tuple2<K, Double>> arrays = new ArrayList<>();
+        List<Tuple2<K, Double>> candidates = new ArrayList<>();
         for (SampleResult<K> sample : sampleResults) {
-            double weight = (double) length / sample.getPartitionCount();
-            for (K k : sample.getData()) {
-                arrays.add(new Tuple2<>(k, weight));
+            //每个样本代表该分区中partitionCount / sampleSize条记录
+            double weight = (double) sample.getPartitionCount() / sample.getData().length;
+            for (Object k : sample.getData()) {
+                candidates.add(new Tuple2<>((K) k, weight));
             }
         }
 
-        int splitNum = Math.min(numPartitions, arrays.size());
-        K[] ks = getPoints(arrays, ordering, splitNum);
-        return ks;
+        int splitNum = Math.min(reduceNumber, candidates.size());
+        return getPoints(candidates, ordering, splitNum);
     }
 
     private static <K> K[] getPoints(
@@ -118,68 +120,61 @@ public class SortShuffleWriter<K, V>
             Comparator<K> ordering,
             int partitions)
     {
-        List<Tuple2<K, Double>> ordered = candidates.stream()
-                .sorted((x, y) -> ordering.compare(x.f1(), y.f1()))
-                .collect(Collectors.toList());
-        int numCandidates = ordered.size();
-        double sumWeights = ordered.stream().mapToDouble(x -> x.f2()).sum();
+        candidates.sort((x, y) -> ordering.compare(x.f1(), y.f1()));
+        double sumWeights = 0;
+        for (Tuple2<K, Double> candidate : candidates) {
+            sumWeights += candidate.f2();
+        }
         double step = sumWeights / partitions;
         double cumWeight = 0.0;
         double target = step;
         List<K> bounds = new ArrayList<>();
-        int i = 0;
-        int j = 0;
-        Optional<K> previousBound = Optional.empty();
-        while ((i < numCandidates) && (j < partitions - 1)) {
-            Tuple2<K, Double> tp = ordered.get(i);
+        K previousBound = null;
+        for (int i = 0; i < candidates.size() && bounds.size() < partitions - 1; i++) {
+            Tuple2<K, Double> tp = candidates.get(i);
             K key = tp.f1();
-            double weight = tp.f2();
-
-            cumWeight += weight;
+            cumWeight += tp.f2();
             if (cumWeight >= target) {
                 // Skip duplicate values.
-                if (!previousBound.isPresent() || ordering.compare(key, previousBound.get()) > 0) {
+                if (bounds.isEmpty() || ordering.compare(key, previousBound) > 0) {
                     bounds.add(key);
                     target += step;
-                    j += 1;
-                    previousBound = Optional.ofNullable(key);
+                    previousBound = key;
                 }
             }
-            i += 1;
         }
         return (K[]) bounds.toArray();
     }
 
+    /**
+     * 每个分区做蓄水池抽样, 最多保留sampleSizePerPartition条样本
+     */
     private static <K> List<SampleResult<K>> sketch(Operator<K> operator,
             int sampleSizePerPartition)
     {
-        //todo: 使用更小的数据结构
-        List<SampleResult<K>> results = operator.mapPartitionWithId((index, it) -> {
-            if (!it.hasNext()) {
-                throw new UnsupportedOperationException();
-            }
-            K e = it.next();
-            K[] array = (K[]) java.lang.reflect.Array.newInstance(e.getClass(), sampleSizePerPartition);
-            array[0] = e;
-            int i = 1;
-            for (; i < sampleSizePerPartition && it.hasNext(); i++) {
-                array[i] = it.next();
-            }
-            if (i < sampleSizePerPartition) {
-                return Iterators.of(new SampleResult<>(i, index, Arrays.copyOf(array, i)));
-            }
-            else {
-                Random random = new Random();
-                long l = i;
-                for (; it.hasNext(); l++) {
-                    int p = random.nextInt(sampleSizePerPartition);
-                    array[p] = it.next();
+        return operator.mapPartitionWithId((index, it) -> {
+            Object[] reservoir = new Object[Math.min(sampleSizePerPartition, 1024)];
+            Random random = new Random(index);
+            long count = 0;
+            for (; it.hasNext(); count++) {
+                K value = it.next();
+                if (count < sampleSizePerPartition) {
+                    if (count == reservoir.length) {
+                        reservoir = Arrays.copyOf(reservoir, (int) Math.min(count * 2, sampleSizePerPartition));
+                    }
+                    reservoir[(int) count] = value;
+                }
+                else {
+                    long p = (long) (random.nextDouble() * (count + 1));
+                    if (p < sampleSizePerPartition) {
+                        reservoir[(int) p] = value;
+                    }
                 }
-                return Iterators.of(new SampleResult<>(l, index, array));
             }
+            int size = (int) Math.min(count, sampleSizePerPartition);
+            Object[] data = size == reservoir.length ? reservoir : Arrays.copyOf(reservoir, size);
+            return Iterators.of(new SampleResult<K>(count, index, data));
         }).collect();
-
-        return results;
     }
 
     static class SampleResult<E>
@@ -187,9 +182,9 @@ public class SortShuffleWriter<K, V>
     {
         private final long partitionCount;
         private final int partitionId;
-        private final E[] data;
+        private final Object[] data;
 
-        public SampleResult(long partitionCount, int partitionId, E[] data)
+        public SampleResult(long partitionCount, int partitionId, Object[] data)
         {
             this.partitionCount = partitionCount;
             this.partitionId = partitionId;
@@ -206,88 +201,19 @@ public class SortShuffleWriter<K, V>
             return partitionId;
         }
 
-        public E[] getData()
+        public Object[] getData()
         {
             return data;
         }
     }
 
-    public static class SorterBuffer<K, V>
-    {
-        private final Map<Integer, List<Tuple2<K, V>>> writerBuffer = new HashMap<>();
-        private final Comparator<K> ordering;
-        private final Partitioner partitioner;
-
-        public SorterBuffer(Comparator<K> ordering, Partitioner partitioner)
-        {
-            this.ordering = ordering;
-            this.partitioner = partitioner;
-        }
-
-        public void insertAll(Iterator<? extends Tuple2<K, V>> iterator)
-        {
-            while (iterator.hasNext()) {
-                Tuple2<K, V> kv = iterator.next();
-                int reduceId = this.partitioner.getPartition(kv.f1());
-                List<Tuple2<K, V>> buffer = writerBuffer.computeIfAbsent(reduceId, n -> new LinkedList<>());
-                buffer.add(kv);
-            }
-        }
-
-        public void saveTo(Consumer<Iterator<? extends Tuple2<K, V>>, IOException> shuffleWriter)
-                throws IOException
-        {
-            for (Map.Entry<Integer, List<Tuple2<K, V>>> entry : writerBuffer.entrySet()) {
-                List<Tuple2<K, V>> buffer = entry.getValue();
-                buffer.sort((x, y) -> ordering.compare(x.f1(), y.f1()));
-                shuffleWriter.apply(buffer.iterator());
-            }
-        }
-    }
-
-    public static class SortShuffleRangePartitioner<K>
-            extends Partitioner
-    {
-        private final int reduceNumber;
-        private final K[] points;
-        private final Comparator<K> ordering;
-
-        public SortShuffleRangePartitioner(
-                int reduceNumber,
-                K[] points,
-                Comparator<K> ordering
-        )
-        {
-            this.reduceNumber = reduceNumber;
-            this.points = points;
-            this.ordering = requireNonNull(ordering, "ordering is null");
-        }
-
-        @Override
-        public int numPartitions()
-        {
-            return reduceNumber;
-        }
-
-        @Override
-        public int getPartition(Object key)
-        {
-            //todo: 二分法
-            for (int i = 0; i < points.length; i++) {
-                if (ordering.compare((K) key, points[i]) < 0) {
-                    return i;
-                }
-            }
-            return points.length;
-        }
-    }
-
     public static class ShuffledMergeSortOperator<K, V>
             extends Operator<Tuple2<K, V>>
     {
         private final Partitioner partitioner;
         private final int shuffleMapOperatorId;
         private final Comparator<K> ordering;
+        private final SerializerManager serializerManager;
         private final transient Operator<?> dependOperator;
 
         public ShuffledMergeSortOperator(ShuffleMapOperator<K, V> operator,
@@ -298,9 +224,29 @@ public class SortShuffleWriter<K, V>
             this.shuffleMapOperatorId = operator.getId();
             this.partitioner = partitioner;
             this.ordering = ordering;
+            this.serializerManager = operator.getSerializerManager();
             this.dependOperator = operator;
         }
 
+        @Override
+        public Partition[] getPartitions()
+        {
+            return IntStream.range(0, partitioner.numPartitions())
+                    .mapToObj(Partition::new).toArray(Partition[]::new);
+        }
+
+        @Override
+        public int numPartitions()
+        {
+            return partitioner.numPartitions();
+        }
+
+        @Override
+        public Partitioner getPartitioner()
+        {
+            return partitioner;
+        }
+
         @Override
         public List<? extends Operator<?>> getDependencies()
         {
@@ -310,16 +256,12 @@ public class SortShuffleWriter<K, V>
         @Override
         protected Iterator<Tuple2<K, V>> compute(Partition split, TaskContext taskContext)
         {
-            List<Tuple2<K, V>> buffer = new LinkedList<>();
             Integer shuffleId = taskContext.getDependStages().get(shuffleMapOperatorId);
             checkState(shuffleId != null);
-            Iterator<Tuple2<K, V>> reader = taskContext.getShuffleClient().readShuffleData(shuffleId, split.getId());
-            while (reader.hasNext()) {
-                buffer.add(reader.next());
-            }
-
-            buffer.sort((x, y) -> ordering.compare(x.f1(), y.f1()));
-            return buffer.iterator();
+            //每个map输出的分段已经按key有序, 直接k路归并
+            List<Iterator<Tuple2<K, V>>> mapOutputs = taskContext.getShuffleClient().readShuffleDataByMap(shuffleId, split.getId(),
+                    serializerManager, taskContext.getTaskMetrics());
+            return new MergeSortedIterator<>(mapOutputs, (x, y) -> ordering.compare(x.f1(), y.f1()));
         }
     }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.memory.MemoryConsumer;
+import com.github.harbby.astarte.core.memory.SizeTracker;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.serializer.RecordBlockReader;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * sort merge join中缓存当前key分组的记录, 可以反复遍历.
+ * 申请不到execution内存时把已缓存的记录写入临时文件, 之后追加的记录也直接写文件, 遍历时从文件读取
+ */
+class SpillableGroupBuffer<T>
+        extends MemoryConsumer
+{
+    private static final Logger logger = LoggerFactory.getLogger(SpillableGroupBuffer.class);
+    private static final int MEMORY_CHECK_INTERVAL = 32;
+
+    private final File spillDir;
+    private final SerializerManager serializerManager;
+    private final TaskMetrics metrics;
+    private final SizeTracker sizeTracker = new SizeTracker();
+
+    private List<T> buffer = new ArrayList<>();
+    private long size = 0;
+    private File spillFile;
+    private OutputStream spillOutput;
+    private RecordBlockWriter spillWriter;
+    private boolean finished = false;
+
+    SpillableGroupBuffer(TaskMemoryManager taskMemoryManager, File spillDir, SerializerManager serializerManager, TaskMetrics metrics)
+    {
+        super(taskMemoryManager);
+        this.spillDir = spillDir;
+        this.serializerManager = serializerManager;
+        this.metrics = metrics;
+    }
+
+    public void add(T record)
+            throws IOException
+    {
+        checkState(!finished, "buffer already finished");
+        size++;
+        if (spillWriter != null) {
+            spillWriter.write(record);
+            return;
+        }
+        buffer.add(record);
+        sizeTracker.afterUpdate(record);
+        if (buffer.size() % MEMORY_CHECK_INTERVAL == 0 && maybeAcquireMemory(sizeTracker.estimateSize())) {
+            logger.info("key group too large, spill {} records to disk", buffer.size());
+            writeSpillFile();
+        }
+    }
+
+    @Override
+    public long spill(long required, MemoryConsumer trigger)
+            throws IOException
+    {
+        //遍历阶段不能再改变数据的位置
+        if (trigger == this || finished || buffer.isEmpty()) {
+            return 0;
+        }
+        long released = getUsed();
+        writeSpillFile();
+        return released;
+    }
+
+    private void writeSpillFile()
+            throws IOException
+    {
+        if (!spillDir.exists()) {
+            spillDir.mkdirs();
+        }
+        spillFile = File.createTempFile("join_", ".spill", spillDir);
+        spillOutput = new BufferedOutputStream(new FileOutputStream(spillFile, false));
+        spillWriter = serializerManager.newBlockWriter(spillOutput, metrics);
+        for (T record : buffer) {
+            spillWriter.write(record);
+        }
+        buffer = new ArrayList<>();
+        sizeTracker.reset();
+        freeMemory(getUsed());
+    }
+
+    /**
+     * 分组追加完毕, 之后只能遍历
+     */
+    public void finish()
+            throws IOException
+    {
+        finished = true;
+        if (spillWriter != null) {
+            spillWriter.flushBlock();
+            spillOutput.close();
+            metrics.incSpilledBytes(spillWriter.getBytesWritten());
+            spillWriter = null;
+        }
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    public Iterator<T> iterator()
+    {
+        checkState(finished, "buffer not finished");
+        if (spillFile == null) {
+            return buffer.iterator();
+        }
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            RecordBlockReader<T> reader = serializerManager.newBlockReader(input, spillFile.length(), metrics);
+            return new Iterator<T>()
+            {
+                private boolean closed = false;
+
+                @Override
+                public boolean hasNext()
+                {
+                    if (closed) {
+                        return false;
+                    }
+                    if (reader.hasNext()) {
+                        return true;
+                    }
+                    closed = true;
+                    try {
+                        input.close();
+                    }
+                    catch (IOException e) {
+                        throw Throwables.throwsThrowable(e);
+                    }
+                    return false;
+                }
+
+                @Override
+                public T next()
+                {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return reader.next();
+                }
+            };
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    /**
+     * 清空数据并释放内存, 准备接收下一个分组
+     */
+    public void clear()
+    {
+        buffer = new ArrayList<>();
+        sizeTracker.reset();
+        size = 0;
+        finished = false;
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+        freeMemory(getUsed());
+    }
+}
@@ -59,6 +59,15 @@ public class TextFileSource
         return partitions;
     }
 
+    @Override
+    public long estimateSize()
+    {
+        if (!dir.exists()) {
+            return -1;
+        }
+        return Files.listFiles(dir, false, file -> file.length() > 0).stream().mapToLong(File::length).sum();
+    }
+
     private static class TextFilePartition
             extends Partition
     {
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+/**
+ * 广播变量相关的消息, executor第一次读取时向driver拉取, driver按块回复
+ */
+public interface BroadcastEvent
+        extends Event
+{
+    public long getBroadcastId();
+
+    /**
+     * executor -> driver: 请求一个广播变量的全部数据块
+     */
+    public static class Fetch
+            implements BroadcastEvent
+    {
+        private final long broadcastId;
+
+        public Fetch(long broadcastId)
+        {
+            this.broadcastId = broadcastId;
+        }
+
+        @Override
+        public long getBroadcastId()
+        {
+            return broadcastId;
+        }
+    }
+
+    /**
+     * driver -> executor: 一个数据块, numBlocks为0表示driver上不存在该广播变量
+     */
+    public static class Block
+            implements BroadcastEvent
+    {
+        private final long broadcastId;
+        private final int blockIndex;
+        private final int numBlocks;
+        private final byte[] data;
+
+        public Block(long broadcastId, int blockIndex, int numBlocks, byte[] data)
+        {
+            this.broadcastId = broadcastId;
+            this.blockIndex = blockIndex;
+            this.numBlocks = numBlocks;
+            this.data = data;
+        }
+
+        @Override
+        public long getBroadcastId()
+        {
+            return broadcastId;
+        }
+
+        public int getBlockIndex()
+        {
+            return blockIndex;
+        }
+
+        public int getNumBlocks()
+        {
+            return numBlocks;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+    }
+
+    /**
+     * driver -> executor: 广播变量已销毁, 释放缓存
+     */
+    public static class Destroy
+            implements BroadcastEvent
+    {
+        private final long broadcastId;
+
+        public Destroy(long broadcastId)
+        {
+            this.broadcastId = broadcastId;
+        }
+
+        @Override
+        public long getBroadcastId()
+        {
+            return broadcastId;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.api.AstarteException;
+import com.github.harbby.gadtry.base.Serializables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * 进程内的广播变量存储.
+ * driver保存原始值, cluster模式下还保存切好的序列化数据块, 供executor拉取;
+ * executor第一次读取某个广播变量时向driver拉取全部数据块, 反序列化后缓存, 直到driver通知销毁.
+ * local模式task与driver在同一进程, 直接读取原始值
+ */
+public final class BroadcastManager
+{
+    private static final Logger logger = LoggerFactory.getLogger(BroadcastManager.class);
+    //单个网络帧的最大数据量, 需小于ExecutorBackend的帧长度限制
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final ConcurrentMap<Long, Object> values = new ConcurrentHashMap<>();
+    //driver: 序列化后的数据块
+    private static final ConcurrentMap<Long, byte[][]> driverBlocks = new ConcurrentHashMap<>();
+    //executor: 拉取中的数据块
+    private static final ConcurrentMap<Long, Fetching> fetching = new ConcurrentHashMap<>();
+    private static final AtomicLong nextBroadcastId = new AtomicLong(0);
+    private static volatile LongConsumer fetchRequester;
+
+    private BroadcastManager() {}
+
+    public static long newBroadcastId()
+    {
+        return nextBroadcastId.getAndIncrement();
+    }
+
+    public static void putValue(long id, Object value)
+    {
+        values.put(id, value);
+    }
+
+    /**
+     * bytes为序列化后的值
+     */
+    static void putDriverBlocks(long id, byte[] bytes)
+    {
+        int numBlocks = Math.max(1, (bytes.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        byte[][] blocks = new byte[numBlocks][];
+        for (int i = 0; i < numBlocks; i++) {
+            blocks[i] = Arrays.copyOfRange(bytes, i * BLOCK_SIZE, Math.min(bytes.length, (i + 1) * BLOCK_SIZE));
+        }
+        driverBlocks.put(id, blocks);
+    }
+
+    /**
+     * driver上该广播变量的全部数据块, 不存在(已销毁)时返回null
+     */
+    static byte[][] getDriverBlocks(long id)
+    {
+        return driverBlocks.get(id);
+    }
+
+    /**
+     * executor启动时设置, 用于向driver发送拉取请求
+     */
+    static void setFetchRequester(LongConsumer requester)
+    {
+        fetchRequester = requester;
+    }
+
+    static void putBlock(BroadcastEvent.Block block)
+    {
+        Fetching state = fetching.get(block.getBroadcastId());
+        if (state == null) {
+            logger.warn("receive unexpected broadcast block {}", block.getBroadcastId());
+            return;
+        }
+        state.receive(block);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T getValue(long id)
+    {
+        Object value = values.get(id);
+        if (value != null) {
+            return (T) value;
+        }
+        LongConsumer requester = fetchRequester;
+        checkState(requester != null, "broadcast " + id + " not found, it may have been destroyed");
+        Fetching state = new Fetching();
+        Fetching running = fetching.putIfAbsent(id, state);
+        if (running == null) {
+            logger.info("fetching broadcast {} from driver", id);
+            requester.accept(id);
+            running = state;
+        }
+        try {
+            //同一executor上并发读取的task共用一次拉取
+            return (T) running.future.join();
+        }
+        catch (CompletionException e) {
+            throw new AstarteException("fetch broadcast " + id + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * 销毁后driver和executor都释放该广播变量
+     */
+    public static void remove(long id)
+    {
+        values.remove(id);
+        driverBlocks.remove(id);
+        Fetching state = fetching.remove(id);
+        if (state != null) {
+            state.future.completeExceptionally(new IllegalStateException("broadcast " + id + " has been destroyed"));
+        }
+    }
+
+    private static class Fetching
+    {
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private byte[][] blocks;
+        private int received = 0;
+
+        private synchronized void receive(BroadcastEvent.Block block)
+        {
+            long id = block.getBroadcastId();
+            if (block.getNumBlocks() == 0) {
+                fetching.remove(id);
+                future.completeExceptionally(new IllegalStateException("broadcast " + id + " not found on driver, it may have been destroyed"));
+                return;
+            }
+            if (blocks == null) {
+                blocks = new byte[block.getNumBlocks()][];
+            }
+            blocks[block.getBlockIndex()] = block.getData();
+            received++;
+            if (received < blocks.length) {
+                return;
+            }
+            try {
+                Object value = Serializables.byteToObject(concat(blocks));
+                values.put(id, value);
+                future.complete(value);
+            }
+            catch (IOException | ClassNotFoundException e) {
+                future.completeExceptionally(e);
+            }
+            finally {
+                fetching.remove(id);
+            }
+        }
+
+        private static byte[] concat(byte[][] blocks)
+        {
+            int length = 0;
+            for (byte[] block : blocks) {
+                length += block.length;
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            for (byte[] block : blocks) {
+                System.arraycopy(block, 0, bytes, offset, block.length);
+                offset += block.length;
+            }
+            return bytes;
+        }
+    }
+}
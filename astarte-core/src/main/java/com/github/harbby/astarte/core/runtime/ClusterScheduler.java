@@ -28,15 +28,29 @@ import com.github.harbby.astarte.core.api.Partition;
 import com.github.harbby.astarte.core.api.Stage;
 import com.github.harbby.astarte.core.api.Task;
 import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.astarte.core.operator.Operator;
+import com.github.harbby.astarte.core.operator.ShuffleMapOperator;
+import com.github.harbby.astarte.core.runtime.MapOutputTracker.MapOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 
@@ -44,19 +58,47 @@ public class ClusterScheduler
         implements JobScheduler
 {
     private static final Logger logger = LoggerFactory.getLogger(ClusterScheduler.class);
+    /**
+     * executor持有的shuffle输入占比达到该值时, 才作为reduce task的优先executor
+     */
+    private static final double REDUCER_PREFERRED_FRACTION = 0.2;
+    private static final long SPECULATION_INTERVAL_MS = 100;
+    /**
+     * 同一stage因拉取shuffle失败而重新计算父stage输出的最大次数
+     */
+    private static final int MAX_STAGE_FETCH_FAILURES = 4;
     private final ExecutorManager executorManager;
     private DriverNetManager driverNetManager;
+    //Map<cachedOperatorId, Map<partitionId, executor>>, 缓存数据跨job存在
+    private final Map<Integer, Map<Integer, SocketAddress>> cacheLocations = new ConcurrentHashMap<>();
+    private final boolean speculation;
+    private final double speculationQuantile;
+    private final double speculationMultiplier;
+    private final long speculationMinRuntime;
+    private final int maxTaskAttempts;
+    private final long maxBytesInFlight;
+    private final MapOutputTracker mapOutputTracker = new MapOutputTracker();
+    private final PartitionCoalescer partitionCoalescer;
+    private final SkewJoinSplitter skewJoinSplitter;
 
     public ClusterScheduler(AstarteConf astarteConf, int vcores, int executorNum)
     {
+        this.speculation = astarteConf.getBoolean(Constant.SPECULATION_ENABLE, false);
+        this.speculationQuantile = astarteConf.getDouble(Constant.SPECULATION_QUANTILE, Constant.DEFAULT_SPECULATION_QUANTILE);
+        this.speculationMultiplier = astarteConf.getDouble(Constant.SPECULATION_MULTIPLIER, Constant.DEFAULT_SPECULATION_MULTIPLIER);
+        this.speculationMinRuntime = astarteConf.getLong(Constant.SPECULATION_MIN_RUNTIME, Constant.DEFAULT_SPECULATION_MIN_RUNTIME);
+        this.maxTaskAttempts = astarteConf.getInt(Constant.TASK_MAX_ATTEMPTS, Constant.DEFAULT_TASK_MAX_ATTEMPTS);
+        this.maxBytesInFlight = astarteConf.getLong(Constant.SHUFFLE_MAX_BYTES_IN_FLIGHT, Constant.DEFAULT_SHUFFLE_MAX_BYTES_IN_FLIGHT);
+        this.partitionCoalescer = new PartitionCoalescer(astarteConf, vcores * executorNum);
+        this.skewJoinSplitter = new SkewJoinSplitter(astarteConf);
         // start driver manager port
-        this.driverNetManager = new DriverNetManager(astarteConf, executorNum);
+        this.driverNetManager = new DriverNetManager(astarteConf, executorNum, mapOutputTracker);
         driverNetManager.start();
 
         int executorMemMb = astarteConf.getInt(Constant.EXECUTOR_MEMORY_CONF, 1024);
 
         //启动所有Executor
-        this.executorManager = ExecutorManager.createExecutorManager(vcores, executorMemMb, executorNum);
+        this.executorManager = ExecutorManager.createExecutorManager(astarteConf, vcores, executorMemMb, executorNum);
         executorManager.start();
 
         //wait 等待所有exector上线
@@ -68,80 +110,596 @@ public class ClusterScheduler
         }
     }
 
-    @SuppressWarnings("unchecked")
+    @Override
+    public MapOutputTracker getMapOutputTracker()
+    {
+        return mapOutputTracker;
+    }
+
+    @Override
+    public void broadcast(long id, byte[] bytes)
+    {
+        BroadcastManager.putDriverBlocks(id, bytes);
+    }
+
+    @Override
+    public void destroyBroadcast(long id)
+    {
+        driverNetManager.destroyBroadcast(id);
+    }
+
+    /**
+     * 停止所有executor和driver端口
+     */
+    @Override
+    public void stop()
+    {
+        executorManager.stop();
+        driverNetManager.stop();
+    }
+
     @Override
     public <E, R> List<R> runJob(int jobId,
             List<Stage> jobStages,
             Mapper<Iterator<E>, R> action,
             Map<Stage, Map<Integer, Integer>> stageMap)
     {
-        driverNetManager.initState();
-
-        Object[] result = null;
-        for (Stage stage : jobStages) {
-            submitStage(stage, action, stageMap);
-            if (stage instanceof ResultStage) {
-                result = new Object[stage.getNumPartitions()];
+        driverNetManager.registerJob(jobId);
+        JobRunner<E, R> jobRunner = new JobRunner<>(jobId, jobStages, action, stageMap);
+        try {
+            return jobRunner.run();
+        }
+        finally {
+            driverNetManager.cancelPendingTasks(jobId);
+            driverNetManager.jobFinished(jobId);
+            for (TaskSlotScheduler.ExecutorUtilization utilization : driverNetManager.getExecutorUtilization()) {
+                logger.info("job {} end, {}", jobId, utilization);
+            }
+            //job结束后释放executor上缓存的stage二进制
+            for (long id : jobRunner.stageBinaryIds) {
+                BroadcastManager.remove(id);
+                driverNetManager.destroyBroadcast(id);
             }
+        }
+    }
+
+    /**
+     * 一个job的调度状态.
+     * task失败时重试, 最多maxTaskAttempts次; executor丢失或拉取shuffle失败时,
+     * 只重新计算输出在该executor上的map task, 依赖这些输出的运行中stage停止并等待父stage重新完成
+     */
+    private class JobRunner<E, R>
+    {
+        private final int jobId;
+        private final Mapper<Iterator<E>, R> action;
+        private final Map<Stage, Map<Integer, Integer>> stageMap;
+        private final StageDag stageDag;
+        //Map<shuffleMapStageId, 每个map task的输出位置>
+        private final Map<Integer, MapOutput[]> mapOutputs = new HashMap<>();
+        //Map<被跳过的stageId, 复用的之前job的shuffle输出>
+        private final Map<Integer, MapOutputTracker.ShuffleOutput> reusedStages = new HashMap<>();
+        //所有提交过的stage, stage重新提交时复用已完成task的状态
+        private final Map<Integer, RunningStage> stageStates = new HashMap<>();
+        private final Map<Integer, RunningStage> runningStages = new HashMap<>();
+        private final Deque<Stage> readyStages = new ArrayDeque<>();
+        private final List<Long> stageBinaryIds = new ArrayList<>();
+        private Object[] result;
+
+        private JobRunner(int jobId, List<Stage> jobStages, Mapper<Iterator<E>, R> action, Map<Stage, Map<Integer, Integer>> stageMap)
+        {
+            this.jobId = jobId;
+            this.action = action;
+            this.stageMap = stageMap;
+            this.stageDag = new StageDag(jobStages, stageMap);
+        }
 
-            //等待stage执行结束,所有task成功. 如果task失败，应重新调度一次
-            //todo: 失败分为： executor挂掉, task单独失败但executor正常
-            //这里采用简单的方式，先不考虑executor挂掉
-            for (int taskDone = 0; taskDone < stage.getNumPartitions(); ) {
-                TaskEvent taskEvent;
+        @SuppressWarnings("unchecked")
+        private List<R> run()
+        {
+            long lastSpeculationCheck = System.currentTimeMillis();
+            //父stage全部完成的stage立即提交, 互不依赖的stage(如join两侧)并发执行
+            readyStages.addAll(stageDag.nextReadyStages());
+            while (true) {
+                while (!readyStages.isEmpty()) {
+                    Stage stage = readyStages.poll();
+                    if (stage.getNumPartitions() == 0) {
+                        //没有task的stage直接完成
+                        if (stage instanceof ResultStage) {
+                            return Collections.emptyList();
+                        }
+                        mapOutputs.put(stage.getStageId(), new MapOutput[0]);
+                        stageDag.stageFinished(stage.getStageId());
+                        readyStages.addAll(stageDag.nextReadyStages());
+                        continue;
+                    }
+                    if (stage instanceof ShuffleMapStage && ((ShuffleMapStage) stage).isSkipped()) {
+                        //shuffle输出已被之前的job物化, 跳过该stage
+                        MapOutputTracker.ShuffleOutput shuffleOutput = ((ShuffleMapStage) stage).getMaterializedOutput();
+                        logger.info("skip stage {}, reuse {}", stage.getStageId(), shuffleOutput);
+                        reusedStages.put(stage.getStageId(), shuffleOutput);
+                        mapOutputs.put(stage.getStageId(), shuffleOutput.getMapOutputs());
+                        stageDag.stageFinished(stage.getStageId());
+                        readyStages.addAll(stageDag.nextReadyStages());
+                        continue;
+                    }
+                    submitStage(stage);
+                }
+                checkState(!runningStages.isEmpty(), "job " + jobId + " Not found ResultStage");
+
+                Event event;
                 try {
-                    taskEvent = driverNetManager.awaitTaskEvent();
+                    if (speculation) {
+                        event = driverNetManager.awaitEvent(jobId, SPECULATION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                        long now = System.currentTimeMillis();
+                        if (now - lastSpeculationCheck >= SPECULATION_INTERVAL_MS) {
+                            lastSpeculationCheck = now;
+                            runningStages.values().forEach(running -> speculateSlowTasks(running, now));
+                        }
+                        if (event == null) {
+                            continue;
+                        }
+                    }
+                    else {
+                        event = driverNetManager.awaitEvent(jobId);
+                    }
                 }
                 catch (InterruptedException e) {
                     throw new UnsupportedOperationException(); //todo: job kill
                 }
+                if (event instanceof ExecutorEvent.ExecutorLostEvent) {
+                    executorLost((ExecutorEvent.ExecutorLostEvent) event);
+                    continue;
+                }
+                TaskEvent taskEvent = (TaskEvent) event;
+                RunningStage runningStage = runningStages.get(taskEvent.getStageId());
+                //被停止或已随executor丢失的attempt, 其结果不再处理
+                if (taskEvent.getJobId() != jobId || runningStage == null || !runningStage.attemptEnded(taskEvent.getTaskId(), taskEvent.getAttempt())) {
+                    continue;
+                }
                 if (taskEvent instanceof TaskEvent.TaskFailed) {
-                    TaskEvent.TaskFailed taskFailed = (TaskEvent.TaskFailed) taskEvent;
-                    if (taskFailed.getJobId() != jobId) {
-                        continue;
-                    }
-                    throw new AstarteException(((TaskEvent.TaskFailed) taskEvent).getError());
+                    taskFailed(runningStage, (TaskEvent.TaskFailed) taskEvent);
+                }
+                else if (taskSucceeded(runningStage, (TaskEvent.TaskSuccess) taskEvent)) {
+                    return Arrays.asList((R[]) result);
+                }
+            }
+        }
+
+        /**
+         * 提交stage中还未完成的task, 重新提交时使用当前存活的shuffle service重新广播stage
+         */
+        private void submitStage(Stage stage)
+        {
+            RunningStage runningStage = stageStates.get(stage.getStageId());
+            if (runningStage == null) {
+                //父stage已全部完成, 按map输出统计合并小的reduce分区, 拆分倾斜的join分区
+                Map<Integer, Integer> deps = stageMap.getOrDefault(stage, Collections.emptyMap());
+                partitionCoalescer.coalesce(stage, deps.values(), mapOutputs);
+                skewJoinSplitter.split(stage, deps, mapOutputs);
+                runningStage = new RunningStage(stage, findCachedOperators(stage));
+                stageStates.put(stage.getStageId(), runningStage);
+                if (stage instanceof ShuffleMapStage) {
+                    mapOutputs.put(stage.getStageId(), new MapOutput[stage.getNumPartitions()]);
+                }
+                else {
+                    result = new Object[stage.getNumPartitions()];
+                }
+            }
+            else {
+                logger.info("resubmitting... stage {}, missing tasks {}", stage.getStageId(), runningStage.remaining);
+            }
+            broadcastStage(runningStage);
+            runningStages.put(stage.getStageId(), runningStage);
+            for (int taskId = 0; taskId < runningStage.partitions.length; taskId++) {
+                if (!runningStage.finishedTasks[taskId] && !runningStage.hasRunningAttempt(taskId)) {
+                    launchTask(runningStage, taskId);
+                }
+            }
+        }
+
+        /**
+         * stage连同结果函数只序列化一次, 每个task只发送轻量的TaskDescriptor
+         */
+        private void broadcastStage(RunningStage runningStage)
+        {
+            Stage stage = runningStage.stage;
+            Map<Integer, Integer> deps = stageMap.getOrDefault(stage, Collections.emptyMap());
+            stage.setDeps(deps);
+            stage.setShuffleServices(driverNetManager.getShuffleServices());
+            stage.setMaxBytesInFlight(maxBytesInFlight);
+            //reduce端只读取每个map task第一个成功的attempt的输出
+            for (int depStageId : deps.values()) {
+                MapOutput[] outputs = mapOutputs.get(depStageId);
+                if (outputs != null) {
+                    stage.setMapAttempts(depStageId, Arrays.stream(outputs).mapToInt(output -> output == null ? -1 : output.getAttempt()).toArray());
                 }
-                else if (taskEvent instanceof TaskEvent.TaskSuccess && stage instanceof ResultStage) {
-                    TaskEvent.TaskSuccess taskSuccess = (TaskEvent.TaskSuccess) taskEvent;
-                    result[taskSuccess.getTaskId()] = taskSuccess.getTaskResult();
+                MapOutputTracker.ShuffleOutput reused = reusedStages.get(depStageId);
+                if (reused != null) {
+                    stage.setShuffleSource(depStageId, reused.getJobId(), reused.getShuffleId());
                 }
-                taskDone++;
             }
+
+            //lambda不能捕获JobRunner, 否则会被一起序列化
+            Mapper<Iterator<E>, R> action = this.action;
+            Mapper<Partition, Task<?>> taskFactory;
+            if (stage instanceof ShuffleMapStage) {
+                logger.info("starting... shuffleMapStage: {}, stageId {}", stage, stage.getStageId());
+                taskFactory = partition -> new ShuffleMapTask<>(stage, partition);
+            }
+            else {
+                //result stage ------
+                checkState(stage instanceof ResultStage, "Unknown stage " + stage);
+                logger.info("starting... ResultStage: {}, stageId {}", stage, stage.getStageId());
+                taskFactory = partition -> new ResultTask<>(stage, action, partition);
+            }
+            runningStage.stageBinaryId = TaskDescriptor.broadcastStageBinary(taskFactory);
+            runningStage.shuffleInputLocations = getShuffleInputLocations(deps.values(), mapOutputs);
+            stageBinaryIds.add(runningStage.stageBinaryId);
+        }
+
+        private void launchTask(RunningStage runningStage, int taskId)
+        {
+            List<SocketAddress> preferredExecutors = getCacheLocations(runningStage.cachedOperators, taskId);
+            if (preferredExecutors.isEmpty()) {
+                preferredExecutors = runningStage.shuffleInputLocations;
+            }
+            int attempt = runningStage.launch(taskId);
+            driverNetManager.submitTask(new TaskDescriptor(jobId, runningStage.stage.getStageId(), runningStage.partitions[taskId], attempt,
+                    runningStage.stageBinaryId), preferredExecutors);
+        }
+
+        /**
+         * 返回true表示ResultStage完成, job结束
+         */
+        private boolean taskSucceeded(RunningStage runningStage, TaskEvent.TaskSuccess taskSuccess)
+        {
+            Stage stage = runningStage.stage;
+            int taskId = taskSuccess.getTaskId();
+            if (!runningStage.taskFinished(taskId, taskSuccess.getTaskMetrics().getExecutorRunTime())) {
+                return false;
+            }
+            if (runningStage.hasRunningAttempt(taskId)) {
+                //推测执行的task, 取第一个成功的attempt并停止其他attempt
+                logger.info("stage {} task {} attempt {} succeeded first", stage.getStageId(), taskId, taskSuccess.getAttempt());
+                driverNetManager.killTask(jobId, stage.getStageId(), taskId, taskSuccess.getAttempt());
+                runningStage.runningAttempts.remove(taskId);
+            }
+            logger.debug("stage {} task {} metrics {}", stage.getStageId(), taskId, taskSuccess.getTaskMetrics());
             if (stage instanceof ResultStage) {
-                return Arrays.asList((R[]) result);
+                result[taskId] = taskSuccess.getTaskResult();
+            }
+            else {
+                mapOutputs.get(stage.getStageId())[taskId] = new MapOutput(taskSuccess.getExecutor(), taskSuccess.getAttempt(),
+                        taskSuccess.getTaskMetrics().getShuffleWriteBytes(), (MapTaskState) taskSuccess.getTaskResult());
+            }
+            for (Operator<?> operator : runningStage.cachedOperators) {
+                cacheLocations.computeIfAbsent(operator.getId(), k -> new ConcurrentHashMap<>())
+                        .put(taskId, taskSuccess.getExecutor());
+            }
+
+            if (runningStage.isFinished()) {
+                logger.info("stage {} finished", stage.getStageId());
+                if (stage instanceof ResultStage) {
+                    return true;
+                }
+                runningStages.remove(stage.getStageId());
+                mapOutputTracker.registerShuffle(stage.getFinalOperator().getId(), jobId, stage.getStageId(), mapOutputs.get(stage.getStageId()));
+                stageDag.stageFinished(stage.getStageId());
+                readyStages.addAll(stageDag.nextReadyStages());
+            }
+            return false;
+        }
+
+        private void taskFailed(RunningStage runningStage, TaskEvent.TaskFailed taskFailed)
+        {
+            int stageId = runningStage.stage.getStageId();
+            int taskId = taskFailed.getTaskId();
+            if (runningStage.finishedTasks[taskId]) {
+                return;
+            }
+            SocketAddress fetchFailedService = taskFailed.getFetchFailedService();
+            if (fetchFailedService != null) {
+                logger.warn("stage {} task {} attempt {} fetch shuffle data from {} failed", stageId, taskId, taskFailed.getAttempt(), fetchFailedService);
+                if (mapOutputsLost(fetchFailedService)) {
+                    if (++runningStage.fetchFailures > MAX_STAGE_FETCH_FAILURES) {
+                        throw new AstarteException("stage " + stageId + " fetch shuffle failed " + runningStage.fetchFailures + " times, most recent failure: "
+                                + taskFailed.getError());
+                    }
+                    //父stage的输出丢失时本stage已被停止, 等待重新提交
+                    if (runningStages.get(stageId) == runningStage && !runningStage.hasRunningAttempt(taskId)) {
+                        launchTask(runningStage, taskId);
+                    }
+                    return;
+                }
+                //丢失的输出已经在重新计算, 按普通失败重试
+            }
+            if (runningStage.hasRunningAttempt(taskId)) {
+                logger.warn("task {} attempt {} of stage {} failed, waiting other attempt", taskId, taskFailed.getAttempt(), stageId);
+                return;
+            }
+            if (++runningStage.failures[taskId] >= maxTaskAttempts) {
+                throw new AstarteException("stage " + stageId + " task " + taskId + " failed " + runningStage.failures[taskId] + " times, most recent failure: "
+                        + taskFailed.getError());
+            }
+            logger.warn("stage {} task {} attempt {} failed {} times, retrying", stageId, taskId, taskFailed.getAttempt(), runningStage.failures[taskId]);
+            launchTask(runningStage, taskId);
+        }
+
+        private void executorLost(ExecutorEvent.ExecutorLostEvent event)
+        {
+            SocketAddress executor = event.getExecutor();
+            if (driverNetManager.getShuffleServices().isEmpty()) {
+                throw new AstarteException("all executors lost, the last lost executor is " + executor);
+            }
+            cacheLocations.values().forEach(locations -> locations.values().removeIf(executor::equals));
+            mapOutputsLost(executor);
+            //运行中的stage二进制里包含丢失的shuffle service, 重新广播后再重试task
+            for (RunningStage runningStage : runningStages.values()) {
+                broadcastStage(runningStage);
+            }
+            for (TaskDescriptor task : event.getLostTasks()) {
+                RunningStage runningStage = runningStages.get(task.getStageId());
+                int taskId = task.getTaskId();
+                if (task.getJobId() != jobId || runningStage == null || !runningStage.attemptEnded(taskId, task.getAttempt())) {
+                    continue;
+                }
+                logger.warn("stage {} task {} attempt {} lost with executor {}", task.getStageId(), taskId, task.getAttempt(), executor);
+                if (!runningStage.finishedTasks[taskId] && !runningStage.hasRunningAttempt(taskId)) {
+                    launchTask(runningStage, taskId);
+                }
+            }
+        }
+
+        /**
+         * 标记该executor上的map输出丢失并重新计算, 返回false表示没有需要重新计算的输出
+         */
+        private boolean mapOutputsLost(SocketAddress executor)
+        {
+            mapOutputTracker.removeExecutor(executor);
+            Set<Integer> lostStages = new TreeSet<>();
+            for (Map.Entry<Integer, MapOutput[]> entry : mapOutputs.entrySet()) {
+                MapOutput[] outputs = entry.getValue();
+                for (int taskId = 0; taskId < outputs.length; taskId++) {
+                    if (outputs[taskId] != null && executor.equals(outputs[taskId].getExecutor())) {
+                        if (reusedStages.containsKey(entry.getKey())) {
+                            //被跳过的stage没有计划父stage, 无法在本job内重新计算
+                            throw new MapOutputLostException("reused shuffle output of stage " + entry.getKey() + " lost with executor " + executor);
+                        }
+                        outputs[taskId] = null;
+                        stageStates.get(entry.getKey()).taskLost(taskId);
+                        lostStages.add(entry.getKey());
+                    }
+                }
+            }
+            if (lostStages.isEmpty()) {
+                return false;
+            }
+            logger.warn("map outputs of stages {} on executor {} lost, recomputing", lostStages, executor);
+            for (int stageId : lostStages) {
+                RunningStage runningStage = runningStages.get(stageId);
+                if (runningStage == null) {
+                    stageDag.reopen(stageId);
+                    continue;
+                }
+                for (int taskId = 0; taskId < runningStage.partitions.length; taskId++) {
+                    if (!runningStage.finishedTasks[taskId] && !runningStage.hasRunningAttempt(taskId)) {
+                        launchTask(runningStage, taskId);
+                    }
+                }
+            }
+            //依赖了丢失输出的运行中stage无法继续, 停止后等待父stage重新完成再提交
+            for (RunningStage runningStage : new ArrayList<>(runningStages.values())) {
+                Stage stage = runningStage.stage;
+                if (!stageDag.getParentStageIds(stage).stream().allMatch(stageDag::isFinished)) {
+                    logger.warn("stop stage {}, waiting parent stages recomputed", stage.getStageId());
+                    for (int taskId : new ArrayList<>(runningStage.runningAttempts.keySet())) {
+                        driverNetManager.killTask(jobId, stage.getStageId(), taskId, -1);
+                    }
+                    runningStage.runningAttempts.clear();
+                    runningStages.remove(stage.getStageId());
+                    stageDag.reopen(stage.getStageId());
+                }
+            }
+            readyStages.addAll(stageDag.nextReadyStages());
+            return true;
+        }
+
+        /**
+         * 已完成task数达到speculationQuantile后, 运行时长超过中位数speculationMultiplier倍的task在其他executor上再启动一个attempt
+         */
+        private void speculateSlowTasks(RunningStage runningStage, long now)
+        {
+            int numTasks = runningStage.finishedTasks.length;
+            int finished = numTasks - runningStage.remaining;
+            if (finished == 0 || finished < Math.ceil(speculationQuantile * numTasks)) {
+                return;
+            }
+            long threshold = Math.max((long) (speculationMultiplier * runningStage.medianRunTime()), speculationMinRuntime);
+            Stage stage = runningStage.stage;
+            for (TaskSlotScheduler.RunningTask runningTask : driverNetManager.getRunningTasks(jobId, stage.getStageId())) {
+                int taskId = runningTask.getTask().getTaskId();
+                long runTime = now - runningTask.getLaunchTime();
+                //每个task最多推测一次
+                if (runningStage.finishedTasks[taskId] || runningStage.speculated[taskId] || runTime <= threshold) {
+                    continue;
+                }
+                runningStage.speculated[taskId] = true;
+                int attempt = runningStage.launch(taskId);
+                logger.info("speculating stage {} task {} attempt {}, running {}ms > threshold {}ms, executor {}", stage.getStageId(), taskId, attempt,
+                        runTime, threshold, runningTask.getExecutor());
+                driverNetManager.submitTask(new TaskDescriptor(jobId, stage.getStageId(), runningStage.partitions[taskId], attempt, runningStage.stageBinaryId),
+                        Collections.emptyList(), Collections.singleton(runningTask.getExecutor()));
             }
         }
-        throw new UnsupportedOperationException("job " + jobId + " Not found ResultStage");
     }
 
-    private <E, R> void submitStage(Stage stage,
-            Mapper<Iterator<E>, R> action,
-            Map<Stage, Map<Integer, Integer>> stageDeps)
+    /**
+     * 找出stage内被标记缓存的算子, 不跨越shuffle边界
+     */
+    private static List<Operator<?>> findCachedOperators(Stage stage)
     {
-        Map<Integer, Integer> deps = stageDeps.getOrDefault(stage, Collections.emptyMap());
-        stage.setDeps(deps);
+        List<Operator<?>> cachedOperators = new ArrayList<>();
+        Deque<Operator<?>> stack = new ArrayDeque<>();
+        Operator<?> finalOperator = stage.getFinalOperator();
+        if (finalOperator instanceof ShuffleMapOperator) {
+            stack.addAll(finalOperator.getDependencies());
+        }
+        else {
+            stack.add(finalOperator);
+        }
+        while (!stack.isEmpty()) {
+            Operator<?> operator = stack.pop();
+            if (operator.isMarkedCache()) {
+                cachedOperators.add(operator);
+            }
+            else if (!(operator instanceof ShuffleMapOperator)) {
+                stack.addAll(operator.getDependencies());
+            }
+        }
+        return cachedOperators;
+    }
 
-        List<Task<?>> tasks = new ArrayList<>();
+    private List<SocketAddress> getCacheLocations(List<Operator<?>> cachedOperators, int partitionId)
+    {
+        List<SocketAddress> locations = new ArrayList<>();
+        for (Operator<?> operator : cachedOperators) {
+            SocketAddress executor = cacheLocations.getOrDefault(operator.getId(), Collections.emptyMap()).get(partitionId);
+            if (executor != null && !locations.contains(executor)) {
+                locations.add(executor);
+            }
+        }
+        return locations;
+    }
 
-        if (stage instanceof ShuffleMapStage) {
-            logger.info("starting... shuffleMapStage: {}, stageId {}", stage, stage.getStageId());
-            for (Partition partition : stage.getPartitions()) {
-                Task<MapTaskState> task = new ShuffleMapTask<>(stage, partition);
-                tasks.add(task);
+    /**
+     * 按依赖的map输出字节数汇总到executor, 返回持有输入占比不低于REDUCER_PREFERRED_FRACTION的executor, 按占比从高到低排列
+     */
+    static List<SocketAddress> getShuffleInputLocations(Collection<Integer> depStageIds, Map<Integer, MapOutput[]> mapOutputs)
+    {
+        Map<SocketAddress, Long> executorBytes = new HashMap<>();
+        long totalBytes = 0;
+        for (int stageId : depStageIds) {
+            MapOutput[] outputs = mapOutputs.get(stageId);
+            if (outputs == null) {
+                continue;
+            }
+            for (MapOutput output : outputs) {
+                if (output != null && output.getExecutor() != null) {
+                    //空输出也计1字节, 没有字节统计时退化为按map task个数
+                    long bytes = Math.max(output.getBytes(), 1);
+                    executorBytes.merge(output.getExecutor(), bytes, Long::sum);
+                    totalBytes += bytes;
+                }
             }
         }
-        else {
-            //result stage ------
-            checkState(stage instanceof ResultStage, "Unknown stage " + stage);
-            logger.info("starting... ResultStage: {}, stageId {}", stage, stage.getStageId());
+        final long total = totalBytes;
+        return executorBytes.entrySet().stream()
+                .filter(entry -> entry.getValue() >= total * REDUCER_PREFERRED_FRACTION)
+                .sorted((x, y) -> Long.compare(y.getValue(), x.getValue()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static class RunningStage
+    {
+        private final Stage stage;
+        private final List<Operator<?>> cachedOperators;
+        private final Partition[] partitions;
+        private final boolean[] finishedTasks;
+        //每个task下一个attemptId, stage重新提交后继续递增
+        private final int[] nextAttempts;
+        //每个task失败的次数, 不包括executor丢失和拉取shuffle失败
+        private final int[] failures;
+        private final boolean[] speculated;
+        //Map<taskId, 还未结束的attemptId>
+        private final Map<Integer, Set<Integer>> runningAttempts = new HashMap<>();
+        private final List<Long> runTimes = new ArrayList<>();
+        private long stageBinaryId;
+        private List<SocketAddress> shuffleInputLocations = Collections.emptyList();
+        private int remaining;
+        private int fetchFailures;
 
+        private RunningStage(Stage stage, List<Operator<?>> cachedOperators)
+        {
+            this.stage = stage;
+            this.cachedOperators = cachedOperators;
+            int numPartitions = stage.getNumPartitions();
+            this.partitions = new Partition[numPartitions];
             for (Partition partition : stage.getPartitions()) {
-                Task<R> task = new ResultTask<>(stage, action, partition);
-                tasks.add(task);
+                partitions[partition.getId()] = partition;
             }
+            this.finishedTasks = new boolean[numPartitions];
+            this.nextAttempts = new int[numPartitions];
+            this.failures = new int[numPartitions];
+            this.speculated = new boolean[numPartitions];
+            this.remaining = numPartitions;
         }
 
-        tasks.forEach(driverNetManager::submitTask);
+        /**
+         * 分配新的attemptId
+         */
+        private int launch(int taskId)
+        {
+            int attempt = nextAttempts[taskId]++;
+            runningAttempts.computeIfAbsent(taskId, k -> new HashSet<>()).add(attempt);
+            return attempt;
+        }
+
+        /**
+         * 返回false表示该attempt已经不在运行(被停止或随executor丢失)
+         */
+        private boolean attemptEnded(int taskId, int attempt)
+        {
+            Set<Integer> attempts = runningAttempts.get(taskId);
+            if (attempts == null || !attempts.remove(attempt)) {
+                return false;
+            }
+            if (attempts.isEmpty()) {
+                runningAttempts.remove(taskId);
+            }
+            return true;
+        }
+
+        private boolean hasRunningAttempt(int taskId)
+        {
+            return runningAttempts.containsKey(taskId);
+        }
+
+        /**
+         * 返回false表示该task已经成功过(重复的结果事件)
+         */
+        private boolean taskFinished(int taskId, long runTime)
+        {
+            if (finishedTasks[taskId]) {
+                return false;
+            }
+            finishedTasks[taskId] = true;
+            runTimes.add(runTime);
+            remaining--;
+            return true;
+        }
+
+        /**
+         * 已完成task的输出丢失, 需要重新计算
+         */
+        private void taskLost(int taskId)
+        {
+            if (finishedTasks[taskId]) {
+                finishedTasks[taskId] = false;
+                remaining++;
+            }
+        }
+
+        private long medianRunTime()
+        {
+            List<Long> sorted = new ArrayList<>(runTimes);
+            Collections.sort(sorted);
+            return sorted.get(sorted.size() / 2);
+        }
+
+        private boolean isFinished()
+        {
+            return remaining == 0;
+        }
     }
 }
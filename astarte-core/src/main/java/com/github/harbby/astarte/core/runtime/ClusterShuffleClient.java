@@ -15,13 +15,18 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.api.Constant;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
 import com.github.harbby.gadtry.base.Iterators;
-import com.github.harbby.gadtry.base.Serializables;
 import com.github.harbby.gadtry.base.Throwables;
-import com.github.harbby.gadtry.collection.StateOption;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
@@ -37,22 +42,39 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 
 /**
  * n * n client
  * <p>
+ * 同时向所有shuffle service发出请求, 各连接收到的数据块进入同一个结果队列, 由reduce task按到达顺序反序列化,
+ * 网络传输与反序列化重叠, 最慢的shuffle service不会拖慢其他连接的读取.
+ * 已收到但还未被消费的字节数超过maxBytesInFlight时暂停从连接读取(依靠tcp流控让shuffle service减速), 消费后再恢复.
+ * 数据块是引用计数的池化ByteBuf切片, 直接在其上解压和反序列化, 块读完后立即release.
+ * 一个请求可以读取连续的多个reduce分区, 每个map输出前的头部给出各分区的字节数, 据此把数据块分配到各分区.
+ * 按map读取时先只请求各map输出的索引, 然后立即异步请求每个分段的第一段, 各shuffle service的请求同时进行.
+ * 每个连接上的请求按发出顺序排队, 响应按同样的顺序交给各请求的接收者, 分段的数据块进入分段自己的队列.
+ * 分段已缓存的字节数不超过一段的额度时在io线程中接着请求下一段, 每段的额度为maxBytesInFlight按task内
+ * 所有未读完的分段数平分后的一半, 因此缓存的数据量与分区大小无关
+ * <p>
  * 非线程安全的
  */
 public class ClusterShuffleClient
@@ -60,14 +82,30 @@ public class ClusterShuffleClient
 {
     private static final Logger logger = LoggerFactory.getLogger(ClusterShuffleClient.class);
     private static final ThreadLocal<ClusterShuffleClient> clientManagerTl = new ThreadLocal<>();
+    private static final ByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
     private final Map<SocketAddress, ShuffleClientHandler> concurrentMap = new HashMap<>();
     private final List<ChannelFuture> futures = new ArrayList<>();
+    //所有连接共用的结果队列, 容量由bytesInFlight限制
+    private final BlockingQueue<FetchResult> results = new LinkedBlockingQueue<>();
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    //已从结果队列取出但还未release的块, 只在task线程访问. task没有读完就结束时, 下一个task开始前统一release
+    private final Set<ByteBuf> outstandingBlocks = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long maxBytesInFlight = Constant.DEFAULT_SHUFFLE_MAX_BYTES_IN_FLIGHT;
+    //按map读取时还未读完的分段数, 平分maxBytesInFlight. 只在task线程修改, io线程请求下一段时读取
+    private volatile int openSegments;
+    //本task按map读取创建的分段, 下一个task开始前丢弃其中未读完的数据块
+    private final List<Segment> segments = new ArrayList<>();
+    //Map<shuffleId, 每个map task被driver确认的attemptId>
+    private Map<Integer, int[]> mapAttempts = Collections.emptyMap();
+    private int jobId;
+    private Map<Integer, Stage.ShuffleSource> shuffleSources = Collections.emptyMap();
+    private final Set<SocketAddress> shuffleServices;
+    private final NioEventLoopGroup workerGroup = new NioEventLoopGroup();
 
     private ClusterShuffleClient(Set<SocketAddress> shuffleServices)
             throws InterruptedException
     {
-        Thread taskThread = Thread.currentThread();
-        NioEventLoopGroup workerGroup = new NioEventLoopGroup();
+        this.shuffleServices = shuffleServices;
         for (SocketAddress address : shuffleServices) {
             Bootstrap bootstrap = new Bootstrap();
             bootstrap.group(workerGroup)
@@ -81,46 +119,465 @@ public class ClusterShuffleClient
                         protected void initChannel(SocketChannel ch)
                                 throws Exception
                         {
-                            ch.pipeline().addLast(new ShuffleClientHandler(taskThread));
+                            ch.pipeline().addLast(new ShuffleClientHandler(address));
                         }
                     });
-            futures.add(bootstrap.connect(address).sync());
+            try {
+                futures.add(bootstrap.connect(address).sync());
+            }
+            catch (InterruptedException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                this.shutdown();
+                throw new ShuffleFetchFailedException(address, "connect failed", e);
+            }
         }
         while (concurrentMap.size() < shuffleServices.size()) {
             TimeUnit.MILLISECONDS.sleep(10);
         }
     }
 
-    static ClusterShuffleClient start(Set<SocketAddress> shuffleServices)
+    static ClusterShuffleClient start(Set<SocketAddress> shuffleServices, int jobId, Map<Integer, int[]> mapAttempts,
+            Map<Integer, Stage.ShuffleSource> shuffleSources, long maxBytesInFlight)
             throws InterruptedException
     {
         ClusterShuffleClient clientManager = clientManagerTl.get();
+        //shuffle service变化(executor丢失), 连接已断开或上一个task没有读完(连接上还有旧请求的数据)时重建client.
+        //分段请求的数据只进入被丢弃的分段, 不影响复用
+        if (clientManager != null && (!clientManager.shuffleServices.equals(shuffleServices) || !clientManager.isActive()
+                || clientManager.isFetching())) {
+            clientManager.shutdown();
+            clientManager = null;
+        }
         if (clientManager == null) {
             clientManager = new ClusterShuffleClient(shuffleServices);
             clientManagerTl.set(clientManager);
         }
+        else {
+            clientManager.discardSegments();
+            clientManager.releaseOutstandingBlocks();
+        }
+        //client按线程复用, 每个task更新为自己job和stage的map attempt
+        clientManager.jobId = jobId;
+        clientManager.mapAttempts = mapAttempts;
+        clientManager.shuffleSources = shuffleSources;
+        clientManager.maxBytesInFlight = maxBytesInFlight;
+        clientManager.openSegments = 0;
         return clientManager;
     }
 
+    private boolean isActive()
+    {
+        return futures.stream().allMatch(future -> future.channel().isActive());
+    }
+
+    private boolean isFetching()
+    {
+        return concurrentMap.values().stream().anyMatch(handler -> handler.pendingStreams.get() > 0);
+    }
+
     @Override
-    public <K, V> Iterator<Tuple2<K, V>> readShuffleData(int shuffleId, int reduceId)
+    public <K, V> Iterator<Tuple2<K, V>> readShuffleData(int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+            SerializerManager serializerManager, TaskMetrics metrics)
     {
-        return Iterators.concat(concurrentMap.values().stream().map(handler -> {
-            handler.begin(shuffleId, reduceId);
-            return Iterators.map(handler, bytes -> {
-                try {
-                    return Serializables.<Tuple2<K, V>>byteToObject(bytes);
+        //第一次读取时才发出请求, 同一task内先创建的多个iterator依次读取
+        Iterator<ByteBuf> blocks = new Iterator<ByteBuf>()
+        {
+            private int remaining = -1;
+            private ByteBuf next;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (remaining == -1) {
+                    beginFetch(ShuffleManagerService.FETCH_MAP_OUTPUTS, shuffleId, startReduceId, endReduceId, startMapId, endMapId);
+                    remaining = concurrentMap.size();
                 }
-                catch (IOException | ClassNotFoundException e) {
-                    throw Throwables.throwsThrowable(e);
+                while (next == null && remaining > 0) {
+                    FetchResult result = takeResult(results, metrics);
+                    if (result.type == FetchResult.STREAM_END) {
+                        remaining--;
+                    }
+                    else if (result.type == FetchResult.DATA) {
+                        next = result.block;
+                    }
                 }
-            });
-        }).iterator());
+                return next != null;
+            }
+
+            @Override
+            public ByteBuf next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ByteBuf block = next;
+                next = null;
+                return block;
+            }
+        };
+        return Iterators.flatMap(blocks, block -> readBlock(block, serializerManager, metrics));
+    }
+
+    @Override
+    public <K, V> List<Iterator<Tuple2<K, V>>> readShuffleDataByMap(int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+            SerializerManager serializerManager, TaskMetrics metrics)
+    {
+        beginFetch(ShuffleManagerService.FETCH_INDEX, shuffleId, startReduceId, endReduceId, startMapId, endMapId);
+        List<Segment> newSegments = new ArrayList<>();
+        int remaining = concurrentMap.size();
+        while (remaining > 0) {
+            FetchResult result = takeResult(results, metrics);
+            if (result.type == FetchResult.STREAM_END) {
+                remaining--;
+            }
+            else if (result.type == FetchResult.MAP_OUTPUT_INDEX) {
+                MapOutputIndex index = result.index;
+                for (int i = 0; i < index.lengths.length; i++) {
+                    if (index.lengths[i] > 0) {
+                        newSegments.add(new Segment(result.handler, shuffleId, index.startReduceId + i, index.mapId, index.attemptId, index.lengths[i], metrics));
+                    }
+                }
+            }
+        }
+        openSegments += newSegments.size();
+        segments.addAll(newSegments);
+        List<Iterator<Tuple2<K, V>>> iterators = new ArrayList<>(newSegments.size());
+        for (Segment segment : newSegments) {
+            //不等待读取, 同时向所有shuffle service请求各分段的第一段
+            segment.fetchNext();
+            iterators.add(Iterators.flatMap(segment, block -> readBlock(block, serializerManager, metrics)));
+        }
+        return iterators;
+    }
+
+    /**
+     * 一个map输出中一个reduce分区的数据块. 同一时刻最多有一个请求, 缓存不超过一段的额度时在io线程中请求下一段
+     */
+    private class Segment
+            implements Iterator<ByteBuf>, ResponseListener
+    {
+        private final ShuffleClientHandler handler;
+        private final int shuffleId;
+        private final int reduceId;
+        private final int mapId;
+        private final int attemptId;
+        private final long length;
+        private final TaskMetrics metrics;
+        private final BlockingQueue<FetchResult> blocks = new LinkedBlockingQueue<>();
+        //以下字段由io线程和task线程共同访问, 需持有锁. 字节数都含块头
+        //已收到的字节数, 即下一段的起始位置
+        private long position;
+        //已收到但task还未取走的字节数
+        private long buffered;
+        //当前请求已收到的字节数
+        private long chunkBytes;
+        private boolean requesting;
+        private boolean discarded;
+        //以下字段只在task线程访问
+        private long consumed;
+        private ByteBuf next;
+        private boolean finished;
+
+        private Segment(ShuffleClientHandler handler, int shuffleId, int reduceId, int mapId, int attemptId, long length, TaskMetrics metrics)
+        {
+            this.handler = handler;
+            this.shuffleId = shuffleId;
+            this.reduceId = reduceId;
+            this.mapId = mapId;
+            this.attemptId = attemptId;
+            this.length = length;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (next == null && consumed < length) {
+                FetchResult result = takeResult(blocks, metrics);
+                if (result.type == FetchResult.STREAM_END) {
+                    //服务端没有返回任何数据块
+                    throw new ShuffleFetchFailedException(handler.shuffleService, "map " + mapId + " output of reduce " + reduceId + " not found", null);
+                }
+                next = result.block;
+                int frameLength = next.readableBytes() + 4;
+                consumed += frameLength;
+                synchronized (this) {
+                    buffered -= frameLength;
+                }
+                fetchNext();
+            }
+            if (next == null && !finished) {
+                finished = true;
+                openSegments--;
+            }
+            return next != null;
+        }
+
+        @Override
+        public ByteBuf next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ByteBuf block = next;
+            next = null;
+            return block;
+        }
+
+        private synchronized void fetchNext()
+        {
+            //每次请求的字节数, 服务端至少发送一个数据块
+            int credit = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytesInFlight / (2 * Math.max(1, openSegments))));
+            if (discarded || requesting || position >= length || buffered > credit) {
+                return;
+            }
+            requesting = true;
+            chunkBytes = 0;
+            handler.beginSegment(this, shuffleId, reduceId, mapId, attemptId, position, credit);
+        }
+
+        /**
+         * 在io线程中调用
+         */
+        @Override
+        public synchronized void onResult(FetchResult result)
+        {
+            if (discarded) {
+                if (result.type == FetchResult.DATA) {
+                    result.block.release();
+                }
+                return;
+            }
+            if (result.type == FetchResult.DATA) {
+                int frameLength = result.block.readableBytes() + 4;
+                position += frameLength;
+                buffered += frameLength;
+                chunkBytes += frameLength;
+                blocks.offer(result);
+            }
+            else if (result.type == FetchResult.STREAM_END) {
+                requesting = false;
+                if (chunkBytes == 0) {
+                    blocks.offer(result);
+                }
+                else {
+                    fetchNext();
+                }
+            }
+            else if (result.type == FetchResult.FETCH_FAILED) {
+                requesting = false;
+                blocks.offer(result);
+            }
+        }
+
+        /**
+         * task结束时还没有取走的数据块直接release, 之后收到的数据块也不再缓存
+         */
+        private synchronized void discard()
+        {
+            discarded = true;
+            FetchResult result;
+            while ((result = blocks.poll()) != null) {
+                if (result.block != null) {
+                    result.block.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 接收一个请求的响应, 在io线程中调用
+     */
+    private interface ResponseListener
+    {
+        void onResult(FetchResult result);
+    }
+
+    /**
+     * map输出中[startReduceId, startReduceId + lengths.length)各分区的字节数
+     */
+    private static class MapOutputIndex
+    {
+        private final int mapId;
+        private final int attemptId;
+        private final int startReduceId;
+        private final long[] lengths;
+
+        private MapOutputIndex(int mapId, int attemptId, int startReduceId, long[] lengths)
+        {
+            this.mapId = mapId;
+            this.attemptId = attemptId;
+            this.startReduceId = startReduceId;
+            this.lengths = lengths;
+        }
+    }
+
+    /**
+     * 解压后立即release网络块, 解压后的数据在记录全部读完后release
+     */
+    private <T> Iterator<T> readBlock(ByteBuf block, SerializerManager serializerManager, TaskMetrics metrics)
+    {
+        ByteBuf data;
+        try {
+            data = serializerManager.decompressBlock(block, ALLOCATOR, metrics);
+        }
+        finally {
+            release(block);
+        }
+        outstandingBlocks.add(data);
+        Iterator<T> records = serializerManager.readBlock(data);
+        return new Iterator<T>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                if (records.hasNext()) {
+                    return true;
+                }
+                release(data);
+                return false;
+            }
+
+            @Override
+            public T next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return records.next();
+            }
+        };
+    }
+
+    private void release(ByteBuf block)
+    {
+        if (outstandingBlocks.remove(block)) {
+            block.release();
+        }
+    }
+
+    private void releaseOutstandingBlocks()
+    {
+        if (!outstandingBlocks.isEmpty()) {
+            logger.debug("release {} shuffle blocks not read by previous task", outstandingBlocks.size());
+            outstandingBlocks.forEach(ReferenceCountUtil::release);
+            outstandingBlocks.clear();
+        }
+    }
+
+    private void discardSegments()
+    {
+        segments.forEach(Segment::discard);
+        segments.clear();
+        openSegments = 0;
+    }
+
+    /**
+     * 清空结果队列, 其中的数据块没有交给task, 直接release
+     */
+    private void clearResults()
+    {
+        FetchResult result;
+        while ((result = results.poll()) != null) {
+            if (result.block != null) {
+                bytesInFlight.addAndGet(-result.block.readableBytes());
+                result.block.release();
+            }
+        }
+    }
+
+    /**
+     * 同时向所有shuffle service发出请求
+     */
+    private void beginFetch(int type, int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId)
+    {
+        prepareFetch();
+        int[] attempts = selectMapAttempts(mapAttempts.get(shuffleId), startMapId, endMapId);
+        for (ShuffleClientHandler handler : concurrentMap.values()) {
+            handler.begin(type, shuffleId, startReduceId, endReduceId, attempts);
+        }
+    }
+
+    /**
+     * 结果队列同一时刻只能用于一次读取, 分段请求的结果不经过结果队列
+     */
+    private void prepareFetch()
+    {
+        checkState(!isFetching(), "previous shuffle fetch not finished");
+        clearResults();
+        resumeReading();
+    }
+
+    /**
+     * shuffle service只返回attempt匹配的map输出, 范围之外的map置为-1即可只读取部分map的输出
+     */
+    private static int[] selectMapAttempts(int[] attempts, int startMapId, int endMapId)
+    {
+        if (startMapId == 0 && endMapId == Integer.MAX_VALUE) {
+            return attempts;
+        }
+        checkState(attempts != null, "read part of map outputs requires map attempts");
+        int[] selected = new int[Math.min(attempts.length, endMapId)];
+        Arrays.fill(selected, -1);
+        for (int mapId = startMapId; mapId < selected.length; mapId++) {
+            selected[mapId] = attempts[mapId];
+        }
+        return selected;
+    }
+
+    /**
+     * 按到达顺序取出队列中的下一个结果, 连接失败时抛出ShuffleFetchFailedException
+     */
+    private FetchResult takeResult(BlockingQueue<FetchResult> queue, TaskMetrics metrics)
+    {
+        FetchResult result = queue.poll();
+        if (result == null) {
+            //队列已空, 被暂停的连接必须恢复读取, 否则会一直等待
+            resumeReading();
+            long startTime = System.nanoTime();
+            try {
+                result = queue.take();
+            }
+            catch (InterruptedException e) {
+                //task被kill
+                throw Throwables.throwsThrowable(e);
+            }
+            metrics.incShuffleRead(0, System.nanoTime() - startTime);
+        }
+        if (result.type == FetchResult.FETCH_FAILED) {
+            throw new ShuffleFetchFailedException(result.handler.shuffleService, "reducer download shuffle read failed", result.handler.cause);
+        }
+        if (result.type == FetchResult.DATA) {
+            outstandingBlocks.add(result.block);
+            int length = result.block.readableBytes();
+            metrics.incShuffleRead(length, 0);
+            if (queue == results && bytesInFlight.addAndGet(-length) <= maxBytesInFlight) {
+                resumeReading();
+            }
+        }
+        return result;
+    }
+
+    private void resumeReading()
+    {
+        for (ShuffleClientHandler handler : concurrentMap.values()) {
+            ChannelConfig config = handler.ctx.channel().config();
+            if (!config.isAutoRead()) {
+                config.setAutoRead(true);
+            }
+        }
     }
 
     @Override
     public void close()
             throws IOException
+    {
+        shutdown();
+    }
+
+    private void shutdown()
     {
         logger.info("close... shuffle client");
         clientManagerTl.remove();
@@ -128,134 +585,314 @@ public class ClusterShuffleClient
         futures.forEach(channelFuture -> channelFuture.channel().close());
         concurrentMap.clear();
         futures.clear();
+        workerGroup.shutdownGracefully();
+        discardSegments();
+        clearResults();
+        releaseOutstandingBlocks();
+    }
+
+    private static class FetchResult
+    {
+        private static final int DATA = 0;
+        private static final int MAP_OUTPUT_END = 1;
+        private static final int STREAM_END = 2;
+        private static final int FETCH_FAILED = 3;
+        private static final int MAP_OUTPUT_INDEX = 4;
+
+        private final ShuffleClientHandler handler;
+        private final int type;
+        //type为DATA时是去掉块头的数据块, 否则为null
+        private final ByteBuf block;
+        private final int reduceId;
+        //type为MAP_OUTPUT_INDEX时的索引, 否则为null
+        private final MapOutputIndex index;
+
+        private FetchResult(ShuffleClientHandler handler, int type, ByteBuf block, int reduceId, MapOutputIndex index)
+        {
+            this.handler = handler;
+            this.type = type;
+            this.block = block;
+            this.reduceId = reduceId;
+            this.index = index;
+        }
+
+        private FetchResult(ShuffleClientHandler handler, int type)
+        {
+            this(handler, type, null, -1, null);
+        }
     }
 
     private class ShuffleClientHandler
             extends LengthFieldBasedFrameDecoder
-            implements Iterator<byte[]>, Closeable
+            implements Closeable
     {
-        private final Thread taskThread;
+        private final SocketAddress shuffleService;
         private ChannelHandlerContext ctx;
-        //todo: use number size buffer, 建议使用定长ByteBuffer
-        private final BlockingQueue<byte[]> buffer = new LinkedBlockingQueue<>(1024);
-        private final StateOption<byte[]> option = StateOption.empty();
 
-        private volatile boolean downloadEnd = false;
+        //已发出但还未收到END_OF_STREAM的请求的接收者, 按请求顺序排列, 只在io线程访问
+        private final Queue<ResponseListener> listeners = new ArrayDeque<>();
+        //其中结果进入共用结果队列的请求数
+        private final AtomicInteger pendingStreams = new AtomicInteger();
+        private final ResponseListener streamListener = results::offer;
+        private volatile boolean closed = false;
         private volatile Throwable cause;
+        //当前map输出中各reduce分区还未收到的字节数(含块头), 只在io线程访问
+        private long[] segmentRemaining;
+        private int segmentStartReduceId;
+        private int segmentIndex;
 
-        private ShuffleClientHandler(Thread taskThread)
+        private ShuffleClientHandler(SocketAddress shuffleService)
         {
             super(1048576, 0, 4);
-            this.taskThread = taskThread;
+            this.shuffleService = shuffleService;
         }
 
         @Override
         public void channelActive(ChannelHandlerContext ctx)
                 throws Exception
         {
-            ShuffleClientHandler old = concurrentMap.put(ctx.channel().remoteAddress(), this);
+            ShuffleClientHandler old = concurrentMap.put(shuffleService, this);
             checkState(old == null, "");
             this.ctx = ctx;
         }
 
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception
+        {
+            //对端executor退出时连接可能被正常关闭, 此时不会触发exceptionCaught
+            if (!closed) {
+                failed(new IOException("shuffle service connection closed"));
+            }
+            super.channelInactive(ctx);
+        }
+
         @Override
         protected Object decode(ChannelHandlerContext ctx, ByteBuf in1)
                 throws Exception
         {
-            if (in1.readableBytes() == 4) {
-                if (in1.readInt() == -1) {
-                    downloadEnd = true;
-                    taskThread.interrupt();
+            if (in1.readableBytes() >= 4) {
+                int marker = in1.getInt(in1.readerIndex());
+                if (marker == ShuffleManagerService.END_OF_STREAM) {
+                    in1.skipBytes(4);
+                    ResponseListener listener = listeners.poll();
+                    checkState(listener != null, "no request waiting for END_OF_STREAM");
+                    if (listener == streamListener) {
+                        pendingStreams.decrementAndGet();
+                    }
+                    listener.onResult(new FetchResult(this, FetchResult.STREAM_END));
+                    return null;
+                }
+                else if (marker == ShuffleManagerService.END_OF_MAP_OUTPUT) {
+                    in1.skipBytes(4);
+                    checkState(segmentRemaining == null || segmentIndex == segmentRemaining.length, "map output not fully received");
+                    segmentRemaining = null;
+                    currentListener().onResult(new FetchResult(this, FetchResult.MAP_OUTPUT_END));
                     return null;
                 }
+                else if (marker == ShuffleManagerService.MAP_OUTPUT_HEADER) {
+                    return decodeMapOutputHeader(in1);
+                }
+                else if (marker == ShuffleManagerService.MAP_OUTPUT_INDEX) {
+                    return decodeMapOutputIndex(in1);
+                }
             }
+            //frame是累积buffer的retainedSlice, 不拷贝数据
             ByteBuf frame = (ByteBuf) super.decode(ctx, in1);
             if (frame == null) {
                 return null;
             }
-            //check must frame.readableBytes() > 4;
-            byte[] bytes = new byte[frame.readInt()];
-            frame.readBytes(bytes);
+            frame.skipBytes(4);
+            if (closed) {
+                frame.release();
+                return null;
+            }
+            int length = frame.readableBytes();
+            int reduceId = nextBlockReduceId(length + 4);
             if (logger.isDebugEnabled()) {
-                logger.debug("taskThread {}, io read {}", taskThread, bytes);
+                logger.debug("shuffle service {}, io read {}", shuffleService, length);
             }
-            ReferenceCountUtil.release(in1);
-            buffer.put(bytes);
-            return bytes;
+            ResponseListener listener = currentListener();
+            //先暂停再放入队列, 保证reduce端取到该数据块时能看到暂停状态.
+            //分段请求的数据量已由每段的额度限制, 不暂停读取, 否则等待其他分段的task无法被唤醒恢复读取
+            if (listener == streamListener && bytesInFlight.addAndGet(length) > maxBytesInFlight) {
+                ctx.channel().config().setAutoRead(false);
+            }
+            listener.onResult(new FetchResult(this, FetchResult.DATA, frame, reduceId, null));
+            return null;
         }
 
-        @Override
-        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
-                throws Exception
+        private ResponseListener currentListener()
         {
-            this.cause = cause;
-            taskThread.interrupt();
+            ResponseListener listener = listeners.peek();
+            checkState(listener != null, "no request waiting for shuffle data");
+            return listener;
         }
 
-        private void begin(int shuffleId, int reduceId)
+        /**
+         * [MAP_OUTPUT_HEADER][int startReduceId][int n][n * long length], 头部未完整到达时等待更多数据
+         */
+        private Object decodeMapOutputHeader(ByteBuf in)
         {
-            downloadEnd = false;
-            cause = null;
-            buffer.clear();
-            option.remove();
-
-            ByteBuf byteBuf = ctx.alloc().buffer(8, 8);
-            byteBuf.writeInt(shuffleId);
-            byteBuf.writeInt(reduceId);
-            ctx.writeAndFlush(byteBuf);
+            if (in.readableBytes() < 12) {
+                return null;
+            }
+            int reduceNum = in.getInt(in.readerIndex() + 8);
+            if (in.readableBytes() < 12 + reduceNum * 8L) {
+                return null;
+            }
+            in.skipBytes(4);
+            segmentStartReduceId = in.readInt();
+            in.skipBytes(4);
+            segmentRemaining = new long[reduceNum];
+            for (int i = 0; i < reduceNum; i++) {
+                segmentRemaining[i] = in.readLong();
+            }
+            segmentIndex = 0;
+            skipEmptySegments();
+            return null;
         }
 
-        @Override
-        public boolean hasNext()
+        /**
+         * [MAP_OUTPUT_INDEX][int mapId][int attemptId][int startReduceId][int n][n * long length], 索引未完整到达时等待更多数据
+         */
+        private Object decodeMapOutputIndex(ByteBuf in)
         {
-            if (this.cause != null) {
-                throw new RuntimeException("reduce reader failed", this.cause);
+            if (in.readableBytes() < 20) {
+                return null;
             }
-            else if (option.isDefined()) {
-                return true;
+            int reduceNum = in.getInt(in.readerIndex() + 16);
+            if (in.readableBytes() < 20 + reduceNum * 8L) {
+                return null;
             }
+            in.skipBytes(4);
+            int mapId = in.readInt();
+            int attemptId = in.readInt();
+            int startReduceId = in.readInt();
+            in.skipBytes(4);
+            long[] lengths = new long[reduceNum];
+            for (int i = 0; i < reduceNum; i++) {
+                lengths[i] = in.readLong();
+            }
+            currentListener().onResult(new FetchResult(this, FetchResult.MAP_OUTPUT_INDEX, null, -1, new MapOutputIndex(mapId, attemptId, startReduceId, lengths)));
+            return null;
+        }
 
-            while (true) {
-                if (this.cause != null) {
-                    throw new RuntimeException("reducer download shuffle read failed", this.cause);
-                }
-                else if (this.downloadEnd) {
-                    return getEndStateValue();
-                }
+        /**
+         * 按头部给出的各分区字节数确定数据块所属的reduce分区
+         */
+        private int nextBlockReduceId(int frameLength)
+        {
+            checkState(segmentRemaining != null && segmentIndex < segmentRemaining.length, "shuffle block out of map output range");
+            int reduceId = segmentStartReduceId + segmentIndex;
+            segmentRemaining[segmentIndex] -= frameLength;
+            checkState(segmentRemaining[segmentIndex] >= 0, "shuffle block crosses reduce partition boundary");
+            skipEmptySegments();
+            return reduceId;
+        }
 
-                try {
-                    option.update(this.buffer.take());
-                    return true;
-                }
-                catch (InterruptedException ignored) {
+        private void skipEmptySegments()
+        {
+            while (segmentIndex < segmentRemaining.length && segmentRemaining[segmentIndex] == 0) {
+                segmentIndex++;
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+                throws Exception
+        {
+            failed(cause);
+        }
+
+        /**
+         * 连接失败后不再可用, 所有等待中的请求都收到FETCH_FAILED
+         */
+        private void failed(Throwable cause)
+        {
+            if (this.cause == null) {
+                this.cause = cause;
+            }
+            ResponseListener listener;
+            while ((listener = listeners.poll()) != null) {
+                if (listener == streamListener) {
+                    pendingStreams.decrementAndGet();
                 }
+                listener.onResult(new FetchResult(this, FetchResult.FETCH_FAILED));
             }
         }
 
-        private boolean getEndStateValue()
+        private void begin(int type, int shuffleId, int startReduceId, int endReduceId, int[] attempts)
         {
-            byte[] bytes = this.buffer.poll();
-            if (bytes != null) {
-                option.update(bytes);
-                return true;
+            int size = attempts == null ? 0 : attempts.length;
+            ByteBuf byteBuf = newRequest(type, shuffleId, 12 + size * 4);
+            pendingStreams.incrementAndGet();
+            byteBuf.writeInt(startReduceId);
+            byteBuf.writeInt(endReduceId);
+            if (attempts == null) {
+                byteBuf.writeInt(-1);
             }
             else {
-                return false;
+                byteBuf.writeInt(attempts.length);
+                for (int attempt : attempts) {
+                    byteBuf.writeInt(attempt);
+                }
             }
+            send(byteBuf, streamListener);
         }
 
-        @Override
-        public byte[] next()
+        /**
+         * 读取一个map输出中一个reduce分区从position开始不超过maxBytes的完整数据块
+         */
+        private void beginSegment(ResponseListener listener, int shuffleId, int reduceId, int mapId, int attemptId, long position, int maxBytes)
         {
-            if (!hasNext()) {
-                throw new NoSuchElementException();
-            }
-            return option.remove();
+            ByteBuf byteBuf = newRequest(ShuffleManagerService.FETCH_SEGMENT, shuffleId, 24);
+            byteBuf.writeInt(reduceId);
+            byteBuf.writeInt(mapId);
+            byteBuf.writeInt(attemptId);
+            byteBuf.writeLong(position);
+            byteBuf.writeInt(maxBytes);
+            send(byteBuf, listener);
+        }
+
+        /**
+         * 写入[int len][type][jobId][shuffleId], bodyLength为之后的字节数
+         */
+        private ByteBuf newRequest(int type, int shuffleId, int bodyLength)
+        {
+            ByteBuf byteBuf = ctx.alloc().buffer(16 + bodyLength);
+            byteBuf.writeInt(12 + bodyLength);
+            byteBuf.writeInt(type);
+            Stage.ShuffleSource source = shuffleSources.get(shuffleId);
+            byteBuf.writeInt(source == null ? jobId : source.getJobId());
+            byteBuf.writeInt(source == null ? shuffleId : source.getShuffleId());
+            return byteBuf;
+        }
+
+        /**
+         * 在io线程中登记接收者并发送, 保证接收者的顺序与请求的发送顺序一致
+         */
+        private void send(ByteBuf byteBuf, ResponseListener listener)
+        {
+            ctx.executor().execute(() -> {
+                listeners.add(listener);
+                if (cause != null || !ctx.channel().isActive()) {
+                    byteBuf.release();
+                    failed(cause != null ? cause : new IOException("shuffle service connection closed"));
+                    return;
+                }
+                ctx.writeAndFlush(byteBuf).addListener(future -> {
+                    if (!future.isSuccess()) {
+                        failed(future.cause());
+                    }
+                });
+            });
         }
 
         @Override
         public void close()
         {
+            closed = true;
             ctx.close();
         }
     }
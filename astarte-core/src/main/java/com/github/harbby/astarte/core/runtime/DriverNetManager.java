@@ -17,7 +17,6 @@ package com.github.harbby.astarte.core.runtime;
 
 import com.github.harbby.astarte.core.api.AstarteConf;
 import com.github.harbby.astarte.core.api.Constant;
-import com.github.harbby.astarte.core.api.Task;
 import com.github.harbby.gadtry.base.Serializables;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
@@ -34,14 +33,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.UncheckedIOException;
 import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.github.harbby.gadtry.base.MoreObjects.checkState;
 
@@ -52,16 +59,32 @@ public class DriverNetManager
     private ChannelFuture future;
 
     private final ConcurrentMap<SocketAddress, DriverNetManagerHandler> executorHandlers = new ConcurrentHashMap<>();
-    private final BlockingQueue<TaskEvent> queue = new LinkedBlockingQueue<>(65536);
+    //每个运行中job独立的事件队列, 多个job可以同时运行
+    private final ConcurrentMap<Integer, BlockingQueue<Event>> jobQueues = new ConcurrentHashMap<>();
     private final int executorNum;
+    private final TaskSlotScheduler taskScheduler;
+    private final ScheduledExecutorService scheduleTimer;
+    private final long heartbeatTimeoutMs;
+    private final MapOutputTracker mapOutputTracker;
 
     //todo: read conf
     private final int port;
 
-    public DriverNetManager(AstarteConf astarteConf, int executorNum)
+    public DriverNetManager(AstarteConf astarteConf, int executorNum, MapOutputTracker mapOutputTracker)
     {
-        this.port = astarteConf.getInt(Constant.DRIVER_SCHEDULER_PORT, 7079);
+        this.mapOutputTracker = mapOutputTracker;
+        this.port = astarteConf.getInt(Constant.DRIVER_SCHEDULER_PORT, Constant.DEFAULT_DRIVER_SCHEDULER_PORT);
         this.executorNum = executorNum;
+        long localityWaitMs = astarteConf.getLong(Constant.SCHEDULER_LOCALITY_WAIT, Constant.DEFAULT_SCHEDULER_LOCALITY_WAIT);
+        this.heartbeatTimeoutMs = astarteConf.getLong(Constant.EXECUTOR_HEARTBEAT_TIMEOUT, Constant.DEFAULT_EXECUTOR_HEARTBEAT_TIMEOUT);
+        TaskSlotScheduler.SchedulingMode schedulingMode = TaskSlotScheduler.SchedulingMode.valueOf(
+                astarteConf.getString(Constant.SCHEDULER_MODE, TaskSlotScheduler.SchedulingMode.FIFO.name()).toUpperCase());
+        this.taskScheduler = new TaskSlotScheduler(schedulingMode, localityWaitMs, this::dispatchTask);
+        this.scheduleTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "astarte-task-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public void start()
@@ -85,6 +108,16 @@ public class DriverNetManager
                     }
                 });
         this.future = serverBootstrap.bind(port);
+        //延迟调度超时后需要主动触发一次调度, 同时检查executor心跳
+        scheduleTimer.scheduleWithFixedDelay(() -> {
+            try {
+                checkHeartbeat();
+                taskScheduler.schedule();
+            }
+            catch (Exception e) {
+                logger.error("task scheduler timer failed", e);
+            }
+        }, 100, 100, TimeUnit.MILLISECONDS);
         logger.info("started... driver manager service port is {}", port);
         //future.channel().closeFuture().sync();
     }
@@ -101,32 +134,177 @@ public class DriverNetManager
 
     public void stop()
     {
+        scheduleTimer.shutdownNow();
         future.channel().close();
     }
 
-    public TaskEvent awaitTaskEvent()
+    /**
+     * job开始前注册事件队列, 之后该job的task事件和executor丢失事件都投递到这个队列
+     */
+    public void registerJob(int jobId)
+    {
+        BlockingQueue<Event> old = jobQueues.put(jobId, new LinkedBlockingQueue<>(65536));
+        checkState(old == null, "job " + jobId + " already registered");
+    }
+
+    /**
+     * 注销job的事件队列, 并通知所有executor释放该job的shuffle输出索引
+     */
+    public void jobFinished(int jobId)
+    {
+        jobQueues.remove(jobId);
+        for (DriverNetManagerHandler handler : executorHandlers.values()) {
+            handler.writeObject(new JobFinishedEvent(jobId));
+        }
+    }
+
+    /**
+     * 等待该job的task结束或executor丢失事件
+     */
+    public Event awaitEvent(int jobId)
+            throws InterruptedException
+    {
+        return getJobQueue(jobId).take();
+    }
+
+    /**
+     * 超时没有事件时返回null
+     */
+    public Event awaitEvent(int jobId, long timeout, TimeUnit unit)
             throws InterruptedException
     {
-        return queue.take();
+        return getJobQueue(jobId).poll(timeout, unit);
     }
 
-    public void initState()
+    private BlockingQueue<Event> getJobQueue(int jobId)
     {
-        queue.clear();
+        BlockingQueue<Event> queue = jobQueues.get(jobId);
+        checkState(queue != null, "job " + jobId + " not registered");
+        return queue;
     }
 
-    public void submitTask(Task<?> task)
+    public Set<SocketAddress> getShuffleServices()
     {
-        task.getStage().setShuffleServices(new HashSet<>(executorHandlers.keySet()));
-        //todo: 这里应按优化调度策略进行task调度
-        executorHandlers.values().stream().findAny().get().submitTask(task);
+        return new HashSet<>(executorHandlers.keySet());
+    }
+
+    private void dispatchTask(SocketAddress executor, TaskDescriptor task)
+    {
+        DriverNetManagerHandler handler = executorHandlers.get(executor);
+        try {
+            checkState(handler != null, "executor " + executor + " not found");
+            handler.submitTask(task);
+        }
+        catch (Exception e) {
+            //task仍记录在该executor上, executor丢失时会作为丢失的task重新调度
+            logger.error("dispatch task {} to executor {} failed", task, executor, e);
+        }
+    }
+
+    private void checkHeartbeat()
+    {
+        long now = System.currentTimeMillis();
+        for (DriverNetManagerHandler handler : executorHandlers.values()) {
+            if (now - handler.lastHeartbeat > heartbeatTimeoutMs) {
+                executorLost(handler.socketAddress, "no heartbeat for " + (now - handler.lastHeartbeat) + "ms");
+            }
+        }
+    }
+
+    /**
+     * 移除丢失的executor, 并通知调度器重新调度其上运行的task和丢失的shuffle输出
+     */
+    private synchronized void executorLost(SocketAddress executor, String reason)
+    {
+        //先移除槽位再移除连接, 保证不会再有task下发到该executor
+        List<TaskSlotScheduler.RunningTask> lostTasks = taskScheduler.removeExecutor(executor);
+        DriverNetManagerHandler handler = executorHandlers.remove(executor);
+        if (handler == null) {
+            return;
+        }
+        logger.error("executor {} lost, reason: {}, running tasks {}", executor, reason, lostTasks.size());
+        handler.executorChannel.close();
+        //没有运行中的job时也要清理, 之后的job不能再复用该executor上的shuffle输出
+        mapOutputTracker.removeExecutor(executor);
+        //每个运行中的job都需要检查丢失的shuffle输出, 只投递属于该job的丢失task
+        jobQueues.forEach((jobId, queue) -> queue.offer(new ExecutorEvent.ExecutorLostEvent(executor, lostTasks.stream()
+                .map(TaskSlotScheduler.RunningTask::getTask)
+                .filter(task -> task.getJobId() == jobId)
+                .collect(Collectors.toList()))));
+    }
+
+    /**
+     * task先进入等待队列, 有空闲槽位时按数据本地性和负载下发到executor
+     *
+     * @param preferredExecutors 按优先级排列的优先executor, 为空表示没有本地性要求
+     */
+    public void submitTask(TaskDescriptor task, Collection<SocketAddress> preferredExecutors)
+    {
+        submitTask(task, preferredExecutors, Collections.emptySet());
+    }
+
+    /**
+     * @param excludedExecutors 不允许运行该task的executor
+     */
+    public void submitTask(TaskDescriptor task, Collection<SocketAddress> preferredExecutors, Set<SocketAddress> excludedExecutors)
+    {
+        taskScheduler.submit(task, preferredExecutors, excludedExecutors);
+        taskScheduler.schedule();
+    }
+
+    /**
+     * 停止该task除exceptAttempt以外的attempt, 并通知运行这些attempt的executor
+     */
+    public void killTask(int jobId, int stageId, int taskId, int exceptAttempt)
+    {
+        for (TaskSlotScheduler.RunningTask runningTask : taskScheduler.killTask(jobId, stageId, taskId, exceptAttempt)) {
+            TaskDescriptor task = runningTask.getTask();
+            logger.info("kill task {} on executor {}", task, runningTask.getExecutor());
+            DriverNetManagerHandler handler = executorHandlers.get(runningTask.getExecutor());
+            if (handler != null) {
+                handler.writeObject(new KillTaskEvent(jobId, stageId, taskId, task.getAttempt()));
+            }
+        }
+        taskScheduler.schedule();
+    }
+
+    List<TaskSlotScheduler.RunningTask> getRunningTasks(int jobId, int stageId)
+    {
+        return taskScheduler.getRunningTasks(jobId, stageId);
+    }
+
+    /**
+     * 丢弃该job还未下发的task
+     */
+    public void cancelPendingTasks(int jobId)
+    {
+        int canceled = taskScheduler.cancelPendingTasks(jobId);
+        if (canceled > 0) {
+            logger.info("job {} canceled {} pending tasks", jobId, canceled);
+        }
+    }
+
+    List<TaskSlotScheduler.ExecutorUtilization> getExecutorUtilization()
+    {
+        return taskScheduler.getExecutorUtilization();
+    }
+
+    /**
+     * 通知所有executor释放该广播变量的缓存
+     */
+    public void destroyBroadcast(long id)
+    {
+        for (DriverNetManagerHandler handler : executorHandlers.values()) {
+            handler.writeObject(new BroadcastEvent.Destroy(id));
+        }
     }
 
     private class DriverNetManagerHandler
             extends LengthFieldBasedFrameDecoder
     {
         private ChannelHandlerContext executorChannel;
-        private SocketAddress socketAddress;
+        private volatile SocketAddress socketAddress;
+        private volatile long lastHeartbeat = System.currentTimeMillis();
 
         public DriverNetManagerHandler()
         {
@@ -140,6 +318,16 @@ public class DriverNetManager
             this.executorChannel = ctx;
         }
 
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx)
+                throws Exception
+        {
+            if (socketAddress != null) {
+                executorLost(socketAddress, "connection closed");
+            }
+            super.channelInactive(ctx);
+        }
+
         @Override
         protected Object decode(ChannelHandlerContext ctx, ByteBuf in)
                 throws Exception
@@ -153,14 +341,32 @@ public class DriverNetManager
             in.readBytes(bytes);
             ReferenceCountUtil.release(in);
             Event event = Serializables.byteToObject(bytes);
-            if (event instanceof ExecutorEvent.ExecutorInitSuccessEvent) {
-                SocketAddress shuffleService = ((ExecutorEvent.ExecutorInitSuccessEvent) event).getShuffleServiceAddress();
-                logger.info("executor {} register succeed, shuffle service bind {}", ctx.channel().remoteAddress(), shuffleService);
-                executorHandlers.put(shuffleService, this);
+            this.lastHeartbeat = System.currentTimeMillis();
+            if (event instanceof ExecutorEvent.HeartbeatEvent) {
+                return event;
+            }
+            else if (event instanceof ExecutorEvent.ExecutorInitSuccessEvent) {
+                ExecutorEvent.ExecutorInitSuccessEvent initEvent = (ExecutorEvent.ExecutorInitSuccessEvent) event;
+                this.socketAddress = initEvent.getShuffleServiceAddress();
+                logger.info("executor {} register succeed, shuffle service bind {}, vcores {}", ctx.channel().remoteAddress(),
+                        socketAddress, initEvent.getVcores());
+                executorHandlers.put(socketAddress, this);
+                taskScheduler.addExecutor(socketAddress, initEvent.getVcores());
+                taskScheduler.schedule();
+            }
+            else if (event instanceof BroadcastEvent.Fetch) {
+                sendBroadcast(((BroadcastEvent.Fetch) event).getBroadcastId());
             }
             else if (event instanceof TaskEvent) {
                 logger.info("task running end {}", event);
-                queue.offer((TaskEvent) event);
+                TaskEvent taskEvent = (TaskEvent) event;
+                taskScheduler.taskFinished(socketAddress, taskEvent);
+                //已结束job的迟到事件(如被停止的attempt)直接丢弃
+                BlockingQueue<Event> queue = jobQueues.get(taskEvent.getJobId());
+                if (queue != null) {
+                    queue.offer(event);
+                }
+                taskScheduler.schedule();
             }
             else {
                 throw new UnsupportedOperationException();
@@ -175,13 +381,31 @@ public class DriverNetManager
             logger.warn("unknownIO", cause);
         }
 
-        public void submitTask(Task<?> task)
+        public void submitTask(TaskDescriptor task)
+        {
+            writeObject(task);
+        }
+
+        private void sendBroadcast(long id)
+        {
+            byte[][] blocks = BroadcastManager.getDriverBlocks(id);
+            if (blocks == null) {
+                logger.warn("executor {} fetch not exists broadcast {}", executorChannel.channel().remoteAddress(), id);
+                writeObject(new BroadcastEvent.Block(id, 0, 0, null));
+                return;
+            }
+            for (int i = 0; i < blocks.length; i++) {
+                writeObject(new BroadcastEvent.Block(id, i, blocks.length, blocks[i]));
+            }
+        }
+
+        private void writeObject(Serializable obj)
         {
             checkState(!executorChannel.isRemoved());
             ByteBuf buffer = executorChannel.alloc().buffer();
             byte[] bytes;
             try {
-                bytes = Serializables.serialize(task);
+                bytes = Serializables.serialize(obj);
                 buffer.writeInt(bytes.length).writeBytes(bytes);
                 executorChannel.writeAndFlush(buffer);
             }
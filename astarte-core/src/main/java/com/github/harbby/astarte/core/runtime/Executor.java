@@ -16,14 +16,18 @@
 package com.github.harbby.astarte.core.runtime;
 
 import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.Stage;
 import com.github.harbby.astarte.core.api.Task;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
 import com.github.harbby.gadtry.base.Throwables;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.SocketAddress;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -36,20 +40,23 @@ public class Executor
     private static final Logger logger = LoggerFactory.getLogger(Executor.class);
     private final String executorUUID = UUID.randomUUID().toString();
     private final ExecutorService pool;
-    private final ConcurrentMap<Integer, TaskRunner> runningTasks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TaskRunner> runningTasks = new ConcurrentHashMap<>();
     private final ExecutorBackend executorBackend;
     private final ShuffleManagerService shuffleService;
+    private final MemoryManager memoryManager;
+    private final SocketAddress shuffleServiceAddress;
 
-    public Executor(int vcores)
+    public Executor(int vcores, AstarteConf conf)
             throws Exception
     {
         pool = Executors.newFixedThreadPool(vcores);
+        this.memoryManager = MemoryManager.create(conf);
 
         this.shuffleService = new ShuffleManagerService(executorUUID);
-        SocketAddress shuffleServiceAddress = shuffleService.start();
+        this.shuffleServiceAddress = shuffleService.start();
 
-        this.executorBackend = new ExecutorBackend(this);
-        executorBackend.start(shuffleServiceAddress);
+        this.executorBackend = new ExecutorBackend(this, conf.getInt(Constant.DRIVER_SCHEDULER_PORT, Constant.DEFAULT_DRIVER_SCHEDULER_PORT));
+        executorBackend.start(shuffleServiceAddress, vcores);
     }
 
     public void join()
@@ -58,29 +65,57 @@ public class Executor
         shuffleService.join();
     }
 
-    public void runTask(Task<?> task)
+    public void runTask(TaskDescriptor taskDescriptor)
     {
-        shuffleService.updateCurrentJobId(task.getStage().getJobId());
+        String taskKey = taskKey(taskDescriptor.getJobId(), taskDescriptor.getStageId(), taskDescriptor.getTaskId(), taskDescriptor.getAttempt());
+        TaskRunner taskRunner = new TaskRunner(taskDescriptor);
+        runningTasks.put(taskKey, taskRunner);
         Future<?> future = pool.submit(() -> {
+            if (!taskRunner.start()) {
+                //开始运行前已被停止, 由killTask()汇报
+                return;
+            }
             try {
-                Thread.currentThread().setName("ashtarte-task-" + task.getStage().getStageId() + "_" + task.getTaskId());
-                logger.info("starting... task {}", task);
+                Thread.currentThread().setName("ashtarte-task-" + taskDescriptor.getStageId() + "_" + taskDescriptor.getTaskId());
+                logger.info("starting... task {}", taskDescriptor);
+                long startTime = System.currentTimeMillis();
                 TaskEvent event;
-                Stage stage = task.getStage();
+                TaskMemoryManager taskMemoryManager = new TaskMemoryManager(memoryManager);
+                TaskContext taskContext = null;
                 try {
-                    Set<SocketAddress> shuffleServices = stage.getShuffleServices();
-                    ShuffleClient shuffleClient = ShuffleClient.getClusterShuffleClient(shuffleServices);
-                    TaskContext taskContext = TaskContext.of(stage.getJobId(), stage.getStageId(), stage.getDeps(), shuffleClient, executorUUID);
+                    Task<?> task = taskDescriptor.createTask();
+                    Stage stage = task.getStage();
+                    ShuffleClient shuffleClient = ShuffleClient.getClusterShuffleClient(stage);
+                    taskContext = TaskContext.of(stage.getJobId(), stage.getStageId(), taskDescriptor.getAttempt(), stage.getDeps(),
+                            shuffleClient, executorUUID, taskMemoryManager);
                     Object result = task.runTask(taskContext);
-                    event = TaskEvent.success(task.getTaskId(), result);
+                    taskContext.getTaskMetrics().setExecutorRunTime(System.currentTimeMillis() - startTime);
+                    event = TaskEvent.success(taskDescriptor, shuffleServiceAddress, result, taskContext.getTaskMetrics());
+                    logger.info("task {} metrics {}", taskDescriptor, taskContext.getTaskMetrics());
                 }
                 catch (Exception e) {
-                    logger.error("task {} 执行失败", task, e);
+                    logger.error("task {} 执行失败", taskDescriptor, e);
                     String errorMsg = Throwables.getStackTraceAsString(e);
-                    event = TaskEvent.failed(stage.getJobId(), errorMsg);
+                    ShuffleFetchFailedException fetchFailed = findFetchFailed(e);
+                    event = fetchFailed == null ? TaskEvent.failed(taskDescriptor, shuffleServiceAddress, errorMsg) :
+                            TaskEvent.fetchFailed(taskDescriptor, shuffleServiceAddress, fetchFailed.getShuffleService(), errorMsg);
+                }
+                finally {
+                    if (taskContext != null) {
+                        taskContext.markTaskCompleted();
+                    }
+                    long leakedMemory = taskMemoryManager.cleanUpAllAllocatedMemory();
+                    if (leakedMemory > 0) {
+                        logger.warn("task {} not released {} bytes execution memory", taskDescriptor, leakedMemory);
+                    }
+                }
+                if (taskRunner.isKilled()) {
+                    //driver收到被停止attempt的结束事件后才释放槽位, 结果不再需要
+                    logger.info("task {} was killed, discard result", taskDescriptor);
+                    event = TaskEvent.failed(taskDescriptor, shuffleServiceAddress, "task killed");
                 }
                 executorBackend.updateState(event);
-                logger.info("task {} success", task);
+                logger.info("task {} success", taskDescriptor);
                 Thread.currentThread().setName(Thread.currentThread().getName() + "_done");
             }
             catch (Exception e) {
@@ -88,21 +123,93 @@ public class Executor
                 logger.error("task failed", e);
             }
             finally {
-                runningTasks.remove(task.getTaskId());
+                runningTasks.remove(taskKey);
             }
         });
-        runningTasks.put(task.getTaskId(), new TaskRunner(task, future));
+        taskRunner.setFuture(future);
+    }
+
+    public void killTask(KillTaskEvent event)
+    {
+        TaskRunner taskRunner = runningTasks.remove(taskKey(event.getJobId(), event.getStageId(), event.getTaskId(), event.getAttempt()));
+        if (taskRunner != null) {
+            logger.info("killing... task {}", taskRunner.getTask());
+            if (taskRunner.kill()) {
+                try {
+                    executorBackend.updateState(TaskEvent.failed(taskRunner.getTask(), shuffleServiceAddress, "task killed"));
+                }
+                catch (IOException e) {
+                    logger.error("report killed task {} failed", taskRunner.getTask(), e);
+                }
+            }
+        }
+    }
+
+    public void jobFinished(int jobId)
+    {
+        shuffleService.jobFinished(jobId);
+    }
+
+    private static ShuffleFetchFailedException findFetchFailed(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ShuffleFetchFailedException) {
+                return (ShuffleFetchFailedException) cause;
+            }
+        }
+        return null;
+    }
+
+    private static String taskKey(int jobId, int stageId, int taskId, int attempt)
+    {
+        return jobId + "_" + stageId + "_" + taskId + "_" + attempt;
     }
 
     public static class TaskRunner
     {
-        private final Task<?> task;
-        private final Future<?> future;
+        private final TaskDescriptor task;
+        private volatile Future<?> future;
+        private volatile boolean killed;
+        private boolean started;
 
-        public TaskRunner(Task<?> task, Future<?> future)
+        public TaskRunner(TaskDescriptor task)
         {
             this.task = task;
+        }
+
+        private void setFuture(Future<?> future)
+        {
             this.future = future;
+            if (killed) {
+                future.cancel(true);
+            }
+        }
+
+        private synchronized boolean start()
+        {
+            if (killed) {
+                return false;
+            }
+            started = true;
+            return true;
+        }
+
+        /**
+         * 返回true表示task还没有开始运行, 需要由调用方汇报结束事件
+         */
+        private synchronized boolean kill()
+        {
+            this.killed = true;
+            Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(true);
+            }
+            return !started;
+        }
+
+        public boolean isKilled()
+        {
+            return killed;
         }
 
         public Future<?> getFuture()
@@ -110,7 +217,7 @@ public class Executor
             return future;
         }
 
-        public Task<?> getTask()
+        public TaskDescriptor getTask()
         {
             return task;
         }
@@ -15,9 +15,8 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
-import com.github.harbby.astarte.core.MapTaskState;
-import com.github.harbby.astarte.core.api.Task;
 import com.github.harbby.gadtry.base.Serializables;
+import com.github.harbby.gadtry.base.Throwables;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
@@ -30,26 +29,40 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * 发送task结束信号给driver
- * 需要启用发送心跳能力
+ * 发送task结束信号给driver, 并定时发送心跳
  */
 public class ExecutorBackend
 
 {
+    private static final Logger logger = LoggerFactory.getLogger(ExecutorBackend.class);
+    private static final long HEARTBEAT_INTERVAL_MS = 1000;
     private final Executor executor;
+    private final int driverPort;
+    private final ScheduledExecutorService heartbeatTimer;
     private Channel channel;
 
-    public ExecutorBackend(Executor executor)
+    public ExecutorBackend(Executor executor, int driverPort)
     {
         this.executor = executor;
+        this.driverPort = driverPort;
+        this.heartbeatTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "astarte-executor-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    public void start(SocketAddress shuffleServiceAddress)
+    public void start(SocketAddress shuffleServiceAddress, int vcores)
             throws InterruptedException
     {
         final ExecutorBackendHandler handler = new ExecutorBackendHandler();
@@ -69,11 +82,30 @@ public class ExecutorBackend
                         ch.pipeline().addLast(handler);
                     }
                 });
-        bootstrap.connect("localhost", 7079)
+        bootstrap.connect("localhost", driverPort)
                 .addListener((ChannelFutureListener) future -> {
                     this.channel = future.channel();
-                    writeEvent(channel, new ExecutorEvent.ExecutorInitSuccessEvent(shuffleServiceAddress));
+                    BroadcastManager.setFetchRequester(id -> {
+                        try {
+                            updateState(new BroadcastEvent.Fetch(id));
+                        }
+                        catch (IOException e) {
+                            throw Throwables.throwsThrowable(e);
+                        }
+                    });
+                    writeEvent(channel, new ExecutorEvent.ExecutorInitSuccessEvent(shuffleServiceAddress, vcores));
                 }).sync();
+        heartbeatTimer.scheduleWithFixedDelay(this::sendHeartbeat, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendHeartbeat()
+    {
+        try {
+            updateState(new ExecutorEvent.HeartbeatEvent());
+        }
+        catch (Exception e) {
+            logger.warn("send heartbeat to driver failed", e);
+        }
     }
 
     private class ExecutorBackendHandler
@@ -98,7 +130,24 @@ public class ExecutorBackend
             in.readBytes(bytes);
             ReferenceCountUtil.release(in);
 
-            Task<MapTaskState> task = Serializables.byteToObject(bytes);
+            Object obj = Serializables.byteToObject(bytes);
+            if (obj instanceof BroadcastEvent.Block) {
+                BroadcastManager.putBlock((BroadcastEvent.Block) obj);
+                return obj;
+            }
+            else if (obj instanceof BroadcastEvent.Destroy) {
+                BroadcastManager.remove(((BroadcastEvent.Destroy) obj).getBroadcastId());
+                return obj;
+            }
+            else if (obj instanceof KillTaskEvent) {
+                executor.killTask((KillTaskEvent) obj);
+                return obj;
+            }
+            else if (obj instanceof JobFinishedEvent) {
+                executor.jobFinished(((JobFinishedEvent) obj).getJobId());
+                return obj;
+            }
+            TaskDescriptor task = (TaskDescriptor) obj;
             executor.runTask(task);
             return task;
         }
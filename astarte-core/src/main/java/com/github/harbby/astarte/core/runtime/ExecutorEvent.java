@@ -16,6 +16,7 @@
 package com.github.harbby.astarte.core.runtime;
 
 import java.net.SocketAddress;
+import java.util.List;
 
 public interface ExecutorEvent
         extends Event
@@ -24,10 +25,17 @@ public interface ExecutorEvent
             implements ExecutorEvent
     {
         private final SocketAddress shuffleServiceAddress;
+        private final int vcores;
 
-        public ExecutorInitSuccessEvent(SocketAddress shuffleServiceAddress)
+        public ExecutorInitSuccessEvent(SocketAddress shuffleServiceAddress, int vcores)
         {
             this.shuffleServiceAddress = shuffleServiceAddress;
+            this.vcores = vcores;
+        }
+
+        public int getVcores()
+        {
+            return vcores;
         }
 
         public SocketAddress getShuffleServiceAddress()
@@ -35,4 +43,44 @@ public interface ExecutorEvent
             return shuffleServiceAddress;
         }
     }
+
+    /**
+     * executor定时发送的心跳
+     */
+    public static class HeartbeatEvent
+            implements ExecutorEvent
+    {
+    }
+
+    /**
+     * driver检测到executor丢失(心跳超时或连接断开), 仅在driver内部传递
+     */
+    public static class ExecutorLostEvent
+            implements ExecutorEvent
+    {
+        private final SocketAddress executor;
+        private final List<TaskDescriptor> lostTasks;
+
+        public ExecutorLostEvent(SocketAddress executor, List<TaskDescriptor> lostTasks)
+        {
+            this.executor = executor;
+            this.lostTasks = lostTasks;
+        }
+
+        /**
+         * 丢失的executor, 用其shuffle service地址标识
+         */
+        public SocketAddress getExecutor()
+        {
+            return executor;
+        }
+
+        /**
+         * 丢失时仍在该executor上运行的task
+         */
+        public List<TaskDescriptor> getLostTasks()
+        {
+            return lostTasks;
+        }
+    }
 }
@@ -15,23 +15,35 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
+import com.github.harbby.astarte.core.api.AstarteConf;
+
 import java.util.Optional;
 
 public abstract class ExecutorManager
         implements Service
 {
     private static Factory factory;
+    private final AstarteConf conf;
     private final int vcores;
     private final int executorMem;
     private final int executorNum;
 
-    protected ExecutorManager(int vcores, int executorMem, int executorNum)
+    protected ExecutorManager(AstarteConf conf, int vcores, int executorMem, int executorNum)
     {
+        this.conf = conf;
         this.vcores = vcores;
         this.executorMem = executorMem;
         this.executorNum = executorNum;
     }
 
+    /**
+     * 任务的配置, 需要传给每个executor
+     */
+    public AstarteConf getConf()
+    {
+        return conf;
+    }
+
     public int getExecutorNum()
     {
         return executorNum;
@@ -47,10 +59,10 @@ public abstract class ExecutorManager
         return vcores;
     }
 
-    static ExecutorManager createExecutorManager(int vcores, int memMb, int executorNum)
+    static ExecutorManager createExecutorManager(AstarteConf conf, int vcores, int memMb, int executorNum)
     {
         return Optional.ofNullable(factory).orElse(ForkVmExecutorManager::new)
-                .createExecutorManager(vcores, memMb, executorNum);
+                .createExecutorManager(conf, vcores, memMb, executorNum);
     }
 
     public static void setFactory(Factory factory)
@@ -60,6 +72,6 @@ public abstract class ExecutorManager
 
     public static interface Factory
     {
-        public ExecutorManager createExecutorManager(int vcores, int memMb, int executorNum);
+        public ExecutorManager createExecutorManager(AstarteConf conf, int vcores, int memMb, int executorNum);
     }
 }
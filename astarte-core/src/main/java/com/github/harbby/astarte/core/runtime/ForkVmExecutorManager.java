@@ -15,6 +15,7 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
+import com.github.harbby.astarte.core.api.AstarteConf;
 import com.github.harbby.gadtry.jvm.JVMLauncher;
 import com.github.harbby.gadtry.jvm.JVMLaunchers;
 import com.github.harbby.gadtry.jvm.VmFuture;
@@ -33,9 +34,9 @@ public class ForkVmExecutorManager
     private List<VmFuture<Integer>> vms;
     private final ExecutorService pool;
 
-    public ForkVmExecutorManager(int vcores, int memMb, int executorNum)
+    public ForkVmExecutorManager(AstarteConf conf, int vcores, int memMb, int executorNum)
     {
-        super(vcores, memMb, executorNum);
+        super(conf, vcores, memMb, executorNum);
         this.vcores = vcores;
         this.memMb = memMb;
         this.executorNum = executorNum;
@@ -54,7 +55,7 @@ public class ForkVmExecutorManager
                     //.addVmOps("-Dio.netty.leakDetectionLevel=advanced")
                     .setXmx(memMb + "m")
                     .build();
-            VmFuture<Integer> vmFuture = runJvm(launcher, pool, vcores, executorNum);
+            VmFuture<Integer> vmFuture = runJvm(launcher, pool, getConf(), vcores, executorNum);
             vms.add(vmFuture);
         }
         Runtime.getRuntime().addShutdownHook(new Thread(() -> vms.forEach(vm -> vm.cancel())));
@@ -62,11 +63,12 @@ public class ForkVmExecutorManager
 
     private static VmFuture<Integer> runJvm(JVMLauncher<Integer> launcher,
             ExecutorService pool,
+            AstarteConf conf,
             int vcores, int executorNum)
     {
         return launcher.startAsync(pool, () -> {
             System.out.println("starting... TaskExecutor, vcores[" + vcores + "] mem[" + executorNum + "MB]");
-            TaskExecutor.main(new String[0]);
+            TaskExecutor.start(vcores, conf);
             return 0;
         });
     }
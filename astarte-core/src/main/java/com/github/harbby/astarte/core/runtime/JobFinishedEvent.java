@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * driver通知executor该job已结束, executor释放该job缓存的shuffle输出索引
+ */
+public class JobFinishedEvent
+        implements Event
+{
+    private final int jobId;
+
+    public JobFinishedEvent(int jobId)
+    {
+        this.jobId = jobId;
+    }
+
+    public int getJobId()
+    {
+        return jobId;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("jobId", jobId)
+                .toString();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * driver通知executor停止一个task attempt, 例如推测执行中已有其他attempt先成功
+ */
+public class KillTaskEvent
+        implements Event
+{
+    private final int jobId;
+    private final int stageId;
+    private final int taskId;
+    private final int attempt;
+
+    public KillTaskEvent(int jobId, int stageId, int taskId, int attempt)
+    {
+        this.jobId = jobId;
+        this.stageId = stageId;
+        this.taskId = taskId;
+        this.attempt = attempt;
+    }
+
+    public int getJobId()
+    {
+        return jobId;
+    }
+
+    public int getStageId()
+    {
+        return stageId;
+    }
+
+    public int getTaskId()
+    {
+        return taskId;
+    }
+
+    public int getAttempt()
+    {
+        return attempt;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("jobId", jobId)
+                .add("stageId", stageId)
+                .add("taskId", taskId)
+                .add("attempt", attempt)
+                .toString();
+    }
+}
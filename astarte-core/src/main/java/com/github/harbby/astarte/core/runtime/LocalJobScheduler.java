@@ -24,22 +24,29 @@ import com.github.harbby.astarte.core.ShuffleMapTask;
 import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.AstarteConf;
 import com.github.harbby.astarte.core.api.AstarteException;
+import com.github.harbby.astarte.core.api.Constant;
 import com.github.harbby.astarte.core.api.Stage;
 import com.github.harbby.astarte.core.api.Task;
 import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
 import com.github.harbby.astarte.core.utils.SerializableObj;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -51,12 +58,30 @@ public class LocalJobScheduler
     private static final Logger logger = LoggerFactory.getLogger(LocalJobScheduler.class);
     private final AstarteConf astarteConf;
     private final int parallelism;
+    private final int maxTaskAttempts;
+    private final MemoryManager memoryManager;
+    //所有job共用一个shuffle目录, 之后的job可以复用已物化的shuffle输出
+    private final String localExecutorUUID = UUID.randomUUID().toString();
+    private final ShuffleManagerService shuffleManagerService = new ShuffleManagerService(localExecutorUUID);
+    private final MapOutputTracker mapOutputTracker = new MapOutputTracker();
+    private final PartitionCoalescer partitionCoalescer;
+    private final SkewJoinSplitter skewJoinSplitter;
 
     public LocalJobScheduler(AstarteConf astarteConf, int parallelism)
     {
         this.astarteConf = astarteConf;
         this.parallelism = parallelism;
         checkState(parallelism > 0, "local mode parallelism must > 1");
+        this.maxTaskAttempts = astarteConf.getInt(Constant.TASK_MAX_ATTEMPTS, Constant.DEFAULT_TASK_MAX_ATTEMPTS);
+        this.memoryManager = MemoryManager.create(astarteConf);
+        this.partitionCoalescer = new PartitionCoalescer(astarteConf, parallelism);
+        this.skewJoinSplitter = new SkewJoinSplitter(astarteConf);
+    }
+
+    @Override
+    public MapOutputTracker getMapOutputTracker()
+    {
+        return mapOutputTracker;
     }
 
     @Override
@@ -69,48 +94,142 @@ public class LocalJobScheduler
         logger.info("starting... job: {}", jobId);
         //---------------------
         final ExecutorService executors = Executors.newFixedThreadPool(parallelism);
-        String localExecutorUUID = UUID.randomUUID().toString();
-        ShuffleManagerService shuffleManagerService = new ShuffleManagerService(localExecutorUUID);
-        shuffleManagerService.updateCurrentJobId(jobId);
-
+        //Map<被跳过的stageId, 复用的之前job的shuffle输出>
+        Map<Integer, MapOutputTracker.ShuffleOutput> reusedStages = new HashMap<>();
+        //Map<shuffleMapStageId, 每个map task的输出统计>, 下游stage据此合并小的reduce分区
+        Map<Integer, MapOutputTracker.MapOutput[]> mapOutputs = new ConcurrentHashMap<>();
+        StageDag stageDag = new StageDag(jobStages, stageMap);
+        Map<Integer, CompletableFuture<?>> stageFutures = new HashMap<>();
+        CompletableFuture<List<R>> resultFuture = null;
         try {
-            for (Stage stage : jobStages) {
-                int stageId = stage.getStageId();
-                SerializableObj<Stage> serializableStage = SerializableObj.of(stage);
-                Map<Integer, Integer> deps = stageMap.getOrDefault(stage, Collections.emptyMap());
-                ShuffleClient shuffleClient = ShuffleClient.getLocalShuffleClient(shuffleManagerService);
-                TaskContext taskContext = TaskContext.of(jobId, stageId, deps, shuffleClient, localExecutorUUID);
-
-                if (stage instanceof ShuffleMapStage) {
-                    logger.info("starting... shuffleMapStage: {}, id {}", stage, stage.getStageId());
-                    Stream.of(stage.getPartitions())
-                            .map(partition -> {
-                                Task<MapTaskState> task = new ShuffleMapTask<>(serializableStage.getValue(), partition);
-                                return task;
-                            })
-                            .map(task -> CompletableFuture.runAsync(() -> task.runTask(taskContext), executors))
-                            .collect(Collectors.toList())
-                            .forEach(CompletableFuture::join);
-                }
-                else {
-                    //result stage ------
-                    checkState(stage instanceof ResultStage, "Unknown stage " + stage);
-                    logger.info("starting... ResultStage: {}, id {}", stage, stage.getStageId());
-                    return Stream.of(stage.getPartitions())
-                            .map(partition -> new ResultTask<>(serializableStage.getValue(), action, partition))
-                            .map(task -> CompletableFuture.supplyAsync(() -> task.runTask(taskContext), executors))
-                            .collect(Collectors.toList()).stream()
-                            .map(CompletableFuture::join)
-                            .collect(Collectors.toList());
+            //按拓扑顺序构建stage的future链, 父stage全部完成后才开始执行, 互不依赖的stage并发执行
+            for (List<Stage> readyStages = stageDag.nextReadyStages(); !readyStages.isEmpty(); readyStages = stageDag.nextReadyStages()) {
+                for (Stage stage : readyStages) {
+                    if (stage instanceof ShuffleMapStage && ((ShuffleMapStage) stage).isSkipped()) {
+                        MapOutputTracker.ShuffleOutput shuffleOutput = ((ShuffleMapStage) stage).getMaterializedOutput();
+                        logger.info("skip stage {}, reuse {}", stage.getStageId(), shuffleOutput);
+                        reusedStages.put(stage.getStageId(), shuffleOutput);
+                        mapOutputs.put(stage.getStageId(), shuffleOutput.getMapOutputs());
+                        stageFutures.put(stage.getStageId(), CompletableFuture.completedFuture(null));
+                        stageDag.stageFinished(stage.getStageId());
+                        continue;
+                    }
+                    for (int depStageId : stageMap.getOrDefault(stage, Collections.emptyMap()).values()) {
+                        MapOutputTracker.ShuffleOutput reused = reusedStages.get(depStageId);
+                        if (reused != null) {
+                            stage.setShuffleSource(depStageId, reused.getJobId(), reused.getShuffleId());
+                        }
+                    }
+                    CompletableFuture<Void> parents = CompletableFuture.allOf(stageDag.getParentStageIds(stage).stream()
+                            .map(stageFutures::get)
+                            .toArray(CompletableFuture<?>[]::new));
+                    if (stage instanceof ShuffleMapStage) {
+                        stageFutures.put(stage.getStageId(), parents.thenCompose(v -> runShuffleMapStage(jobId, stage, stageMap, mapOutputs, executors)));
+                    }
+                    else {
+                        checkState(stage instanceof ResultStage, "Unknown stage " + stage);
+                        resultFuture = parents.thenCompose(v -> runResultStage(jobId, stage, action, stageMap, mapOutputs, executors));
+                        stageFutures.put(stage.getStageId(), resultFuture);
+                    }
+                    stageDag.stageFinished(stage.getStageId());
                 }
             }
+            if (resultFuture == null) {
+                throw new UnsupportedOperationException("job " + jobId + " Not found ResultStage");
+            }
+            return resultFuture.join();
         }
         catch (CompletionException e) {
             throw new AstarteException("local job failed", e.fillInStackTrace());
         }
         finally {
             executors.shutdown();
+            shuffleManagerService.jobFinished(jobId);
+        }
+    }
+
+    /**
+     * 父stage已全部完成, 按map输出统计合并小的reduce分区, 拆分倾斜的join分区后执行map task.
+     * local模式的map输出都在本地, 完成后只需要登记shuffle来源和输出统计
+     */
+    private CompletableFuture<Void> runShuffleMapStage(int jobId,
+            Stage stage,
+            Map<Stage, Map<Integer, Integer>> stageMap,
+            Map<Integer, MapOutputTracker.MapOutput[]> mapOutputs,
+            ExecutorService executors)
+    {
+        int stageId = stage.getStageId();
+        Map<Integer, Integer> deps = stageMap.getOrDefault(stage, Collections.emptyMap());
+        partitionCoalescer.coalesce(stage, deps.values(), mapOutputs);
+        skewJoinSplitter.split(stage, deps, mapOutputs);
+        MapOutputTracker.MapOutput[] outputs = new MapOutputTracker.MapOutput[stage.getNumPartitions()];
+        SerializableObj<Stage> serializableStage = SerializableObj.of(stage);
+        ShuffleClient shuffleClient = ShuffleClient.getLocalShuffleClient(shuffleManagerService, stage);
+        logger.info("starting... shuffleMapStage: {}, id {}", stage, stage.getStageId());
+        return CompletableFuture.allOf(Stream.of(stage.getPartitions())
+                .map(partition -> CompletableFuture.runAsync(() -> {
+                    Supplier<Task<MapTaskState>> taskFactory = () -> new ShuffleMapTask<>(serializableStage.getValue(), partition);
+                    outputs[partition.getId()] = runTask(taskFactory, jobId, stageId, deps, shuffleClient, (mapTaskState, taskContext) ->
+                            new MapOutputTracker.MapOutput(null, taskContext.getAttemptId(), taskContext.getTaskMetrics().getShuffleWriteBytes(), mapTaskState));
+                }, executors))
+                .toArray(CompletableFuture<?>[]::new))
+                .thenRun(() -> {
+                    mapOutputs.put(stageId, outputs);
+                    mapOutputTracker.registerShuffle(stage.getFinalOperator().getId(), jobId, stageId, outputs);
+                });
+    }
+
+    private <E, R> CompletableFuture<List<R>> runResultStage(int jobId,
+            Stage stage,
+            Mapper<Iterator<E>, R> action,
+            Map<Stage, Map<Integer, Integer>> stageMap,
+            Map<Integer, MapOutputTracker.MapOutput[]> mapOutputs,
+            ExecutorService executors)
+    {
+        int stageId = stage.getStageId();
+        Map<Integer, Integer> deps = stageMap.getOrDefault(stage, Collections.emptyMap());
+        partitionCoalescer.coalesce(stage, deps.values(), mapOutputs);
+        skewJoinSplitter.split(stage, deps, mapOutputs);
+        SerializableObj<Stage> serializableStage = SerializableObj.of(stage);
+        ShuffleClient shuffleClient = ShuffleClient.getLocalShuffleClient(shuffleManagerService, stage);
+        logger.info("starting... ResultStage: {}, id {}", stage, stage.getStageId());
+        List<CompletableFuture<R>> futures = Stream.of(stage.getPartitions())
+                .map(partition -> CompletableFuture.supplyAsync(() -> {
+                    Supplier<Task<R>> taskFactory = () -> new ResultTask<>(serializableStage.getValue(), action, partition);
+                    return runTask(taskFactory, jobId, stageId, deps, shuffleClient, (result, taskContext) -> result);
+                }, executors))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> futures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     * 失败的task重新运行, 最多maxTaskAttempts次, 与cluster模式的重试次数一致.
+     * 每个attempt重新反序列化task并使用独立的TaskContext; 失败的map attempt不会生成index文件, 其输出不会被读取
+     */
+    private <T, R> R runTask(Supplier<Task<T>> taskFactory, int jobId, int stageId, Map<Integer, Integer> deps, ShuffleClient shuffleClient,
+            BiFunction<T, TaskContext, R> resultMapper)
+    {
+        for (int attempt = 0; ; attempt++) {
+            Task<T> task = taskFactory.get();
+            TaskContext taskContext = TaskContext.of(jobId, stageId, attempt, deps, shuffleClient, localExecutorUUID, new TaskMemoryManager(memoryManager));
+            try {
+                T result = task.runTask(taskContext);
+                logger.debug("task {} metrics {}", task, taskContext.getTaskMetrics());
+                return resultMapper.apply(result, taskContext);
+            }
+            catch (RuntimeException e) {
+                if (attempt + 1 >= maxTaskAttempts) {
+                    throw e;
+                }
+                logger.warn("stage {} task {} attempt {} failed, retrying", stageId, task.getTaskId(), attempt, e);
+            }
+            finally {
+                taskContext.markTaskCompleted();
+                taskContext.getTaskMemoryManager().cleanUpAllAllocatedMemory();
+            }
         }
-        throw new UnsupportedOperationException("job " + jobId + " Not found ResultStage");
     }
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.api.AstarteException;
+
+/**
+ * 被跳过的stage所复用的shuffle输出丢失, 当前job中没有该stage的上游无法重新计算, 需要重新生成job的stage划分
+ */
+public class MapOutputLostException
+        extends AstarteException
+{
+    private static final long serialVersionUID = -1L;
+
+    public MapOutputLostException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.MapTaskState;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * driver端记录已物化的shuffle输出, 按ShuffleMapOperator.getId()索引.
+ * 之后的job再次用到同一个ShuffleMapOperator时跳过该stage, 直接读取之前job的shuffle输出
+ */
+public class MapOutputTracker
+{
+    //Map<shuffleMapOperatorId, shuffle输出>
+    private final ConcurrentMap<Integer, ShuffleOutput> shuffleOutputs = new ConcurrentHashMap<>();
+
+    /**
+     * map stage全部完成后登记, 同一个算子重新计算后覆盖旧的输出
+     */
+    public void registerShuffle(int shuffleMapOperatorId, int jobId, int shuffleId, MapOutput[] mapOutputs)
+    {
+        shuffleOutputs.put(shuffleMapOperatorId, new ShuffleOutput(jobId, shuffleId, mapOutputs.clone()));
+    }
+
+    /**
+     * 返回null表示该算子的shuffle输出还未物化或已丢失
+     */
+    public ShuffleOutput getShuffleOutput(int shuffleMapOperatorId)
+    {
+        return shuffleOutputs.get(shuffleMapOperatorId);
+    }
+
+    /**
+     * executor丢失后其上的map输出不再可用, 移除包含这些输出的shuffle
+     */
+    public void removeExecutor(SocketAddress executor)
+    {
+        shuffleOutputs.values().removeIf(output -> Arrays.stream(output.mapOutputs)
+                .anyMatch(mapOutput -> Objects.equals(mapOutput.executor, executor)));
+    }
+
+    public int size()
+    {
+        return shuffleOutputs.size();
+    }
+
+    public static class ShuffleOutput
+    {
+        private final int jobId;
+        private final int shuffleId;
+        private final MapOutput[] mapOutputs;
+
+        private ShuffleOutput(int jobId, int shuffleId, MapOutput[] mapOutputs)
+        {
+            this.jobId = jobId;
+            this.shuffleId = shuffleId;
+            this.mapOutputs = mapOutputs;
+        }
+
+        /**
+         * 产生该shuffle输出的job, shuffle文件按(jobId, shuffleId)区分
+         */
+        public int getJobId()
+        {
+            return jobId;
+        }
+
+        public int getShuffleId()
+        {
+            return shuffleId;
+        }
+
+        public MapOutput[] getMapOutputs()
+        {
+            return mapOutputs.clone();
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("jobId", jobId)
+                    .add("shuffleId", shuffleId)
+                    .add("mapNum", mapOutputs.length)
+                    .toString();
+        }
+    }
+
+    /**
+     * 一个map task的输出位置, local模式下executor为null
+     */
+    public static class MapOutput
+    {
+        private final SocketAddress executor;
+        private final int attempt;
+        private final long bytes;
+        private final MapTaskState mapTaskState;
+
+        public MapOutput(SocketAddress executor, int attempt, long bytes)
+        {
+            this(executor, attempt, bytes, null);
+        }
+
+        public MapOutput(SocketAddress executor, int attempt, long bytes, MapTaskState mapTaskState)
+        {
+            this.executor = executor;
+            this.attempt = attempt;
+            this.bytes = bytes;
+            this.mapTaskState = mapTaskState;
+        }
+
+        public SocketAddress getExecutor()
+        {
+            return executor;
+        }
+
+        public int getAttempt()
+        {
+            return attempt;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * map task上报的各reduce分区字节数, 没有统计时为null
+         */
+        public MapTaskState getMapTaskState()
+        {
+            return mapTaskState;
+        }
+    }
+}
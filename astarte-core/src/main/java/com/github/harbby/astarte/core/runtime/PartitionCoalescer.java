@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.MapTaskState;
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Constant;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.operator.MapPartitionOperator;
+import com.github.harbby.astarte.core.operator.Operator;
+import com.github.harbby.astarte.core.operator.ShuffleMapOperator;
+import com.github.harbby.astarte.core.operator.ShuffledOperator;
+import com.github.harbby.astarte.core.operator.SkewJoinSupport;
+import com.github.harbby.astarte.core.runtime.MapOutputTracker.MapOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 父stage完成后, 按map task上报的各reduce分区字节数把下游stage相邻的小reduce分区合并为一个task,
+ * 合并后的task一次请求读取连续的reduce分区范围.
+ * 只合并所有shuffle输入都经由ShuffledOperator读取, 且分区原样向下传递的stage(没有缓存算子, 没有依赖分区id的用户函数)
+ */
+public class PartitionCoalescer
+{
+    private static final Logger logger = LoggerFactory.getLogger(PartitionCoalescer.class);
+    //数据量很小时每个task的最小输入, 避免为了保持并行度产生过多的小task
+    private static final long MIN_PARTITION_BYTES = 1L << 20;
+    private final boolean enable;
+    private final long targetBytes;
+    private final int parallelism;
+
+    public PartitionCoalescer(AstarteConf conf, int parallelism)
+    {
+        this.enable = conf.getBoolean(Constant.SHUFFLE_COALESCE_ENABLE, true);
+        this.targetBytes = conf.getLong(Constant.SHUFFLE_COALESCE_TARGET_BYTES, Constant.DEFAULT_SHUFFLE_COALESCE_TARGET_BYTES);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 父stage全部完成后, stage提交前调用. 不能合并或合并后task数不变时不修改stage
+     */
+    public void coalesce(Stage stage, Collection<Integer> depStageIds, Map<Integer, MapOutput[]> mapOutputs)
+    {
+        int numPartitions = stage.getNumPartitions();
+        if (!enable || depStageIds.isEmpty() || numPartitions <= 1 || !canCoalesce(stage, numPartitions)) {
+            return;
+        }
+        long[] partitionBytes = new long[numPartitions];
+        long totalBytes = 0;
+        for (int depStageId : depStageIds) {
+            MapOutput[] outputs = mapOutputs.get(depStageId);
+            if (outputs == null) {
+                return;
+            }
+            for (MapOutput output : outputs) {
+                MapTaskState state = output == null ? null : output.getMapTaskState();
+                if (state == null || state.getNumPartitions() != numPartitions) {
+                    return;
+                }
+                for (int reduceId = 0; reduceId < numPartitions; reduceId++) {
+                    long bytes = state.getPartitionBytes(reduceId);
+                    partitionBytes[reduceId] += bytes;
+                    totalBytes += bytes;
+                }
+            }
+        }
+        //数据量不大时按并行度均分, 保证所有slot都能用上
+        long target = Math.min(targetBytes, Math.max((totalBytes + parallelism - 1) / parallelism, MIN_PARTITION_BYTES));
+        Partition[] partitions = coalesce(partitionBytes, target);
+        if (partitions.length < numPartitions) {
+            logger.info("stage {} coalesce {} reduce partitions to {} tasks, shuffle input {} bytes, target {} bytes per task",
+                    stage.getStageId(), numPartitions, partitions.length, totalBytes, target);
+            stage.setCoalescedPartitions(partitions);
+        }
+    }
+
+    /**
+     * 按顺序合并相邻的reduce分区, 每个task的输入不超过targetBytes(单个分区超过时独占一个task)
+     */
+    static Partition[] coalesce(long[] partitionBytes, long targetBytes)
+    {
+        List<Partition> partitions = new ArrayList<>();
+        int start = 0;
+        long bytes = 0;
+        for (int reduceId = 0; reduceId < partitionBytes.length; reduceId++) {
+            if (reduceId > start && bytes + partitionBytes[reduceId] > targetBytes) {
+                partitions.add(new CoalescedPartition(partitions.size(), start, reduceId));
+                start = reduceId;
+                bytes = 0;
+            }
+            bytes += partitionBytes[reduceId];
+        }
+        if (partitionBytes.length > 0) {
+            partitions.add(new CoalescedPartition(partitions.size(), start, partitionBytes.length));
+        }
+        return partitions.toArray(new Partition[0]);
+    }
+
+    /**
+     * stage内从finalOperator到ShuffledOperator的每个算子都只有一个依赖且不缓存, 分区原样传递
+     */
+    private static boolean canCoalesce(Stage stage, int numPartitions)
+    {
+        Operator<?> reader = findShuffleReader(stage);
+        return reader instanceof ShuffledOperator && reader.numPartitions() == numPartitions;
+    }
+
+    /**
+     * 从finalOperator向上找到读取shuffle的算子(ShuffledOperator或者join算子), 中间每个算子都只有一个依赖且不缓存,
+     * 没有依赖分区id的用户函数. 不满足时返回null
+     */
+    static Operator<?> findShuffleReader(Stage stage)
+    {
+        Operator<?> operator = stage.getFinalOperator();
+        if (operator instanceof ShuffleMapOperator) {
+            operator = operator.getDependencies().get(0);
+        }
+        while (!(operator instanceof ShuffledOperator) && !(operator instanceof SkewJoinSupport)) {
+            if (operator.isMarkedCache() || operator instanceof ShuffleMapOperator) {
+                return null;
+            }
+            if (operator instanceof MapPartitionOperator && ((MapPartitionOperator<?, ?>) operator).usesPartitionId()) {
+                return null;
+            }
+            List<? extends Operator<?>> dependencies = operator.getDependencies();
+            if (dependencies.size() != 1) {
+                return null;
+            }
+            operator = dependencies.get(0);
+        }
+        return operator.isMarkedCache() ? null : operator;
+    }
+}
@@ -15,28 +15,97 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.SocketAddress;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
 
 public interface ShuffleClient
         extends Closeable
 {
-    public <K, V> Iterator<Tuple2<K, V>> readShuffleData(int shuffleId, int reduceId);
+    public default <K, V> Iterator<Tuple2<K, V>> readShuffleData(int shuffleId, int reduceId, SerializerManager serializerManager, TaskMetrics metrics)
+    {
+        return readShuffleData(shuffleId, reduceId, reduceId + 1, serializerManager, metrics);
+    }
+
+    /**
+     * 读取[startReduceId, endReduceId)范围内的reduce分区, 每个shuffle service只需一次请求
+     */
+    public default <K, V> Iterator<Tuple2<K, V>> readShuffleData(int shuffleId, int startReduceId, int endReduceId, SerializerManager serializerManager,
+            TaskMetrics metrics)
+    {
+        return readShuffleData(shuffleId, startReduceId, endReduceId, 0, Integer.MAX_VALUE, serializerManager, metrics);
+    }
+
+    /**
+     * 只读取mapId在[startMapId, endMapId)范围内的map输出, 倾斜的reduce分区被拆分为多个task时每个task只读取其中一部分map的输出
+     */
+    public <K, V> Iterator<Tuple2<K, V>> readShuffleData(int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+            SerializerManager serializerManager, TaskMetrics metrics);
+
+    /**
+     * 按map输出分别读取, 每个迭代器对应一个map task输出的分段.
+     * sort shuffle的每个分段内部都是有序的, reduce端可以直接做归并
+     */
+    public default <K, V> List<Iterator<Tuple2<K, V>>> readShuffleDataByMap(int shuffleId, int reduceId, SerializerManager serializerManager, TaskMetrics metrics)
+    {
+        return readShuffleDataByMap(shuffleId, reduceId, reduceId + 1, serializerManager, metrics);
+    }
 
-    public static ShuffleClient getLocalShuffleClient(ShuffleManagerService shuffleManagerService)
+    /**
+     * 每个迭代器对应一个map task输出中一个reduce分区的分段, 分段内部的有序性与单个分区时相同
+     */
+    public default <K, V> List<Iterator<Tuple2<K, V>>> readShuffleDataByMap(int shuffleId, int startReduceId, int endReduceId, SerializerManager serializerManager,
+            TaskMetrics metrics)
     {
-        return shuffleManagerService::getShuffleDataIterator;
+        return readShuffleDataByMap(shuffleId, startReduceId, endReduceId, 0, Integer.MAX_VALUE, serializerManager, metrics);
+    }
+
+    public <K, V> List<Iterator<Tuple2<K, V>>> readShuffleDataByMap(int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+            SerializerManager serializerManager, TaskMetrics metrics);
+
+    /**
+     * shuffle输出按(jobId, shuffleId)区分, 并发运行的job互不影响; 被跳过的stage读取之前job的输出
+     */
+    public static ShuffleClient getLocalShuffleClient(ShuffleManagerService shuffleManagerService, Stage stage)
+    {
+        Map<Integer, Stage.ShuffleSource> shuffleSources = stage.getShuffleSources();
+        return new ShuffleClient()
+        {
+            @Override
+            public <K, V> Iterator<Tuple2<K, V>> readShuffleData(int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+                    SerializerManager serializerManager, TaskMetrics metrics)
+            {
+                Stage.ShuffleSource source = shuffleSources.getOrDefault(shuffleId, new Stage.ShuffleSource(stage.getJobId(), shuffleId));
+                return shuffleManagerService.getShuffleDataIterator(source.getJobId(), source.getShuffleId(), startReduceId, endReduceId, startMapId, endMapId,
+                        serializerManager, metrics);
+            }
+
+            @Override
+            public <K, V> List<Iterator<Tuple2<K, V>>> readShuffleDataByMap(int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+                    SerializerManager serializerManager, TaskMetrics metrics)
+            {
+                Stage.ShuffleSource source = shuffleSources.getOrDefault(shuffleId, new Stage.ShuffleSource(stage.getJobId(), shuffleId));
+                return shuffleManagerService.getShuffleDataIteratorByMap(source.getJobId(), source.getShuffleId(), startReduceId, endReduceId, startMapId, endMapId,
+                        serializerManager, metrics);
+            }
+        };
     }
 
-    public static ShuffleClient getClusterShuffleClient(Set<SocketAddress> shuffleServices)
+    /**
+     * 按stage的shuffle service, jobId, 每个map task被driver确认的attemptId和复用的shuffle来源读取, 只读取这些attempt的输出
+     */
+    public static ShuffleClient getClusterShuffleClient(Stage stage)
             throws InterruptedException
     {
-        return ClusterShuffleClient.start(shuffleServices);
+        return ClusterShuffleClient.start(stage.getShuffleServices(), stage.getJobId(), stage.getMapAttempts(), stage.getShuffleSources(),
+                stage.getMaxBytesInFlight());
     }
 
     @Override
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.api.AstarteException;
+
+import java.net.SocketAddress;
+
+/**
+ * 从shuffle service拉取map输出失败, driver收到后会认为该executor上的map输出已丢失并重新计算
+ */
+public class ShuffleFetchFailedException
+        extends AstarteException
+{
+    private static final long serialVersionUID = -1L;
+    private final SocketAddress shuffleService;
+
+    public ShuffleFetchFailedException(SocketAddress shuffleService, String message, Throwable cause)
+    {
+        super(message + ", shuffle service " + shuffleService, cause);
+        this.shuffleService = shuffleService;
+    }
+
+    public SocketAddress getShuffleService()
+    {
+        return shuffleService;
+    }
+}
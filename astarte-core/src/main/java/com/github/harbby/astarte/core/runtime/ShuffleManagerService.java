@@ -15,8 +15,10 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.serializer.RecordBlockReader;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
 import com.github.harbby.gadtry.base.Iterators;
-import com.github.harbby.gadtry.base.Serializables;
 import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 import io.netty.bootstrap.ServerBootstrap;
@@ -31,28 +33,35 @@ import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.util.ReferenceCountUtil;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static java.util.Objects.requireNonNull;
 
@@ -60,10 +69,33 @@ public final class ShuffleManagerService
 
 {
     private static final Logger logger = LoggerFactory.getLogger(ShuffleManagerService.class);
+    /**
+     * 数据帧格式为[int len][bytes], 负数长度作为控制标记
+     */
+    static final int END_OF_STREAM = -1;
+    static final int END_OF_MAP_OUTPUT = -2;
+    /**
+     * 每个map输出的数据前先发送[MAP_OUTPUT_HEADER][int startReduceId][int n][n * long 各reduce分区的字节数],
+     * 之后连续发送这些分区的数据块, 客户端按字节数把数据块分配到各reduce分区
+     */
+    static final int MAP_OUTPUT_HEADER = -3;
+    /**
+     * 按map读取时先返回各map输出的索引[MAP_OUTPUT_INDEX][int mapId][int attemptId][int startReduceId][int n][n * long 各reduce分区的字节数]
+     */
+    static final int MAP_OUTPUT_INDEX = -4;
+    /**
+     * 请求类型: 读取所有map输出的数据, 只读取map输出的索引, 读取一个map输出中一个reduce分区的一段
+     */
+    static final int FETCH_MAP_OUTPUTS = 0;
+    static final int FETCH_INDEX = 1;
+    static final int FETCH_SEGMENT = 2;
     private final File shuffleWorkDir;
     private ChannelFuture future;
 
-    private volatile int currentJobId;
+    //jobId -> shuffleId -> map outputs
+    private final ConcurrentMap<Integer, ConcurrentMap<Integer, List<MapOutput>>> mapOutputs = new ConcurrentHashMap<>();
+    //jobId -> shuffleId -> 上次扫描目录时driver确认的map attempt
+    private final ConcurrentMap<Integer, ConcurrentMap<Integer, int[]>> scannedMapAttempts = new ConcurrentHashMap<>();
 
     public ShuffleManagerService(String executorUUID)
     {
@@ -80,9 +112,13 @@ public final class ShuffleManagerService
         }));
     }
 
-    public void updateCurrentJobId(int jobId)
+    /**
+     * job结束后释放该job缓存的map输出索引, 多个job可以同时运行
+     */
+    public void jobFinished(int jobId)
     {
-        this.currentJobId = jobId;
+        mapOutputs.remove(jobId);
+        scannedMapAttempts.remove(jobId);
     }
 
     public SocketAddress start()
@@ -102,7 +138,9 @@ public final class ShuffleManagerService
                     protected void initChannel(SocketChannel ch)
                             throws Exception
                     {
-                        ch.pipeline().addLast(new ShuffleServiceHandler());
+                        //请求帧格式为[int len][type][jobId][shuffleId][startReduceId][endReduceId][int n][n个map的attemptId], n为-1时不按attempt过滤;
+                        //FETCH_SEGMENT的请求帧为[int len][type][jobId][shuffleId][reduceId][mapId][attemptId][long position][int maxBytes]
+                        ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4), new ShuffleServiceHandler());
                     }
                 });
         this.future = serverBootstrap.bind(new InetSocketAddress(InetAddress.getLocalHost(), 0)).sync();
@@ -131,29 +169,130 @@ public final class ShuffleManagerService
                 throws Exception
         {
             ByteBuf in = (ByteBuf) msg;
+            int type = in.readInt();
+            int jobId = in.readInt();
             int shuffleId = in.readInt();
-            int reduceId = in.readInt();
-            ReferenceCountUtil.release(msg);
-            List<File> files = getShuffleDataInput(shuffleWorkDir, currentJobId, shuffleId, reduceId);  //获取多个带发送文件
-
+            if (type == FETCH_SEGMENT) {
+                int reduceId = in.readInt();
+                int mapId = in.readInt();
+                int attemptId = in.readInt();
+                long position = in.readLong();
+                int maxBytes = in.readInt();
+                ReferenceCountUtil.release(msg);
+                sendSegment(ctx, jobId, shuffleId, reduceId, mapId, attemptId, position, maxBytes);
+            }
+            else {
+                int startReduceId = in.readInt();
+                int endReduceId = in.readInt();
+                int[] mapAttempts = readMapAttempts(in);
+                ReferenceCountUtil.release(msg);
+                if (type == FETCH_INDEX) {
+                    sendIndex(ctx, jobId, shuffleId, startReduceId, endReduceId, mapAttempts);
+                }
+                else {
+                    sendMapOutputs(ctx, jobId, shuffleId, startReduceId, endReduceId, mapAttempts);
+                }
+            }
             ByteBuf finish = ctx.alloc().buffer(4, 4);
-            finish.writeInt(-1);
-            if (files.isEmpty()) {
-                //not found any file
-                ctx.writeAndFlush(finish);
-                return;
+            finish.writeInt(END_OF_STREAM);
+            ctx.writeAndFlush(finish);
+        }
+
+        private void sendMapOutputs(ChannelHandlerContext ctx, int jobId, int shuffleId, int startReduceId, int endReduceId, int[] mapAttempts)
+                throws IOException
+        {
+            //每个map task只有一个data文件, 各reduce分区按顺序连续存放, 一个请求的多个分区只需发送一个连续的文件区间
+            for (MapOutput mapOutput : getMapOutputs(jobId, shuffleId, mapAttempts)) {
+                long length = mapOutput.getLength(startReduceId, endReduceId);
+                if (length == 0) {
+                    continue;
+                }
+                int reduceNum = endReduceId - startReduceId;
+                ByteBuf header = ctx.alloc().buffer(12 + reduceNum * 8);
+                header.writeInt(MAP_OUTPUT_HEADER);
+                header.writeInt(startReduceId);
+                header.writeInt(reduceNum);
+                for (int reduceId = startReduceId; reduceId < endReduceId; reduceId++) {
+                    header.writeLong(mapOutput.getLength(reduceId, reduceId + 1));
+                }
+                ctx.write(header);
+                sendFileRegion(ctx, mapOutput, mapOutput.getOffset(startReduceId), length);
             }
+        }
 
-            for (File file : files) {
-                FileInputStream inputStream = new FileInputStream(file);
-                FileChannel channel = inputStream.getChannel();
-                ctx.writeAndFlush(new DefaultFileRegion(channel, 0, file.length()), ctx.newProgressivePromise())
-                        .addListener((ChannelFutureListener) future -> {
-                            logger.debug("send file {} done, size = {}", file, file.length());
-                            inputStream.close();
-                        });
+        private void sendIndex(ChannelHandlerContext ctx, int jobId, int shuffleId, int startReduceId, int endReduceId, int[] mapAttempts)
+        {
+            for (MapOutput mapOutput : getMapOutputs(jobId, shuffleId, mapAttempts)) {
+                if (mapOutput.getLength(startReduceId, endReduceId) == 0) {
+                    continue;
+                }
+                int reduceNum = endReduceId - startReduceId;
+                ByteBuf index = ctx.alloc().buffer(20 + reduceNum * 8);
+                index.writeInt(MAP_OUTPUT_INDEX);
+                index.writeInt(mapOutput.mapId);
+                index.writeInt(mapOutput.attemptId);
+                index.writeInt(startReduceId);
+                index.writeInt(reduceNum);
+                for (int reduceId = startReduceId; reduceId < endReduceId; reduceId++) {
+                    index.writeLong(mapOutput.getLength(reduceId, reduceId + 1));
+                }
+                ctx.write(index);
             }
-            ctx.writeAndFlush(finish);
+        }
+
+        /**
+         * 从分区内position处开始发送完整的数据块, 至少一块, 总字节数不超过maxBytes. map输出已丢失时不发送数据
+         */
+        private void sendSegment(ChannelHandlerContext ctx, int jobId, int shuffleId, int reduceId, int mapId, int attemptId, long position, int maxBytes)
+                throws IOException
+        {
+            int[] mapAttempts = new int[mapId + 1];
+            Arrays.fill(mapAttempts, -1);
+            mapAttempts[mapId] = attemptId;
+            List<MapOutput> outputs = getMapOutputs(jobId, shuffleId, mapAttempts);
+            if (outputs.isEmpty()) {
+                return;
+            }
+            MapOutput mapOutput = outputs.get(0);
+            long start = mapOutput.getOffset(reduceId) + position;
+            long end = mapOutput.getOffset(reduceId + 1);
+            long length = 0;
+            try (FileChannel channel = FileChannel.open(mapOutput.dataFile.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer blockHeader = ByteBuffer.allocate(4);
+                while (start + length < end) {
+                    blockHeader.clear();
+                    while (blockHeader.hasRemaining()) {
+                        if (channel.read(blockHeader, start + length + blockHeader.position()) < 0) {
+                            throw new EOFException("shuffle data file " + mapOutput.dataFile + " truncated");
+                        }
+                    }
+                    long blockLength = 4L + blockHeader.getInt(0);
+                    if (length > 0 && length + blockLength > maxBytes) {
+                        break;
+                    }
+                    length += blockLength;
+                }
+            }
+            ByteBuf header = ctx.alloc().buffer(20);
+            header.writeInt(MAP_OUTPUT_HEADER);
+            header.writeInt(reduceId);
+            header.writeInt(1);
+            header.writeLong(length);
+            ctx.write(header);
+            sendFileRegion(ctx, mapOutput, start, length);
+        }
+
+        private void sendFileRegion(ChannelHandlerContext ctx, MapOutput mapOutput, long offset, long length)
+                throws IOException
+        {
+            FileChannel channel = FileChannel.open(mapOutput.dataFile.toPath(), StandardOpenOption.READ);
+            //DefaultFileRegion在释放时会关闭channel
+            ctx.write(new DefaultFileRegion(channel, offset, length))
+                    .addListener((ChannelFutureListener) future ->
+                            logger.debug("send file {} offset {} done, size = {}", mapOutput.dataFile, offset, length));
+            ByteBuf mapOutputEnd = ctx.alloc().buffer(4, 4);
+            mapOutputEnd.writeInt(END_OF_MAP_OUTPUT);
+            ctx.write(mapOutputEnd);
         }
 
         @Override
@@ -164,56 +303,231 @@ public final class ShuffleManagerService
         }
     }
 
+    private static int[] readMapAttempts(ByteBuf in)
+    {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        int[] mapAttempts = new int[size];
+        for (int i = 0; i < size; i++) {
+            mapAttempts[i] = in.readInt();
+        }
+        return mapAttempts;
+    }
+
     public static File getShuffleWorkDir(String executorUUID)
     {
         return new File("/tmp/ashtarte-" + executorUUID);
     }
 
-    public <K, V> Iterator<Tuple2<K, V>> getShuffleDataIterator(int shuffleId, int reduceId)
+    /**
+     * 读取[startReduceId, endReduceId)范围内的reduce分区, 每个map输出顺序读取一个连续的文件区间
+     */
+    public <K, V> Iterator<Tuple2<K, V>> getShuffleDataIterator(int jobId, int shuffleId, int startReduceId, int endReduceId,
+            SerializerManager serializerManager, TaskMetrics metrics)
     {
-        List<File> files = getShuffleDataInput(shuffleWorkDir, currentJobId, shuffleId, reduceId);
-        return files.stream()
-                .filter(x -> x.getName().startsWith("shuffle_" + shuffleId + "_")
-                        && x.getName().endsWith("_" + reduceId + ".data"))
-                .flatMap(file -> {
+        return getShuffleDataIterator(jobId, shuffleId, startReduceId, endReduceId, 0, Integer.MAX_VALUE, serializerManager, metrics);
+    }
+
+    /**
+     * 只读取mapId在[startMapId, endMapId)范围内的map输出
+     */
+    public <K, V> Iterator<Tuple2<K, V>> getShuffleDataIterator(int jobId, int shuffleId, int startReduceId, int endReduceId, int startMapId, int endMapId,
+            SerializerManager serializerManager, TaskMetrics metrics)
+    {
+        return getMapOutputs(jobId, shuffleId, null).stream()
+                .filter(mapOutput -> mapOutput.mapId >= startMapId && mapOutput.mapId < endMapId)
+                .filter(mapOutput -> mapOutput.getLength(startReduceId, endReduceId) > 0)
+                .flatMap(mapOutput -> {
                     try {
-                        LengthDataFileIteratorReader<K, V> iteratorReader = new LengthDataFileIteratorReader<>(new FileInputStream(file));
+                        LengthDataFileIteratorReader<K, V> iteratorReader = new LengthDataFileIteratorReader<>(serializerManager,
+                                mapOutput.dataFile,
+                                mapOutput.getOffset(startReduceId),
+                                mapOutput.getLength(startReduceId, endReduceId),
+                                metrics);
                         return Iterators.toStream(iteratorReader);
                     }
-                    catch (FileNotFoundException e) {
+                    catch (IOException e) {
                         throw Throwables.throwsThrowable(e);
                     }
                 }).iterator();
     }
 
+    /**
+     * 每个迭代器对应一个map输出中一个reduce分区的分段
+     */
+    public <K, V> List<Iterator<Tuple2<K, V>>> getShuffleDataIteratorByMap(int jobId, int shuffleId, int startReduceId, int endReduceId,
+            SerializerManager serializerManager, TaskMetrics metrics)
+    {
+        return getShuffleDataIteratorByMap(jobId, shuffleId, startReduceId, endReduceId, 0, Integer.MAX_VALUE, serializerManager, metrics);
+    }
+
+    public <K, V> List<Iterator<Tuple2<K, V>>> getShuffleDataIteratorByMap(int jobId, int shuffleId, int startReduceId, int endReduceId,
+            int startMapId, int endMapId, SerializerManager serializerManager, TaskMetrics metrics)
+    {
+        List<Iterator<Tuple2<K, V>>> iterators = new ArrayList<>();
+        for (MapOutput mapOutput : getMapOutputs(jobId, shuffleId, null)) {
+            if (mapOutput.mapId < startMapId || mapOutput.mapId >= endMapId) {
+                continue;
+            }
+            for (int reduceId = startReduceId; reduceId < endReduceId; reduceId++) {
+                long length = mapOutput.getLength(reduceId, reduceId + 1);
+                if (length == 0) {
+                    continue;
+                }
+                try {
+                    iterators.add(new LengthDataFileIteratorReader<>(serializerManager, mapOutput.dataFile, mapOutput.getOffset(reduceId), length, metrics));
+                }
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
+            }
+        }
+        return iterators;
+    }
+
+    /**
+     * 同一个job的map stage全部完成后才会开始读取, 因此每个shuffle只需扫描一次目录和index文件.
+     * map输出丢失后被重新计算时driver确认的attempt会变化, 此时需要重新扫描.
+     * 只读取部分map输出的请求把其他map的attempt置为-1, 这些位置不触发重新扫描
+     *
+     * @param mapAttempts driver确认的每个map task成功的attemptId, 其他attempt的输出被忽略; 为null时不过滤
+     */
+    private List<MapOutput> getMapOutputs(int jobId, int shuffleId, int[] mapAttempts)
+    {
+        if (mapAttempts != null) {
+            ConcurrentMap<Integer, int[]> jobScanned = scannedMapAttempts.computeIfAbsent(jobId, k -> new ConcurrentHashMap<>());
+            int[] scanned = jobScanned.get(shuffleId);
+            if (scanned == null || attemptsChanged(scanned, mapAttempts)) {
+                jobScanned.put(shuffleId, mapAttempts);
+                if (scanned != null) {
+                    mapOutputs.getOrDefault(jobId, new ConcurrentHashMap<>()).remove(shuffleId);
+                }
+            }
+        }
+        List<MapOutput> outputs = getMapOutputs(jobId, shuffleId);
+        if (mapAttempts == null) {
+            return outputs;
+        }
+        return outputs.stream()
+                .filter(output -> output.mapId < mapAttempts.length && mapAttempts[output.mapId] == output.attemptId)
+                .collect(Collectors.toList());
+    }
+
+    private static boolean attemptsChanged(int[] scanned, int[] mapAttempts)
+    {
+        for (int mapId = 0; mapId < mapAttempts.length; mapId++) {
+            if (mapAttempts[mapId] >= 0 && (mapId >= scanned.length || scanned[mapId] != mapAttempts[mapId])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<MapOutput> getMapOutputs(int jobId, int shuffleId)
+    {
+        return mapOutputs.computeIfAbsent(jobId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(shuffleId, k -> {
+                    try {
+                        return loadMapOutputs(shuffleWorkDir, jobId, shuffleId);
+                    }
+                    catch (IOException e) {
+                        throw Throwables.throwsThrowable(e);
+                    }
+                });
+    }
+
+    private static List<MapOutput> loadMapOutputs(File shuffleWorkDir, int jobId, int shuffleId)
+            throws IOException
+    {
+        File[] files = new File(shuffleWorkDir, String.valueOf(jobId)).listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<MapOutput> outputs = new ArrayList<>();
+        for (File indexFile : files) {
+            String name = indexFile.getName();
+            if (name.startsWith("shuffle_" + shuffleId + "_") && name.endsWith(".index")) {
+                //shuffle_{shuffleId}_{mapId}_{attemptId}.index
+                String baseName = name.substring(0, name.length() - ".index".length());
+                String[] split = baseName.split("_");
+                File dataFile = new File(indexFile.getParentFile(), baseName + ".data");
+                outputs.add(new MapOutput(Integer.parseInt(split[2]), Integer.parseInt(split[3]), dataFile, readIndexFile(indexFile)));
+            }
+        }
+        return outputs;
+    }
+
+    private static long[] readIndexFile(File indexFile)
+            throws IOException
+    {
+        long[] offsets = new long[(int) (indexFile.length() / Long.BYTES)];
+        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = dataInputStream.readLong();
+            }
+        }
+        return offsets;
+    }
+
+    private static class MapOutput
+    {
+        private final int mapId;
+        private final int attemptId;
+        private final File dataFile;
+        private final long[] offsets;
+
+        private MapOutput(int mapId, int attemptId, File dataFile, long[] offsets)
+        {
+            this.mapId = mapId;
+            this.attemptId = attemptId;
+            this.dataFile = dataFile;
+            this.offsets = offsets;
+        }
+
+        private long getOffset(int reduceId)
+        {
+            return offsets[reduceId];
+        }
+
+        /**
+         * [startReduceId, endReduceId)范围内分区的总字节数, 这些分区在data文件中是连续的
+         */
+        private long getLength(int startReduceId, int endReduceId)
+        {
+            return offsets[endReduceId] - offsets[startReduceId];
+        }
+    }
+
     private static class LengthDataFileIteratorReader<K, V>
             implements Iterator<Tuple2<K, V>>, Closeable
     {
         private final DataInputStream dataInputStream;
-        private byte[] bytes;
+        private final RecordBlockReader<Tuple2<K, V>> reader;
 
-        public LengthDataFileIteratorReader(FileInputStream fileInputStream)
+        public LengthDataFileIteratorReader(SerializerManager serializerManager, File dataFile, long offset, long length, TaskMetrics metrics)
+                throws IOException
         {
-            this.dataInputStream = new DataInputStream(requireNonNull(fileInputStream, "fileInputStream is null"));
+            FileInputStream fileInputStream = new FileInputStream(requireNonNull(dataFile, "dataFile is null"));
+            fileInputStream.getChannel().position(offset);
+            this.dataInputStream = new DataInputStream(new BufferedInputStream(fileInputStream));
+            this.reader = serializerManager.newBlockReader(dataInputStream, length, metrics);
         }
 
         @Override
         public boolean hasNext()
         {
-            if (bytes != null) {
+            if (reader.hasNext()) {
                 return true;
             }
             try {
-                if (dataInputStream.available() == 0) {
-                    return false;
-                }
-                bytes = new byte[dataInputStream.readInt()];
-                dataInputStream.read(bytes);
-                return true;
+                this.close();
             }
             catch (IOException e) {
                 throw Throwables.throwsThrowable(e);
             }
+            return false;
         }
 
         @Override
@@ -222,14 +536,7 @@ public final class ShuffleManagerService
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            byte[] old = this.bytes;
-            this.bytes = null;
-            try {
-                return Serializables.byteToObject(old);
-            }
-            catch (IOException | ClassNotFoundException e) {
-                throw Throwables.throwsThrowable(e);
-            }
+            return reader.next();
         }
 
         @Override
@@ -239,16 +546,4 @@ public final class ShuffleManagerService
             dataInputStream.close();
         }
     }
-
-    private static List<File> getShuffleDataInput(File shuffleWorkDir, int jobId, int shuffleId, int reduceId)
-    {
-        File[] files = new File(shuffleWorkDir, String.valueOf(jobId)).listFiles();
-        if (files == null) {
-            return Collections.emptyList();
-        }
-        return Stream.of(files)
-                .filter(x -> x.getName().startsWith("shuffle_" + shuffleId + "_")
-                        && x.getName().endsWith("_" + reduceId + ".data"))
-                .collect(Collectors.toList());
-    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.MapTaskState;
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Constant;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.SkewedPartition;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.operator.Operator;
+import com.github.harbby.astarte.core.operator.SkewJoinSupport;
+import com.github.harbby.astarte.core.runtime.MapOutputTracker.MapOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 父stage完成后, 按map task上报的各reduce分区字节数找出join stage中倾斜的reduce分区.
+ * 超过中位数factor倍且超过阈值的分区, 把倾斜的一侧按连续的map拆分给多个task, 其他侧的同一分区复制给每个task.
+ * 与PartitionCoalescer一样只处理分区原样向下传递的stage.
+ * 只按字节数判断倾斜的分区, 不采样key的频率, 也不识别具体的热点key; 热点key的记录按所在的map输出分散到拆分后的多个task
+ */
+public class SkewJoinSplitter
+{
+    private static final Logger logger = LoggerFactory.getLogger(SkewJoinSplitter.class);
+    private final boolean enable;
+    private final double factor;
+    private final long thresholdBytes;
+    private final long targetBytes;
+
+    public SkewJoinSplitter(AstarteConf conf)
+    {
+        this.enable = conf.getBoolean(Constant.JOIN_SKEW_ENABLE, true);
+        this.factor = conf.getDouble(Constant.JOIN_SKEW_FACTOR, Constant.DEFAULT_JOIN_SKEW_FACTOR);
+        this.thresholdBytes = conf.getLong(Constant.JOIN_SKEW_THRESHOLD_BYTES, Constant.DEFAULT_JOIN_SKEW_THRESHOLD_BYTES);
+        this.targetBytes = conf.getLong(Constant.SHUFFLE_COALESCE_TARGET_BYTES, Constant.DEFAULT_SHUFFLE_COALESCE_TARGET_BYTES);
+    }
+
+    /**
+     * 父stage全部完成后, stage提交前调用. 没有倾斜的分区时不修改stage
+     *
+     * @param deps stage依赖的ShuffleMapOperator id到map stage id的映射
+     */
+    public void split(Stage stage, Map<Integer, Integer> deps, Map<Integer, MapOutput[]> mapOutputs)
+    {
+        int numPartitions = stage.getNumPartitions();
+        if (!enable || numPartitions <= 1) {
+            return;
+        }
+        Operator<?> reader = PartitionCoalescer.findShuffleReader(stage);
+        if (!(reader instanceof SkewJoinSupport) || reader.numPartitions() != numPartitions) {
+            return;
+        }
+        SkewJoinSupport join = (SkewJoinSupport) reader;
+        int[] shuffleMapIds = join.getShuffleMapIds();
+        MapTaskState[][] states = new MapTaskState[shuffleMapIds.length][];
+        for (int side = 0; side < shuffleMapIds.length; side++) {
+            states[side] = getMapTaskStates(deps.get(shuffleMapIds[side]), mapOutputs, numPartitions);
+            if (states[side] == null) {
+                return;
+            }
+        }
+        Partition[] partitions = split(states, join, numPartitions);
+        if (partitions.length > numPartitions) {
+            logger.info("stage {} split skewed join partitions, {} reduce partitions to {} tasks", stage.getStageId(), numPartitions, partitions.length);
+            stage.setCoalescedPartitions(partitions);
+        }
+    }
+
+    Partition[] split(MapTaskState[][] states, SkewJoinSupport join, int numPartitions)
+    {
+        long[][] partitionBytes = new long[states.length][numPartitions];
+        long[] skewBytes = new long[states.length];
+        long[] sideTargetBytes = new long[states.length];
+        for (int side = 0; side < states.length; side++) {
+            for (MapTaskState state : states[side]) {
+                for (int reduceId = 0; reduceId < numPartitions; reduceId++) {
+                    partitionBytes[side][reduceId] += state.getPartitionBytes(reduceId);
+                }
+            }
+            long median = median(partitionBytes[side]);
+            skewBytes[side] = Math.max((long) (median * factor), thresholdBytes);
+            sideTargetBytes[side] = Math.max(targetBytes, median);
+        }
+
+        List<Partition> partitions = new ArrayList<>(numPartitions);
+        for (int reduceId = 0; reduceId < numPartitions; reduceId++) {
+            //多侧同时倾斜时只拆分最大的一侧
+            int splitSide = -1;
+            for (int side = 0; side < states.length; side++) {
+                if (join.canSplit(side) && partitionBytes[side][reduceId] > skewBytes[side]
+                        && (splitSide == -1 || partitionBytes[side][reduceId] > partitionBytes[splitSide][reduceId])) {
+                    splitSide = side;
+                }
+            }
+            List<Integer> mapSplits = splitSide == -1 ? null : splitMaps(mapBytes(states[splitSide], reduceId), sideTargetBytes[splitSide]);
+            if (mapSplits == null || mapSplits.size() <= 2) {
+                partitions.add(new CoalescedPartition(partitions.size(), reduceId, reduceId + 1));
+                continue;
+            }
+            logger.info("reduce partition {} side {} is skewed, {} bytes, split into {} tasks", reduceId, splitSide, partitionBytes[splitSide][reduceId],
+                    mapSplits.size() - 1);
+            for (int i = 1; i < mapSplits.size(); i++) {
+                partitions.add(new SkewedPartition(partitions.size(), reduceId, splitSide, mapSplits.get(i - 1), mapSplits.get(i)));
+            }
+        }
+        return partitions.toArray(new Partition[0]);
+    }
+
+    /**
+     * 按mapId顺序把相邻的map输出分为一组, 每组不超过targetBytes(单个map超过时独占一组). 返回各组的边界, 首尾分别为0和map数
+     */
+    static List<Integer> splitMaps(long[] mapBytes, long targetBytes)
+    {
+        List<Integer> splits = new ArrayList<>();
+        splits.add(0);
+        long bytes = 0;
+        for (int mapId = 0; mapId < mapBytes.length; mapId++) {
+            if (mapId > splits.get(splits.size() - 1) && bytes + mapBytes[mapId] > targetBytes) {
+                splits.add(mapId);
+                bytes = 0;
+            }
+            bytes += mapBytes[mapId];
+        }
+        splits.add(mapBytes.length);
+        return splits;
+    }
+
+    private static MapTaskState[] getMapTaskStates(Integer depStageId, Map<Integer, MapOutput[]> mapOutputs, int numPartitions)
+    {
+        MapOutput[] outputs = depStageId == null ? null : mapOutputs.get(depStageId);
+        if (outputs == null) {
+            return null;
+        }
+        MapTaskState[] states = new MapTaskState[outputs.length];
+        for (int mapId = 0; mapId < outputs.length; mapId++) {
+            states[mapId] = outputs[mapId] == null ? null : outputs[mapId].getMapTaskState();
+            if (states[mapId] == null || states[mapId].getNumPartitions() != numPartitions) {
+                return null;
+            }
+        }
+        return states;
+    }
+
+    /**
+     * 每个map输出中该reduce分区的字节数, 下标为mapId
+     */
+    private static long[] mapBytes(MapTaskState[] states, int reduceId)
+    {
+        return Arrays.stream(states).mapToLong(state -> state.getPartitionBytes(reduceId)).toArray();
+    }
+
+    static long median(long[] values)
+    {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.api.Stage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkState;
+
+/**
+ * job的stage依赖图, 按拓扑顺序给出可以提交的stage.
+ * 父stage全部完成的stage即可提交, 互不依赖的stage可以并发执行
+ */
+class StageDag
+{
+    private final Map<Integer, Stage> stages = new LinkedHashMap<>();
+    private final Map<Integer, Set<Integer>> parents = new LinkedHashMap<>();
+    private final Set<Integer> submitted = new HashSet<>();
+    private final Set<Integer> finished = new HashSet<>();
+
+    StageDag(List<Stage> jobStages, Map<Stage, Map<Integer, Integer>> stageMap)
+    {
+        for (Stage stage : jobStages) {
+            stages.put(stage.getStageId(), stage);
+        }
+        for (Stage stage : jobStages) {
+            Set<Integer> parentIds = new HashSet<>();
+            //缓存算子推测出的依赖stage不在本job中, 忽略
+            for (int parentId : stageMap.getOrDefault(stage, Collections.emptyMap()).values()) {
+                if (stages.containsKey(parentId) && parentId != stage.getStageId()) {
+                    parentIds.add(parentId);
+                }
+            }
+            parents.put(stage.getStageId(), parentIds);
+        }
+    }
+
+    public Set<Integer> getParentStageIds(Stage stage)
+    {
+        return parents.get(stage.getStageId());
+    }
+
+    /**
+     * 返回父stage已全部完成且还未提交的stage, 并标记为已提交
+     */
+    public synchronized List<Stage> nextReadyStages()
+    {
+        List<Stage> ready = new ArrayList<>();
+        for (Map.Entry<Integer, Set<Integer>> entry : parents.entrySet()) {
+            if (!submitted.contains(entry.getKey()) && finished.containsAll(entry.getValue())) {
+                ready.add(stages.get(entry.getKey()));
+            }
+        }
+        for (Stage stage : ready) {
+            submitted.add(stage.getStageId());
+        }
+        return ready;
+    }
+
+    public synchronized void stageFinished(int stageId)
+    {
+        checkState(submitted.contains(stageId), "stage " + stageId + " not submitted");
+        finished.add(stageId);
+    }
+
+    /**
+     * stage的输出丢失或需要重新提交时调用, 该stage回到未提交状态, 父stage完成后会再次被nextReadyStages返回
+     */
+    public synchronized void reopen(int stageId)
+    {
+        checkState(stages.containsKey(stageId), "stage " + stageId + " not in job");
+        submitted.remove(stageId);
+        finished.remove(stageId);
+    }
+
+    public synchronized boolean isFinished(int stageId)
+    {
+        return finished.contains(stageId);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.api.AstarteException;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.Task;
+import com.github.harbby.astarte.core.api.function.Mapper;
+import com.github.harbby.gadtry.base.Serializables;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * driver发给executor的轻量task描述, 只包含(jobId, stageId, partition, attempt)和stage二进制的广播id.
+ * stage连同结果函数在driver上每个stage只序列化一次, 作为广播变量每个executor只拉取一次,
+ * executor上每个task各自反序列化出独立的Task, 保证task之间不共享算子状态
+ */
+public class TaskDescriptor
+        implements Serializable
+{
+    private final int jobId;
+    private final int stageId;
+    private final Partition partition;
+    private final int attempt;
+    private final long stageBinaryId;
+
+    public TaskDescriptor(int jobId, int stageId, Partition partition, int attempt, long stageBinaryId)
+    {
+        this.jobId = jobId;
+        this.stageId = stageId;
+        this.partition = partition;
+        this.attempt = attempt;
+        this.stageBinaryId = stageBinaryId;
+    }
+
+    /**
+     * 序列化stage的task工厂并广播, 返回广播id.
+     * 广播的值是序列化后的byte[], executor缓存的是字节而不是反序列化后的对象
+     */
+    public static long broadcastStageBinary(Mapper<Partition, Task<?>> taskFactory)
+    {
+        byte[] bytes;
+        try {
+            byte[] binary = Serializables.serialize(taskFactory);
+            bytes = Serializables.serialize(binary);
+        }
+        catch (IOException e) {
+            throw new AstarteException("serialize stage failed", e);
+        }
+        long id = BroadcastManager.newBroadcastId();
+        BroadcastManager.putDriverBlocks(id, bytes);
+        return id;
+    }
+
+    public Task<?> createTask()
+    {
+        byte[] binary = BroadcastManager.getValue(stageBinaryId);
+        Mapper<Partition, Task<?>> taskFactory;
+        try {
+            taskFactory = Serializables.byteToObject(binary);
+        }
+        catch (IOException | ClassNotFoundException e) {
+            throw new AstarteException("deserialize stage " + stageId + " failed", e);
+        }
+        return taskFactory.map(partition);
+    }
+
+    public int getJobId()
+    {
+        return jobId;
+    }
+
+    public int getStageId()
+    {
+        return stageId;
+    }
+
+    public int getTaskId()
+    {
+        return partition.getId();
+    }
+
+    public int getAttempt()
+    {
+        return attempt;
+    }
+
+    public long getStageBinaryId()
+    {
+        return stageBinaryId;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toStringHelper(this)
+                .add("jobId", jobId)
+                .add("stageId", stageId)
+                .add("taskId", partition.getId())
+                .add("attempt", attempt)
+                .toString();
+    }
+}
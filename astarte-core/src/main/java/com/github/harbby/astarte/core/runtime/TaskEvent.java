@@ -15,63 +15,156 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
+import com.github.harbby.astarte.core.TaskMetrics;
+
+import java.net.SocketAddress;
+
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
 public interface TaskEvent
         extends Event
 {
-    public static TaskEvent failed(int jobId, String error)
+    public int getJobId();
+
+    public int getStageId();
+
+    public int getTaskId();
+
+    public int getAttempt();
+
+    /**
+     * 执行该task的executor, 用executor的shuffle service地址标识
+     */
+    public SocketAddress getExecutor();
+
+    public static TaskEvent failed(TaskDescriptor task, SocketAddress executor, String error)
     {
-        return new TaskFailed(jobId, error);
+        return new TaskFailed(task, executor, error, null);
     }
 
-    public static TaskEvent success(int taskId, Object result)
+    /**
+     * 读取shuffleService上的map输出失败, driver需要重新计算这些map输出
+     */
+    public static TaskEvent fetchFailed(TaskDescriptor task, SocketAddress executor, SocketAddress shuffleService, String error)
     {
-        return new TaskSuccess(taskId, result);
+        return new TaskFailed(task, executor, error, shuffleService);
     }
 
-    public static class TaskFailed
+    public static TaskEvent success(TaskDescriptor task, SocketAddress executor, Object result, TaskMetrics metrics)
+    {
+        return new TaskSuccess(task, executor, result, metrics);
+    }
+
+    public abstract static class AbstractTaskEvent
             implements TaskEvent
     {
         private final int jobId;
-        private final String error;
+        private final int stageId;
+        private final int taskId;
+        private final int attempt;
+        private final SocketAddress executor;
 
-        public TaskFailed(int jobId, String error)
+        protected AbstractTaskEvent(TaskDescriptor task, SocketAddress executor)
         {
-            this.jobId = jobId;
-            this.error = error;
+            this.jobId = task.getJobId();
+            this.stageId = task.getStageId();
+            this.taskId = task.getTaskId();
+            this.attempt = task.getAttempt();
+            this.executor = executor;
         }
 
+        @Override
         public int getJobId()
         {
             return jobId;
         }
 
+        @Override
+        public int getStageId()
+        {
+            return stageId;
+        }
+
+        @Override
+        public int getTaskId()
+        {
+            return taskId;
+        }
+
+        @Override
+        public int getAttempt()
+        {
+            return attempt;
+        }
+
+        @Override
+        public SocketAddress getExecutor()
+        {
+            return executor;
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("jobId", jobId)
+                    .add("stageId", stageId)
+                    .add("taskId", taskId)
+                    .add("attempt", attempt)
+                    .add("executor", executor)
+                    .toString();
+        }
+    }
+
+    public static class TaskFailed
+            extends AbstractTaskEvent
+    {
+        private final String error;
+        private final SocketAddress fetchFailedService;
+
+        public TaskFailed(TaskDescriptor task, SocketAddress executor, String error, SocketAddress fetchFailedService)
+        {
+            super(task, executor);
+            this.error = error;
+            this.fetchFailedService = fetchFailedService;
+        }
+
         public String getError()
         {
             return error;
         }
+
+        /**
+         * 拉取shuffle数据失败时为对应的shuffle service地址, 否则为null
+         */
+        public SocketAddress getFetchFailedService()
+        {
+            return fetchFailedService;
+        }
     }
 
     public static class TaskSuccess
-            implements TaskEvent
+            extends AbstractTaskEvent
     {
-        private final int taskId;
         private final Object result;
+        private final TaskMetrics metrics;
 
-        public TaskSuccess(int taskId, Object result)
+        public TaskSuccess(TaskDescriptor task, SocketAddress executor, Object result, TaskMetrics metrics)
         {
-            this.taskId = taskId;
+            super(task, executor);
             //check result serializable
             this.result = result;
+            this.metrics = metrics;
         }
 
-        public int getTaskId()
+        public Object getTaskResult()
         {
-            return taskId;
+            return result;
         }
 
-        public Object getTaskResult()
+        public TaskMetrics getTaskMetrics()
         {
-            return result;
+            return metrics;
         }
     }
 }
@@ -15,15 +15,40 @@
  */
 package com.github.harbby.astarte.core.runtime;
 
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.gadtry.base.Serializables;
+
+import java.io.IOException;
+import java.util.Base64;
+
 public class TaskExecutor
 {
     private TaskExecutor() {}
 
+    /**
+     * 参数: vcores [encodeConf()编码的任务配置]
+     */
     public static void main(String[] args)
             throws Exception
     {
-        int vcores = 2;
-        Executor executor = new Executor(vcores);
+        int vcores = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        AstarteConf conf = args.length > 1 ? Serializables.byteToObject(Base64.getDecoder().decode(args[1])) : new AstarteConf();
+        start(vcores, conf);
+    }
+
+    public static void start(int vcores, AstarteConf conf)
+            throws Exception
+    {
+        Executor executor = new Executor(vcores, conf);
         executor.join();
     }
+
+    /**
+     * 把配置编码为可以放在启动命令中的参数
+     */
+    public static String encodeConf(AstarteConf conf)
+            throws IOException
+    {
+        return Base64.getEncoder().encodeToString(Serializables.serialize(conf));
+    }
 }
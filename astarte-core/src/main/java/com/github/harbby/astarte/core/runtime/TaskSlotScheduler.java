@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import static com.github.harbby.gadtry.base.MoreObjects.checkArgument;
+import static com.github.harbby.gadtry.base.MoreObjects.toStringHelper;
+
+/**
+ * driver端的task槽位调度器.
+ * 每个executor按vcores提供槽位, 只有存在空闲槽位时才下发task.
+ * task可以带有优先executor(缓存分区或大部分shuffle输入所在的executor),
+ * 优先executor没有空闲槽位时最多等待localityWaitMs(延迟调度), 超时后退化为下发到负载最低的executor.
+ * 多个job同时运行时按SchedulingMode在job之间分配槽位
+ */
+class TaskSlotScheduler
+{
+    /**
+     * FIFO: 先提交的job优先使用全部槽位; FAIR: 每个空闲槽位分给运行task最少的job
+     */
+    public enum SchedulingMode
+    {
+        FIFO,
+        FAIR
+    }
+
+    private final Map<SocketAddress, ExecutorSlots> executors = new LinkedHashMap<>();
+    //Map<jobId, 该job等待下发的task>, jobId越小越早提交
+    private final TreeMap<Integer, LinkedList<PendingTask>> pendingTasks = new TreeMap<>();
+    private final BiConsumer<SocketAddress, TaskDescriptor> dispatcher;
+    private final SchedulingMode schedulingMode;
+    private final long localityWaitMs;
+    private final LongSupplier clock;
+
+    TaskSlotScheduler(SchedulingMode schedulingMode, long localityWaitMs, BiConsumer<SocketAddress, TaskDescriptor> dispatcher, LongSupplier clock)
+    {
+        checkArgument(localityWaitMs >= 0, "localityWaitMs must >= 0");
+        this.schedulingMode = schedulingMode;
+        this.localityWaitMs = localityWaitMs;
+        this.dispatcher = dispatcher;
+        this.clock = clock;
+    }
+
+    TaskSlotScheduler(long localityWaitMs, BiConsumer<SocketAddress, TaskDescriptor> dispatcher, LongSupplier clock)
+    {
+        this(SchedulingMode.FIFO, localityWaitMs, dispatcher, clock);
+    }
+
+    TaskSlotScheduler(SchedulingMode schedulingMode, long localityWaitMs, BiConsumer<SocketAddress, TaskDescriptor> dispatcher)
+    {
+        this(schedulingMode, localityWaitMs, dispatcher, System::currentTimeMillis);
+    }
+
+    public synchronized void addExecutor(SocketAddress executor, int slots)
+    {
+        checkArgument(slots > 0, "executor slots must > 0");
+        executors.put(executor, new ExecutorSlots(executor, slots, clock.getAsLong()));
+    }
+
+    /**
+     * executor丢失时移除其槽位, 返回丢失时仍在该executor上运行的task
+     */
+    public synchronized List<RunningTask> removeExecutor(SocketAddress executor)
+    {
+        ExecutorSlots slots = executors.remove(executor);
+        if (slots == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(slots.runningTasks.values());
+    }
+
+    public synchronized int getExecutorNum()
+    {
+        return executors.size();
+    }
+
+    /**
+     * 提交task, preferredExecutors按优先级从高到低排列, 为空表示没有本地性要求
+     */
+    public synchronized void submit(TaskDescriptor task, Collection<SocketAddress> preferredExecutors)
+    {
+        submit(task, preferredExecutors, Collections.emptySet());
+    }
+
+    /**
+     * @param excludedExecutors 不允许运行该task的executor, 例如推测执行时原attempt所在的executor
+     */
+    public synchronized void submit(TaskDescriptor task, Collection<SocketAddress> preferredExecutors, Set<SocketAddress> excludedExecutors)
+    {
+        pendingTasks.computeIfAbsent(task.getJobId(), k -> new LinkedList<>())
+                .add(new PendingTask(task, new ArrayList<>(preferredExecutors), excludedExecutors, clock.getAsLong()));
+    }
+
+    /**
+     * task结束(成功或失败)时归还槽位
+     */
+    public synchronized void taskFinished(SocketAddress executor, TaskEvent event)
+    {
+        ExecutorSlots slots = executors.get(executor);
+        if (slots != null) {
+            slots.release(taskKey(event.getJobId(), event.getStageId(), event.getTaskId(), event.getAttempt()), clock.getAsLong());
+        }
+    }
+
+    /**
+     * 停止该task除exceptAttempt以外的所有attempt: 未下发的直接丢弃, 运行中的标记为已停止.
+     * 已停止的attempt在executor汇报其结束事件或executor丢失之前仍然占用槽位.
+     * 返回本次新停止的运行中attempt, 由调用方通知对应的executor
+     */
+    public synchronized List<RunningTask> killTask(int jobId, int stageId, int taskId, int exceptAttempt)
+    {
+        pendingTasks.getOrDefault(jobId, new LinkedList<>())
+                .removeIf(pendingTask -> isAttemptOf(pendingTask.task, jobId, stageId, taskId) && pendingTask.task.getAttempt() != exceptAttempt);
+        List<RunningTask> killed = new ArrayList<>();
+        for (ExecutorSlots slots : executors.values()) {
+            for (RunningTask runningTask : slots.runningTasks.values()) {
+                TaskDescriptor task = runningTask.task;
+                if (!runningTask.killed && isAttemptOf(task, jobId, stageId, taskId) && task.getAttempt() != exceptAttempt) {
+                    runningTask.killed = true;
+                    killed.add(runningTask);
+                }
+            }
+        }
+        return killed;
+    }
+
+    /**
+     * 该stage正在运行的task attempt, 不包括已停止的attempt
+     */
+    public synchronized List<RunningTask> getRunningTasks(int jobId, int stageId)
+    {
+        List<RunningTask> list = new ArrayList<>();
+        for (ExecutorSlots slots : executors.values()) {
+            for (RunningTask runningTask : slots.runningTasks.values()) {
+                if (!runningTask.killed && runningTask.task.getJobId() == jobId && runningTask.task.getStageId() == stageId) {
+                    list.add(runningTask);
+                }
+            }
+        }
+        return list;
+    }
+
+    private static boolean isAttemptOf(TaskDescriptor task, int jobId, int stageId, int taskId)
+    {
+        return task.getJobId() == jobId && task.getStageId() == stageId && task.getTaskId() == taskId;
+    }
+
+    /**
+     * 丢弃该job还未下发的task
+     */
+    public synchronized int cancelPendingTasks(int jobId)
+    {
+        List<PendingTask> canceled = pendingTasks.remove(jobId);
+        return canceled == null ? 0 : canceled.size();
+    }
+
+    public synchronized int getPendingTaskNum()
+    {
+        return pendingTasks.values().stream().mapToInt(List::size).sum();
+    }
+
+    /**
+     * 按空闲槽位下发等待中的task, 返回本次下发的task数
+     */
+    public synchronized int schedule()
+    {
+        long now = clock.getAsLong();
+        int dispatched = 0;
+        if (schedulingMode == SchedulingMode.FIFO) {
+            for (LinkedList<PendingTask> jobTasks : pendingTasks.values()) {
+                dispatched += dispatch(jobTasks.iterator(), now, Integer.MAX_VALUE);
+            }
+        }
+        else {
+            Map<Integer, Integer> runningNum = getRunningTaskNumByJob();
+            //本轮已没有可下发task的job
+            Set<Integer> blockedJobs = new HashSet<>();
+            while (hasFreeSlot()) {
+                Integer jobId = null;
+                for (Map.Entry<Integer, LinkedList<PendingTask>> entry : pendingTasks.entrySet()) {
+                    int id = entry.getKey();
+                    if (!blockedJobs.contains(id) && !entry.getValue().isEmpty()
+                            && (jobId == null || runningNum.getOrDefault(id, 0) < runningNum.getOrDefault(jobId, 0))) {
+                        jobId = id;
+                    }
+                }
+                if (jobId == null) {
+                    break;
+                }
+                if (dispatch(pendingTasks.get(jobId).iterator(), now, 1) == 0) {
+                    blockedJobs.add(jobId);
+                }
+                else {
+                    runningNum.merge(jobId, 1, Integer::sum);
+                    dispatched++;
+                }
+            }
+        }
+        pendingTasks.values().removeIf(List::isEmpty);
+        return dispatched;
+    }
+
+    private Map<Integer, Integer> getRunningTaskNumByJob()
+    {
+        Map<Integer, Integer> runningNum = new HashMap<>();
+        for (ExecutorSlots slots : executors.values()) {
+            for (RunningTask runningTask : slots.runningTasks.values()) {
+                runningNum.merge(runningTask.task.getJobId(), 1, Integer::sum);
+            }
+        }
+        return runningNum;
+    }
+
+    /**
+     * 按顺序下发一个job的等待task, 最多下发limit个
+     */
+    private int dispatch(Iterator<PendingTask> iterator, long now, int limit)
+    {
+        int dispatched = 0;
+        while (dispatched < limit && iterator.hasNext() && hasFreeSlot()) {
+            PendingTask pendingTask = iterator.next();
+            ExecutorSlots target = findPreferredExecutor(pendingTask);
+            if (target == null) {
+                if (hasAliveExecutor(pendingTask) && now - pendingTask.submitTime < localityWaitMs) {
+                    //延迟调度, 等待优先executor空出槽位
+                    continue;
+                }
+                target = findLeastLoadedExecutor(pendingTask.excludedExecutors);
+                if (target == null) {
+                    //空闲槽位都在被排除的executor上
+                    continue;
+                }
+            }
+            iterator.remove();
+            TaskDescriptor task = pendingTask.task;
+            target.launch(new RunningTask(task, target.executor, now));
+            dispatcher.accept(target.executor, task);
+            dispatched++;
+        }
+        return dispatched;
+    }
+
+    public synchronized List<ExecutorUtilization> getExecutorUtilization()
+    {
+        long now = clock.getAsLong();
+        List<ExecutorUtilization> list = new ArrayList<>(executors.size());
+        for (ExecutorSlots slots : executors.values()) {
+            list.add(slots.snapshot(now));
+        }
+        return list;
+    }
+
+    private boolean hasFreeSlot()
+    {
+        for (ExecutorSlots slots : executors.values()) {
+            if (slots.freeSlots() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasAliveExecutor(PendingTask pendingTask)
+    {
+        for (SocketAddress executor : pendingTask.preferredExecutors) {
+            if (executors.containsKey(executor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ExecutorSlots findPreferredExecutor(PendingTask pendingTask)
+    {
+        for (SocketAddress executor : pendingTask.preferredExecutors) {
+            ExecutorSlots slots = executors.get(executor);
+            if (slots != null && slots.freeSlots() > 0 && !pendingTask.excludedExecutors.contains(executor)) {
+                return slots;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 已用槽位比例最低的executor
+     */
+    private ExecutorSlots findLeastLoadedExecutor(Set<SocketAddress> excludedExecutors)
+    {
+        ExecutorSlots target = null;
+        for (ExecutorSlots slots : executors.values()) {
+            if (excludedExecutors.contains(slots.executor)) {
+                continue;
+            }
+            if (slots.freeSlots() > 0 && (target == null || slots.load() < target.load())) {
+                target = slots;
+            }
+        }
+        return target;
+    }
+
+    private static String taskKey(int jobId, int stageId, int taskId, int attempt)
+    {
+        return jobId + "_" + stageId + "_" + taskId + "_" + attempt;
+    }
+
+    private static class PendingTask
+    {
+        private final TaskDescriptor task;
+        private final List<SocketAddress> preferredExecutors;
+        private final Set<SocketAddress> excludedExecutors;
+        private final long submitTime;
+
+        private PendingTask(TaskDescriptor task, List<SocketAddress> preferredExecutors, Set<SocketAddress> excludedExecutors, long submitTime)
+        {
+            this.task = task;
+            this.preferredExecutors = preferredExecutors;
+            this.excludedExecutors = excludedExecutors;
+            this.submitTime = submitTime;
+        }
+    }
+
+    public static class RunningTask
+    {
+        private final TaskDescriptor task;
+        private final SocketAddress executor;
+        private final long launchTime;
+        private boolean killed;
+
+        private RunningTask(TaskDescriptor task, SocketAddress executor, long launchTime)
+        {
+            this.task = task;
+            this.executor = executor;
+            this.launchTime = launchTime;
+        }
+
+        public TaskDescriptor getTask()
+        {
+            return task;
+        }
+
+        public SocketAddress getExecutor()
+        {
+            return executor;
+        }
+
+        public long getLaunchTime()
+        {
+            return launchTime;
+        }
+    }
+
+    private static class ExecutorSlots
+    {
+        private final SocketAddress executor;
+        private final int slots;
+        private final long registerTime;
+        private final Map<String, RunningTask> runningTasks = new HashMap<>();
+        private long finishedTasks;
+        private long busyMillis;
+
+        private ExecutorSlots(SocketAddress executor, int slots, long registerTime)
+        {
+            this.executor = executor;
+            this.slots = slots;
+            this.registerTime = registerTime;
+        }
+
+        private int freeSlots()
+        {
+            return slots - runningTasks.size();
+        }
+
+        private double load()
+        {
+            return (double) runningTasks.size() / slots;
+        }
+
+        private void launch(RunningTask runningTask)
+        {
+            TaskDescriptor task = runningTask.task;
+            runningTasks.put(taskKey(task.getJobId(), task.getStageId(), task.getTaskId(), task.getAttempt()), runningTask);
+        }
+
+        private void release(String taskKey, long now)
+        {
+            RunningTask runningTask = runningTasks.remove(taskKey);
+            if (runningTask != null) {
+                finishedTasks++;
+                busyMillis += now - runningTask.launchTime;
+            }
+        }
+
+        private ExecutorUtilization snapshot(long now)
+        {
+            long running = 0;
+            for (RunningTask runningTask : runningTasks.values()) {
+                running += now - runningTask.launchTime;
+            }
+            long capacity = (now - registerTime) * slots;
+            double utilization = capacity <= 0 ? 0 : Math.min(1.0, (double) (busyMillis + running) / capacity);
+            return new ExecutorUtilization(executor, slots, runningTasks.size(), finishedTasks, utilization);
+        }
+    }
+
+    /**
+     * executor槽位使用情况, utilization为注册以来task占用槽位时间 / (槽位数 * 注册时长)
+     */
+    public static class ExecutorUtilization
+    {
+        private final SocketAddress executor;
+        private final int slots;
+        private final int runningTasks;
+        private final long finishedTasks;
+        private final double utilization;
+
+        public ExecutorUtilization(SocketAddress executor, int slots, int runningTasks, long finishedTasks, double utilization)
+        {
+            this.executor = executor;
+            this.slots = slots;
+            this.runningTasks = runningTasks;
+            this.finishedTasks = finishedTasks;
+            this.utilization = utilization;
+        }
+
+        public SocketAddress getExecutor()
+        {
+            return executor;
+        }
+
+        public int getSlots()
+        {
+            return slots;
+        }
+
+        public int getRunningTasks()
+        {
+            return runningTasks;
+        }
+
+        public long getFinishedTasks()
+        {
+            return finishedTasks;
+        }
+
+        public double getUtilization()
+        {
+            return utilization;
+        }
+
+        @Override
+        public String toString()
+        {
+            return toStringHelper(this)
+                    .add("executor", executor)
+                    .add("slots", slots)
+                    .add("runningTasks", runningTasks)
+                    .add("finishedTasks", finishedTasks)
+                    .add("utilization", String.format("%.1f%%", utilization * 100))
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 默认的二进制序列化器
+ * <p>
+ * 对Tuple2, 基本类型包装类, String及常用数组直接按类型标记编码, 其余对象回退到jdk序列化
+ */
+public class AstarteSerializer
+        implements Serializer
+{
+    private static final byte NULL = 0;
+    private static final byte TUPLE2 = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte SHORT = 6;
+    private static final byte BYTE = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte CHAR = 9;
+    private static final byte STRING = 10;
+    private static final byte BYTE_ARRAY = 11;
+    private static final byte INT_ARRAY = 12;
+    private static final byte LONG_ARRAY = 13;
+    private static final byte DOUBLE_ARRAY = 14;
+    private static final byte OBJECT_ARRAY = 15;
+    private static final byte JAVA = 16;
+
+    @Override
+    public SerializerInstance newInstance()
+    {
+        return new AstarteSerializerInstance();
+    }
+
+    private static class AstarteSerializerInstance
+            implements SerializerInstance
+    {
+        @Override
+        public byte[] serialize(Object value)
+                throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            writeValue(new DataOutputStream(bytes), value);
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public <T> T deserialize(byte[] bytes)
+                throws IOException
+        {
+            return deserializeStream(new ByteArrayInputStream(bytes)).readObject();
+        }
+
+        @Override
+        public SerializationStream serializeStream(OutputStream out)
+        {
+            DataOutputStream dataOutput = new DataOutputStream(out);
+            return new SerializationStream()
+            {
+                @Override
+                public void writeObject(Object value)
+                        throws IOException
+                {
+                    writeValue(dataOutput, value);
+                }
+
+                @Override
+                public void flush()
+                        throws IOException
+                {
+                    dataOutput.flush();
+                }
+
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    dataOutput.close();
+                }
+            };
+        }
+
+        @Override
+        public DeserializationStream deserializeStream(InputStream in)
+        {
+            DataInputStream dataInput = new DataInputStream(in);
+            return new DeserializationStream()
+            {
+                @SuppressWarnings("unchecked")
+                @Override
+                public <T> T readObject()
+                        throws IOException
+                {
+                    int tag = dataInput.read();
+                    if (tag == -1) {
+                        throw new EOFException();
+                    }
+                    return (T) readValue(tag, dataInput);
+                }
+
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    dataInput.close();
+                }
+            };
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value)
+            throws IOException
+    {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> typeClass = value.getClass();
+        if (typeClass == Tuple2.class) {
+            Tuple2<?, ?> tuple2 = (Tuple2<?, ?>) value;
+            out.writeByte(TUPLE2);
+            writeValue(out, tuple2.f1());
+            writeValue(out, tuple2.f2());
+        }
+        else if (typeClass == Integer.class) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        }
+        else if (typeClass == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (typeClass == String.class) {
+            byte[] bytes = ((String) value).getBytes(UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if (typeClass == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (typeClass == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (typeClass == Short.class) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        }
+        else if (typeClass == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        }
+        else if (typeClass == Boolean.class) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (typeClass == Character.class) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        }
+        else if (typeClass == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTE_ARRAY);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if (typeClass == int[].class) {
+            int[] ints = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            out.writeInt(ints.length);
+            for (int i : ints) {
+                out.writeInt(i);
+            }
+        }
+        else if (typeClass == long[].class) {
+            long[] longs = (long[]) value;
+            out.writeByte(LONG_ARRAY);
+            out.writeInt(longs.length);
+            for (long l : longs) {
+                out.writeLong(l);
+            }
+        }
+        else if (typeClass == double[].class) {
+            double[] doubles = (double[]) value;
+            out.writeByte(DOUBLE_ARRAY);
+            out.writeInt(doubles.length);
+            for (double d : doubles) {
+                out.writeDouble(d);
+            }
+        }
+        else if (typeClass.isArray() && !typeClass.getComponentType().isPrimitive()) {
+            Object[] array = (Object[]) value;
+            out.writeByte(OBJECT_ARRAY);
+            out.writeUTF(typeClass.getComponentType().getName());
+            out.writeInt(array.length);
+            for (Object element : array) {
+                writeValue(out, element);
+            }
+        }
+        else {
+            byte[] bytes = JavaSerializer.javaSerialize(value);
+            out.writeByte(JAVA);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Object readValue(int tag, DataInputStream in)
+            throws IOException
+    {
+        switch (tag) {
+            case NULL:
+                return null;
+            case TUPLE2:
+                Object f1 = readValue(in.readByte(), in);
+                Object f2 = readValue(in.readByte(), in);
+                return Tuple2.of(f1, f2);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case STRING:
+                byte[] chars = new byte[in.readInt()];
+                in.readFully(chars);
+                return new String(chars, UTF_8);
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case SHORT:
+                return in.readShort();
+            case BYTE:
+                return in.readByte();
+            case BOOLEAN:
+                return in.readBoolean();
+            case CHAR:
+                return in.readChar();
+            case BYTE_ARRAY:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            case INT_ARRAY:
+                int[] ints = new int[in.readInt()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = in.readInt();
+                }
+                return ints;
+            case LONG_ARRAY:
+                long[] longs = new long[in.readInt()];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = in.readLong();
+                }
+                return longs;
+            case DOUBLE_ARRAY:
+                double[] doubles = new double[in.readInt()];
+                for (int i = 0; i < doubles.length; i++) {
+                    doubles[i] = in.readDouble();
+                }
+                return doubles;
+            case OBJECT_ARRAY:
+                Class<?> componentType = loadClass(in.readUTF());
+                Object[] array = (Object[]) Array.newInstance(componentType, in.readInt());
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readValue(in.readByte(), in);
+                }
+                return array;
+            case JAVA:
+                byte[] javaBytes = new byte[in.readInt()];
+                in.readFully(javaBytes);
+                return JavaSerializer.javaDeserialize(javaBytes);
+            default:
+                throw new IOException("unknown serializer type tag " + tag);
+        }
+    }
+
+    private static Class<?> loadClass(String className)
+            throws IOException
+    {
+        try {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            return Class.forName(className, false, classLoader != null ? classLoader : AstarteSerializer.class.getClassLoader());
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("not found array component class " + className, e);
+        }
+    }
+}
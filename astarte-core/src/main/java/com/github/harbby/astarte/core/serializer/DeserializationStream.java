@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import com.github.harbby.gadtry.base.Throwables;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public interface DeserializationStream
+        extends Closeable
+{
+    /**
+     * 流结束时抛出EOFException
+     */
+    public <T> T readObject()
+            throws IOException;
+
+    public default <T> Iterator<T> asIterator()
+    {
+        return new Iterator<T>()
+        {
+            private T next;
+            private boolean ready = false;
+            private boolean finished = false;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (ready) {
+                    return true;
+                }
+                if (finished) {
+                    return false;
+                }
+                try {
+                    next = readObject();
+                    ready = true;
+                    return true;
+                }
+                catch (EOFException e) {
+                    finished = true;
+                    return false;
+                }
+                catch (IOException e) {
+                    throw Throwables.throwsThrowable(e);
+                }
+            }
+
+            @Override
+            public T next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ready = false;
+                T value = next;
+                next = null;
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import com.github.harbby.gadtry.base.Throwables;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+/**
+ * jdk序列化, 兼容所有实现了Serializable的对象
+ */
+public class JavaSerializer
+        implements Serializer
+{
+    /**
+     * ObjectOutputStream会缓存写过的对象引用, 需定期reset防止内存泄漏
+     */
+    private static final int RESET_INTERVAL = 100;
+
+    @Override
+    public SerializerInstance newInstance()
+    {
+        return new JavaSerializerInstance();
+    }
+
+    static byte[] javaSerialize(Object value)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutput = new ObjectOutputStream(bytes)) {
+            objectOutput.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T javaDeserialize(byte[] bytes)
+            throws IOException
+    {
+        try (ObjectInputStream objectInput = new ContextObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (T) objectInput.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    private static class JavaSerializerInstance
+            implements SerializerInstance
+    {
+        @Override
+        public byte[] serialize(Object value)
+                throws IOException
+        {
+            return javaSerialize(value);
+        }
+
+        @Override
+        public <T> T deserialize(byte[] bytes)
+                throws IOException
+        {
+            return javaDeserialize(bytes);
+        }
+
+        @Override
+        public SerializationStream serializeStream(OutputStream out)
+                throws IOException
+        {
+            ObjectOutputStream objectOutput = new ObjectOutputStream(out);
+            return new SerializationStream()
+            {
+                private int counter = 0;
+
+                @Override
+                public void writeObject(Object value)
+                        throws IOException
+                {
+                    objectOutput.writeObject(value);
+                    if (++counter >= RESET_INTERVAL) {
+                        objectOutput.reset();
+                        counter = 0;
+                    }
+                    objectOutput.flush();
+                }
+
+                @Override
+                public void flush()
+                        throws IOException
+                {
+                    objectOutput.flush();
+                }
+
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    objectOutput.close();
+                }
+            };
+        }
+
+        @Override
+        public DeserializationStream deserializeStream(InputStream in)
+                throws IOException
+        {
+            ObjectInputStream objectInput = new ContextObjectInputStream(in);
+            return new DeserializationStream()
+            {
+                @SuppressWarnings("unchecked")
+                @Override
+                public <T> T readObject()
+                        throws IOException
+                {
+                    try {
+                        return (T) objectInput.readObject();
+                    }
+                    catch (ClassNotFoundException e) {
+                        throw Throwables.throwsThrowable(e);
+                    }
+                }
+
+                @Override
+                public void close()
+                        throws IOException
+                {
+                    objectInput.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * 优先使用线程上下文ClassLoader加载用户类
+     */
+    private static class ContextObjectInputStream
+            extends ObjectInputStream
+    {
+        private ContextObjectInputStream(InputStream in)
+                throws IOException
+        {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException
+        {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, classLoader);
+                }
+                catch (ClassNotFoundException ignored) {
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
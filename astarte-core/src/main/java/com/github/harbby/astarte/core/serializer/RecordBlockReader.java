@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.compress.CompressionCodec;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.base.Throwables;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 读取RecordBlockWriter写出的length字节的块数据, 不负责关闭输入流
+ */
+public class RecordBlockReader<T>
+        implements Iterator<T>
+{
+    private final SerializerInstance serializer;
+    private final CompressionCodec codec;
+    private final DataInputStream input;
+    private final TaskMetrics metrics;
+    private long remaining;
+    private Iterator<T> block = Iterators.empty();
+
+    public RecordBlockReader(SerializerInstance serializer, CompressionCodec codec, DataInputStream input, long length, TaskMetrics metrics)
+    {
+        this.serializer = serializer;
+        this.codec = codec;
+        this.input = input;
+        this.remaining = length;
+        this.metrics = metrics;
+    }
+
+    public static <T> Iterator<T> readBlock(SerializerInstance serializer, CompressionCodec codec, byte[] block, TaskMetrics metrics)
+    {
+        try {
+            long startTime = System.nanoTime();
+            byte[] bytes = codec.decompress(block);
+            metrics.incDecompressNanos(System.nanoTime() - startTime);
+            return serializer.deserializeStream(new ByteArrayInputStream(bytes)).asIterator();
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (!block.hasNext()) {
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                remaining -= bytes.length + 4;
+                block = readBlock(serializer, codec, bytes, metrics);
+            }
+            catch (IOException e) {
+                throw Throwables.throwsThrowable(e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public T next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return block.next();
+    }
+
+    /**
+     * 尚未读取的块字节数
+     */
+    public long getRemaining()
+    {
+        return remaining;
+    }
+}
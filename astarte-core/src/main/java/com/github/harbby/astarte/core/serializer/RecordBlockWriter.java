@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.compress.CompressionCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 按块写出序列化后的记录, 每块格式为[int compressedLength][compressed bytes]
+ * <p>
+ * 块内为一个独立的序列化流, 可以脱离前后的块单独解压和反序列化. 缓冲的数据达到blockSize后压缩并输出一个块
+ */
+public class RecordBlockWriter
+{
+    public static final int DEFAULT_BLOCK_SIZE = 32 * 1024;
+
+    private final SerializerInstance serializer;
+    private final CompressionCodec codec;
+    private final DataOutputStream output;
+    private final int blockSize;
+    private final BlockBuffer blockBuffer;
+    private final TaskMetrics metrics;
+    private SerializationStream serializationStream;
+    private long bytesWritten = 0;
+
+    public RecordBlockWriter(SerializerInstance serializer, CompressionCodec codec, OutputStream output, int blockSize, TaskMetrics metrics)
+    {
+        this.serializer = serializer;
+        this.codec = codec;
+        this.output = new DataOutputStream(output);
+        this.blockSize = blockSize;
+        this.blockBuffer = new BlockBuffer(Math.min(blockSize, 1024));
+        this.metrics = metrics;
+    }
+
+    public void write(Object record)
+            throws IOException
+    {
+        if (serializationStream == null) {
+            serializationStream = serializer.serializeStream(blockBuffer);
+        }
+        serializationStream.writeObject(record);
+        if (blockBuffer.size() >= blockSize) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * 输出当前未满的块, 分区边界处需要调用
+     */
+    public void flushBlock()
+            throws IOException
+    {
+        if (serializationStream == null) {
+            return;
+        }
+        serializationStream.close();
+        serializationStream = null;
+        long startTime = System.nanoTime();
+        byte[] compressed = codec.compress(blockBuffer.getBuffer(), 0, blockBuffer.size());
+        metrics.incCompress(blockBuffer.size(), compressed.length, System.nanoTime() - startTime);
+        output.writeInt(compressed.length);
+        output.write(compressed);
+        bytesWritten += compressed.length + 4;
+        blockBuffer.reset();
+    }
+
+    /**
+     * 尚未输出的块大小(压缩前)
+     */
+    public int getPendingBytes()
+    {
+        return blockBuffer.size();
+    }
+
+    /**
+     * 已输出的字节数, 包含块头
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    private static class BlockBuffer
+            extends ByteArrayOutputStream
+    {
+        private BlockBuffer(int size)
+        {
+            super(size);
+        }
+
+        private byte[] getBuffer()
+        {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.AstarteException;
+
+import java.io.Serializable;
+
+import static com.github.harbby.astarte.core.api.Constant.SERIALIZER_CLASS;
+
+/**
+ * 可插拔的序列化器, 通过AstarteConf的serializer.class配置
+ * <p>
+ * Serializer本身会随Operator一起序列化到executor, 实际的编解码由线程不安全的SerializerInstance完成
+ */
+public interface Serializer
+        extends Serializable
+{
+    public SerializerInstance newInstance();
+
+    public static Serializer create(AstarteConf conf)
+    {
+        String className = conf.getString(SERIALIZER_CLASS, AstarteSerializer.class.getName());
+        try {
+            Class<?> serializerClass = Class.forName(className, true, Thread.currentThread().getContextClassLoader());
+            return (Serializer) serializerClass.newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException e) {
+            throw new AstarteException("create serializer " + className + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 非线程安全, 每个task或每个读写流各自创建
+ */
+public interface SerializerInstance
+{
+    public byte[] serialize(Object value)
+            throws IOException;
+
+    public <T> T deserialize(byte[] bytes)
+            throws IOException;
+
+    /**
+     * 返回的流不能在内部缓冲数据, 每次writeObject都需要直接写入out
+     */
+    public SerializationStream serializeStream(OutputStream out)
+            throws IOException;
+
+    public DeserializationStream deserializeStream(InputStream in)
+            throws IOException;
+}
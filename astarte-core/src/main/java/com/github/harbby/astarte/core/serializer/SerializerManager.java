@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.compress.CompressionCodec;
+import com.github.harbby.gadtry.base.Throwables;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+
+import static com.github.harbby.astarte.core.api.Constant.SHUFFLE_COMPRESS_BLOCK_SIZE;
+import static com.github.harbby.astarte.core.api.Constant.SHUFFLE_COMPRESS_CODEC;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * 组合序列化器与块压缩算法, 统一创建shuffle及spill文件的块读写器
+ */
+public class SerializerManager
+        implements Serializable
+{
+    private final Serializer serializer;
+    private final CompressionCodec codec;
+    private final int blockSize;
+
+    public SerializerManager(Serializer serializer, CompressionCodec codec, int blockSize)
+    {
+        this.serializer = requireNonNull(serializer, "serializer is null");
+        this.codec = requireNonNull(codec, "codec is null");
+        this.blockSize = blockSize;
+    }
+
+    public static SerializerManager create(AstarteConf conf)
+    {
+        return new SerializerManager(Serializer.create(conf),
+                CompressionCodec.create(conf.getString(SHUFFLE_COMPRESS_CODEC, "lz4")),
+                conf.getInt(SHUFFLE_COMPRESS_BLOCK_SIZE, RecordBlockWriter.DEFAULT_BLOCK_SIZE));
+    }
+
+    public Serializer getSerializer()
+    {
+        return serializer;
+    }
+
+    public CompressionCodec getCodec()
+    {
+        return codec;
+    }
+
+    public RecordBlockWriter newBlockWriter(OutputStream output, TaskMetrics metrics)
+    {
+        return new RecordBlockWriter(serializer.newInstance(), codec, output, blockSize, metrics);
+    }
+
+    public <T> RecordBlockReader<T> newBlockReader(DataInputStream input, long length, TaskMetrics metrics)
+    {
+        return new RecordBlockReader<>(serializer.newInstance(), codec, input, length, metrics);
+    }
+
+    /**
+     * 解压网络收到的单个块(不含块头), 返回的ByteBuf由调用方release
+     */
+    public ByteBuf decompressBlock(ByteBuf block, ByteBufAllocator allocator, TaskMetrics metrics)
+    {
+        try {
+            long startTime = System.nanoTime();
+            ByteBuf data = codec.decompress(block, allocator);
+            metrics.incDecompressNanos(System.nanoTime() - startTime);
+            return data;
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    /**
+     * 直接从解压后的ByteBuf反序列化记录, 不拷贝数据, 也不负责release
+     */
+    public <T> Iterator<T> readBlock(ByteBuf data)
+    {
+        try {
+            return serializer.newInstance().deserializeStream(new ByteBufInputStream(data)).asIterator();
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.utils;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * k路归并, 输入的每个Iterator必须已经有序
+ * 内存中同时只保留每路的一条记录, 每输出一条记录复杂度为O(log m)
+ */
+public class MergeSortedIterator<T>
+        implements Iterator<T>
+{
+    private final PriorityQueue<Head<T>> queue;
+
+    public MergeSortedIterator(Iterable<? extends Iterator<? extends T>> iterators, Comparator<? super T> comparator)
+    {
+        requireNonNull(comparator, "comparator is null");
+        this.queue = new PriorityQueue<>((x, y) -> comparator.compare(x.value, y.value));
+        for (Iterator<? extends T> iterator : iterators) {
+            if (iterator.hasNext()) {
+                queue.add(new Head<>(iterator.next(), iterator));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public T next()
+    {
+        Head<T> head = queue.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        T value = head.value;
+        if (head.iterator.hasNext()) {
+            head.value = head.iterator.next();
+            queue.add(head);
+        }
+        return value;
+    }
+
+    private static class Head<T>
+    {
+        private final Iterator<? extends T> iterator;
+        private T value;
+
+        private Head(T value, Iterator<? extends T> iterator)
+        {
+            this.value = value;
+            this.iterator = iterator;
+        }
+    }
+}
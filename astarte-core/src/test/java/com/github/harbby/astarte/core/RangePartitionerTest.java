@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core;
+
+import com.github.harbby.astarte.core.api.function.Comparator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RangePartitionerTest
+{
+    private static <K> void checkSameAsGeneric(RangePartitioner partitioner, K[] bounds, Comparator<K> ordering, K[] keys)
+    {
+        RangePartitioner generic = new RangePartitioner.ObjectRangePartitioner<>(partitioner.numPartitions(), bounds, ordering::compare);
+        for (K key : keys) {
+            Assert.assertEquals(generic.getPartition(key), partitioner.getPartition(key));
+        }
+    }
+
+    @Test
+    public void intBoundsTest()
+    {
+        Integer[] bounds = {-5, 0, 3, 3, 10};
+        RangePartitioner partitioner = RangePartitioner.of(6, bounds, Comparator.naturalOrder());
+        Assert.assertTrue(partitioner instanceof RangePartitioner.IntRangePartitioner);
+        Assert.assertEquals(0, partitioner.getPartition(-6));
+        Assert.assertEquals(1, partitioner.getPartition(-5));
+        Assert.assertEquals(4, partitioner.getPartition(3));
+        Assert.assertEquals(5, partitioner.getPartition(Integer.MAX_VALUE));
+
+        Random random = new Random(0);
+        Integer[] keys = new Integer[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(30) - 15;
+        }
+        checkSameAsGeneric(partitioner, bounds, Comparator.naturalOrder(), keys);
+    }
+
+    @Test
+    public void reverseLongBoundsTest()
+    {
+        Long[] bounds = {100L, 50L, -1L};
+        RangePartitioner partitioner = RangePartitioner.of(4, bounds, Comparator.reverseOrder());
+        Assert.assertTrue(partitioner instanceof RangePartitioner.LongRangePartitioner);
+        Assert.assertEquals(0, partitioner.getPartition(101L));
+        Assert.assertEquals(1, partitioner.getPartition(100L));
+        Assert.assertEquals(3, partitioner.getPartition(-2L));
+        checkSameAsGeneric(partitioner, bounds, Comparator.reverseOrder(), new Long[] {200L, 75L, 50L, 0L, -1L, -100L});
+    }
+
+    @Test
+    public void stringBoundsTest()
+    {
+        String[] bounds = {"b", "ba", "c", "\uD83D\uDE00"};
+        RangePartitioner partitioner = RangePartitioner.of(5, bounds, Comparator.naturalOrder());
+        Assert.assertTrue(partitioner instanceof RangePartitioner.StringRangePartitioner);
+        String[] keys = {"", "a", "b", "b\u0000", "ba", "bb", "c", "\uE000", "\uFFFF", "\uD83D"};
+        checkSameAsGeneric(partitioner, bounds, Comparator.naturalOrder(), keys);
+    }
+
+    @Test
+    public void customOrderingUseGenericTest()
+    {
+        Integer[] bounds = {10, 20};
+        RangePartitioner partitioner = RangePartitioner.of(3, bounds, (x, y) -> Integer.compare(x, y));
+        Assert.assertTrue(partitioner instanceof RangePartitioner.ObjectRangePartitioner);
+        Assert.assertEquals(0, partitioner.getPartition(9));
+        Assert.assertEquals(1, partitioner.getPartition(10));
+        Assert.assertEquals(2, partitioner.getPartition(20));
+    }
+}
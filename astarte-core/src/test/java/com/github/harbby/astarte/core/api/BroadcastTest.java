@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api;
+
+import com.github.harbby.astarte.core.BatchContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class BroadcastTest
+{
+    private final BatchContext mppContext = BatchContext.builder()
+            .local(2)
+            .getOrCreate();
+
+    @Test
+    public void broadcastValueTest()
+    {
+        HashMap<Integer, String> dict = new HashMap<>();
+        dict.put(1, "one");
+        dict.put(2, "two");
+        Broadcast<HashMap<Integer, String>> broadcast = mppContext.broadcast(dict);
+        List<String> result = mppContext.makeDataSet(Arrays.asList(1, 2, 3), 2)
+                .map(x -> broadcast.getValue().getOrDefault(x, "none"))
+                .collect();
+        Assert.assertEquals(Arrays.asList("one", "two", "none"), result);
+        broadcast.destroy();
+    }
+
+    @Test
+    public void destroyTest()
+    {
+        Broadcast<String> broadcast = mppContext.broadcast("value");
+        Assert.assertEquals("value", broadcast.getValue());
+        broadcast.destroy();
+        try {
+            mppContext.makeDataSet(Arrays.asList(1, 2), 2)
+                    .map(x -> broadcast.getValue())
+                    .collect();
+            Assert.fail();
+        }
+        catch (AstarteException e) {
+            Assert.assertTrue(e.getCause() != null);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.api;
+
+import com.github.harbby.astarte.core.HashPartitioner;
+import com.github.harbby.astarte.core.Partitioner;
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.compress.Lz4Codec;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.runtime.ShuffleManagerService;
+import com.github.harbby.astarte.core.serializer.AstarteSerializer;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+public class ShuffleWriterTest
+{
+    private static final int JOB_ID = 1;
+    private static final int SHUFFLE_ID = 2;
+    private static final int MAP_ID = 3;
+    private static final int REDUCE_NUM = 4;
+
+    private final SerializerManager serializerManager = new SerializerManager(new AstarteSerializer(), new Lz4Codec(), RecordBlockWriter.DEFAULT_BLOCK_SIZE);
+
+    private static long[] readIndexFile(File indexFile)
+            throws IOException
+    {
+        long[] offsets = new long[(int) (indexFile.length() / Long.BYTES)];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(indexFile))) {
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = input.readLong();
+            }
+        }
+        return offsets;
+    }
+
+    @Test
+    public void consolidatedShuffleWriterSpillAndMergeTest()
+            throws IOException
+    {
+        String executorUUID = UUID.randomUUID().toString();
+        File jobDir = new File(ShuffleManagerService.getShuffleWorkDir(executorUUID), String.valueOf(JOB_ID));
+        //execution内存很小, 写出过程中会多次溢写
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(new MemoryManager(64 * 1024, 0.5));
+        TaskMetrics metrics = new TaskMetrics();
+        Partitioner partitioner = new HashPartitioner(REDUCE_NUM);
+        List<List<Tuple2<Integer, Long>>> expected = new ArrayList<>();
+        List<Tuple2<Integer, Long>> records = new ArrayList<>();
+        for (int reduceId = 0; reduceId < REDUCE_NUM; reduceId++) {
+            expected.add(new ArrayList<>());
+        }
+        for (int i = 0; i < 100_000; i++) {
+            //reduce 1为空分区
+            int key = i % 10;
+            if (partitioner.getPartition(key) != 1) {
+                Tuple2<Integer, Long> record = Tuple2.of(key, (long) i);
+                records.add(record);
+                expected.get(partitioner.getPartition(key)).add(record);
+            }
+        }
+
+        ShuffleWriter.ConsolidatedShuffleWriter<Integer, Long> shuffleWriter = new ShuffleWriter.ConsolidatedShuffleWriter<>(executorUUID, JOB_ID,
+                SHUFFLE_ID, MAP_ID, 0, partitioner, serializerManager, metrics, taskMemoryManager);
+        File indexFile = shuffleWriter.getIndexFile(SHUFFLE_ID, MAP_ID);
+        File dataFile = shuffleWriter.getDataFile(SHUFFLE_ID, MAP_ID);
+        try {
+            //之前残留的index文件被整体替换
+            try (FileOutputStream output = new FileOutputStream(indexFile)) {
+                output.write(new byte[] {1, 2, 3});
+            }
+            shuffleWriter.write(records.iterator());
+            shuffleWriter.close();
+            Assert.assertTrue(metrics.getSpilledBytes() > 0);
+            Assert.assertEquals(0, taskMemoryManager.getMemoryManager().getExecutionMemoryUsed());
+            //只剩data和index文件, spill文件和临时index文件都已删除
+            String[] files = jobDir.list();
+            Arrays.sort(files);
+            Assert.assertArrayEquals(new String[] {dataFile.getName(), indexFile.getName()}, files);
+
+            //index为numPartitions + 1个递增的offset, 最后一个等于data文件长度
+            long[] offsets = readIndexFile(indexFile);
+            Assert.assertEquals(REDUCE_NUM + 1, offsets.length);
+            Assert.assertEquals(0, offsets[0]);
+            Assert.assertEquals(dataFile.length(), offsets[REDUCE_NUM]);
+            long[] partitionLengths = shuffleWriter.getPartitionLengths();
+            for (int reduceId = 0; reduceId < REDUCE_NUM; reduceId++) {
+                Assert.assertEquals(offsets[reduceId + 1] - offsets[reduceId], partitionLengths[reduceId]);
+            }
+            Assert.assertEquals(0, partitionLengths[1]);
+            Assert.assertEquals(dataFile.length(), metrics.getShuffleWriteBytes());
+
+            //每个reduce分区按写入顺序读回, 多个spill文件的同一分区合并为连续的一段
+            ShuffleManagerService shuffleManagerService = new ShuffleManagerService(executorUUID);
+            for (int reduceId = 0; reduceId < REDUCE_NUM; reduceId++) {
+                List<Tuple2<Integer, Long>> actual = new ArrayList<>();
+                shuffleManagerService.<Integer, Long>getShuffleDataIterator(JOB_ID, SHUFFLE_ID, reduceId, reduceId + 1, serializerManager, new TaskMetrics())
+                        .forEachRemaining(actual::add);
+                Assert.assertEquals(expected.get(reduceId), actual);
+            }
+        }
+        finally {
+            FileUtils.deleteDirectory(ShuffleManagerService.getShuffleWorkDir(executorUUID));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.compress;
+
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.serializer.AstarteSerializer;
+import com.github.harbby.astarte.core.serializer.RecordBlockReader;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class CompressionCodecTest
+{
+    private static void checkRoundTrip(CompressionCodec codec, byte[] data)
+            throws IOException
+    {
+        byte[] compressed = codec.compress(data, 0, data.length);
+        Assert.assertArrayEquals(data, codec.decompress(compressed));
+    }
+
+    @Test
+    public void lz4RoundTripTest()
+            throws IOException
+    {
+        CompressionCodec codec = new Lz4Codec();
+        Random random = new Random(0);
+        byte[] randomBytes = new byte[100_000];
+        random.nextBytes(randomBytes);
+        byte[] zeros = new byte[100_000];
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("word").append(random.nextInt(50)).append(' ');
+        }
+
+        checkRoundTrip(codec, new byte[0]);
+        checkRoundTrip(codec, "a".getBytes(StandardCharsets.UTF_8));
+        checkRoundTrip(codec, "abcabcabcabcabcabcabc".getBytes(StandardCharsets.UTF_8));
+        checkRoundTrip(codec, randomBytes);
+        checkRoundTrip(codec, zeros);
+        checkRoundTrip(codec, text.toString().getBytes(StandardCharsets.UTF_8));
+        for (int length = 0; length < 300; length++) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) random.nextInt(4);
+            }
+            checkRoundTrip(codec, bytes);
+        }
+    }
+
+    @Test
+    public void lz4CompressRatioTest()
+            throws IOException
+    {
+        CompressionCodec codec = new Lz4Codec();
+        byte[] zeros = new byte[100_000];
+        Assert.assertTrue(codec.compress(zeros, 0, zeros.length).length < 1000);
+
+        //不可压缩的数据只增加固定的块头
+        byte[] randomBytes = new byte[100_000];
+        new Random(1).nextBytes(randomBytes);
+        Assert.assertEquals(randomBytes.length + 5, codec.compress(randomBytes, 0, randomBytes.length).length);
+
+        byte[] data = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 3, 20), codec.decompress(codec.compress(data, 3, 17)));
+    }
+
+    @Test
+    public void compressedRecordBlockTest()
+            throws IOException
+    {
+        TaskMetrics metrics = new TaskMetrics();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordBlockWriter writer = new RecordBlockWriter(new AstarteSerializer().newInstance(), new Lz4Codec(), bytes, 1024, metrics);
+        for (int i = 0; i < 10_000; i++) {
+            writer.write(Tuple2.of("key" + (i % 100), i % 7));
+        }
+        writer.flushBlock();
+        Assert.assertEquals(bytes.size(), writer.getBytesWritten());
+        Assert.assertTrue(metrics.getCompressionRatio() < 0.5);
+
+        List<Tuple2<String, Integer>> result = new ArrayList<>();
+        new RecordBlockReader<Tuple2<String, Integer>>(new AstarteSerializer().newInstance(), new Lz4Codec(),
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size(), metrics).forEachRemaining(result::add);
+        Assert.assertEquals(10_000, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            Assert.assertEquals(Tuple2.of("key" + (i % 100), i % 7), result.get(i));
+        }
+    }
+
+    @Test
+    public void decompressByteBufTest()
+            throws IOException
+    {
+        byte[] text = "abcabcabcabcabcabcabcabcabcabc".getBytes(StandardCharsets.UTF_8);
+        byte[] randomBytes = new byte[1000];
+        new Random(2).nextBytes(randomBytes);
+        for (CompressionCodec codec : Arrays.asList(new Lz4Codec(), new NoneCodec())) {
+            for (byte[] data : Arrays.asList(text, randomBytes)) {
+                byte[] compressed = codec.compress(data, 0, data.length);
+                //模拟网络块: 前后有其他数据, 分别放在堆内和堆外的池化buffer中
+                for (boolean direct : new boolean[] {false, true}) {
+                    ByteBuf buffer = direct ? PooledByteBufAllocator.DEFAULT.directBuffer() : PooledByteBufAllocator.DEFAULT.heapBuffer();
+                    buffer.writeInt(7).writeBytes(compressed).writeInt(9);
+                    ByteBuf block = buffer.slice(4, compressed.length);
+                    ByteBuf decompressed = codec.decompress(block, PooledByteBufAllocator.DEFAULT);
+                    Assert.assertEquals(0, block.readerIndex());
+                    Assert.assertEquals(Unpooled.wrappedBuffer(data), decompressed);
+                    decompressed.release();
+                    Assert.assertEquals(1, buffer.refCnt());
+                    buffer.release();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void corruptedByteBufTest()
+    {
+        byte[] data = "abcabcabcabcabcabcabcabcabcabc".getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = new Lz4Codec().compress(data, 0, data.length);
+        //声明的原始长度小于实际长度, 解压时不能越界写到池化数组中其他buffer的区域
+        compressed[4] = 10;
+        try {
+            new Lz4Codec().decompress(Unpooled.wrappedBuffer(compressed), PooledByteBufAllocator.DEFAULT);
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertTrue(e.getMessage().startsWith("corrupted lz4 block"));
+        }
+    }
+}
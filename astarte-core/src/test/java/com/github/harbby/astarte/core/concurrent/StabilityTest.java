@@ -18,6 +18,7 @@ package com.github.harbby.astarte.core.concurrent;
 import com.github.harbby.astarte.core.BatchContext;
 import com.github.harbby.astarte.core.api.DataSet;
 import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.gadtry.base.Throwables;
 import com.github.harbby.gadtry.collection.MutableMap;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 import org.junit.Assert;
@@ -25,9 +26,15 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class StabilityTest
 {
@@ -70,4 +77,86 @@ public class StabilityTest
             Assert.assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), indexs);
         }
     }
+
+    @Test
+    public void sortByKeyCollectOrderlyTest()
+    {
+        KvDataSet<String, Integer> ds = mppContext.makeKvDataSet(Arrays.asList(
+                Tuple2.of("e", 1),
+                Tuple2.of("b", 2),
+                Tuple2.of("d", 3),
+                Tuple2.of("a", 4),
+                Tuple2.of("c", 5),
+                Tuple2.of("b", 6)), 3);
+        for (int i = 0; i < 10; i++) {
+            List<String> keys = ds.sortByKey(String::compareTo, 2).keys().collect();
+            Assert.assertEquals(Arrays.asList("a", "b", "b", "c", "d", "e"), keys);
+        }
+    }
+
+    @Test
+    public void concurrentShuffleFetchTest()
+    {
+        //每个reduce task同时从所有executor拉取多个数据块, 按到达顺序合并
+        List<Integer> data = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            data.add(i);
+        }
+        Map<Integer, Long> rs = mppContext.makeDataSet(data, 4)
+                .kvDataSet(x -> new Tuple2<>(x % 10, (long) x))
+                .reduceByKey(Long::sum, 3)
+                .collectMap();
+        Assert.assertEquals(10, rs.size());
+        for (int key = 0; key < 10; key++) {
+            Assert.assertEquals(499_950_000L + key * 10_000L, rs.get(key).longValue());
+        }
+    }
+
+    @Test
+    public void taskRetryTest()
+    {
+        //只有第一个创建标记文件的task attempt失败, 重试后job正常完成
+        File marker = new File(System.getProperty("java.io.tmpdir"), "astarte-task-retry-" + System.nanoTime());
+        String path = marker.getPath();
+        DataSet<String> ds = mppContext.makeDataSet(Arrays.asList("a", "b", "c", "b"), 2)
+                .mapPartition(iterator -> {
+                    try {
+                        if (new File(path).createNewFile()) {
+                            throw new IllegalStateException("first attempt failed");
+                        }
+                    }
+                    catch (IOException e) {
+                        throw Throwables.throwsThrowable(e);
+                    }
+                    return iterator;
+                });
+        Map<String, Integer> rs = ds.kvDataSet(x -> new Tuple2<>(x, 1)).reduceByKey(Integer::sum, 2).collectMap();
+        Assert.assertTrue(marker.delete());
+        Assert.assertEquals(MutableMap.of("a", 1, "b", 2, "c", 1), rs);
+    }
+
+    @Test
+    public void concurrentJobsTest()
+            throws Exception
+    {
+        //多个线程同时在同一个context上提交shuffle job, 各job的shuffle输出和task事件互不干扰
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Map<Integer, Integer>>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final int multiple = i + 1;
+                futures.add(pool.submit(() -> mppContext.makeDataSet(Arrays.asList(1, 2, 3, 1, 2, 1), 3)
+                        .kvDataSet(x -> new Tuple2<>(x, multiple))
+                        .reduceByKey(Integer::sum, 2)
+                        .collectMap()));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                int multiple = i + 1;
+                Assert.assertEquals(MutableMap.of(1, 3 * multiple, 2, 2 * multiple, 3, multiple), futures.get(i).get());
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
 }
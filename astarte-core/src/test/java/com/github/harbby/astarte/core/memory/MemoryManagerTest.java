@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.memory;
+
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class MemoryManagerTest
+{
+    private static class TestConsumer
+            extends MemoryConsumer
+    {
+        private int spillCount = 0;
+
+        private TestConsumer(TaskMemoryManager taskMemoryManager)
+        {
+            super(taskMemoryManager);
+        }
+
+        @Override
+        public long spill(long required, MemoryConsumer trigger)
+        {
+            spillCount++;
+            long released = getUsed();
+            freeMemory(released);
+            return released;
+        }
+    }
+
+    @Test
+    public void spillOtherConsumerTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(1000, 0.5);
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(memoryManager);
+        TestConsumer consumer1 = new TestConsumer(taskMemoryManager);
+        TestConsumer consumer2 = new TestConsumer(taskMemoryManager);
+
+        Assert.assertEquals(800, consumer1.acquireMemory(800));
+        Assert.assertEquals(500, consumer2.acquireMemory(500));
+        Assert.assertEquals(1, consumer1.spillCount);
+        Assert.assertEquals(0, consumer1.getUsed());
+        Assert.assertEquals(0, consumer2.spillCount);
+
+        //申请者自身不会被要求溢写
+        Assert.assertEquals(500, consumer2.acquireMemory(800));
+        Assert.assertEquals(0, consumer2.spillCount);
+        Assert.assertEquals(1000, memoryManager.getExecutionMemoryUsed());
+
+        Assert.assertEquals(1000, taskMemoryManager.cleanUpAllAllocatedMemory());
+        Assert.assertEquals(0, memoryManager.getExecutionMemoryUsed());
+    }
+
+    @Test
+    public void storageMemoryTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(1000, 0.5);
+        Assert.assertTrue(memoryManager.acquireStorageMemory(400));
+        //storage最多使用storageRegionSize
+        Assert.assertFalse(memoryManager.acquireStorageMemory(200));
+
+        TestConsumer consumer = new TestConsumer(new TaskMemoryManager(memoryManager));
+        Assert.assertEquals(600, consumer.acquireMemory(1000));
+        Assert.assertFalse(memoryManager.acquireStorageMemory(50));
+        memoryManager.releaseStorageMemory(400);
+        Assert.assertEquals(400, consumer.acquireMemory(1000));
+    }
+
+    @Test
+    public void fairShareTest()
+            throws Exception
+    {
+        MemoryManager memoryManager = new MemoryManager(1000, 0.5);
+        TestConsumer consumer1 = new TestConsumer(new TaskMemoryManager(memoryManager));
+        TestConsumer consumer2 = new TestConsumer(new TaskMemoryManager(memoryManager));
+        Assert.assertEquals(1000, consumer1.acquireMemory(1000));
+
+        //第二个task至少要拿到1/2N才会返回, 在第一个task释放之前会一直阻塞
+        CompletableFuture<Long> future = CompletableFuture.supplyAsync(() -> consumer2.acquireMemory(400));
+        TimeUnit.MILLISECONDS.sleep(200);
+        Assert.assertFalse(future.isDone());
+        consumer1.freeMemory(600);
+        Assert.assertEquals(400L, (long) future.get(10, TimeUnit.SECONDS));
+
+        //两个task活跃时, 每个task最多获得1/2
+        Assert.assertEquals(100, consumer1.acquireMemory(500));
+        Assert.assertEquals(500, consumer1.getUsed());
+        Assert.assertEquals(400, consumer2.getUsed());
+    }
+
+    @Test
+    public void sizeEstimatorTest()
+    {
+        Assert.assertEquals(24, SizeEstimator.estimate(1L));
+        Assert.assertEquals(16 + 24, SizeEstimator.estimate(new long[3]));
+        long tupleSize = SizeEstimator.estimate(Tuple2.of(1L, "abc"));
+        Assert.assertTrue(tupleSize > SizeEstimator.estimate("abc") + 24);
+
+        Object[] array = new Object[10_000];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (long) i;
+        }
+        Assert.assertEquals(16 + 4 * 10_000 + 24 * 10_000, SizeEstimator.estimate(array));
+    }
+}
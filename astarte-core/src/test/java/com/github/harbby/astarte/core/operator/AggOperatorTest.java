@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.BatchContext;
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class AggOperatorTest
+{
+    private final BatchContext mppContext = BatchContext.builder().local(2).getOrCreate();
+    private final TaskContext taskContext = TaskContext.of(1, 0, 0, Collections.emptyMap(), null, UUID.randomUUID().toString(),
+            new TaskMemoryManager(new MemoryManager(64 << 20, 0.5)));
+
+    private List<Tuple2<Integer, Long>> combine(List<Tuple2<Integer, Long>> data)
+    {
+        return combine(data, taskContext);
+    }
+
+    private List<Tuple2<Integer, Long>> combine(List<Tuple2<Integer, Long>> data, TaskContext taskContext)
+    {
+        @SuppressWarnings("unchecked")
+        Operator<Tuple2<Integer, Long>> source = (Operator<Tuple2<Integer, Long>>) mppContext.makeKvDataSet(data, 1);
+        AggOperator<Integer, Long> combine = new AggOperator<>(source, Long::sum, true);
+        List<Tuple2<Integer, Long>> output = new ArrayList<>();
+        Iterator<Tuple2<Integer, Long>> iterator = combine.compute(source.getPartitions()[0], taskContext);
+        iterator.forEachRemaining(output::add);
+        return output;
+    }
+
+    private static Map<Integer, Long> sum(List<Tuple2<Integer, Long>> data)
+    {
+        Map<Integer, Long> sums = new HashMap<>();
+        data.forEach(x -> sums.merge(x.f1(), x.f2(), Long::sum));
+        return sums;
+    }
+
+    @Test
+    public void bypassCombineForUniqueKeysTest()
+    {
+        //key几乎不重复, 只有key 0是热点key
+        List<Tuple2<Integer, Long>> data = new ArrayList<>();
+        for (int i = 1; i <= 150_000; i++) {
+            data.add(Tuple2.of(i % 20 == 0 ? 0 : i, 1L));
+        }
+        List<Tuple2<Integer, Long>> output = combine(data);
+        Assert.assertTrue(taskContext.getTaskMetrics().isCombineBypassed());
+        Assert.assertEquals(100_000, taskContext.getTaskMetrics().getCombineSampledRecords());
+        //跳过combine后热点key仍然在内存中合并为一条记录
+        Assert.assertEquals(sum(data).size(), output.size());
+        Assert.assertEquals(sum(data), sum(output));
+        Assert.assertEquals(7500L, (long) sum(output).get(0));
+    }
+
+    @Test
+    public void combineLateHotKeyAfterBypassTest()
+    {
+        //采样范围内key都不重复, 之后key -1占一半记录
+        List<Tuple2<Integer, Long>> data = new ArrayList<>();
+        for (int i = 1; i <= 100_000; i++) {
+            data.add(Tuple2.of(i, 1L));
+        }
+        for (int i = 100_001; i <= 200_000; i++) {
+            data.add(Tuple2.of(i % 2 == 0 ? -1 : i, 1L));
+        }
+        List<Tuple2<Integer, Long>> output = combine(data);
+        Assert.assertTrue(taskContext.getTaskMetrics().isCombineBypassed());
+        Assert.assertEquals(sum(data), sum(output));
+        //热点key被发现前直接输出的记录数有上限, 之后都在内存中合并
+        long hotKeyRecords = output.stream().filter(x -> x.f1() == -1).count();
+        Assert.assertTrue(String.valueOf(hotKeyRecords), hotKeyRecords <= 65);
+        Assert.assertEquals(50_000L, (long) sum(output).get(-1));
+    }
+
+    @Test
+    public void keepCombineForRepeatedKeysTest()
+    {
+        List<Tuple2<Integer, Long>> data = new ArrayList<>();
+        for (int i = 0; i < 150_000; i++) {
+            data.add(Tuple2.of(i % 100, (long) i));
+        }
+        List<Tuple2<Integer, Long>> output = combine(data);
+        Assert.assertFalse(taskContext.getTaskMetrics().isCombineBypassed());
+        Assert.assertEquals(100, taskContext.getTaskMetrics().getCombineSampledKeys());
+        Assert.assertEquals(100, output.size());
+        Assert.assertEquals(sum(data), sum(output));
+    }
+
+    @Test
+    public void combineSmallPartitionTest()
+    {
+        List<Tuple2<Integer, Long>> data = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            data.add(Tuple2.of(i, 1L));
+        }
+        //输入不超过采样数时直接完成聚合, 不跳过combine
+        Assert.assertEquals(1000, combine(data).size());
+        Assert.assertFalse(taskContext.getTaskMetrics().isCombineBypassed());
+    }
+
+    @Test
+    public void sampleLimitedByExecutionMemoryTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(1 << 20, 0.5);
+        TaskContext smallMemoryContext = TaskContext.of(1, 0, 0, Collections.emptyMap(), null, UUID.randomUUID().toString(),
+                new TaskMemoryManager(memoryManager));
+        List<Tuple2<Integer, Long>> data = new ArrayList<>();
+        for (int i = 0; i < 150_000; i++) {
+            data.add(Tuple2.of(i, 1L));
+        }
+        List<Tuple2<Integer, Long>> output = combine(data, smallMemoryContext);
+        //采样的hash表申请不到内存时提前结束采样
+        Assert.assertTrue(smallMemoryContext.getTaskMetrics().getCombineSampledRecords() < 100_000);
+        Assert.assertTrue(smallMemoryContext.getTaskMetrics().isCombineBypassed());
+        Assert.assertEquals(sum(data), sum(output));
+        Assert.assertEquals(0, memoryManager.getExecutionMemoryUsed());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.api.function.LongReducer;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class AggregationHashMapTest
+{
+    private static <K, V, S> Map<K, S> toMap(AggregationHashMap<K, V, S> map)
+    {
+        Map<K, S> result = new HashMap<>();
+        Iterator<Tuple2<K, S>> iterator = map.iterator();
+        while (iterator.hasNext()) {
+            Tuple2<K, S> entry = iterator.next();
+            Assert.assertNull(result.put(entry.f1(), entry.f2()));
+        }
+        return result;
+    }
+
+    private static <K, V> void put(AggregationHashMap<K, V, ?> map, K key, V value)
+    {
+        if (!map.update(key, value)) {
+            map.insert(key, value);
+        }
+    }
+
+    @Test
+    public void primitiveCountTest()
+    {
+        AggregationHashMap<Long, Long, Long> map = new AggregationHashMap<>(ExternalHashAggregator.Aggregation.reduce((LongReducer) Long::sum));
+        Map<Long, Long> expected = new HashMap<>();
+        for (long i = 0; i < 100_000; i++) {
+            long key = i % 3001 - 1500;
+            put(map, key, 1L);
+            expected.merge(key, 1L, Long::sum);
+        }
+        Assert.assertTrue(map.isPrimitive());
+        Assert.assertEquals(3001, map.size());
+        Assert.assertEquals(expected, toMap(map));
+    }
+
+    @Test
+    public void boxedReducerUsePrimitiveValuesTest()
+    {
+        AggregationHashMap<Integer, Long, Long> map = new AggregationHashMap<>(ExternalHashAggregator.Aggregation.reduce(Long::sum));
+        put(map, 1, 2L);
+        put(map, 1, 3L);
+        Assert.assertTrue(map.isPrimitive());
+        Assert.assertEquals(5L, (long) toMap(map).get(1));
+
+        AggregationHashMap<Integer, Double, Double> doubleMap = new AggregationHashMap<>(ExternalHashAggregator.Aggregation.reduce(Double::sum));
+        put(doubleMap, 1, 0.5);
+        put(doubleMap, 1, 0.25);
+        Assert.assertTrue(doubleMap.isPrimitive());
+        Assert.assertEquals(0.75, toMap(doubleMap).get(1), 0);
+    }
+
+    @Test
+    public void boxedReducerReturnNullTest()
+    {
+        AggregationHashMap<Integer, Integer, Integer> map = new AggregationHashMap<>(ExternalHashAggregator.Aggregation.reduce((a, b) -> a + b > 10 ? null : a + b));
+        for (int i = 0; i < 100; i++) {
+            put(map, i, 1);
+        }
+        Assert.assertTrue(map.isPrimitive());
+        put(map, 7, 20);
+        //reducer返回null后状态退化为Object[]
+        Assert.assertFalse(map.isPrimitive());
+        put(map, 8, 2);
+        Map<Integer, Integer> result = toMap(map);
+        Assert.assertEquals(100, result.size());
+        Assert.assertNull(result.get(7));
+        Assert.assertEquals(3, (int) result.get(8));
+        Assert.assertEquals(1, (int) result.get(99));
+    }
+
+    @Test
+    public void degradeToObjectArraysTest()
+    {
+        AggregationHashMap<Object, Long, Long> map = new AggregationHashMap<>(ExternalHashAggregator.Aggregation.reduce((LongReducer) Long::sum));
+        for (long i = 0; i < 100; i++) {
+            put(map, i, i);
+        }
+        Assert.assertTrue(map.isPrimitive());
+        put(map, "a", 1L);
+        put(map, null, 2L);
+        put(map, null, 3L);
+        put(map, 7L, 1L);
+        Assert.assertFalse(map.isPrimitive());
+
+        Map<Object, Long> result = toMap(map);
+        Assert.assertEquals(102, result.size());
+        Assert.assertEquals(1L, (long) result.get("a"));
+        Assert.assertEquals(5L, (long) result.get(null));
+        Assert.assertEquals(8L, (long) result.get(7L));
+        Assert.assertEquals(99L, (long) result.get(99L));
+    }
+
+    @Test
+    public void doubleKeyTest()
+    {
+        AggregationHashMap<Double, Integer, Integer> map = new AggregationHashMap<>(ExternalHashAggregator.Aggregation.reduce(Integer::sum));
+        put(map, 0.5, 1);
+        put(map, -0.5, 1);
+        put(map, 0.5, 1);
+        Map<Double, Integer> result = toMap(map);
+        Assert.assertEquals(2, (int) result.get(0.5));
+        Assert.assertEquals(1, (int) result.get(-0.5));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.BatchContext;
+import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.astarte.core.deprecated.JoinExperiment;
+import com.github.harbby.astarte.core.runtime.BroadcastManager;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class BroadcastJoinTest
+{
+    private final BatchContext mppContext = BatchContext.builder()
+            .local(2)
+            .getOrCreate();
+
+    private final KvDataSet<String, Integer> left = mppContext.makeKvDataSet(Arrays.asList(
+            Tuple2.of("a", 1),
+            Tuple2.of("b", 2),
+            Tuple2.of("a", 3),
+            Tuple2.of("c", 4)), 2);
+    private final KvDataSet<String, String> right = mppContext.makeKvDataSet(Arrays.asList(
+            Tuple2.of("a", "x"),
+            Tuple2.of("a", "y"),
+            Tuple2.of("b", "z")));
+
+    private static <K, V, W> List<String> sorted(List<Tuple2<K, Tuple2<V, W>>> data)
+    {
+        return data.stream().map(String::valueOf).sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    public void broadcastJoinTest()
+    {
+        Assert.assertEquals(Arrays.asList("(a, (1, x))", "(a, (1, y))", "(a, (3, x))", "(a, (3, y))", "(b, (2, z))"),
+                sorted(left.broadcastJoin(right).collect()));
+    }
+
+    @Test
+    public void broadcastLeftJoinTest()
+    {
+        Assert.assertEquals(Arrays.asList("(a, (1, x))", "(a, (1, y))", "(a, (3, x))", "(a, (3, y))", "(b, (2, z))", "(c, (4, null))"),
+                sorted(left.broadcastLeftJoin(right).collect()));
+    }
+
+    @Test
+    public void broadcastAtJobRunTimeAndDestroyAfterJobTest()
+    {
+        long broadcastId = BroadcastManager.newBroadcastId();
+        BroadcastJoinOperator<String, Integer, String> operator = new BroadcastJoinOperator<>((Operator<Tuple2<String, Integer>>) left,
+                (Operator<Tuple2<String, String>>) right, JoinExperiment.JoinMode.INNER_JOIN);
+        //创建算子时不运行右侧job, 也不广播
+        Assert.assertEquals(broadcastId + 1, BroadcastManager.newBroadcastId());
+
+        Assert.assertEquals(Arrays.asList("(a, (1, x))", "(a, (1, y))", "(a, (3, x))", "(a, (3, y))", "(b, (2, z))"),
+                sorted(operator.collect()));
+        //job结束后广播已被销毁, 引用计数归零
+        try {
+            operator.releaseBroadcast();
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("broadcast not acquired", e.getMessage());
+        }
+        //再次运行时重新广播
+        Assert.assertEquals(5, operator.count());
+    }
+}
@@ -16,11 +16,21 @@
 package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.BatchContext;
+import com.github.harbby.astarte.core.TaskContext;
 import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class CacheOperatorTest
 {
@@ -41,4 +51,25 @@ public class CacheOperatorTest
 
         System.out.println();
     }
+
+    @Test
+    public void releaseStorageMemoryWhenTaskStopEarlyTest()
+    {
+        MemoryManager memoryManager = new MemoryManager(64 << 20, 0.5);
+        TaskContext taskContext = TaskContext.of(1, 0, 0, Collections.emptyMap(), null, UUID.randomUUID().toString(),
+                new TaskMemoryManager(memoryManager));
+        List<Integer> data = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+        @SuppressWarnings("unchecked")
+        Operator<Integer> source = (Operator<Integer>) mppContext.makeDataSet(data, 1);
+        int cacheId = Integer.MAX_VALUE;
+        Iterator<Integer> iterator = CacheOperator.compute(source, cacheId, source.getPartitions()[0], taskContext);
+        //只读取一半数据, 模拟take等提前结束的task
+        for (int i = 0; i < 50_000; i++) {
+            iterator.next();
+        }
+        Assert.assertTrue(memoryManager.getStorageMemoryUsed() > 0);
+        taskContext.markTaskCompleted();
+        Assert.assertEquals(0, memoryManager.getStorageMemoryUsed());
+        CacheOperator.unCacheExec(cacheId);
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.compress.Lz4Codec;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.serializer.AstarteSerializer;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class ExternalHashAggregatorTest
+{
+    private static final SerializerManager serializerManager = new SerializerManager(new AstarteSerializer(), new Lz4Codec(), RecordBlockWriter.DEFAULT_BLOCK_SIZE);
+
+    private static List<Tuple2<Integer, Long>> randomData()
+    {
+        Random random = new Random(0);
+        List<Tuple2<Integer, Long>> data = new ArrayList<>();
+        for (int i = 0; i < 200_000; i++) {
+            data.add(Tuple2.of(random.nextInt(50_000), (long) random.nextInt(100)));
+        }
+        return data;
+    }
+
+    private static Map<Integer, Long> expected(List<Tuple2<Integer, Long>> data)
+    {
+        Map<Integer, Long> expected = new HashMap<>();
+        data.forEach(x -> expected.merge(x.f1(), x.f2(), Long::sum));
+        return expected;
+    }
+
+    private static <S> Map<Integer, S> collect(Iterator<Tuple2<Integer, S>> iterator)
+    {
+        Map<Integer, S> result = new HashMap<>();
+        while (iterator.hasNext()) {
+            Tuple2<Integer, S> tp = iterator.next();
+            Assert.assertNull(result.put(tp.f1(), tp.f2()));
+        }
+        return result;
+    }
+
+    @Test
+    public void spillMergeableAggregationTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("agg").toFile();
+        List<Tuple2<Integer, Long>> data = randomData();
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(new MemoryManager(256 * 1024, 0.5));
+        TaskMetrics metrics = new TaskMetrics();
+        ExternalHashAggregator<Integer, Long, Long> aggregator = new ExternalHashAggregator<>(ExternalHashAggregator.Aggregation.reduce(Long::sum),
+                taskMemoryManager, spillDir, serializerManager, metrics, 0);
+
+        Map<Integer, Long> result = collect(aggregator.aggregate(data.iterator()));
+        Assert.assertEquals(expected(data), result);
+        Assert.assertTrue(aggregator.getSpillBytes() > 0);
+        Assert.assertTrue(metrics.getSpilledBytes() >= aggregator.getSpillBytes());
+        Assert.assertEquals(0, taskMemoryManager.getMemoryManager().getExecutionMemoryUsed());
+        Assert.assertEquals(0, spillDir.list().length);
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    @Test
+    public void spillNotMergeableAggregationTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("agg").toFile();
+        List<Tuple2<Integer, Long>> data = randomData();
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(new MemoryManager(256 * 1024, 0.5));
+        //没有实现merge, 溢写的是原始记录
+        ExternalHashAggregator<Integer, Long, long[]> aggregator = new ExternalHashAggregator<>(new ExternalHashAggregator.Aggregation<Integer, Long, long[]>()
+        {
+            @Override
+            public long[] createState(Integer key, Long value)
+            {
+                return new long[] {value};
+            }
+
+            @Override
+            public long[] update(long[] state, Long value)
+            {
+                state[0] += value;
+                return state;
+            }
+        }, taskMemoryManager, spillDir, serializerManager, new TaskMetrics(), 0);
+
+        Map<Integer, long[]> result = collect(aggregator.aggregate(data.iterator()));
+        Assert.assertTrue(aggregator.getSpillBytes() > 0);
+        Map<Integer, Long> expected = expected(data);
+        Assert.assertEquals(expected.size(), result.size());
+        expected.forEach((k, v) -> Assert.assertEquals((long) v, result.get(k)[0]));
+        Assert.assertEquals(0, taskMemoryManager.getMemoryManager().getExecutionMemoryUsed());
+        Assert.assertEquals(0, spillDir.list().length);
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    @Test
+    public void spillHotKeysOfGrowingStateTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("agg").toFile();
+        List<Tuple2<Integer, Long>> data = new ArrayList<>();
+        for (long i = 0; i < 200_000; i++) {
+            data.add(Tuple2.of((int) (i % 4), i));
+        }
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(new MemoryManager(256 * 1024, 0.5));
+        //与groupByKey相同, 只有4个key, 每个key的状态随value增长
+        ExternalHashAggregator<Integer, Long, List<Long>> aggregator = new ExternalHashAggregator<>(ExternalHashAggregator.Aggregation.group(),
+                taskMemoryManager, spillDir, serializerManager, new TaskMetrics(), 0);
+
+        Map<Integer, List<Long>> result = collect(aggregator.aggregate(data.iterator()));
+        Assert.assertTrue(aggregator.getSpillBytes() > 0);
+        Assert.assertEquals(4, result.size());
+        result.forEach((k, values) -> {
+            Assert.assertEquals(50_000, values.size());
+            //溢写后每个key的value仍然保持输入顺序
+            for (int i = 0; i < values.size(); i++) {
+                Assert.assertEquals(i * 4L + k, (long) values.get(i));
+            }
+        });
+        Assert.assertEquals(0, taskMemoryManager.getMemoryManager().getExecutionMemoryUsed());
+        Assert.assertEquals(0, spillDir.list().length);
+        FileUtils.deleteDirectory(spillDir);
+    }
+}
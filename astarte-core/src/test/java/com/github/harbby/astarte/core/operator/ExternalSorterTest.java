@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.HashPartitioner;
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.compress.Lz4Codec;
+import com.github.harbby.astarte.core.compress.NoneCodec;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.serializer.AstarteSerializer;
+import com.github.harbby.astarte.core.serializer.JavaSerializer;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class ExternalSorterTest
+{
+    private static List<Tuple2<Integer, Integer>> randomData(int size)
+    {
+        Random random = new Random(0);
+        List<Tuple2<Integer, Integer>> data = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            data.add(Tuple2.of(random.nextInt(1000), i));
+        }
+        return data;
+    }
+
+    private static TaskMemoryManager newTaskMemoryManager(long maxMemory)
+    {
+        return new TaskMemoryManager(new MemoryManager(maxMemory, 0.5));
+    }
+
+    @Test
+    public void spillAndMergeByPartitionTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("sorter").toFile();
+        HashPartitioner partitioner = new HashPartitioner(3);
+        List<Tuple2<Integer, Tuple2<Integer, Integer>>> out = new ArrayList<>();
+        try (ExternalSorter<Integer, Integer> sorter = new ExternalSorter<>(Integer::compare, partitioner, 100, spillDir,
+                new SerializerManager(new AstarteSerializer(), new Lz4Codec(), RecordBlockWriter.DEFAULT_BLOCK_SIZE), new TaskMetrics(),
+                newTaskMemoryManager(64 * 1024 * 1024))) {
+            sorter.insertAll(randomData(10_000).iterator());
+            Assert.assertTrue(sorter.getSpillBytes() > 0);
+            sorter.writePartitionedTo((partitionId, record) -> out.add(Tuple2.of(partitionId, record)));
+        }
+        Assert.assertEquals(10_000, out.size());
+        for (int i = 0; i < out.size(); i++) {
+            Tuple2<Integer, Tuple2<Integer, Integer>> it = out.get(i);
+            Assert.assertEquals(partitioner.getPartition(it.f2().f1()), (int) it.f1());
+            if (i > 0 && out.get(i - 1).f1().equals(it.f1())) {
+                Assert.assertTrue(out.get(i - 1).f2().f1() <= it.f2().f1());
+            }
+            else if (i > 0) {
+                Assert.assertTrue(out.get(i - 1).f1() < it.f1());
+            }
+        }
+        Assert.assertEquals(0, spillDir.list().length);
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    @Test
+    public void sortedIteratorWithoutPartitionerTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("sorter").toFile();
+        List<Tuple2<Integer, Integer>> data = randomData(5_000);
+        List<Integer> result = new ArrayList<>();
+        try (ExternalSorter<Integer, Integer> sorter = new ExternalSorter<>((x, y) -> y.compareTo(x), null, 333, spillDir,
+                new SerializerManager(new JavaSerializer(), new NoneCodec(), RecordBlockWriter.DEFAULT_BLOCK_SIZE), new TaskMetrics(),
+                newTaskMemoryManager(64 * 1024 * 1024))) {
+            sorter.insertAll(data.iterator());
+            Iterator<Tuple2<Integer, Integer>> iterator = sorter.sortedIterator();
+            while (iterator.hasNext()) {
+                result.add(iterator.next().f1());
+            }
+        }
+        List<Integer> expected = new ArrayList<>();
+        data.forEach(x -> expected.add(x.f1()));
+        expected.sort((x, y) -> y.compareTo(x));
+        Assert.assertEquals(expected, result);
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    @Test
+    public void spillWhenMemoryNotEnoughTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("sorter").toFile();
+        List<Tuple2<Integer, Integer>> data = randomData(20_000);
+        TaskMemoryManager taskMemoryManager = newTaskMemoryManager(256 * 1024);
+        List<Integer> result = new ArrayList<>();
+        try (ExternalSorter<Integer, Integer> sorter = new ExternalSorter<>(Integer::compare, null, Integer.MAX_VALUE, spillDir,
+                new SerializerManager(new AstarteSerializer(), new Lz4Codec(), RecordBlockWriter.DEFAULT_BLOCK_SIZE), new TaskMetrics(),
+                taskMemoryManager)) {
+            sorter.insertAll(data.iterator());
+            Assert.assertTrue(sorter.getSpillBytes() > 0);
+            Assert.assertTrue(sorter.getUsed() <= 256 * 1024);
+            sorter.sortedIterator().forEachRemaining(x -> result.add(x.f1()));
+        }
+        Assert.assertEquals(0, taskMemoryManager.getMemoryManager().getExecutionMemoryUsed());
+        List<Integer> expected = new ArrayList<>();
+        data.forEach(x -> expected.add(x.f1()));
+        expected.sort(Integer::compare);
+        Assert.assertEquals(expected, result);
+        FileUtils.deleteDirectory(spillDir);
+    }
+}
@@ -17,6 +17,7 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.BatchContext;
 import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.gadtry.collection.MutableSet;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
 import org.junit.Assert;
 import org.junit.Test;
@@ -42,8 +43,10 @@ public class JoinOperatorTest
         )).distinct();
         List<Tuple2<String, Tuple2<Integer, Integer>>> data = ageDs.join(ageDs).collect();
 
-        Assert.assertEquals(data,
-                Arrays.asList(Tuple2.of("hp", Tuple2.of(18, 18)),
+        //聚合和join的输出顺序不固定
+        Assert.assertEquals(3, data.size());
+        Assert.assertEquals(MutableSet.copy(data),
+                MutableSet.of(Tuple2.of("hp", Tuple2.of(18, 18)),
                         Tuple2.of("hp1", Tuple2.of(19, 19)),
                         Tuple2.of("hp2", Tuple2.of(20, 20))));
     }
@@ -60,8 +63,10 @@ public class JoinOperatorTest
 
         List<Tuple2<String, Tuple2<Integer, Integer>>> data = ageDs.join(ageDs.kvDataSet(x -> x)).collect();
 
-        Assert.assertEquals(data,
-                Arrays.asList(Tuple2.of("hp", Tuple2.of(18, 18)),
+        //聚合和join的输出顺序不固定
+        Assert.assertEquals(3, data.size());
+        Assert.assertEquals(MutableSet.copy(data),
+                MutableSet.of(Tuple2.of("hp", Tuple2.of(18, 18)),
                         Tuple2.of("hp1", Tuple2.of(19, 19)),
                         Tuple2.of("hp2", Tuple2.of(20, 20))));
     }
@@ -79,8 +84,10 @@ public class JoinOperatorTest
 
         List<Tuple2<String, Tuple2<Integer, Integer>>> data = ageDs.join(ageDs).collect();
 
-        Assert.assertEquals(data,
-                Arrays.asList(Tuple2.of("hp", Tuple2.of(18, 18)),
+        //聚合和join的输出顺序不固定
+        Assert.assertEquals(3, data.size());
+        Assert.assertEquals(MutableSet.copy(data),
+                MutableSet.of(Tuple2.of("hp", Tuple2.of(18, 18)),
                         Tuple2.of("hp1", Tuple2.of(19, 19)),
                         Tuple2.of("hp2", Tuple2.of(20, 20))));
     }
@@ -98,8 +105,10 @@ public class JoinOperatorTest
 
         List<Tuple2<String, Tuple2<Integer, Integer>>> data = ageDs.join(ageDs).collect();
 
-        Assert.assertEquals(data,
-                Arrays.asList(Tuple2.of("hp", Tuple2.of(18, 18)),
+        //聚合和join的输出顺序不固定
+        Assert.assertEquals(3, data.size());
+        Assert.assertEquals(MutableSet.copy(data),
+                MutableSet.of(Tuple2.of("hp", Tuple2.of(18, 18)),
                         Tuple2.of("hp1", Tuple2.of(19, 19)),
                         Tuple2.of("hp2", Tuple2.of(20, 20))));
     }
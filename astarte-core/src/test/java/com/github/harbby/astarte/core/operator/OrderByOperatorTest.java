@@ -17,10 +17,16 @@ package com.github.harbby.astarte.core.operator;
 
 import com.github.harbby.astarte.core.BatchContext;
 import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.astarte.core.api.function.Comparator;
 import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 public class OrderByOperatorTest
 {
@@ -39,4 +45,36 @@ public class OrderByOperatorTest
         ), 2).reduceByKey(Integer::sum);
         ageDs.sortByKey(String::compareTo).print();
     }
+
+    @Test
+    public void orderByMergeSortedMapOutputsTest()
+    {
+        List<Tuple2<Integer, Integer>> data = new ArrayList<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            data.add(Tuple2.of(random.nextInt(100), i));
+        }
+        List<Integer> keys = mppContext.makeKvDataSet(data, 4)
+                .sortByKey(Integer::compare, 3)
+                .keys()
+                .collect();
+        List<Integer> expected = data.stream().map(Tuple2::f1).sorted().collect(Collectors.toList());
+        Assert.assertEquals(expected, keys);
+    }
+
+    @Test
+    public void orderByNaturalOrderDescTest()
+    {
+        List<Tuple2<String, Integer>> data = new ArrayList<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            data.add(Tuple2.of("k" + random.nextInt(500), i));
+        }
+        List<String> keys = mppContext.makeKvDataSet(data, 3)
+                .sortByKey(Comparator.reverseOrder(), 4)
+                .keys()
+                .collect();
+        List<String> expected = data.stream().map(Tuple2::f1).sorted(java.util.Comparator.reverseOrder()).collect(Collectors.toList());
+        Assert.assertEquals(expected, keys);
+    }
 }
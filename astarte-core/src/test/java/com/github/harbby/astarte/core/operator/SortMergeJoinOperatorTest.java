@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.operator;
+
+import com.github.harbby.astarte.core.BatchContext;
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.api.Constant;
+import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.compress.Lz4Codec;
+import com.github.harbby.astarte.core.deprecated.JoinExperiment;
+import com.github.harbby.astarte.core.memory.MemoryManager;
+import com.github.harbby.astarte.core.memory.TaskMemoryManager;
+import com.github.harbby.astarte.core.runtime.ShuffleClient;
+import com.github.harbby.astarte.core.runtime.ShuffleManagerService;
+import com.github.harbby.astarte.core.serializer.AstarteSerializer;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.astarte.core.utils.MergeSortedIterator;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+public class SortMergeJoinOperatorTest
+{
+    private final BatchContext mppContext = BatchContext.builder()
+            .local(2)
+            .getOrCreate();
+
+    private static <K, V, W> List<String> sorted(List<Tuple2<K, Tuple2<V, W>>> data)
+    {
+        return data.stream().map(String::valueOf).sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    public void sortMergeJoinTest()
+    {
+        //"Aa"与"BB"的hashCode相同
+        KvDataSet<String, Integer> left = mppContext.makeKvDataSet(Arrays.asList(
+                Tuple2.of("Aa", 1),
+                Tuple2.of("BB", 2),
+                Tuple2.of("Aa", 3),
+                Tuple2.of("hp", 4)));
+        KvDataSet<String, String> right = mppContext.makeKvDataSet(Arrays.asList(
+                Tuple2.of("BB", "b"),
+                Tuple2.of("Aa", "a1"),
+                Tuple2.of("Aa", "a2"),
+                Tuple2.of("hp1", "c")));
+        mppContext.getConf().put(Constant.JOIN_SORT_MERGE_THRESHOLD, "0");
+        mppContext.getConf().put(Constant.JOIN_BROADCAST_THRESHOLD, "-1");
+        try {
+            Assert.assertEquals(Arrays.asList("(Aa, (1, a1))", "(Aa, (1, a2))", "(Aa, (3, a1))", "(Aa, (3, a2))", "(BB, (2, b))"),
+                    sorted(left.join(right).collect()));
+            Assert.assertEquals(Arrays.asList("(Aa, (1, a1))", "(Aa, (1, a2))", "(Aa, (3, a1))", "(Aa, (3, a2))", "(BB, (2, b))", "(hp, (4, null))"),
+                    sorted(left.leftJoin(right).collect()));
+        }
+        finally {
+            mppContext.getConf().put(Constant.JOIN_SORT_MERGE_THRESHOLD, String.valueOf(Constant.DEFAULT_JOIN_SORT_MERGE_THRESHOLD));
+            mppContext.getConf().put(Constant.JOIN_BROADCAST_THRESHOLD, String.valueOf(Constant.DEFAULT_JOIN_BROADCAST_THRESHOLD));
+        }
+    }
+
+    @Test
+    public void spillLargeKeyGroupTest()
+            throws IOException
+    {
+        File spillDir = Files.createTempDirectory("join").toFile();
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(new MemoryManager(64 * 1024, 0.5));
+        TaskMetrics metrics = new TaskMetrics();
+        SerializerManager serializerManager = new SerializerManager(new AstarteSerializer(), new Lz4Codec(), RecordBlockWriter.DEFAULT_BLOCK_SIZE);
+        List<Tuple2<Integer, Long>> left = Arrays.asList(Tuple2.of(1, 1L), Tuple2.of(2, 2L), Tuple2.of(2, 3L), Tuple2.of(3, 4L));
+        List<Tuple2<Integer, Long>> right = new ArrayList<>();
+        for (long i = 0; i < 100_000; i++) {
+            right.add(Tuple2.of(i % 1000 == 0 ? 1 : 2, i));
+        }
+        right.add(Tuple2.of(4, 0L));
+        right.sort(Comparator.comparing(Tuple2::f1));
+
+        SpillableGroupBuffer<Tuple2<Integer, Long>> group = new SpillableGroupBuffer<>(taskMemoryManager, spillDir, serializerManager, metrics);
+        SortMergeJoinOperator.MergeJoinIterator<Integer, Long, Long> iterator = new SortMergeJoinOperator.MergeJoinIterator<>(
+                left.iterator(), right.iterator(), group, JoinExperiment.JoinMode.LEFT_JOIN);
+        long[] counts = new long[4];
+        long sum = 0;
+        while (iterator.hasNext()) {
+            Tuple2<Integer, Tuple2<Long, Long>> record = iterator.next();
+            counts[record.f1()]++;
+            if (record.f2().f2() != null) {
+                sum += record.f2().f2();
+            }
+        }
+        Assert.assertEquals(100, counts[1]);
+        Assert.assertEquals(2 * 99_900, counts[2]);
+        Assert.assertEquals(1, counts[3]);
+        long expectedSum = 0;
+        for (long i = 0; i < 100_000; i++) {
+            expectedSum += i % 1000 == 0 ? i : 2 * i;
+        }
+        Assert.assertEquals(expectedSum, sum);
+        Assert.assertTrue(metrics.getSpilledBytes() > 0);
+        Assert.assertEquals(0, taskMemoryManager.getMemoryManager().getExecutionMemoryUsed());
+        Assert.assertEquals(0, spillDir.list().length);
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    /**
+     * 写出只有一个reduce分区的map输出, 记录按key有序
+     */
+    private static void writeSortedMapOutput(File shuffleWorkDir, SerializerManager serializerManager, int jobId, int shuffleId, int mapId,
+            List<Tuple2<Integer, Long>> records)
+            throws IOException
+    {
+        File jobDir = new File(shuffleWorkDir, String.valueOf(jobId));
+        Assert.assertTrue(jobDir.isDirectory() || jobDir.mkdirs());
+        String baseName = "shuffle_" + shuffleId + "_" + mapId + "_0";
+        long length;
+        try (FileOutputStream output = new FileOutputStream(new File(jobDir, baseName + ".data"))) {
+            RecordBlockWriter writer = serializerManager.newBlockWriter(output, new TaskMetrics());
+            for (Tuple2<Integer, Long> record : records) {
+                writer.write(record);
+            }
+            writer.flushBlock();
+            length = writer.getBytesWritten();
+        }
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(new File(jobDir, baseName + ".index")))) {
+            output.writeLong(0);
+            output.writeLong(length);
+        }
+    }
+
+    @Test
+    public void clusterMergeJoinLargerThanMaxBytesInFlightTest()
+            throws IOException, InterruptedException
+    {
+        int jobId = 1;
+        int keys = 10_000;
+        int maxBytesInFlight = 1024;
+        //块很小, 每个分段包含很多数据块
+        SerializerManager serializerManager = new SerializerManager(new AstarteSerializer(), new Lz4Codec(), 64);
+        String executorUUID = UUID.randomUUID().toString();
+        File shuffleWorkDir = ShuffleManagerService.getShuffleWorkDir(executorUUID);
+        //两侧各2个map, 左侧按key的奇偶拆分, 右侧按key的前后一半拆分
+        for (int mapId = 0; mapId < 2; mapId++) {
+            List<Tuple2<Integer, Long>> left = new ArrayList<>();
+            List<Tuple2<Integer, Long>> right = new ArrayList<>();
+            for (int key = 0; key < keys; key++) {
+                if (key % 2 == mapId) {
+                    left.add(Tuple2.of(key, (long) key));
+                }
+                if (key * 2 / keys == mapId) {
+                    right.add(Tuple2.of(key, -(long) key));
+                }
+            }
+            writeSortedMapOutput(shuffleWorkDir, serializerManager, jobId, 1, mapId, left);
+            writeSortedMapOutput(shuffleWorkDir, serializerManager, jobId, 2, mapId, right);
+        }
+        ShuffleManagerService shuffleManagerService = new ShuffleManagerService(executorUUID);
+        SocketAddress shuffleService = shuffleManagerService.start();
+        Stage stage = new Stage(null, jobId, 3)
+        {
+            @Override
+            public void compute(Partition split, TaskContext taskContext)
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+        stage.setShuffleServices(Collections.singleton(shuffleService));
+        stage.setMapAttempts(1, new int[] {0, 0});
+        stage.setMapAttempts(2, new int[] {0, 0});
+        stage.setMaxBytesInFlight(maxBytesInFlight);
+
+        File spillDir = Files.createTempDirectory("join").toFile();
+        TaskMemoryManager taskMemoryManager = new TaskMemoryManager(new MemoryManager(64 * 1024, 0.5));
+        TaskMetrics metrics = new TaskMetrics();
+        try (ShuffleClient shuffleClient = ShuffleClient.getClusterShuffleClient(stage)) {
+            Comparator<Tuple2<Integer, Long>> ordering = Comparator.comparing(Tuple2::f1);
+            List<Iterator<Tuple2<Integer, Long>>> leftSegments = shuffleClient.readShuffleDataByMap(1, 0, serializerManager, metrics);
+            List<Iterator<Tuple2<Integer, Long>>> rightSegments = shuffleClient.readShuffleDataByMap(2, 0, serializerManager, metrics);
+            Assert.assertEquals(2, leftSegments.size());
+            Assert.assertEquals(2, rightSegments.size());
+            SpillableGroupBuffer<Tuple2<Integer, Long>> group = new SpillableGroupBuffer<>(taskMemoryManager, spillDir, serializerManager, metrics);
+            SortMergeJoinOperator.MergeJoinIterator<Integer, Long, Long> iterator = new SortMergeJoinOperator.MergeJoinIterator<>(
+                    new MergeSortedIterator<>(leftSegments, ordering), new MergeSortedIterator<>(rightSegments, ordering), group, JoinExperiment.JoinMode.INNER_JOIN);
+            int count = 0;
+            while (iterator.hasNext()) {
+                Tuple2<Integer, Tuple2<Long, Long>> record = iterator.next();
+                Assert.assertEquals(count, (int) record.f1());
+                Assert.assertEquals(count, (long) record.f2().f1());
+                Assert.assertEquals(-count, (long) record.f2().f2());
+                if (count == 0) {
+                    //两侧的4个分段共用maxBytesInFlight, 每个分段只拉取了一段
+                    Assert.assertTrue(metrics.getShuffleReadBytes() <= maxBytesInFlight);
+                }
+                count++;
+            }
+            Assert.assertEquals(keys, count);
+            //分区远大于maxBytesInFlight
+            Assert.assertTrue(metrics.getShuffleReadBytes() > 10 * maxBytesInFlight);
+        }
+        finally {
+            FileUtils.deleteDirectory(spillDir);
+            FileUtils.deleteDirectory(shuffleWorkDir);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.BatchContext;
+import com.github.harbby.astarte.core.ResultStage;
+import com.github.harbby.astarte.core.ShuffleMapStage;
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.AstarteException;
+import com.github.harbby.astarte.core.api.Constant;
+import com.github.harbby.astarte.core.api.DataSet;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.operator.Operator;
+import com.github.harbby.astarte.core.operator.ShuffleMapOperator;
+import com.github.harbby.gadtry.base.Throwables;
+import com.github.harbby.gadtry.collection.MutableList;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 每个测试单独启动ClusterScheduler和executor进程, 直接提交stage, 不依赖全局context的运行模式和测试顺序
+ */
+public class ClusterSchedulerTest
+{
+    //只用于构建算子, job不在该context上运行
+    private final BatchContext context = BatchContext.builder().getOrCreate();
+
+    private static ClusterScheduler startScheduler(int driverPort, int maxTaskAttempts)
+    {
+        AstarteConf conf = new AstarteConf();
+        conf.put(Constant.DRIVER_SCHEDULER_PORT, String.valueOf(driverPort));
+        conf.put(Constant.TASK_MAX_ATTEMPTS, String.valueOf(maxTaskAttempts));
+        return new ClusterScheduler(conf, 1, 2);
+    }
+
+    /**
+     * 按唯一的shuffle划分为ShuffleMapStage和ResultStage后提交
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> List<E> runJob(ClusterScheduler scheduler, int jobId, DataSet<E> dataSet)
+    {
+        Operator<E> finalOperator = (Operator<E>) dataSet;
+        ShuffleMapOperator<?, ?> shuffleMapOperator = findShuffleMapOperator(finalOperator);
+        Stage resultStage = new ResultStage<>(finalOperator, jobId, 0);
+        Stage shuffleMapStage = new ShuffleMapStage(shuffleMapOperator, jobId, 1);
+        Map<Stage, Map<Integer, Integer>> stageMap = new LinkedHashMap<>();
+        stageMap.put(resultStage, new HashMap<>());
+        stageMap.get(resultStage).put(shuffleMapOperator.getId(), shuffleMapStage.getStageId());
+        stageMap.put(shuffleMapStage, new HashMap<>());
+        List<List<E>> partitions = scheduler.<E, List<E>>runJob(jobId, Arrays.asList(shuffleMapStage, resultStage), MutableList::copy, stageMap);
+        List<E> rs = new ArrayList<>();
+        partitions.forEach(rs::addAll);
+        return rs;
+    }
+
+    private static ShuffleMapOperator<?, ?> findShuffleMapOperator(Operator<?> finalOperator)
+    {
+        Deque<Operator<?>> stack = new ArrayDeque<>();
+        stack.push(finalOperator);
+        while (!stack.isEmpty()) {
+            Operator<?> operator = stack.pop();
+            if (operator instanceof ShuffleMapOperator) {
+                return (ShuffleMapOperator<?, ?>) operator;
+            }
+            stack.addAll(operator.getDependencies());
+        }
+        throw new IllegalStateException("not found ShuffleMapOperator");
+    }
+
+    private static Map<String, Integer> toMap(List<Tuple2<String, Integer>> tuples)
+    {
+        Map<String, Integer> map = new HashMap<>();
+        tuples.forEach(x -> map.put(x.f1(), x.f2()));
+        return map;
+    }
+
+    /**
+     * 标记文件不存在时创建并返回true, 只有第一个运行到这里的attempt得到true
+     */
+    private static boolean firstAttempt(String path)
+    {
+        try {
+            return new File(path).createNewFile();
+        }
+        catch (IOException e) {
+            throw Throwables.throwsThrowable(e);
+        }
+    }
+
+    @Test
+    public void retryFailedTaskTest()
+    {
+        ClusterScheduler scheduler = startScheduler(7181, 2);
+        File marker = new File(System.getProperty("java.io.tmpdir"), "astarte-cluster-retry-" + System.nanoTime());
+        String path = marker.getPath();
+        try {
+            //map task第一个attempt失败, 重试后job正常完成
+            DataSet<Tuple2<String, Integer>> ds = context.makeDataSet(Arrays.asList("a", "b", "c", "b"), 2)
+                    .mapPartition(iterator -> {
+                        if (firstAttempt(path)) {
+                            throw new IllegalStateException("first attempt failed");
+                        }
+                        return iterator;
+                    })
+                    .kvDataSet(x -> new Tuple2<>(x, 1))
+                    .reduceByKey(Integer::sum, 2)
+                    .map(x -> x);
+            Assert.assertEquals(toMap(Arrays.asList(Tuple2.of("a", 1), Tuple2.of("b", 2), Tuple2.of("c", 1))), toMap(runJob(scheduler, 1, ds)));
+
+            //每个attempt都失败, 达到task.max.attempts后job失败
+            DataSet<Tuple2<String, Integer>> failed = context.makeDataSet(Arrays.asList("a", "b"), 2)
+                    .kvDataSet(x -> new Tuple2<>(x, 1))
+                    .reduceByKey(Integer::sum, 2)
+                    .map(x -> {
+                        throw new IllegalStateException("always failed");
+                    });
+            try {
+                runJob(scheduler, 2, failed);
+                Assert.fail();
+            }
+            catch (AstarteException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("failed 2 times"));
+            }
+        }
+        finally {
+            marker.delete();
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void resubmitLostExecutorTest()
+    {
+        ClusterScheduler scheduler = startScheduler(7182, 4);
+        File marker = new File(System.getProperty("java.io.tmpdir"), "astarte-cluster-lost-" + System.nanoTime());
+        String path = marker.getPath();
+        List<Tuple2<String, Integer>> data = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            data.add(Tuple2.of(String.valueOf(i % 10), 1));
+        }
+        try {
+            //reduce task第一个attempt所在的executor退出, 其上的map输出重新计算, 丢失的task在存活的executor上重新提交
+            DataSet<Tuple2<String, Integer>> ds = context.makeKvDataSet(data, 4)
+                    .reduceByKey(Integer::sum, 2)
+                    .mapPartition(iterator -> {
+                        if (firstAttempt(path)) {
+                            Runtime.getRuntime().halt(1);
+                        }
+                        return iterator;
+                    });
+            Map<String, Integer> rs = toMap(runJob(scheduler, 1, ds));
+            Assert.assertTrue(marker.exists());
+            Assert.assertEquals(10, rs.size());
+            rs.values().forEach(count -> Assert.assertEquals(100, count.intValue()));
+            //丢失executor上的map输出已在存活的executor上重新计算
+            MapOutputTracker.MapOutput[] mapOutputs = scheduler.getMapOutputTracker().getShuffleOutput(findShuffleMapOperator((Operator<?>) ds).getId())
+                    .getMapOutputs();
+            Assert.assertEquals(4, mapOutputs.length);
+            Assert.assertEquals(1, Arrays.stream(mapOutputs).map(MapOutputTracker.MapOutput::getExecutor).distinct().count());
+        }
+        finally {
+            marker.delete();
+            scheduler.stop();
+        }
+    }
+}
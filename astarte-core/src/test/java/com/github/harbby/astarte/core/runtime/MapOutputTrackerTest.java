@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.BatchContext;
+import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MapOutputTrackerTest
+{
+    private static final AtomicInteger mapCalls = new AtomicInteger();
+    private final SocketAddress executor1 = InetSocketAddress.createUnresolved("executor1", 1);
+    private final SocketAddress executor2 = InetSocketAddress.createUnresolved("executor2", 2);
+
+    @Test
+    public void removeExecutorTest()
+    {
+        MapOutputTracker tracker = new MapOutputTracker();
+        MapOutputTracker.MapOutput[] outputs = new MapOutputTracker.MapOutput[] {
+                new MapOutputTracker.MapOutput(executor1, 0, 10),
+                new MapOutputTracker.MapOutput(executor2, 1, 20)};
+        tracker.registerShuffle(101, 1, 2, outputs);
+        tracker.registerShuffle(102, 1, 3, new MapOutputTracker.MapOutput[] {new MapOutputTracker.MapOutput(executor2, 0, 5)});
+        //登记时复制数组, 调用方之后修改不影响已登记的输出
+        outputs[0] = null;
+        MapOutputTracker.ShuffleOutput shuffleOutput = tracker.getShuffleOutput(101);
+        Assert.assertEquals(1, shuffleOutput.getJobId());
+        Assert.assertEquals(2, shuffleOutput.getShuffleId());
+        Assert.assertEquals(executor1, shuffleOutput.getMapOutputs()[0].getExecutor());
+
+        //任意一个map输出丢失, 整个shuffle都不能再复用
+        tracker.removeExecutor(executor1);
+        Assert.assertTrue(tracker.getShuffleOutput(101) == null);
+        Assert.assertEquals(1, tracker.size());
+        tracker.removeExecutor(executor2);
+        Assert.assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void reuseShuffleOutputTest()
+    {
+        BatchContext mppContext = BatchContext.builder().local(2).getOrCreate();
+        KvDataSet<String, Integer> ds = mppContext.makeKvDataSet(Arrays.asList(
+                Tuple2.of("a", 1),
+                Tuple2.of("b", 2),
+                Tuple2.of("a", 3)), 2)
+                .mapValues(x -> {
+                    mapCalls.incrementAndGet();
+                    return x;
+                })
+                .reduceByKey(Integer::sum);
+        List<Tuple2<String, Integer>> first = ds.collect();
+        Assert.assertEquals(3, mapCalls.get());
+
+        //第二个job跳过已物化的map stage, 不再执行上游算子
+        List<Tuple2<String, Integer>> second = ds.collect();
+        Assert.assertEquals(3, mapCalls.get());
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(4, (int) ds.filter(x -> x.f2() > 3).map(x -> x.f2()).collect().get(0));
+        Assert.assertEquals(3, mapCalls.get());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.BatchContext;
+import com.github.harbby.astarte.core.MapTaskState;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.KvDataSet;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.gadtry.base.Iterators;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class PartitionCoalescerTest
+{
+    private static void assertRange(Partition partition, int id, int startReduceId, int endReduceId)
+    {
+        Assert.assertEquals(new CoalescedPartition(id, startReduceId, endReduceId), partition);
+    }
+
+    @Test
+    public void coalesceAdjacentPartitionsTest()
+    {
+        Partition[] partitions = PartitionCoalescer.coalesce(new long[] {10, 20, 0, 30, 100, 5, 5}, 60);
+        Assert.assertEquals(3, partitions.length);
+        assertRange(partitions[0], 0, 0, 4);
+        //超过目标大小的分区独占一个task
+        assertRange(partitions[1], 1, 4, 5);
+        assertRange(partitions[2], 2, 5, 7);
+        Assert.assertEquals(0, PartitionCoalescer.coalesce(new long[0], 60).length);
+    }
+
+    @Test
+    public void mapTaskStateTest()
+    {
+        MapTaskState state = new MapTaskState(new long[] {0, 1, 1000, 1L << 30});
+        Assert.assertEquals(4, state.getNumPartitions());
+        Assert.assertEquals(0, state.getPartitionBytes(0));
+        Assert.assertEquals(1, state.getPartitionBytes(1));
+        Assert.assertEquals(1000, state.getPartitionBytes(2), 100);
+        Assert.assertEquals(1L << 30, state.getPartitionBytes(3), (1L << 30) / 10);
+    }
+
+    @Test
+    public void coalesceSmallReducePartitionsTest()
+    {
+        BatchContext mppContext = BatchContext.builder().local(2).getOrCreate();
+        KvDataSet<Integer, Integer> ds = mppContext.makeKvDataSet(IntStream.range(0, 1000)
+                .mapToObj(x -> Tuple2.of(x % 100, 1))
+                .collect(Collectors.toList()), 2)
+                .reduceByKey(Integer::sum, 16);
+        //shuffle输入很小, 16个reduce分区合并为少量task, 结果不变
+        List<Long> counts = ds.mapPartition(it -> Iterators.of(Iterators.size(it))).collect();
+        Assert.assertTrue(counts.size() < 16);
+        Assert.assertEquals(100L, counts.stream().mapToLong(x -> x).sum());
+        Assert.assertTrue(ds.collect().stream().allMatch(x -> x.f2() == 10));
+
+        //用户函数依赖分区id时不合并
+        List<Integer> ids = ds.mapPartitionWithId((id, it) -> Iterators.of(id)).collect();
+        Assert.assertEquals(IntStream.range(0, 16).boxed().collect(Collectors.toList()), ids);
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.compress.Lz4Codec;
+import com.github.harbby.astarte.core.serializer.RecordBlockWriter;
+import com.github.harbby.astarte.core.serializer.Serializer;
+import com.github.harbby.astarte.core.serializer.SerializerManager;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ShuffleRangeFetchTest
+{
+    private static final int JOB_ID = 1;
+    private static final int SHUFFLE_ID = 2;
+    private static final int REDUCE_NUM = 4;
+    private static final int RECORDS = 50;
+    //块大小很小, 每个分区包含多个数据块
+    private final SerializerManager serializerManager = new SerializerManager(Serializer.create(new AstarteConf()), new Lz4Codec(), 64);
+
+    /**
+     * map 0的reduce 2为空分区, 其他分区各有RECORDS条记录(reduceId, mapId * 1000 + i)
+     */
+    private void writeMapOutput(File shuffleWorkDir, int mapId)
+            throws IOException
+    {
+        writeMapOutput(shuffleWorkDir, mapId, RECORDS);
+    }
+
+    private void writeMapOutput(File shuffleWorkDir, int mapId, int records)
+            throws IOException
+    {
+        File jobDir = new File(shuffleWorkDir, String.valueOf(JOB_ID));
+        Assert.assertTrue(jobDir.isDirectory() || jobDir.mkdirs());
+        String baseName = "shuffle_" + SHUFFLE_ID + "_" + mapId + "_0";
+        long[] offsets = new long[REDUCE_NUM + 1];
+        try (FileOutputStream output = new FileOutputStream(new File(jobDir, baseName + ".data"))) {
+            RecordBlockWriter writer = serializerManager.newBlockWriter(output, new TaskMetrics());
+            for (int reduceId = 0; reduceId < REDUCE_NUM; reduceId++) {
+                if (mapId != 0 || reduceId != 2) {
+                    for (int i = 0; i < records; i++) {
+                        writer.write(Tuple2.of(reduceId, mapId * 1000 + i));
+                    }
+                }
+                writer.flushBlock();
+                offsets[reduceId + 1] = writer.getBytesWritten();
+            }
+        }
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(new File(jobDir, baseName + ".index")))) {
+            for (long offset : offsets) {
+                output.writeLong(offset);
+            }
+        }
+    }
+
+    private static Map<Integer, Integer> countByKey(Iterator<Tuple2<Integer, Integer>> iterator)
+    {
+        Map<Integer, Integer> counts = new HashMap<>();
+        while (iterator.hasNext()) {
+            counts.merge(iterator.next().f1(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private static void checkByMap(List<Iterator<Tuple2<Integer, Integer>>> segments)
+    {
+        //2个map * 4个分区, 去掉一个空分区
+        Assert.assertEquals(2 * REDUCE_NUM - 1, segments.size());
+        for (Iterator<Tuple2<Integer, Integer>> segment : segments) {
+            List<Tuple2<Integer, Integer>> records = new ArrayList<>();
+            segment.forEachRemaining(records::add);
+            Assert.assertEquals(RECORDS, records.size());
+            //每个分段只包含一个reduce分区, 且保持map端写出的顺序
+            for (int i = 0; i < RECORDS; i++) {
+                Assert.assertEquals(records.get(0).f1(), records.get(i).f1());
+                Assert.assertEquals(records.get(0).f2() + i, (int) records.get(i).f2());
+            }
+        }
+    }
+
+    private void checkRangeRead(ShuffleClient shuffleClient)
+    {
+        TaskMetrics metrics = new TaskMetrics();
+        Map<Integer, Integer> counts = countByKey(shuffleClient.readShuffleData(SHUFFLE_ID, 1, REDUCE_NUM, serializerManager, metrics));
+        Assert.assertEquals(3, counts.size());
+        Assert.assertEquals(2 * RECORDS, (int) counts.get(1));
+        Assert.assertEquals(RECORDS, (int) counts.get(2));
+        Assert.assertEquals(2 * RECORDS, (int) counts.get(3));
+
+        Assert.assertEquals(Collections.singletonMap(2, RECORDS),
+                countByKey(shuffleClient.readShuffleData(SHUFFLE_ID, 2, serializerManager, metrics)));
+        Assert.assertTrue(countByKey(shuffleClient.readShuffleData(SHUFFLE_ID, 2, 2, serializerManager, metrics)).isEmpty());
+        checkByMap(shuffleClient.readShuffleDataByMap(SHUFFLE_ID, 0, REDUCE_NUM, serializerManager, metrics));
+
+        //只读取map 1的输出
+        List<Tuple2<Integer, Integer>> records = new ArrayList<>();
+        shuffleClient.<Integer, Integer>readShuffleData(SHUFFLE_ID, 1, 3, 1, 2, serializerManager, metrics).forEachRemaining(records::add);
+        Assert.assertEquals(2 * RECORDS, records.size());
+        Assert.assertTrue(records.stream().allMatch(x -> x.f2() >= 1000));
+        Assert.assertTrue(countByKey(shuffleClient.readShuffleData(SHUFFLE_ID, 2, 3, 0, 1, serializerManager, metrics)).isEmpty());
+        List<Iterator<Tuple2<Integer, Integer>>> segments = shuffleClient.readShuffleDataByMap(SHUFFLE_ID, 0, REDUCE_NUM, 0, 1, serializerManager, metrics);
+        Assert.assertEquals(REDUCE_NUM - 1, segments.size());
+        //读取全部map输出时不受之前部分读取的影响
+        Assert.assertEquals(2 * RECORDS, (int) countByKey(shuffleClient.readShuffleData(SHUFFLE_ID, 0, serializerManager, metrics)).get(0));
+    }
+
+    @Test
+    public void rangeFetchTest()
+            throws Exception
+    {
+        String executorUUID = UUID.randomUUID().toString();
+        File shuffleWorkDir = ShuffleManagerService.getShuffleWorkDir(executorUUID);
+        writeMapOutput(shuffleWorkDir, 0);
+        writeMapOutput(shuffleWorkDir, 1);
+        ShuffleManagerService shuffleManagerService = new ShuffleManagerService(executorUUID);
+        SocketAddress shuffleService = shuffleManagerService.start();
+
+        Stage stage = new Stage(null, JOB_ID, 3)
+        {
+            @Override
+            public void compute(Partition split, TaskContext taskContext)
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+        checkRangeRead(ShuffleClient.getLocalShuffleClient(shuffleManagerService, stage));
+
+        Map<Integer, int[]> mapAttempts = Collections.singletonMap(SHUFFLE_ID, new int[] {0, 0});
+        try (ClusterShuffleClient shuffleClient = ClusterShuffleClient.start(Collections.singleton(shuffleService), JOB_ID, mapAttempts,
+                Collections.emptyMap(), 1024)) {
+            checkRangeRead(shuffleClient);
+        }
+    }
+
+    @Test
+    public void byMapFetchLargerThanMaxBytesInFlightTest()
+            throws Exception
+    {
+        int records = 10_000;
+        int maxBytesInFlight = 1024;
+        String executorUUID = UUID.randomUUID().toString();
+        File shuffleWorkDir = ShuffleManagerService.getShuffleWorkDir(executorUUID);
+        writeMapOutput(shuffleWorkDir, 0, records);
+        writeMapOutput(shuffleWorkDir, 1, records);
+        ShuffleManagerService shuffleManagerService = new ShuffleManagerService(executorUUID);
+        SocketAddress shuffleService = shuffleManagerService.start();
+
+        Map<Integer, int[]> mapAttempts = Collections.singletonMap(SHUFFLE_ID, new int[] {0, 0});
+        try (ClusterShuffleClient shuffleClient = ClusterShuffleClient.start(Collections.singleton(shuffleService), JOB_ID, mapAttempts,
+                Collections.emptyMap(), maxBytesInFlight)) {
+            TaskMetrics metrics = new TaskMetrics();
+            List<Iterator<Tuple2<Integer, Integer>>> segments = shuffleClient.readShuffleDataByMap(SHUFFLE_ID, 1, serializerManager, metrics);
+            Assert.assertEquals(2, segments.size());
+            //只拉取了索引, 数据在读取时才按段拉取
+            Assert.assertEquals(0, metrics.getShuffleReadBytes());
+
+            //像k路归并一样交替读取各分段
+            int[] counts = new int[segments.size()];
+            int[] first = new int[segments.size()];
+            boolean hasNext = true;
+            while (hasNext) {
+                hasNext = false;
+                for (int i = 0; i < segments.size(); i++) {
+                    if (segments.get(i).hasNext()) {
+                        Tuple2<Integer, Integer> record = segments.get(i).next();
+                        Assert.assertEquals(1, (int) record.f1());
+                        if (counts[i] == 0) {
+                            first[i] = record.f2();
+                        }
+                        Assert.assertEquals(first[i] + counts[i], (int) record.f2());
+                        counts[i]++;
+                        hasNext = true;
+                    }
+                }
+                if (counts[0] == 1) {
+                    //每个分段只拉取了一段, 不超过maxBytesInFlight
+                    Assert.assertTrue(metrics.getShuffleReadBytes() > 0);
+                    Assert.assertTrue(metrics.getShuffleReadBytes() <= maxBytesInFlight);
+                }
+            }
+            Assert.assertArrayEquals(new int[] {records, records}, counts);
+            Assert.assertTrue(metrics.getShuffleReadBytes() > 2 * maxBytesInFlight);
+        }
+    }
+
+    @Test
+    public void prefetchSegmentsFromAllShuffleServicesTest()
+            throws Exception
+    {
+        int records = 1000;
+        CountDownLatch barrier = new CountDownLatch(2);
+        List<SegmentRequestBarrierProxy> proxies = new ArrayList<>();
+        Set<SocketAddress> shuffleServices = new HashSet<>();
+        //两个shuffle service各有一个map输出
+        for (int mapId = 0; mapId < 2; mapId++) {
+            String executorUUID = UUID.randomUUID().toString();
+            writeMapOutput(ShuffleManagerService.getShuffleWorkDir(executorUUID), mapId, records);
+            SegmentRequestBarrierProxy proxy = new SegmentRequestBarrierProxy(new ShuffleManagerService(executorUUID).start(), barrier);
+            proxies.add(proxy);
+            shuffleServices.add(proxy.getAddress());
+        }
+        Map<Integer, int[]> mapAttempts = Collections.singletonMap(SHUFFLE_ID, new int[] {0, 0});
+        try (ClusterShuffleClient shuffleClient = ClusterShuffleClient.start(shuffleServices, JOB_ID, mapAttempts, Collections.emptyMap(), 1024)) {
+            TaskMetrics metrics = new TaskMetrics();
+            List<Iterator<Tuple2<Integer, Integer>>> segments = shuffleClient.readShuffleDataByMap(SHUFFLE_ID, 1, serializerManager, metrics);
+            Assert.assertEquals(2, segments.size());
+            //读到第一个分段的数据时, 另一个shuffle service也已收到分段请求
+            Assert.assertTrue(segments.get(0).hasNext());
+            Assert.assertEquals(0, barrier.getCount());
+
+            Set<Integer> firstValues = new HashSet<>();
+            for (Iterator<Tuple2<Integer, Integer>> segment : segments) {
+                List<Tuple2<Integer, Integer>> rows = new ArrayList<>();
+                segment.forEachRemaining(rows::add);
+                Assert.assertEquals(records, rows.size());
+                for (int i = 0; i < records; i++) {
+                    Assert.assertEquals(1, (int) rows.get(i).f1());
+                    Assert.assertEquals(rows.get(0).f2() + i, (int) rows.get(i).f2());
+                }
+                firstValues.add(rows.get(0).f2());
+            }
+            Assert.assertEquals(new HashSet<>(Arrays.asList(0, 1000)), firstValues);
+        }
+        finally {
+            for (SegmentRequestBarrierProxy proxy : proxies) {
+                proxy.close();
+            }
+        }
+    }
+
+    /**
+     * 转发到shuffle service的代理, 每个连接上的第一个分段请求要等所有代理都收到分段请求后才转发.
+     * 分段请求逐个阻塞发出时, 第二个shuffle service的请求在第一个返回前不会发出, 只能等待超时
+     */
+    private static class SegmentRequestBarrierProxy
+            implements Closeable
+    {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final SocketAddress shuffleService;
+        private final CountDownLatch barrier;
+
+        private SegmentRequestBarrierProxy(SocketAddress shuffleService, CountDownLatch barrier)
+                throws IOException
+        {
+            this.shuffleService = shuffleService;
+            this.barrier = barrier;
+            Thread thread = new Thread(this::accept);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private SocketAddress getAddress()
+        {
+            return new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort());
+        }
+
+        private void accept()
+        {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket();
+                server.connect(shuffleService);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                Thread response = new Thread(() -> copy(server, client));
+                response.setDaemon(true);
+                response.start();
+                forwardRequests(client, server);
+            }
+            catch (IOException ignored) {
+                //代理关闭
+            }
+        }
+
+        private void forwardRequests(Socket client, Socket server)
+                throws IOException
+        {
+            DataInputStream input = new DataInputStream(client.getInputStream());
+            DataOutputStream output = new DataOutputStream(server.getOutputStream());
+            boolean segmentRequested = false;
+            while (true) {
+                byte[] frame = new byte[input.readInt()];
+                input.readFully(frame);
+                if (!segmentRequested && ByteBuffer.wrap(frame).getInt() == ShuffleManagerService.FETCH_SEGMENT) {
+                    segmentRequested = true;
+                    barrier.countDown();
+                    try {
+                        barrier.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                output.writeInt(frame.length);
+                output.write(frame);
+                output.flush();
+            }
+        }
+
+        private static void copy(Socket from, Socket to)
+        {
+            byte[] buffer = new byte[8192];
+            try (InputStream input = from.getInputStream(); OutputStream output = to.getOutputStream()) {
+                int n;
+                while ((n = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, n);
+                    output.flush();
+                }
+            }
+            catch (IOException ignored) {
+                //连接关闭
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            serverSocket.close();
+        }
+    }
+}
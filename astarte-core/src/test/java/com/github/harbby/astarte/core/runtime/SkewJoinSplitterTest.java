@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.MapTaskState;
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.CoalescedPartition;
+import com.github.harbby.astarte.core.api.Constant;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.SkewedPartition;
+import com.github.harbby.astarte.core.deprecated.JoinExperiment;
+import com.github.harbby.astarte.core.operator.SkewJoinSupport;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class SkewJoinSplitterTest
+{
+    private static final int MB = 1 << 20;
+    private final SkewJoinSplitter splitter;
+
+    public SkewJoinSplitterTest()
+    {
+        AstarteConf conf = new AstarteConf();
+        conf.put(Constant.JOIN_SKEW_THRESHOLD_BYTES, String.valueOf(10 * MB));
+        conf.put(Constant.SHUFFLE_COALESCE_TARGET_BYTES, String.valueOf(9 * MB));
+        this.splitter = new SkewJoinSplitter(conf);
+    }
+
+    private static SkewJoinSupport join(JoinExperiment.JoinMode joinMode)
+    {
+        return new SkewJoinSupport()
+        {
+            @Override
+            public int[] getShuffleMapIds()
+            {
+                return new int[] {1, 2};
+            }
+
+            @Override
+            public boolean canSplit(int side)
+            {
+                return !joinMode.isPreserved(1 - side);
+            }
+        };
+    }
+
+    /**
+     * 4个map task, 每个map输出中reduce分区2为4MB, 其他分区为100KB
+     */
+    private static MapTaskState[] skewedSide()
+    {
+        long[] partitionLengths = new long[] {100 << 10, 100 << 10, 4 * MB, 100 << 10};
+        return IntStream.range(0, 4).mapToObj(i -> new MapTaskState(partitionLengths)).toArray(MapTaskState[]::new);
+    }
+
+    private static MapTaskState[] uniformSide()
+    {
+        return new MapTaskState[] {new MapTaskState(new long[] {1 << 10, 1 << 10, 1 << 10, 1 << 10})};
+    }
+
+    @Test
+    public void splitMapsTest()
+    {
+        Assert.assertEquals(Arrays.asList(0, 2, 3, 5), SkewJoinSplitter.splitMaps(new long[] {3, 4, 10, 2, 1}, 8));
+        Assert.assertEquals(Arrays.asList(0, 0), SkewJoinSplitter.splitMaps(new long[0], 8));
+    }
+
+    @Test
+    public void splitSkewedPartitionTest()
+    {
+        Partition[] partitions = splitter.split(new MapTaskState[][] {skewedSide(), uniformSide()}, join(JoinExperiment.JoinMode.INNER_JOIN), 4);
+        //约16MB的倾斜分区按9MB拆分给2个task, 每个task读取左侧2个map的输出
+        Assert.assertEquals(5, partitions.length);
+        Assert.assertEquals(new CoalescedPartition(0, 0, 1), partitions[0]);
+        Assert.assertEquals(new CoalescedPartition(1, 1, 2), partitions[1]);
+        Assert.assertEquals(new SkewedPartition(2, 2, 0, 0, 2), partitions[2]);
+        Assert.assertEquals(new SkewedPartition(3, 2, 0, 2, 4), partitions[3]);
+        Assert.assertEquals(new CoalescedPartition(4, 3, 4), partitions[4]);
+
+        //右侧倾斜
+        partitions = splitter.split(new MapTaskState[][] {uniformSide(), skewedSide()}, join(JoinExperiment.JoinMode.INNER_JOIN), 4);
+        Assert.assertEquals(new SkewedPartition(3, 2, 1, 2, 4), partitions[3]);
+    }
+
+    @Test
+    public void notSplitPreservedSideTest()
+    {
+        //left join的左侧会被复制, 不能拆分右侧
+        Partition[] partitions = splitter.split(new MapTaskState[][] {uniformSide(), skewedSide()}, join(JoinExperiment.JoinMode.LEFT_JOIN), 4);
+        Assert.assertEquals(4, partitions.length);
+        Assert.assertTrue(Arrays.stream(partitions).noneMatch(partition -> partition instanceof SkewedPartition));
+
+        partitions = splitter.split(new MapTaskState[][] {skewedSide(), uniformSide()}, join(JoinExperiment.JoinMode.LEFT_JOIN), 4);
+        Assert.assertEquals(5, partitions.length);
+    }
+
+    @Test
+    public void notSplitBelowThresholdTest()
+    {
+        MapTaskState[] small = new MapTaskState[] {new MapTaskState(new long[] {1 << 10, 1 << 10, MB, 1 << 10})};
+        Partition[] partitions = splitter.split(new MapTaskState[][] {small, uniformSide()}, join(JoinExperiment.JoinMode.INNER_JOIN), 4);
+        Assert.assertEquals(4, partitions.length);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.Stage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class StageDagTest
+{
+    private static Stage stage(int stageId)
+    {
+        return new Stage(null, 1, stageId)
+        {
+            @Override
+            public void compute(Partition split, TaskContext taskContext)
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static List<Integer> ids(List<Stage> stages)
+    {
+        return stages.stream().map(Stage::getStageId).sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    public void joinSidesRunConcurrentlyTest()
+    {
+        //result(0) <- join(1) <- [left(2), right(3) <- source(4)]
+        Stage result = stage(0);
+        Stage join = stage(1);
+        Stage left = stage(2);
+        Stage right = stage(3);
+        Stage source = stage(4);
+        Map<Stage, Map<Integer, Integer>> stageMap = new LinkedHashMap<>();
+        stageMap.put(result, new HashMap<>());
+        stageMap.get(result).put(101, 1);
+        stageMap.put(join, new HashMap<>());
+        stageMap.get(join).put(102, 2);
+        stageMap.get(join).put(103, 3);
+        stageMap.put(left, new HashMap<>());
+        stageMap.put(right, new HashMap<>());
+        stageMap.get(right).put(104, 4);
+        stageMap.put(source, new HashMap<>());
+        //缓存算子推测出的依赖stage不在job中
+        stageMap.get(left).put(105, 9);
+
+        StageDag stageDag = new StageDag(Arrays.asList(source, right, left, join, result), stageMap);
+        Assert.assertEquals(Arrays.asList(2, 4), ids(stageDag.nextReadyStages()));
+        Assert.assertTrue(stageDag.nextReadyStages().isEmpty());
+
+        stageDag.stageFinished(2);
+        Assert.assertTrue(stageDag.nextReadyStages().isEmpty());
+        stageDag.stageFinished(4);
+        Assert.assertEquals(Arrays.asList(3), ids(stageDag.nextReadyStages()));
+        stageDag.stageFinished(3);
+        Assert.assertEquals(Arrays.asList(1), ids(stageDag.nextReadyStages()));
+        stageDag.stageFinished(1);
+        Assert.assertEquals(Arrays.asList(0), ids(stageDag.nextReadyStages()));
+        Assert.assertTrue(stageDag.isFinished(1));
+        Assert.assertFalse(stageDag.isFinished(0));
+    }
+
+    @Test
+    public void reopenLostStageTest()
+    {
+        //result(0) <- reduce(1) <- map(2)
+        Stage result = stage(0);
+        Stage reduce = stage(1);
+        Stage map = stage(2);
+        Map<Stage, Map<Integer, Integer>> stageMap = new HashMap<>();
+        stageMap.put(result, new HashMap<>());
+        stageMap.get(result).put(101, 1);
+        stageMap.put(reduce, new HashMap<>());
+        stageMap.get(reduce).put(102, 2);
+
+        StageDag stageDag = new StageDag(Arrays.asList(map, reduce, result), stageMap);
+        Assert.assertEquals(Arrays.asList(2), ids(stageDag.nextReadyStages()));
+        stageDag.stageFinished(2);
+        Assert.assertEquals(Arrays.asList(1), ids(stageDag.nextReadyStages()));
+
+        //map输出丢失, 运行中的reduce停止, 只有map可以重新提交
+        stageDag.reopen(2);
+        stageDag.reopen(1);
+        Assert.assertFalse(stageDag.isFinished(2));
+        Assert.assertEquals(Arrays.asList(2), ids(stageDag.nextReadyStages()));
+        stageDag.stageFinished(2);
+        Assert.assertEquals(Arrays.asList(1), ids(stageDag.nextReadyStages()));
+    }
+}
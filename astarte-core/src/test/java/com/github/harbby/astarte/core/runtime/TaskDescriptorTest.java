@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.TaskContext;
+import com.github.harbby.astarte.core.api.Partition;
+import com.github.harbby.astarte.core.api.Stage;
+import com.github.harbby.astarte.core.api.Task;
+import com.github.harbby.astarte.core.api.function.Mapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TaskDescriptorTest
+{
+    /**
+     * 每次运行向算子状态中追加一条记录, 返回状态中的记录数
+     */
+    private static class StatefulTask
+            implements Task<Integer>
+    {
+        private final int taskId;
+        private final List<Integer> state;
+
+        private StatefulTask(int taskId, List<Integer> state)
+        {
+            this.taskId = taskId;
+            this.state = state;
+        }
+
+        @Override
+        public int getTaskId()
+        {
+            return taskId;
+        }
+
+        @Override
+        public Integer runTask(TaskContext taskContext)
+        {
+            state.add(taskId);
+            return state.size();
+        }
+
+        @Override
+        public Stage getStage()
+        {
+            return null;
+        }
+    }
+
+    @Test
+    public void createIndependentTasksFromStageBinaryTest()
+    {
+        List<Integer> state = new ArrayList<>();
+        Mapper<Partition, Task<?>> taskFactory = partition -> new StatefulTask(partition.getId(), state);
+        long stageBinaryId = TaskDescriptor.broadcastStageBinary(taskFactory);
+        //模拟executor: 第一次读取时从driver拉取数据块
+        List<Long> requests = new ArrayList<>();
+        BroadcastManager.setFetchRequester(id -> {
+            requests.add(id);
+            byte[][] blocks = BroadcastManager.getDriverBlocks(id);
+            for (int i = 0; i < blocks.length; i++) {
+                BroadcastManager.putBlock(new BroadcastEvent.Block(id, i, blocks.length, blocks[i]));
+            }
+        });
+        try {
+            TaskDescriptor descriptor1 = new TaskDescriptor(1, 2, new Partition(0), 0, stageBinaryId);
+            TaskDescriptor descriptor2 = new TaskDescriptor(1, 2, new Partition(1), 0, stageBinaryId);
+            StatefulTask task1 = (StatefulTask) descriptor1.createTask();
+            StatefulTask task2 = (StatefulTask) descriptor2.createTask();
+            StatefulTask task3 = (StatefulTask) descriptor1.createTask();
+
+            Assert.assertEquals(0, task1.getTaskId());
+            Assert.assertEquals(1, task2.getTaskId());
+            //stage二进制只拉取一次, 每个task各自反序列化, 不共享算子状态
+            Assert.assertEquals(1, requests.size());
+            Assert.assertNotSame(task1.state, task2.state);
+            Assert.assertNotSame(task1.state, task3.state);
+            Assert.assertEquals(1, (int) task1.runTask(null));
+            Assert.assertEquals(2, (int) task1.runTask(null));
+            Assert.assertEquals(1, (int) task2.runTask(null));
+            Assert.assertEquals(1, (int) task3.runTask(null));
+            Assert.assertTrue(state.isEmpty());
+        }
+        finally {
+            BroadcastManager.setFetchRequester(null);
+            BroadcastManager.remove(stageBinaryId);
+        }
+    }
+}
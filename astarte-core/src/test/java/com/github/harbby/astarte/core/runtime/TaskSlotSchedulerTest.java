@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.runtime;
+
+import com.github.harbby.astarte.core.api.Partition;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TaskSlotSchedulerTest
+{
+    private final SocketAddress executor1 = InetSocketAddress.createUnresolved("executor1", 1);
+    private final SocketAddress executor2 = InetSocketAddress.createUnresolved("executor2", 2);
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<SocketAddress, List<TaskDescriptor>> dispatched = new HashMap<>();
+    private final TaskSlotScheduler scheduler = new TaskSlotScheduler(1000,
+            (executor, task) -> dispatched.computeIfAbsent(executor, k -> new ArrayList<>()).add(task), clock::get);
+
+    private static TaskDescriptor task(int taskId)
+    {
+        return new TaskDescriptor(1, 0, new Partition(taskId), 0, 0);
+    }
+
+    private int dispatchedNum(SocketAddress executor)
+    {
+        return dispatched.getOrDefault(executor, Collections.emptyList()).size();
+    }
+
+    private void finish(SocketAddress executor, TaskDescriptor task)
+    {
+        scheduler.taskFinished(executor, new TaskEvent.TaskSuccess(task, executor, null, null));
+    }
+
+    @Test
+    public void dispatchOnlyWhenSlotFreeTest()
+    {
+        scheduler.addExecutor(executor1, 2);
+        scheduler.addExecutor(executor2, 2);
+        for (int i = 0; i < 6; i++) {
+            scheduler.submit(task(i), Collections.emptyList());
+        }
+        Assert.assertEquals(4, scheduler.schedule());
+        Assert.assertEquals(2, dispatchedNum(executor1));
+        Assert.assertEquals(2, dispatchedNum(executor2));
+        Assert.assertEquals(2, scheduler.getPendingTaskNum());
+        Assert.assertEquals(0, scheduler.schedule());
+
+        finish(executor2, dispatched.get(executor2).get(0));
+        Assert.assertEquals(1, scheduler.schedule());
+        Assert.assertEquals(3, dispatchedNum(executor2));
+        Assert.assertEquals(1, scheduler.getPendingTaskNum());
+    }
+
+    @Test
+    public void delaySchedulingTest()
+    {
+        scheduler.addExecutor(executor1, 1);
+        scheduler.addExecutor(executor2, 1);
+        TaskDescriptor running = task(0);
+        scheduler.submit(running, Collections.singletonList(executor1));
+        scheduler.submit(task(1), Collections.singletonList(executor1));
+        Assert.assertEquals(1, scheduler.schedule());
+        Assert.assertEquals(1, dispatchedNum(executor1));
+
+        //executor1没有空闲槽位, 在等待时间内不下发到executor2
+        clock.set(999);
+        Assert.assertEquals(0, scheduler.schedule());
+        Assert.assertEquals(0, dispatchedNum(executor2));
+
+        //等待超时, 退化到空闲的executor2
+        clock.set(1000);
+        Assert.assertEquals(1, scheduler.schedule());
+        Assert.assertEquals(1, dispatchedNum(executor2));
+    }
+
+    @Test
+    public void preferredExecutorTest()
+    {
+        scheduler.addExecutor(executor1, 2);
+        scheduler.addExecutor(executor2, 2);
+        scheduler.submit(task(0), Arrays.asList(executor2, executor1));
+        scheduler.submit(task(1), Collections.singletonList(executor2));
+        //优先executor未注册时无需等待
+        scheduler.submit(task(2), Collections.singletonList(InetSocketAddress.createUnresolved("lost", 3)));
+        Assert.assertEquals(3, scheduler.schedule());
+        Assert.assertEquals(2, dispatchedNum(executor2));
+        Assert.assertEquals(1, dispatchedNum(executor1));
+        Assert.assertEquals(2, dispatched.get(executor1).get(0).getTaskId());
+    }
+
+    @Test
+    public void speculativeAttemptTest()
+    {
+        scheduler.addExecutor(executor1, 1);
+        scheduler.addExecutor(executor2, 1);
+        TaskDescriptor attempt0 = task(0);
+        scheduler.submit(attempt0, Collections.singletonList(executor1));
+        scheduler.schedule();
+        clock.set(500);
+        Assert.assertEquals(0, scheduler.getRunningTasks(1, 0).get(0).getLaunchTime());
+
+        //推测的attempt不能调度到原attempt所在的executor
+        TaskDescriptor attempt1 = new TaskDescriptor(1, 0, new Partition(0), 1, 0);
+        scheduler.submit(attempt1, Collections.emptyList(), Collections.singleton(executor2));
+        Assert.assertEquals(0, scheduler.schedule());
+        scheduler.cancelPendingTasks(1);
+        scheduler.submit(attempt1, Collections.emptyList(), Collections.singleton(executor1));
+        Assert.assertEquals(1, scheduler.schedule());
+        Assert.assertEquals(1, dispatched.get(executor2).get(0).getAttempt());
+        Assert.assertEquals(2, scheduler.getRunningTasks(1, 0).size());
+
+        //attempt1先成功, 停止attempt0
+        finish(executor2, attempt1);
+        List<TaskSlotScheduler.RunningTask> killed = scheduler.killTask(1, 0, 0, 1);
+        Assert.assertEquals(1, killed.size());
+        Assert.assertEquals(executor1, killed.get(0).getExecutor());
+        Assert.assertEquals(0, killed.get(0).getTask().getAttempt());
+        Assert.assertTrue(scheduler.getRunningTasks(1, 0).isEmpty());
+    }
+
+    @Test
+    public void killedAttemptHoldsSlotTest()
+    {
+        scheduler.addExecutor(executor1, 1);
+        TaskDescriptor attempt0 = task(0);
+        scheduler.submit(attempt0, Collections.emptyList());
+        Assert.assertEquals(1, scheduler.schedule());
+        Assert.assertEquals(1, scheduler.killTask(1, 0, 0, -1).size());
+        //重复停止不会再次通知executor
+        Assert.assertTrue(scheduler.killTask(1, 0, 0, -1).isEmpty());
+
+        //被停止的attempt汇报结束之前不释放槽位
+        scheduler.submit(task(1), Collections.emptyList());
+        Assert.assertEquals(0, scheduler.schedule());
+        Assert.assertEquals(1, scheduler.getExecutorUtilization().get(0).getRunningTasks());
+        scheduler.taskFinished(executor1, TaskEvent.failed(attempt0, executor1, "task killed"));
+        Assert.assertEquals(1, scheduler.schedule());
+        Assert.assertEquals(1, dispatched.get(executor1).get(1).getTaskId());
+    }
+
+    @Test
+    public void cancelAndUtilizationTest()
+    {
+        scheduler.addExecutor(executor1, 2);
+        TaskDescriptor task = task(0);
+        scheduler.submit(task, Collections.emptyList());
+        scheduler.submit(new TaskDescriptor(2, 0, new Partition(0), 0, 0), Collections.emptyList());
+        scheduler.submit(new TaskDescriptor(2, 0, new Partition(1), 0, 0), Collections.emptyList());
+        scheduler.schedule();
+        Assert.assertEquals(1, scheduler.cancelPendingTasks(2));
+        Assert.assertEquals(0, scheduler.getPendingTaskNum());
+
+        clock.set(100);
+        finish(executor1, task);
+        TaskSlotScheduler.ExecutorUtilization utilization = scheduler.getExecutorUtilization().get(0);
+        Assert.assertEquals(2, utilization.getSlots());
+        Assert.assertEquals(1, utilization.getRunningTasks());
+        Assert.assertEquals(1, utilization.getFinishedTasks());
+        Assert.assertEquals(1.0, utilization.getUtilization(), 1e-6);
+    }
+
+    @Test
+    public void removeExecutorTest()
+    {
+        scheduler.addExecutor(executor1, 1);
+        scheduler.addExecutor(executor2, 1);
+        scheduler.submit(task(0), Collections.singletonList(executor1));
+        scheduler.submit(task(1), Collections.singletonList(executor2));
+        Assert.assertEquals(2, scheduler.schedule());
+
+        //executor丢失时返回其上运行的task, 之后不再向其下发task
+        List<TaskSlotScheduler.RunningTask> lost = scheduler.removeExecutor(executor1);
+        Assert.assertEquals(1, lost.size());
+        Assert.assertEquals(0, lost.get(0).getTask().getTaskId());
+        Assert.assertTrue(scheduler.removeExecutor(executor1).isEmpty());
+        Assert.assertEquals(1, scheduler.getExecutorNum());
+
+        finish(executor2, dispatched.get(executor2).get(0));
+        scheduler.submit(lost.get(0).getTask(), Collections.singletonList(executor1));
+        Assert.assertEquals(1, scheduler.schedule());
+        Assert.assertEquals(2, dispatchedNum(executor2));
+        Assert.assertEquals(1, dispatchedNum(executor1));
+    }
+
+    @Test
+    public void fifoJobsTest()
+    {
+        scheduler.addExecutor(executor1, 2);
+        scheduler.submit(new TaskDescriptor(2, 0, new Partition(0), 0, 0), Collections.emptyList());
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(task(i), Collections.emptyList());
+        }
+        //FIFO下先提交的job(jobId更小)优先使用全部槽位
+        Assert.assertEquals(2, scheduler.schedule());
+        Assert.assertTrue(dispatched.get(executor1).stream().allMatch(task -> task.getJobId() == 1));
+    }
+
+    @Test
+    public void fairJobsTest()
+    {
+        Map<SocketAddress, List<TaskDescriptor>> fairDispatched = new HashMap<>();
+        TaskSlotScheduler fairScheduler = new TaskSlotScheduler(TaskSlotScheduler.SchedulingMode.FAIR, 1000,
+                (executor, task) -> fairDispatched.computeIfAbsent(executor, k -> new ArrayList<>()).add(task), clock::get);
+        fairScheduler.addExecutor(executor1, 4);
+        for (int i = 0; i < 4; i++) {
+            fairScheduler.submit(task(i), Collections.emptyList());
+        }
+        Assert.assertEquals(4, fairScheduler.schedule());
+
+        //job1占满槽位后提交job2, 空出的槽位优先分给运行task更少的job2
+        for (int i = 0; i < 2; i++) {
+            fairScheduler.submit(task(4 + i), Collections.emptyList());
+            fairScheduler.submit(new TaskDescriptor(2, 0, new Partition(i), 0, 0), Collections.emptyList());
+        }
+        for (int i = 0; i < 2; i++) {
+            TaskDescriptor finished = fairDispatched.get(executor1).get(i);
+            fairScheduler.taskFinished(executor1, new TaskEvent.TaskSuccess(finished, executor1, null, null));
+        }
+        Assert.assertEquals(2, fairScheduler.schedule());
+        List<TaskDescriptor> tasks = fairDispatched.get(executor1);
+        Assert.assertEquals(2, tasks.get(4).getJobId());
+        Assert.assertEquals(2, tasks.get(5).getJobId());
+        Assert.assertEquals(2, fairScheduler.getPendingTaskNum());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 The Astarte Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.harbby.astarte.core.serializer;
+
+import com.github.harbby.astarte.core.TaskMetrics;
+import com.github.harbby.astarte.core.api.AstarteConf;
+import com.github.harbby.astarte.core.api.Constant;
+import com.github.harbby.astarte.core.compress.Lz4Codec;
+import com.github.harbby.astarte.core.compress.NoneCodec;
+import com.github.harbby.gadtry.collection.tuple.Tuple2;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class SerializerTest
+{
+    private static final List<Object> VALUES = Arrays.asList(
+            null,
+            1, -2L, 3.5D, 4.5F, (short) 6, (byte) 7, true, 'c',
+            "",
+            "astarte \u4E2D\u6587",
+            Tuple2.of("k", 1),
+            Tuple2.of(Tuple2.of(1L, null), new String[] {"a", null}),
+            new byte[] {1, 2},
+            new int[] {3, 4},
+            new long[] {5L},
+            new double[] {6.5D},
+            new BigDecimal("1.25"),
+            Arrays.asList(1, 2, 3));
+
+    private static void assertValueEquals(Object expected, Object actual)
+    {
+        if (expected instanceof Tuple2) {
+            Assert.assertTrue(actual instanceof Tuple2);
+            assertValueEquals(((Tuple2<?, ?>) expected).f1(), ((Tuple2<?, ?>) actual).f1());
+            assertValueEquals(((Tuple2<?, ?>) expected).f2(), ((Tuple2<?, ?>) actual).f2());
+        }
+        else if (expected != null && expected.getClass().isArray()) {
+            Assert.assertEquals(expected.getClass(), actual.getClass());
+            Assert.assertTrue(Arrays.deepEquals(new Object[] {expected}, new Object[] {actual}));
+        }
+        else {
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    private static void checkStreamRoundTrip(Serializer serializer)
+            throws IOException
+    {
+        SerializerInstance instance = serializer.newInstance();
+        for (Object value : VALUES) {
+            assertValueEquals(value, instance.deserialize(instance.serialize(value)));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordBlockWriter writer = new RecordBlockWriter(instance, new NoneCodec(), bytes, 64, new TaskMetrics());
+        for (int i = 0; i < 10; i++) {
+            for (Object value : VALUES) {
+                writer.write(value);
+            }
+        }
+        writer.flushBlock();
+        Assert.assertEquals(bytes.size(), writer.getBytesWritten());
+
+        Iterator<Object> reader = new RecordBlockReader<>(instance, new NoneCodec(),
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), bytes.size(), new TaskMetrics());
+        List<Object> result = new ArrayList<>();
+        reader.forEachRemaining(result::add);
+        Assert.assertEquals(VALUES.size() * 10, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertValueEquals(VALUES.get(i % VALUES.size()), result.get(i));
+        }
+    }
+
+    @Test
+    public void astarteSerializerTest()
+            throws IOException
+    {
+        checkStreamRoundTrip(new AstarteSerializer());
+    }
+
+    @Test
+    public void javaSerializerTest()
+            throws IOException
+    {
+        checkStreamRoundTrip(new JavaSerializer());
+    }
+
+    @Test
+    public void createFromConfTest()
+    {
+        AstarteConf conf = new AstarteConf();
+        Assert.assertTrue(Serializer.create(conf) instanceof AstarteSerializer);
+        conf.put(Constant.SERIALIZER_CLASS, JavaSerializer.class.getName());
+        Assert.assertTrue(Serializer.create(conf) instanceof JavaSerializer);
+
+        Assert.assertTrue(SerializerManager.create(conf).getCodec() instanceof Lz4Codec);
+        conf.put(Constant.SHUFFLE_COMPRESS_CODEC, "none");
+        Assert.assertTrue(SerializerManager.create(conf).getCodec() instanceof NoneCodec);
+    }
+
+    @Test
+    public void astarteSerializerSmallerThanJavaTest()
+            throws IOException
+    {
+        Tuple2<String, Integer> record = Tuple2.of("word", 1);
+        int fast = new AstarteSerializer().newInstance().serialize(record).length;
+        int java = new JavaSerializer().newInstance().serialize(record).length;
+        Assert.assertTrue(fast * 5 < java);
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.github.harbby.astarte.yarn.batch;
 
+import com.github.harbby.astarte.core.api.AstarteConf;
 import com.github.harbby.astarte.core.runtime.ExecutorManager;
 import com.github.harbby.gadtry.base.Throwables;
 import org.apache.hadoop.conf.Configuration;
@@ -78,8 +79,8 @@ public class AstarteYarnAppDriver
                     TimeUnit.SECONDS.sleep(10);
                 }
             });
-            ExecutorManager.setFactory((int vcores, int memMb, int executorNum) ->
-                    new YarnExecutorManager(resourceManagerClient, vcores, memMb, executorNum));
+            ExecutorManager.setFactory((AstarteConf conf, int vcores, int memMb, int executorNum) ->
+                    new YarnExecutorManager(resourceManagerClient, conf, vcores, memMb, executorNum));
             try {
                 mainClass.getMethod("main", String[].class)
                         .invoke(null, (Object) userArgs);
@@ -15,6 +15,7 @@
  */
 package com.github.harbby.astarte.yarn.batch;
 
+import com.github.harbby.astarte.core.api.AstarteConf;
 import com.github.harbby.astarte.core.runtime.ExecutorManager;
 import com.github.harbby.astarte.core.runtime.TaskExecutor;
 import com.github.harbby.gadtry.base.Throwables;
@@ -46,11 +47,12 @@ public class YarnExecutorManager
 
     public YarnExecutorManager(
             AMRMClient<AMRMClient.ContainerRequest> rmClient,
+            AstarteConf conf,
             int vcores,
             int memMb,
             int executorNum)
     {
-        super(vcores, memMb, executorNum);
+        super(conf, vcores, memMb, executorNum);
         this.rmClient = rmClient;
     }
 
@@ -96,7 +98,7 @@ public class YarnExecutorManager
                 System.getProperty("java.class.path") +
                 " -Djava.library.path=" + javaLibPath +
                 " -Dlogback.configurationFile=/ideal/workspce/github/astarte/conf/logback.xml " +
-                TaskExecutor.class.getName();
+                TaskExecutor.class.getName() + " " + getVcores() + " " + TaskExecutor.encodeConf(getConf());
         logger.info("amCommand {}", amCommand);
         amContainer.setCommands(Collections.singletonList(amCommand));
 